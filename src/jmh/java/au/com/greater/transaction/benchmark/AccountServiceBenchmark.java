@@ -0,0 +1,73 @@
+package au.com.greater.transaction.benchmark;
+
+import au.com.greater.transaction.account.AccountStoreConfiguration;
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.parser.TransactionFileParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for applying a parsed transaction file to customer accounts.
+ *
+ * @author Justin Lewis Salmon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AccountServiceBenchmark {
+
+  @Param({"heap", "primitive", "offheap"})
+  public String accountStore;
+
+  private TransactionFile file;
+
+  private CustomerAccountService accountService;
+
+  @Setup
+  public void setup(TransactionFileFixture fixture) {
+    file = TransactionFileParser.fromPath(fixture.path);
+  }
+
+  /**
+   * Start each iteration with empty accounts, so that the number of accounts
+   * is the same whatever the number of invocations.
+   */
+  @Setup(Level.Iteration)
+  public void createService() {
+    accountService = new CustomerAccountService(AccountStoreConfiguration.create(accountStore, "", 256, 0, 65536));
+  }
+
+  @Benchmark
+  public int applyTransactions() {
+    accountService.applyTransactions(file);
+    return accountService.getNumAccounts();
+  }
+
+  @Benchmark
+  public int applyTransactionsAggregated() {
+    accountService.applyTransactionsAggregated(file);
+    return accountService.getNumAccounts();
+  }
+
+  @Benchmark
+  public int applyTransactionsInParallel() {
+    accountService.applyTransactionsInParallel(file);
+    return accountService.getNumAccounts();
+  }
+}
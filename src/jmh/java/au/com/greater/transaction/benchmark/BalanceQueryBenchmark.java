@@ -0,0 +1,71 @@
+package au.com.greater.transaction.benchmark;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.query.BalanceQueryService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.OptionalLong;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for balance lookups against the published snapshot, both alone
+ * and while a writer repeatedly republishes every balance. Sample mode
+ * reports the latency percentiles of single lookups.
+ *
+ * @author Justin Lewis Salmon
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BalanceQueryBenchmark {
+
+  @Param({"1000000"})
+  public int accounts;
+
+  private BalanceQueryService queries;
+
+  @Setup
+  public void setup() {
+    CustomerAccountService accountService = new CustomerAccountService();
+
+    for (int i = 0; i < accounts; i++) {
+      accountService.restoreBalance(i, i);
+    }
+
+    queries = new BalanceQueryService(accountService);
+    queries.publishAll();
+  }
+
+  @Benchmark
+  @Group("idle")
+  public OptionalLong lookup() {
+    return queries.getBalanceCents(ThreadLocalRandom.current().nextInt(accounts));
+  }
+
+  @Benchmark
+  @Group("publishing")
+  public OptionalLong lookupWhilePublishing() {
+    return queries.getBalanceCents(ThreadLocalRandom.current().nextInt(accounts));
+  }
+
+  @Benchmark
+  @Group("publishing")
+  public void publish() {
+    queries.publishAll();
+  }
+}
@@ -0,0 +1,42 @@
+package au.com.greater.transaction.benchmark;
+
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.parser.TransactionFileParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for parsing whole transaction files.
+ *
+ * @author Justin Lewis Salmon
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParserBenchmark {
+
+  @Benchmark
+  public TransactionFile fromPath(TransactionFileFixture fixture) {
+    return TransactionFileParser.fromPath(fixture.path);
+  }
+
+  @Benchmark
+  public long streamFromPath(TransactionFileFixture fixture, Blackhole blackhole) {
+    return TransactionFileParser.streamFromPath(fixture.path, blackhole::consume);
+  }
+
+  @Benchmark
+  public TransactionFile fromPathInParallel(TransactionFileFixture fixture) {
+    return TransactionFileParser.fromPathInParallel(fixture.path);
+  }
+}
@@ -0,0 +1,42 @@
+package au.com.greater.transaction.benchmark;
+
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.parser.TransactionFileParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for generating the report of a parsed transaction file.
+ *
+ * @author Justin Lewis Salmon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ReportBenchmark {
+
+  private TransactionFile file;
+
+  @Setup
+  public void setup(TransactionFileFixture fixture) {
+    file = TransactionFileParser.fromPath(fixture.path);
+  }
+
+  @Benchmark
+  public String generateReport() {
+    return file.generateReport();
+  }
+}
@@ -0,0 +1,51 @@
+package au.com.greater.transaction.benchmark;
+
+import au.com.greater.transaction.parser.TransactionTokenizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for tokenizing a single line, which replaced the original
+ * string-based {@code processLine}.
+ *
+ * @author Justin Lewis Salmon
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TokenizerBenchmark {
+
+  @Param({"938490885, 4627.22", "938490885, -0.5e3", "abcdefghi, 4627.22", "938490885, 46.27.22"})
+  public String line;
+
+  private TransactionTokenizer tokenizer;
+
+  private ByteBuffer buffer;
+
+  @Setup
+  public void setup() {
+    tokenizer = new TransactionTokenizer(false);
+    buffer = ByteBuffer.wrap(line.getBytes(StandardCharsets.US_ASCII));
+  }
+
+  @Benchmark
+  public long tokenizeLine() {
+    return tokenizer.tokenizeLine(buffer, 0, buffer.capacity()) ? tokenizer.getAmountCents() : -1;
+  }
+}
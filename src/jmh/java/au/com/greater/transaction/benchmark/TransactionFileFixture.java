@@ -0,0 +1,113 @@
+package au.com.greater.transaction.benchmark;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Random;
+
+/**
+ * A generated customer transaction file, shared by the benchmarks.
+ *
+ * Fixtures are generated deterministically and cached in the
+ * {@literal transaction-benchmarks} directory under {@literal java.io.tmpdir},
+ * so that large files (up to tens of millions of lines) are only written once.
+ *
+ * @author Justin Lewis Salmon
+ */
+@State(Scope.Benchmark)
+public class TransactionFileFixture {
+
+  private static final String[] CORRUPT_LINES = {
+      "abcdefghi, 4627.22",
+      "938490885",
+      "938490885, 46.27.22",
+      "938490885, 4627.22, 938490885",
+      "",
+  };
+
+  /**
+   * The number of transaction lines in the file. Pass e.g.
+   * {@literal -p lines=50000000} for production-sized files.
+   */
+  @Param({"10000", "1000000"})
+  public int lines;
+
+  /**
+   * The fraction of lines which are corrupt and should be skipped.
+   */
+  @Param({"0", "0.1"})
+  public double corruptRatio;
+
+  /**
+   * The number of distinct customer accounts.
+   */
+  @Param({"100000"})
+  public int accounts;
+
+  /**
+   * How transactions are spread across accounts: "uniform", or "skewed" for
+   * a heavy-tailed distribution where a few accounts receive most
+   * transactions.
+   */
+  @Param({"uniform", "skewed"})
+  public String skew;
+
+  public Path path;
+
+  @Setup
+  public void setup() throws IOException {
+    Path dir = Paths.get(System.getProperty("java.io.tmpdir"), "transaction-benchmarks");
+    Files.createDirectories(dir);
+
+    path = dir.resolve(String.format("finance_customer_transactions-%d-%s-%d-%s.csv",
+        lines, corruptRatio, accounts, skew));
+
+    if (!Files.exists(path)) {
+      generate(path, lines, corruptRatio, accounts, skew.equals("skewed"));
+    }
+  }
+
+  /**
+   * Write a transaction file, via a temporary file so that an interrupted
+   * run never leaves a truncated fixture behind.
+   */
+  static void generate(Path path, int lines, double corruptRatio, int accounts, boolean skewed) throws IOException {
+    Path tempPath = Paths.get(path + ".tmp");
+    Random random = new Random(lines);
+
+    try (BufferedWriter writer = Files.newBufferedWriter(tempPath, StandardCharsets.US_ASCII)) {
+      writer.write("Customer Account#, Transaction Amount\n");
+
+      for (int i = 0; i < lines; i++) {
+        if (random.nextDouble() < corruptRatio) {
+          writer.write(CORRUPT_LINES[random.nextInt(CORRUPT_LINES.length)]);
+        } else {
+          // A log-uniform index is heavily weighted towards low account ids
+          int id = skewed ? (int) Math.pow(accounts, random.nextDouble()) - 1 : random.nextInt(accounts);
+          long cents = random.nextInt(2000000) - 1000000;
+
+          writer.write(Integer.toString(100000000 + id));
+          writer.write(", ");
+          writer.write(cents < 0 ? "-" : "");
+          writer.write(Long.toString(Math.abs(cents) / 100));
+          writer.write('.');
+          writer.write(Math.abs(cents) % 100 < 10 ? "0" : "");
+          writer.write(Long.toString(Math.abs(cents) % 100));
+        }
+
+        writer.write('\n');
+      }
+    }
+
+    Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+  }
+}
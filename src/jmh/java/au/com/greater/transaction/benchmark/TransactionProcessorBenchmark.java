@@ -0,0 +1,72 @@
+package au.com.greater.transaction.benchmark;
+
+import au.com.greater.transaction.TransactionProcessor;
+import au.com.greater.transaction.account.CustomerAccountService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for the full processing workflow: parsing, applying, reporting
+ * and archiving a batch of pending transaction files.
+ *
+ * @author Justin Lewis Salmon
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class TransactionProcessorBenchmark {
+
+  @Param({"4"})
+  public int files;
+
+  private Path baseDir;
+
+  private Path pendingDir;
+
+  private TransactionProcessor processor;
+
+  @Setup(Level.Iteration)
+  public void setup(TransactionFileFixture fixture) throws IOException {
+    baseDir = Files.createTempDirectory("transaction-processor-benchmark");
+    pendingDir = Files.createDirectory(baseDir.resolve("pending"));
+
+    for (int i = 0; i < files; i++) {
+      Files.copy(fixture.path, pendingDir.resolve("finance_customer_transactions-" + i + ".csv"));
+    }
+
+    processor = new TransactionProcessor(new CustomerAccountService());
+    processor.setPendingDir(pendingDir.toString());
+    processor.setReportsDir(Files.createDirectory(baseDir.resolve("reports")).toString());
+    processor.setArchiveDir(Files.createDirectory(baseDir.resolve("processed")).toString());
+  }
+
+  @Benchmark
+  public void execute() {
+    processor.execute();
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    FileSystemUtils.deleteRecursively(baseDir.toFile());
+  }
+}
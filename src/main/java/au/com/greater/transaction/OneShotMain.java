@@ -0,0 +1,170 @@
+package au.com.greater.transaction;
+
+import au.com.greater.transaction.account.AccountStore;
+import au.com.greater.transaction.account.AccountStoreConfiguration;
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.history.TransactionHistoryStore;
+import au.com.greater.transaction.persistence.AccountPersistence;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+import java.util.Properties;
+
+/**
+ * This is a lightweight entry point which processes the pending transaction
+ * files once and exits, for use by an external scheduler (e.g. cron).
+ *
+ * Unlike {@link Main}, it does not start a Spring context: the
+ * {@link TransactionProcessor} and its collaborators are wired by hand, so
+ * the JVM only loads the classes it needs, and starts in a fraction of the
+ * time. Scheduling, directory watching, sharding, balance queries and metrics
+ * endpoints are only available in the long-running application.
+ *
+ * It is configured with the same properties as the long-running application,
+ * passed as system properties (e.g. {@literal -Dprocessing.stateDir=...}).
+ * The directories default to those under {@literal processing.baseDir}, or
+ * the {@literal TRANSACTION_PROCESSING} environment variable.
+ *
+ * The exit status is 0 if all pending files were processed, 1 if processing
+ * failed and 2 if the configuration is invalid.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class OneShotMain {
+
+  static final int SUCCESS = 0;
+  static final int PROCESSING_FAILED = 1;
+  static final int INVALID_CONFIGURATION = 2;
+
+  public static void main(String[] args) {
+    // Must be set before the first logger is created
+    if (System.getProperty("logback.configurationFile") == null) {
+      System.setProperty("logback.configurationFile", "logback-oneshot.xml");
+    }
+
+    Properties config = new Properties();
+    config.putAll(System.getProperties());
+
+    if (!config.containsKey("processing.baseDir") && System.getenv("TRANSACTION_PROCESSING") != null) {
+      config.setProperty("processing.baseDir", System.getenv("TRANSACTION_PROCESSING"));
+    }
+
+    System.exit(run(config));
+  }
+
+  /**
+   * Process all pending transaction files once.
+   *
+   * @param config the processing properties
+   * @return the exit status
+   */
+  static int run(Properties config) {
+    Logger log = LoggerFactory.getLogger(OneShotMain.class);
+    long jvmStartup = ManagementFactory.getRuntimeMXBean().getUptime();
+    long start = System.currentTimeMillis();
+
+    String baseDir = config.getProperty("processing.baseDir");
+    String pendingDir = config.getProperty("processing.pendingDir", baseDir + "/pending");
+    String archiveDir = config.getProperty("processing.archiveDir", baseDir + "/processed");
+    String reportsDir = config.getProperty("processing.reportsDir", baseDir + "/reports");
+    String stateDir = config.getProperty("processing.stateDir");
+    String historyDir = config.getProperty("processing.historyDir");
+
+    if (baseDir == null && !(config.containsKey("processing.pendingDir")
+        && config.containsKey("processing.archiveDir") && config.containsKey("processing.reportsDir"))) {
+      log.error("Set processing.baseDir (or TRANSACTION_PROCESSING), or all of processing.pendingDir, "
+          + "processing.archiveDir and processing.reportsDir");
+      return INVALID_CONFIGURATION;
+    }
+
+    AccountStore accountStore = null;
+    CustomerAccountService accountService;
+    TransactionProcessor processor;
+    AccountPersistence persistence = null;
+    TransactionHistoryStore history = null;
+
+    try {
+      accountStore = AccountStoreConfiguration.create(
+          config.getProperty("processing.accountStore", "heap"),
+          config.getProperty("processing.accountStore.spillDir"),
+          intProperty(config, "processing.accountStore.memoryBudgetMb", 256),
+          intProperty(config, "processing.accountStore.cacheSize", 0),
+          intProperty(config, "processing.accountStore.cacheFlushBatch", 65536));
+      accountService = new CustomerAccountService(accountStore);
+
+      processor = new TransactionProcessor(accountService);
+      processor.setPendingDir(pendingDir);
+      processor.setArchiveDir(archiveDir);
+      processor.setReportsDir(reportsDir);
+      processor.setPipelineDepth(intProperty(config, "processing.pipelineDepth", 2));
+      processor.setIoThreads(intProperty(config, "processing.ioThreads", 4));
+      processor.setIoQueueDepth(intProperty(config, "processing.ioQueueDepth", 16));
+      processor.setPreAggregate(Boolean.parseBoolean(config.getProperty("processing.preAggregate", "true")));
+      processor.setArchiveColumnar(Boolean.parseBoolean(config.getProperty("processing.archiveColumnar", "true")));
+      processor.setReportTopMovers(intProperty(config, "processing.report.topMovers", 10));
+      processor.setArchiveCompression(config.getProperty("processing.archiveCompression", "none"));
+      processor.setScanQuietPeriod(intProperty(config, "processing.scan.quietPeriod", 0));
+      processor.setScanMaxFiles(intProperty(config, "processing.scan.maxFiles", 10000));
+      processor.setCoalesceMaxBytes(intProperty(config, "processing.coalesce.maxBytes", 4 * 1024 * 1024));
+      processor.setCoalesceMaxFiles(intProperty(config, "processing.coalesce.maxFiles", 1000));
+    } catch (IllegalArgumentException e) {
+      if (accountStore != null) {
+        accountStore.close();
+      }
+
+      log.error("Invalid configuration: {}", e.getMessage());
+      return INVALID_CONFIGURATION;
+    }
+
+    log.info("Started in {}ms (JVM running for {}ms)", System.currentTimeMillis() - start, jvmStartup);
+
+    try {
+      if (stateDir != null) {
+        persistence = new AccountPersistence(accountService, stateDir,
+            intProperty(config, "processing.snapshotInterval", 100));
+        persistence.setPreAggregate(Boolean.parseBoolean(config.getProperty("processing.preAggregate", "true")));
+        persistence.setLedgerMaxEntries(intProperty(config, "processing.ledger.maxEntries", 1000000));
+        persistence.recover();
+        processor.setPersistence(persistence);
+      }
+
+      if (historyDir != null) {
+        history = new TransactionHistoryStore(historyDir, intProperty(config, "processing.history.maxSegments", 32),
+            intProperty(config, "processing.history.queueDepth", 16));
+        history.open();
+        processor.setHistory(history);
+      }
+
+      processor.execute();
+    } catch (RuntimeException e) {
+      log.error("Error processing transactions: {}", e.getMessage(), e);
+      return PROCESSING_FAILED;
+    } finally {
+      if (persistence != null) {
+        persistence.close();
+      }
+
+      // Waits for the history of every applied file to be written
+      if (history != null) {
+        history.close();
+      }
+
+      // Deletes any temporary spill directory
+      accountStore.close();
+    }
+
+    log.info("Processed pending transactions in {}ms", System.currentTimeMillis() - start);
+    return SUCCESS;
+  }
+
+  private static int intProperty(Properties config, String name, int defaultValue) {
+    String value = config.getProperty(name);
+
+    try {
+      return value == null ? defaultValue : Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Property " + name + " must be an integer: " + value);
+    }
+  }
+}
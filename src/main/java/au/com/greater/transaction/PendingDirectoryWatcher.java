@@ -0,0 +1,246 @@
+package au.com.greater.transaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * This component processes transaction files as soon as they land in the
+ * pending directory, rather than waiting for the next scheduled run. It is
+ * only enabled when {@literal processing.watch} is true.
+ *
+ * The pending directory is watched with a {@link WatchService}. A file is
+ * only considered to have finished arriving once its size and modification
+ * time have not changed for {@literal processing.watch.quietPeriod}
+ * milliseconds, so bursts of write events are debounced into a single run.
+ * Files which are still being written under a temporary name (starting with
+ * "." or ending in ".tmp" or ".part") are ignored until they are renamed;
+ * producers which deliver files by atomic rename can therefore use a quiet
+ * period of zero.
+ *
+ * Watch events can be lost (e.g. on overflow, or on some network file
+ * systems), so the whole directory is also re-scanned every
+ * {@literal processing.watch.pollInterval} milliseconds.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Component
+@ConditionalOnProperty(name = "processing.watch", havingValue = "true")
+public class PendingDirectoryWatcher implements Runnable {
+
+  private static final Logger log = LoggerFactory.getLogger(PendingDirectoryWatcher.class);
+
+  private final TransactionProcessor transactionProcessor;
+
+  private final Path pendingDir;
+
+  private final long quietPeriod;
+
+  private final long pollInterval;
+
+  /**
+   * Files which have been seen but have not yet been stable for the quiet
+   * period, keyed on path.
+   */
+  private final Map<Path, Candidate> candidates = new HashMap<>();
+
+  private WatchService watchService;
+
+  private Thread thread;
+
+  private long lastScan = 0;
+
+  private volatile boolean running;
+
+  /**
+   * The last observed size and modification time of a pending file, and
+   * when they were last seen to change.
+   */
+  private static final class Candidate {
+    long size;
+    long lastModified;
+    long stableSince;
+  }
+
+  @Autowired
+  public PendingDirectoryWatcher(TransactionProcessor transactionProcessor,
+                                 @Value("${processing.pendingDir}") String pendingDir,
+                                 @Value("${processing.watch.quietPeriod:2000}") long quietPeriod,
+                                 @Value("${processing.watch.pollInterval:60000}") long pollInterval) {
+    this.transactionProcessor = transactionProcessor;
+    this.pendingDir = Paths.get(pendingDir);
+    this.quietPeriod = quietPeriod;
+    this.pollInterval = pollInterval;
+  }
+
+  @PostConstruct
+  public void start() {
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      pendingDir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+    } catch (IOException e) {
+      throw new RuntimeException("Error watching directory " + pendingDir, e);
+    }
+
+    log.info("Watching for transaction files in {}", pendingDir);
+    running = true;
+    thread = new Thread(this, "pending-directory-watcher");
+    thread.start();
+  }
+
+  @PreDestroy
+  public void stop() throws InterruptedException {
+    running = false;
+
+    try {
+      watchService.close();
+    } catch (IOException e) {
+      log.warn("Error closing watch service: {}", e.getMessage());
+    }
+
+    thread.join();
+  }
+
+  @Override
+  public void run() {
+    while (running) {
+      try {
+        poll();
+      } catch (ClosedWatchServiceException e) {
+        break;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } catch (RuntimeException e) {
+        // Any files which failed will be picked up again by the next scan
+        log.error("Error processing transactions: {}: {}", e.getMessage(), e.getCause());
+      }
+    }
+  }
+
+  /**
+   * Wait briefly for watch events, then process any files which have
+   * finished arriving.
+   */
+  void poll() throws InterruptedException {
+    long now = System.currentTimeMillis();
+
+    if (now - lastScan >= pollInterval) {
+      scan();
+      lastScan = now;
+    }
+
+    WatchKey key = watchService.poll(Math.max(10, Math.min(quietPeriod / 2, 1000)), TimeUnit.MILLISECONDS);
+
+    if (key != null) {
+      for (WatchEvent<?> event : key.pollEvents()) {
+        if (event.kind() == OVERFLOW) {
+          scan();
+        } else {
+          track(pendingDir.resolve((Path) event.context()));
+        }
+      }
+
+      key.reset();
+    }
+
+    List<Path> ready = collectReady(System.currentTimeMillis());
+
+    if (!ready.isEmpty()) {
+      log.info("Processing {} newly arrived transaction files", ready.size());
+      transactionProcessor.execute(ready);
+    }
+  }
+
+  /**
+   * Track every file currently in the pending directory.
+   */
+  private void scan() {
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(pendingDir)) {
+      for (Path path : paths) {
+        track(path);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading files from " + pendingDir, e);
+    }
+  }
+
+  private void track(Path path) {
+    String filename = path.getFileName().toString();
+
+    if (PendingFileScanner.isPartial(filename) || candidates.containsKey(path) || !Files.isRegularFile(path)) {
+      return;
+    }
+
+    Candidate candidate = new Candidate();
+    candidate.size = -1;
+    candidates.put(path, candidate);
+  }
+
+  /**
+   * Remove and return the tracked files which have not changed for the quiet
+   * period, in filename order.
+   */
+  private List<Path> collectReady(long now) {
+    List<Path> ready = new ArrayList<>();
+
+    for (Iterator<Map.Entry<Path, Candidate>> it = candidates.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Path, Candidate> entry = it.next();
+      Candidate candidate = entry.getValue();
+      BasicFileAttributes attributes;
+
+      try {
+        attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        it.remove();
+        continue;
+      } catch (IOException e) {
+        throw new RuntimeException("Error reading attributes of " + entry.getKey(), e);
+      }
+
+      long lastModified = attributes.lastModifiedTime().toMillis();
+
+      if (attributes.size() != candidate.size || lastModified != candidate.lastModified) {
+        candidate.size = attributes.size();
+        candidate.lastModified = lastModified;
+        candidate.stableSince = now;
+      }
+
+      if (now - candidate.stableSince >= quietPeriod) {
+        ready.add(entry.getKey());
+        it.remove();
+      }
+    }
+
+    ready.sort(null);
+    return ready;
+  }
+}
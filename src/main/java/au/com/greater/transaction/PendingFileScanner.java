@@ -0,0 +1,145 @@
+package au.com.greater.transaction;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * This class finds the transaction files waiting in the pending directory,
+ * in the order they were delivered.
+ *
+ * The directory is streamed one entry at a time, rather than listed in full,
+ * and only the oldest {@literal maxFiles} files are kept (in a bounded heap),
+ * so a scan of a directory holding hundreds of thousands of files needs
+ * memory for at most {@literal maxFiles} of them. Whatever is left over is
+ * found by the next scan, once the oldest files have been archived.
+ *
+ * Files are ordered by their modification time, i.e. when they finished
+ * arriving, with ties broken by filename. Files which are still being
+ * written are skipped: those with a temporary name (starting with "." or
+ * ending in ".tmp" or ".part"), and, if a quiet period is set, those
+ * modified within the quiet period. Subdirectories are ignored.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class PendingFileScanner {
+
+  private static final Logger log = LoggerFactory.getLogger(PendingFileScanner.class);
+
+  private static final Comparator<PendingFile> DELIVERY_ORDER =
+      Comparator.comparingLong((PendingFile file) -> file.lastModified).thenComparing(file -> file.path);
+
+  private final Path pendingDir;
+
+  private final long quietPeriod;
+
+  private final int maxFiles;
+
+  /**
+   * A pending file, and when it finished arriving.
+   */
+  private static final class PendingFile {
+    final Path path;
+    final long lastModified;
+
+    PendingFile(Path path, long lastModified) {
+      this.path = path;
+      this.lastModified = lastModified;
+    }
+  }
+
+  /**
+   * @param pendingDir  the directory to scan
+   * @param quietPeriod the number of milliseconds a file must have been
+   *                    unmodified for to be returned, or zero to return files
+   *                    however recently they were modified
+   * @param maxFiles    the maximum number of files returned by each scan
+   */
+  public PendingFileScanner(Path pendingDir, long quietPeriod, int maxFiles) {
+    if (maxFiles < 1) {
+      throw new IllegalArgumentException("Scan must return at least one file: " + maxFiles);
+    }
+
+    this.pendingDir = pendingDir;
+    this.quietPeriod = quietPeriod;
+    this.maxFiles = maxFiles;
+  }
+
+  /**
+   * @param filename the name of a file in the pending directory
+   * @return true if the name shows the file is still being written, and will
+   * be renamed once it is complete
+   */
+  public static boolean isPartial(String filename) {
+    return filename.startsWith(".") || filename.endsWith(".tmp") || filename.endsWith(".part");
+  }
+
+  /**
+   * @return the oldest complete files in the pending directory, oldest
+   * first, up to {@literal maxFiles} of them
+   */
+  public List<Path> scan() {
+    long start = System.currentTimeMillis();
+    long cutoff = start - quietPeriod;
+
+    // The newest of the files kept so far is at the head, to be replaced by
+    // any older file found
+    PriorityQueue<PendingFile> oldest = new PriorityQueue<>(maxFiles, DELIVERY_ORDER.reversed());
+    int numFound = 0;
+
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(pendingDir)) {
+      for (Path path : paths) {
+        if (isPartial(path.getFileName().toString())) {
+          continue;
+        }
+
+        BasicFileAttributes attributes;
+
+        try {
+          attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+          // Renamed or removed since the directory was read
+          continue;
+        }
+
+        long lastModified = attributes.lastModifiedTime().toMillis();
+
+        if (!attributes.isRegularFile() || (quietPeriod > 0 && lastModified > cutoff)) {
+          continue;
+        }
+
+        PendingFile file = new PendingFile(path, lastModified);
+        numFound++;
+
+        if (oldest.size() < maxFiles) {
+          oldest.add(file);
+        } else if (DELIVERY_ORDER.compare(file, oldest.peek()) < 0) {
+          oldest.poll();
+          oldest.add(file);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading files from " + pendingDir, e);
+    }
+
+    List<PendingFile> files = new ArrayList<>(oldest);
+    files.sort(DELIVERY_ORDER);
+
+    List<Path> pending = new ArrayList<>(files.size());
+    files.forEach(file -> pending.add(file.path));
+
+    log.info("Found {} pending files in {} ({} left for a later scan) in {}ms",
+        numFound, pendingDir, numFound - pending.size(), System.currentTimeMillis() - start);
+    return pending;
+  }
+}
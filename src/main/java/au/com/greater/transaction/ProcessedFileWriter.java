@@ -0,0 +1,348 @@
+package au.com.greater.transaction;
+
+import au.com.greater.transaction.metrics.ProcessingMetrics;
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.parser.ColumnarTransactionFormat;
+import au.com.greater.transaction.utils.Compression;
+import au.com.greater.transaction.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * This class performs the final, I/O-bound stage of processing a file:
+ * writing its report (and optionally a columnar copy of its transactions),
+ * then archiving it. Submitting a file never blocks on the filesystem.
+ *
+ * Files are handled in batches: whichever files are waiting when the
+ * previous batch completes are taken together. Each file in a batch is
+ * handled on a small pool of worker threads, in two phases:
+ *
+ * 1. Its outputs are written under temporary names and forced to disk
+ * 2. The outputs are renamed into place, then the file is archived
+ *
+ * The affected directories are then synced once for the whole batch, rather
+ * than once per file. The report timer only covers writing the report; the
+ * archive timer covers writing the columnar and compressed copies as well as
+ * the renames and the archive itself.
+ *
+ * Uncompressed files can optionally be compressed as they are archived.
+ *
+ * Each file is all-or-nothing: if any step fails, its outputs are removed and
+ * it is left in the pending directory, to be picked up again by the next run.
+ * Archiving the file is the last step, so an archived file always has its
+ * report.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class ProcessedFileWriter implements AutoCloseable {
+
+  private static final Logger log = LoggerFactory.getLogger(ProcessedFileWriter.class);
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path reportsDir;
+
+  private final Path archiveDir;
+
+  private final Compression archiveCompression;
+
+  private final ProcessingMetrics metrics;
+
+  private final ExecutorService coordinator = Executors.newSingleThreadExecutor(r -> new Thread(r, "transaction-io"));
+
+  private final ExecutorService workers;
+
+  private final Queue<Request> queue = new ConcurrentLinkedQueue<>();
+
+  /**
+   * A single file to be finished, and the outputs written for it so far.
+   */
+  private static final class Request {
+    final Path path;
+    final String report;
+    final TransactionFile columnar;
+    final CompletableFuture<Void> result = new CompletableFuture<>();
+
+    final List<Path> tempPaths = new ArrayList<>();
+    final List<Path> outputPaths = new ArrayList<>();
+    boolean compressed;
+    boolean archived;
+
+    /**
+     * The time spent writing the columnar and compressed copies
+     */
+    long archiveNanos;
+
+    Request(Path path, String report, TransactionFile columnar) {
+      this.path = path;
+      this.report = report;
+      this.columnar = columnar;
+    }
+  }
+
+  /**
+   * @param reportsDir         the directory to write reports to
+   * @param archiveDir         the directory to archive files (and columnar
+   *                           copies) to
+   * @param archiveCompression the format to compress uncompressed files with
+   *                           when archiving them
+   * @param threads            the number of worker threads
+   * @param metrics            the metrics to record the report and archive
+   *                           times in
+   */
+  public ProcessedFileWriter(Path reportsDir, Path archiveDir, Compression archiveCompression, int threads,
+                             ProcessingMetrics metrics) {
+    this.reportsDir = reportsDir;
+    this.archiveDir = archiveDir;
+    this.archiveCompression = archiveCompression;
+    this.metrics = metrics;
+
+    AtomicInteger count = new AtomicInteger();
+    this.workers = Executors.newFixedThreadPool(threads, r -> new Thread(r, "transaction-io-" + count.incrementAndGet()));
+  }
+
+  /**
+   * Queue a processed file to have its report written and be archived.
+   *
+   * @param path     the path of the processed transaction file
+   * @param report   the report to be written
+   * @param columnar the parsed file to write a columnar copy of, or null
+   * @return a future which completes once the file has been archived, or
+   * completes exceptionally if it could not be
+   */
+  public CompletableFuture<Void> submit(Path path, String report, TransactionFile columnar) {
+    Request request = new Request(path, report, columnar);
+    queue.add(request);
+    coordinator.execute(this::drain);
+    return request.result;
+  }
+
+  /**
+   * Finish every queued file as a single batch.
+   */
+  private void drain() {
+    List<Request> batch = new ArrayList<>();
+
+    for (Request request; (request = queue.poll()) != null; ) {
+      batch.add(request);
+    }
+
+    if (batch.isEmpty()) {
+      return;
+    }
+
+    List<Request> prepared = runAll(batch, request -> {
+      metrics.getReportTimer().record(() -> prepareReport(request));
+
+      long start = System.nanoTime();
+      prepareArchive(request);
+      request.archiveNanos = System.nanoTime() - start;
+    });
+
+    List<Request> committed = runAll(prepared, request -> {
+      long start = System.nanoTime();
+      commit(request);
+      metrics.getArchiveTimer().record(request.archiveNanos + System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    });
+
+    // One sync of each affected directory makes all of the renames durable
+    Set<Path> directories = new LinkedHashSet<>();
+    directories.add(reportsDir);
+    directories.add(archiveDir);
+    committed.forEach(request -> directories.add(request.path.toAbsolutePath().getParent()));
+    directories.forEach(FileUtils::syncDirectory);
+
+    committed.forEach(request -> request.result.complete(null));
+  }
+
+  /**
+   * Run a step for every file in parallel, rolling back any file for which
+   * it fails.
+   *
+   * @return the files for which the step succeeded
+   */
+  private List<Request> runAll(List<Request> batch, Consumer<Request> step) {
+    List<Future<?>> futures = new ArrayList<>();
+    List<Request> succeeded = new ArrayList<>();
+
+    for (Request request : batch) {
+      futures.add(workers.submit(() -> step.accept(request)));
+    }
+
+    for (int i = 0; i < batch.size(); i++) {
+      Request request = batch.get(i);
+
+      try {
+        futures.get(i).get();
+        succeeded.add(request);
+      } catch (ExecutionException e) {
+        rollback(request);
+        request.result.completeExceptionally(e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        rollback(request);
+        request.result.completeExceptionally(e);
+      }
+    }
+
+    return succeeded;
+  }
+
+  /**
+   * Write the report of a file under a temporary name, and force it to disk.
+   */
+  private void prepareReport(Request request) {
+    String filename = Compression.stripExtension(request.path.getFileName().toString());
+
+    // It is assumed that the files are well-named in advance
+    String datetime = filename.replace("finance_customer_transactions-", "").replace(".csv", "");
+    Path reportPath = reportsDir.resolve("finance_customer_transactions_report-" + datetime + ".txt");
+    Path tempReportPath = tempPath(reportPath);
+
+    log.info("Writing report to {}", reportPath);
+    request.tempPaths.add(tempReportPath);
+
+    try (FileChannel channel = FileChannel.open(tempReportPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.wrap(request.report.getBytes());
+
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing file " + reportPath, e);
+    }
+  }
+
+  /**
+   * Write the columnar and compressed copies of a file, if any, under
+   * temporary names, and force them to disk.
+   */
+  private void prepareArchive(Request request) {
+    String filename = Compression.stripExtension(request.path.getFileName().toString());
+
+    if (request.columnar != null) {
+      Path columnarPath = archiveDir.resolve(filename.replace(".csv", "") + ColumnarTransactionFormat.EXTENSION);
+      Path tempColumnarPath = tempPath(columnarPath);
+
+      log.info("Converting transaction file {} to {}", request.path, columnarPath);
+      request.tempPaths.add(tempColumnarPath);
+      ColumnarTransactionFormat.write(tempColumnarPath, request.columnar);
+    }
+
+    if (archiveCompression != Compression.NONE && Compression.detect(request.path) == Compression.NONE) {
+      Path archivePath = archiveDir.resolve(request.path.getFileName() + archiveCompression.getExtension());
+      Path tempArchivePath = tempPath(archivePath);
+
+      log.info("Compressing transaction file {} to {}", request.path, archivePath);
+      request.tempPaths.add(tempArchivePath);
+      request.compressed = true;
+
+      try (OutputStream out = archiveCompression.compress(new BufferedOutputStream(
+          Files.newOutputStream(tempArchivePath, CREATE, WRITE, TRUNCATE_EXISTING), BUFFER_SIZE))) {
+        Files.copy(request.path, out);
+      } catch (IOException e) {
+        throw new RuntimeException("Error writing file " + archivePath, e);
+      }
+
+      FileUtils.syncFile(tempArchivePath);
+    }
+  }
+
+  private static Path tempPath(Path path) {
+    return path.resolveSibling("." + path.getFileName() + ".tmp");
+  }
+
+  /**
+   * Rename the outputs of a file into place, then archive it.
+   */
+  private void commit(Request request) {
+    for (Path tempPath : request.tempPaths) {
+      String filename = tempPath.getFileName().toString();
+      Path outputPath = tempPath.resolveSibling(filename.substring(1, filename.length() - ".tmp".length()));
+
+      try {
+        Files.move(tempPath, outputPath, ATOMIC_MOVE, REPLACE_EXISTING);
+      } catch (IOException e) {
+        throw new RuntimeException("Error moving file from " + tempPath + " to " + outputPath, e);
+      }
+
+      request.outputPaths.add(outputPath);
+    }
+
+    log.info("Archiving transaction file {}", request.path.toString());
+
+    if (request.compressed) {
+      // The compressed copy has already been moved into the archive
+      try {
+        Files.delete(request.path);
+      } catch (IOException e) {
+        throw new RuntimeException("Error removing file " + request.path, e);
+      }
+    } else {
+      FileUtils.moveFile(request.path, archiveDir.resolve(request.path.getFileName()));
+    }
+
+    request.archived = true;
+  }
+
+  /**
+   * Remove every output of a file which has not been archived.
+   */
+  private void rollback(Request request) {
+    if (request.archived) {
+      return;
+    }
+
+    List<Path> paths = new ArrayList<>(request.tempPaths);
+    paths.addAll(request.outputPaths);
+
+    for (Path path : paths) {
+      try {
+        Files.deleteIfExists(path);
+      } catch (IOException e) {
+        log.warn("Unable to remove {}: {}", path, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Stop accepting files. Files which have already been submitted are still
+   * finished.
+   */
+  @Override
+  public void close() {
+    // The coordinator runs tasks in order, so this runs after every drain
+    coordinator.execute(workers::shutdown);
+    coordinator.shutdown();
+  }
+}
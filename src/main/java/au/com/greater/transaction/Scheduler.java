@@ -24,6 +24,10 @@ import java.time.format.DateTimeFormatter;
  *
  * Based on the above, the scheduler runs at 06:01am and 21:01pm each day.
  *
+ * If {@literal processing.watch} is enabled, files are also processed as soon
+ * as they arrive by the {@link PendingDirectoryWatcher}, and the scheduled
+ * runs only pick up anything it missed.
+ *
  * @author Justin Lewis Salmon
  */
 @Component
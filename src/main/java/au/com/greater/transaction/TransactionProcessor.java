@@ -1,9 +1,15 @@
 package au.com.greater.transaction;
 
 import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.history.TransactionHistoryStore;
+import au.com.greater.transaction.metrics.ProcessingMetrics;
 import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.parser.ColumnarTransactionFormat;
 import au.com.greater.transaction.parser.TransactionFileParser;
-import au.com.greater.transaction.utils.FileUtils;
+import au.com.greater.transaction.persistence.AccountPersistence;
+import au.com.greater.transaction.query.BalanceQueryService;
+import au.com.greater.transaction.shard.ShardCoordinator;
+import au.com.greater.transaction.utils.Compression;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
 import org.slf4j.Logger;
@@ -12,20 +18,76 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This component is responsible for orchestrating the transaction processing
  * workflow. The processing happens in four distinct stages:
  *
- * 1. Reading all pending transaction files
+ * 1. Reading each pending transaction file
  * 2. Applying new transactions to customer accounts
  * 3. Writing a report file for each processed file
  * 4. Archiving each processed file
  *
+ * Pending files are found by a {@link PendingFileScanner}, oldest first, at
+ * most {@literal scan.maxFiles} at a time.
+ *
+ * Consecutive small files are coalesced into groups of up to
+ * {@literal coalesce.maxBytes} bytes (and {@literal coalesce.maxFiles}
+ * files), each of which is parsed, journaled, applied and published as a
+ * single batch, so the fixed cost of a batch (e.g. forcing the journal to
+ * disk, or publishing a new balance snapshot) is paid once per group rather
+ * than once per file. Each file in a group still gets its own report, and is
+ * archived on its own. Files larger than {@literal coalesce.maxBytes} are
+ * always processed alone.
+ *
+ * The stages are pipelined: groups are parsed on a dedicated thread up to
+ * {@literal pipelineDepth} groups ahead of the apply stage, and reports and
+ * archive moves are batched by a {@link ProcessedFileWriter} on its own
+ * threads. The apply stage only waits for the I/O stage once
+ * {@literal ioQueueDepth} groups are outstanding, so only a bounded number of
+ * files are held in memory however large the backlog is.
+ *
+ * The time each file spends in each stage is recorded by
+ * {@link ProcessingMetrics}.
+ *
+ * If an {@link AccountPersistence} is configured, each group is journaled
+ * before it is applied, so that balances survive a restart. Files whose
+ * content fingerprint shows they have already been applied are reported and
+ * archived, but not applied again.
+ *
+ * Once each group has been applied, its balances are published to the
+ * {@link BalanceQueryService}, if there is one.
+ *
+ * Each applied file is also added to the {@link TransactionHistoryStore}, if
+ * there is one.
+ *
+ * If a {@link ShardCoordinator} is configured, this instance only processes
+ * the pending files it manages to claim, and splits them between the shards
+ * instead of applying them. Once the batch is done, the partitions routed to
+ * the shards owned by this instance are applied. Sharding can't be combined
+ * with persistence or the history store, as balances are rebuilt from the
+ * shard's applied partitions instead, and each instance only holds some of
+ * the accounts.
+ *
  * @author Justin Lewis Salmon
  */
 @Component
@@ -37,6 +99,24 @@ public class TransactionProcessor {
 
   private final CustomerAccountService accountService;
 
+  @Autowired(required = false)
+  private AccountPersistence persistence;
+
+  @Autowired(required = false)
+  private ShardCoordinator shards;
+
+  @Autowired(required = false)
+  private BalanceQueryService balanceQueries;
+
+  @Autowired(required = false)
+  private TransactionHistoryStore history;
+
+  /**
+   * Replaced by the application's metrics when running in the Spring context
+   */
+  @Autowired
+  private ProcessingMetrics metrics = new ProcessingMetrics();
+
   @Value("${processing.pendingDir}")
   private String pendingDir;
 
@@ -46,65 +126,322 @@ public class TransactionProcessor {
   @Value("${processing.archiveDir}")
   private String archiveDir;
 
+  @Value("${processing.pipelineDepth:2}")
+  private int pipelineDepth = 2;
+
+  @Value("${processing.ioThreads:4}")
+  private int ioThreads = 4;
+
+  @Value("${processing.ioQueueDepth:16}")
+  private int ioQueueDepth = 16;
+
+  @Value("${processing.preAggregate:true}")
+  private boolean preAggregate = true;
+
+  @Value("${processing.archiveColumnar:true}")
+  private boolean archiveColumnar = true;
+
+  @Value("${processing.report.topMovers:10}")
+  private int reportTopMovers = 10;
+
+  @Value("${processing.archiveCompression:none}")
+  private String archiveCompression = "none";
+
+  @Value("${processing.scan.quietPeriod:0}")
+  private long scanQuietPeriod = 0;
+
+  @Value("${processing.scan.maxFiles:10000}")
+  private int scanMaxFiles = 10000;
+
+  @Value("${processing.coalesce.maxBytes:4194304}")
+  private long coalesceMaxBytes = 4 * 1024 * 1024;
+
+  @Value("${processing.coalesce.maxFiles:1000}")
+  private int coalesceMaxFiles = 1000;
+
   /**
-   * This is the main entry point for the transaction file processing workflow.
+   * Refuse to start with a combination of components which would silently
+   * skip part of the workflow.
    */
-  public void execute() {
-    // Read all pending transaction files
-    List<TransactionFile> transactionFiles = readPendingFiles();
+  @PostConstruct
+  public void checkConfiguration() {
+    if (shards != null && (persistence != null || history != null)) {
+      throw new IllegalStateException(
+          "processing.shardDir can't be combined with processing.stateDir or processing.historyDir");
+    }
+  }
 
-    for (TransactionFile file : transactionFiles) {
-      // Apply transactions from to customer accounts
-      accountService.applyTransactions(file);
+  /**
+   * This is the main entry point for the transaction file processing workflow.
+   */
+  public synchronized void execute() {
+    log.info("Loading pending transactions");
+    PendingFileScanner scanner = new PendingFileScanner(Paths.get(pendingDir), scanQuietPeriod, scanMaxFiles);
+    List<Path> paths;
 
-      // Write the report, then archive the file
-      writeReport(file);
-      archiveFile(file);
-    }
+    // Keep going until the backlog is cleared, unless other instances may
+    // be holding on to files which would then be scanned again and again
+    do {
+      paths = scanner.scan();
+      execute(paths);
+    } while (paths.size() >= scanMaxFiles && shards == null);
   }
 
   /**
-   * Read all pending transaction files into {@link TransactionFile} instances.
+   * Process the given transaction files, in order. Only one batch of files
+   * is processed at a time, so scheduled and event-driven processing cannot
+   * overlap. Files which are no longer pending by the time the batch starts
+   * (e.g. because a scheduled run has already archived them) are skipped.
    *
-   * This method assumes that {@literal pendingDir} contains only customer
-   * transaction files and no other types of file.
+   * @param paths the paths of the pending transaction files to process
    */
-  private List<TransactionFile> readPendingFiles() {
-    log.info("Loading pending transactions");
-    List<TransactionFile> transactionFiles = new ArrayList<>();
+  public synchronized void execute(List<Path> paths) {
+    Iterator<List<Path>> pending = coalesce(paths).iterator();
+    Map<Path, ShardCoordinator.Claim> claims = new ConcurrentHashMap<>();
+
+    ExecutorService parseStage = Executors.newSingleThreadExecutor(r -> new Thread(r, "transaction-parser"));
+    ProcessedFileWriter ioStage = new ProcessedFileWriter(Paths.get(reportsDir), Paths.get(archiveDir),
+        Compression.fromName(archiveCompression), ioThreads, metrics);
+
+    Deque<Future<List<TransactionFile>>> parsing = new ArrayDeque<>();
+    Deque<Future<?>> writing = new ArrayDeque<>();
+
+    try {
+      while (pending.hasNext() || !parsing.isEmpty()) {
+        // Keep the parse stage up to pipelineDepth groups ahead
+        while (pending.hasNext() && parsing.size() < pipelineDepth) {
+          List<Path> group = new ArrayList<>();
+
+          for (Path path : pending.next()) {
+            // Leave files claimed by other instances to them
+            if (shards != null) {
+              ShardCoordinator.Claim claim = shards.claim(path);
+
+              if (claim == null) {
+                continue;
+              }
+
+              claims.put(path, claim);
+            }
+
+            group.add(path);
+          }
+
+          if (!group.isEmpty()) {
+            parsing.add(parseStage.submit(() -> parseAll(group)));
+          }
+        }
+
+        if (parsing.isEmpty()) {
+          continue;
+        }
+
+        List<TransactionFile> files = await(parsing.poll());
+
+        // Stop before applying any more files if a report or archive of any
+        // group has failed, not just the oldest outstanding one
+        for (Iterator<Future<?>> outstanding = writing.iterator(); outstanding.hasNext(); ) {
+          Future<?> future = outstanding.next();
 
-    for (Path path : FileUtils.listFiles(Paths.get(pendingDir))) {
-      transactionFiles.add(TransactionFileParser.fromPath(path));
+          if (future.isDone()) {
+            outstanding.remove();
+            await(future);
+          }
+        }
+
+        while (writing.size() >= ioQueueDepth) {
+          await(writing.poll());
+        }
+
+        List<TransactionFile> applying = new ArrayList<>();
+        Set<Long> fingerprints = new HashSet<>();
+
+        for (TransactionFile file : files) {
+          // A file which was applied before a crash (but not archived), or
+          // which has been delivered twice, is only reported and archived
+          boolean duplicate = persistence != null && (persistence.isApplied(file)
+              || (file.getFingerprint() != null && !fingerprints.add(file.getFingerprint())));
+
+          if (duplicate) {
+            log.warn("Transactions from {} have already been applied, skipping", file.getPath());
+          } else {
+            applying.add(file);
+          }
+        }
+
+        // Apply transactions from the whole group to customer accounts,
+        // journaling them first if balances are being persisted
+        metrics.getApplyTimer().record(() -> {
+          if (shards != null) {
+            files.forEach(shards::split);
+            return;
+          }
+
+          if (applying.isEmpty()) {
+            return;
+          }
+
+          if (persistence != null) {
+            persistence.log(applying);
+          }
+
+          if (preAggregate) {
+            accountService.applyTransactionsAggregated(applying);
+          } else {
+            applying.forEach(accountService::applyTransactions);
+          }
+
+          if (persistence != null) {
+            persistence.checkpoint();
+          }
+        });
+
+        if (balanceQueries != null && shards == null && !applying.isEmpty()) {
+          balanceQueries.publish(applying);
+        }
+
+        // The history is written on its own thread, and skips any file it
+        // already holds, so it is handed duplicates in case they were
+        // applied but not recorded before a crash
+        if (history != null) {
+          files.forEach(history::append);
+        }
+
+        // Write the report of each file, then archive it. Unless the
+        // transactions are needed for a columnar copy, only the path and
+        // report are handed on, so the transactions can be freed straight
+        // away.
+        CompletableFuture<?>[] written = new CompletableFuture<?>[files.size()];
+
+        for (int i = 0; i < files.size(); i++) {
+          TransactionFile file = files.get(i);
+          String report = file.generateReport(reportTopMovers);
+          written[i] = ioStage.submit(file.getPath(), report, archiveColumnar ? file : null);
+
+          // Each claim holds a file open, so is released as soon as its file
+          // has been split and archived, rather than at the end of the batch
+          written[i].whenComplete((result, e) -> release(claims, file.getPath()));
+        }
+
+        writing.add(CompletableFuture.allOf(written));
+      }
+
+      while (!writing.isEmpty()) {
+        await(writing.poll());
+      }
+    } finally {
+      parseStage.shutdownNow();
+      ioStage.close();
+      claims.keySet().forEach(path -> release(claims, path));
     }
 
-    return transactionFiles;
+    if (shards != null) {
+      metrics.getApplyTimer().record(() -> {
+        shards.applyInbox(accountService);
+      });
+
+      // Taking over a shard changes balances even if its inbox was empty
+      if (balanceQueries != null) {
+        balanceQueries.publishAll();
+      }
+    }
+  }
+
+  private static void release(Map<Path, ShardCoordinator.Claim> claims, Path path) {
+    ShardCoordinator.Claim claim = claims.remove(path);
+
+    if (claim != null) {
+      claim.close();
+    }
   }
 
   /**
-   * Write a report file summarising the given {@link TransactionFile}.
+   * Rebuild customer account balances from archived columnar transaction
+   * files, without re-parsing the original text files. No reports are
+   * written and nothing is archived.
    *
-   * @param file the {@link TransactionFile} to be written
+   * @param paths the paths of the columnar files to apply, in order
+   */
+  public synchronized void replay(List<Path> paths) {
+    for (Path path : paths) {
+      metrics.getApplyTimer().record(() -> ColumnarTransactionFormat.load(path, accountService::applyTransaction));
+    }
+
+    if (balanceQueries != null) {
+      balanceQueries.publishAll();
+    }
+  }
+
+  /**
+   * Split the given files into groups to be applied together, leaving out
+   * any which have gone. Consecutive files are grouped while they fit within
+   * {@literal coalesce.maxBytes} and {@literal coalesce.maxFiles}, so a
+   * large file is always alone.
    */
-  private void writeReport(TransactionFile file) {
-    String filename = file.getPath().getFileName().toString();
+  private List<List<Path>> coalesce(List<Path> paths) {
+    List<List<Path>> groups = new ArrayList<>();
+    List<Path> group = new ArrayList<>();
+    long groupBytes = 0;
 
-    // It is assumed that the files are well-named in advance
-    String datetime = filename.replace("finance_customer_transactions-", "").replace(".csv", "");
-    Path path = Paths.get(reportsDir,  "finance_customer_transactions_report-" + datetime + ".txt");
+    for (Path path : paths) {
+      if (!Files.isRegularFile(path)) {
+        log.debug("Skipping {}, which is no longer pending", path);
+        continue;
+      }
+
+      long size = path.toFile().length();
+
+      if (!group.isEmpty() && (groupBytes + size > coalesceMaxBytes || group.size() >= coalesceMaxFiles)) {
+        groups.add(group);
+        group = new ArrayList<>();
+        groupBytes = 0;
+      }
+
+      group.add(path);
+      groupBytes += size;
+    }
+
+    if (!group.isEmpty()) {
+      groups.add(group);
+    }
 
-    log.info("Writing report to {}", path);
-    FileUtils.writeFile(path, file.generateReport());
+    return groups;
   }
 
   /**
-   * Archive the given {@link TransactionFile}. An archived file represents
-   * one that has already been processed, and will therefore not be processed
-   * more than once.
-   *
-   * @param file the {@link TransactionFile} to be archived
+   * Parse each transaction file of a group, in order.
+   */
+  private List<TransactionFile> parseAll(List<Path> paths) {
+    List<TransactionFile> files = new ArrayList<>(paths.size());
+    paths.forEach(path -> files.add(parse(path)));
+    return files;
+  }
+
+  /**
+   * Parse the transaction file at the given path, recording its metrics.
    */
-  private void archiveFile(TransactionFile file) {
-    log.info("Archiving transaction file {}", file.getPath().toString());
-    FileUtils.moveFile(file.getPath(), Paths.get(archiveDir, file.getPath().getFileName().toString()));
+  private TransactionFile parse(Path path) {
+    TransactionFile file = metrics.getParseTimer().record(() -> TransactionFileParser.fromPath(path));
+    metrics.recordParsed(file, path.toFile().length());
+    return file;
+  }
+
+  /**
+   * Wait for a pipeline stage to complete its work on a single group,
+   * re-throwing any exception thrown by that stage.
+   */
+  private static <T> T await(Future<T> future) {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+
+      throw new RuntimeException("Error processing transactions", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while processing transactions", e);
+    }
   }
 }
@@ -0,0 +1,143 @@
+package au.com.greater.transaction.account;
+
+import au.com.greater.transaction.utils.IntLongHashMap;
+import au.com.greater.transaction.utils.IntLongHashMap.IntLongConsumer;
+
+import java.util.OptionalLong;
+
+/**
+ * This interface represents the storage of customer account balances. It
+ * allows {@link CustomerAccountService} to switch between implementations
+ * with different memory characteristics.
+ *
+ * Balances and transaction amounts are whole numbers of cents.
+ * Implementations must be thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public interface AccountStore {
+
+  /**
+   * Apply a transaction amount to the given account, creating the account if
+   * it does not yet exist. Positive amounts represent a credit (the balance
+   * is decreased) and negative amounts a debit (the balance is increased).
+   *
+   * @param accountNumber     the customer account number
+   * @param transactionAmount the transaction amount to apply, in cents
+   * @return the new balance of the account, in cents
+   * @throws ArithmeticException if the balance would overflow, in which case
+   *                             the balance is left unchanged
+   */
+  long apply(int accountNumber, long transactionAmount);
+
+  /**
+   * Apply a batch of transaction amounts, one per account, in whatever order
+   * suits this store. An amount which would take its account out of range is
+   * not applied, and is passed to {@literal rejected} instead.
+   *
+   * @param amounts  the transaction amount to apply to each account, in cents
+   * @param rejected receives the account number and amount of each
+   *                 transaction which was not applied
+   */
+  default void applyAll(IntLongHashMap amounts, IntLongConsumer rejected) {
+    amounts.forEach((accountNumber, amount) -> {
+      try {
+        apply(accountNumber, amount);
+      } catch (ArithmeticException e) {
+        rejected.accept(accountNumber, amount);
+      }
+    });
+  }
+
+  /**
+   * Set the balance of the given account, creating the account if it does
+   * not yet exist. This is used to restore balances from persistent storage.
+   *
+   * @param accountNumber the customer account number
+   * @param balance       the new balance of the account, in cents
+   */
+  void setBalance(int accountNumber, long balance);
+
+  /**
+   * Set the balances of a batch of accounts, in whatever order suits this
+   * store, creating any accounts which do not yet exist.
+   *
+   * @param balances the new balance of each account, in cents
+   */
+  default void setAll(IntLongHashMap balances) {
+    balances.forEach(this::setBalance);
+  }
+
+  /**
+   * @param accountNumber the customer account number
+   * @return true if the account exists in this store
+   */
+  boolean contains(int accountNumber);
+
+  /**
+   * @param accountNumber the customer account number
+   * @return the balance of the account in cents, or zero if it does not
+   * exist
+   */
+  long getBalance(int accountNumber);
+
+  /**
+   * Look up an account with a single access to this store, rather than one
+   * to check that it exists and another to read its balance.
+   *
+   * @param accountNumber the customer account number
+   * @return the balance of the account in cents, or empty if it does not
+   * exist
+   */
+  default OptionalLong findBalance(int accountNumber) {
+    return contains(accountNumber) ? OptionalLong.of(getBalance(accountNumber)) : OptionalLong.empty();
+  }
+
+  /**
+   * Look up a batch of accounts, in whatever order suits this store, passing
+   * the balance of each one which exists to the given consumer.
+   *
+   * @param accounts the accounts to look up, as the keys of a map (e.g. a
+   *                 batch of transaction amounts)
+   * @param consumer receives the number and balance of each account which
+   *                 exists
+   */
+  default void getAll(IntLongHashMap accounts, BalanceConsumer consumer) {
+    accounts.forEach((accountNumber, value) ->
+        findBalance(accountNumber).ifPresent(balance -> consumer.accept(accountNumber, balance)));
+  }
+
+  /**
+   * @return the number of accounts in this store
+   */
+  int size();
+
+  /**
+   * @return an estimate of the number of bytes of memory (heap or off-heap)
+   * used to hold the accounts in this store
+   */
+  long getMemoryUsage();
+
+  /**
+   * Pass the number and balance of every account in this store to the given
+   * consumer, in no particular order.
+   *
+   * @param consumer the consumer to receive each account
+   */
+  void forEach(BalanceConsumer consumer);
+
+  /**
+   * Release anything this store holds outside the heap, e.g. spilled
+   * partitions. The store must not be used once it has been closed.
+   */
+  default void close() {
+  }
+
+  /**
+   * Receives the number and balance of a single account.
+   */
+  @FunctionalInterface
+  interface BalanceConsumer {
+    void accept(int accountNumber, long balance);
+  }
+}
@@ -0,0 +1,101 @@
+package au.com.greater.transaction.account;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * This configuration selects the {@link AccountStore} implementation used by
+ * {@link CustomerAccountService}, based on the {@literal processing.accountStore}
+ * property:
+ *
+ * - heap:      one {@link CustomerAccount} object per account (the default)
+ * - primitive: open-addressing primitive tables on the heap
+ * - offheap:   open-addressing primitive tables in direct buffers
+ * - spilling:  primitive tables within a memory budget of
+ *              {@literal processing.accountStore.memoryBudgetMb}, spilling
+ *              partitions to {@literal processing.accountStore.spillDir}
+ *
+ * If {@literal processing.accountStore.cacheSize} is set, the store is
+ * fronted by a {@link CachingAccountStore} holding that many accounts, which
+ * writes evicted balances back in batches of
+ * {@literal processing.accountStore.cacheFlushBatch}.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Configuration
+public class AccountStoreConfiguration {
+
+  /**
+   * The number of partitions of a spilling store, which keeps each partition
+   * small enough to load and spill quickly for up to a few hundred million
+   * accounts
+   */
+  private static final int PARTITIONS = 1024;
+
+  @Bean(destroyMethod = "close")
+  public AccountStore accountStore(@Value("${processing.accountStore:heap}") String type,
+                                   @Value("${processing.accountStore.spillDir:}") String spillDir,
+                                   @Value("${processing.accountStore.memoryBudgetMb:256}") int memoryBudgetMb,
+                                   @Value("${processing.accountStore.cacheSize:0}") int cacheSize,
+                                   @Value("${processing.accountStore.cacheFlushBatch:65536}") int cacheFlushBatch) {
+    return create(type, spillDir, memoryBudgetMb, cacheSize, cacheFlushBatch);
+  }
+
+  /**
+   * @param type            the {@literal processing.accountStore} type
+   * @param spillDir        the directory a spilling store spills to, or
+   *                        empty for a new temporary directory
+   * @param memoryBudgetMb  the memory budget of a spilling store, in MB
+   * @param cacheSize       the number of accounts to cache in front of the
+   *                        store, or zero for no cache
+   * @param cacheFlushBatch the number of evicted balances the cache writes
+   *                        back at a time
+   * @return a new, empty account store of the given type, which must be
+   * closed once it is no longer needed
+   */
+  public static AccountStore create(String type, String spillDir, int memoryBudgetMb, int cacheSize,
+                                    int cacheFlushBatch) {
+    AccountStore store = create(type, spillDir, memoryBudgetMb);
+    return cacheSize > 0 ? new CachingAccountStore(store, cacheSize, cacheFlushBatch) : store;
+  }
+
+  private static AccountStore create(String type, String spillDir, int memoryBudgetMb) {
+    switch (type) {
+      case "heap":
+        return new HeapAccountStore();
+      case "primitive":
+        return new PrimitiveAccountStore(false);
+      case "offheap":
+        return new PrimitiveAccountStore(true);
+      case "spilling":
+        boolean temporary = spillDir == null || spillDir.isEmpty();
+        return new SpillingAccountStore(spillPath(spillDir), memoryBudgetMb * 1024L * 1024L, PARTITIONS, temporary);
+      default:
+        throw new IllegalArgumentException("Unknown account store type: " + type);
+    }
+  }
+
+  /**
+   * Each process spills to its own temporary directory by default, as the
+   * spill directory is cleared when a store is created. The store deletes
+   * the temporary directory when it is closed (e.g. when the application
+   * context is closed).
+   */
+  private static Path spillPath(String spillDir) {
+    if (spillDir != null && !spillDir.isEmpty()) {
+      return Paths.get(spillDir);
+    }
+
+    try {
+      return Files.createTempDirectory("accounts");
+    } catch (IOException e) {
+      throw new RuntimeException("Error creating spill directory", e);
+    }
+  }
+}
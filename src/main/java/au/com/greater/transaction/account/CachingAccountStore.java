@@ -0,0 +1,558 @@
+package au.com.greater.transaction.account;
+
+import au.com.greater.transaction.utils.FrequencySketch;
+import au.com.greater.transaction.utils.HashUtils;
+import au.com.greater.transaction.utils.IntHashSet;
+import au.com.greater.transaction.utils.IntLongHashMap;
+import au.com.greater.transaction.utils.IntLongHashMap.IntLongConsumer;
+
+import java.util.OptionalLong;
+
+/**
+ * This {@link AccountStore} keeps the balances of the most valuable accounts
+ * in a bounded in-memory cache in front of a slower backing store (e.g. a
+ * {@link SpillingAccountStore}), so that a workload dominated by a small set
+ * of accounts runs at close to in-memory speed while most accounts stay on
+ * disk.
+ *
+ * The cache is read-through: an account which is not cached is read from the
+ * backing store and cached. It is also write-behind: updates only change the
+ * cached balance and mark it dirty, and a dirty balance is only written back
+ * once it is evicted. Evicted balances are buffered, and written to the
+ * backing store in batches of {@literal flushBatchSize} with
+ * {@link AccountStore#setAll(IntLongHashMap)}, which a spilling store applies
+ * one partition at a time.
+ *
+ * Eviction follows W-TinyLFU. New accounts enter a small LRU window (1% of
+ * the capacity), which absorbs bursts of accounts seen only once. Accounts
+ * leaving the window compete for a place in the main cache, a segmented LRU
+ * split into probation and protected (80%) segments, with the account which
+ * the main cache would evict next: whichever has been seen more often
+ * recently, according to a {@link FrequencySketch}, is kept. An account is
+ * promoted to the protected segment when it is used again while on
+ * probation.
+ *
+ * {@link #applyAll(IntLongHashMap, IntLongConsumer)} applies the amounts of
+ * cached accounts straight away, and reads all of the other accounts of the
+ * batch from the backing store together, with
+ * {@link AccountStore#getAll(IntLongHashMap, BalanceConsumer)}, so that a
+ * spilling store loads each of its partitions at most once per batch.
+ *
+ * Entries are held in parallel primitive arrays, indexed by an
+ * open-addressing table of account numbers, so the cache allocates nothing
+ * per access. Every operation holds the store's lock, so concurrent updates
+ * are serialised.
+ *
+ * {@link #size()} counts accounts which have only been created in the cache,
+ * but {@link #forEach(BalanceConsumer)} first flushes every dirty balance,
+ * so that the backing store holds every account.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class CachingAccountStore implements AccountStore {
+
+  private static final byte WINDOW = 0;
+  private static final byte PROBATION = 1;
+  private static final byte PROTECTED = 2;
+
+  /**
+   * The approximate number of bytes of heap held for each slot, across the
+   * parallel arrays and the index
+   */
+  private static final int SLOT_SIZE = Integer.BYTES * 4 + Long.BYTES + 3 + Integer.BYTES * 2;
+
+  private final AccountStore backing;
+
+  private final int windowCapacity;
+
+  private final int protectedCapacity;
+
+  private final int flushBatchSize;
+
+  private final FrequencySketch sketch;
+
+  /*
+   * The account number, balance and state of each slot. There is one more
+   * slot than the capacity, for an account being admitted.
+   */
+  private final int[] keys;
+
+  private final long[] balances;
+
+  /**
+   * Whether the balance has changed since it was read from the backing store
+   */
+  private final boolean[] dirty;
+
+  /**
+   * Whether the account has not yet been written to the backing store
+   */
+  private final boolean[] created;
+
+  private final byte[] queues;
+
+  /**
+   * The links of each slot in the list of its queue, most recently used
+   * first. The last three entries are the heads of the circular lists.
+   */
+  private final int[] prev;
+
+  private final int[] next;
+
+  private final int[] queueSizes = new int[3];
+
+  private final int[] freeSlots;
+
+  private int numFree;
+
+  /**
+   * The slot of each cached account, plus one, or zero for an empty bucket
+   */
+  private final int[] index;
+
+  private final int indexMask;
+
+  /**
+   * Evicted dirty balances, waiting to be written to the backing store
+   */
+  private IntLongHashMap writeBehind = new IntLongHashMap();
+
+  /**
+   * The evicted accounts which do not yet exist in the backing store
+   */
+  private IntHashSet createdBehind = new IntHashSet();
+
+  private int numCreated;
+
+  private long hits;
+
+  private long misses;
+
+  private long evictions;
+
+  private long flushes;
+
+  /**
+   * @param backing        the store holding every account
+   * @param capacity       the maximum number of accounts to cache, at least
+   *                       two
+   * @param flushBatchSize the number of evicted balances to write to the
+   *                       backing store at a time
+   */
+  public CachingAccountStore(AccountStore backing, int capacity, int flushBatchSize) {
+    if (capacity < 2 || capacity > 1 << 28 || flushBatchSize < 1) {
+      throw new IllegalArgumentException("Invalid account cache capacity " + capacity
+          + " or flush batch size " + flushBatchSize);
+    }
+
+    this.backing = backing;
+    this.windowCapacity = Math.max(1, capacity / 100);
+    this.protectedCapacity = (capacity - windowCapacity) * 8 / 10;
+    this.flushBatchSize = flushBatchSize;
+    this.sketch = new FrequencySketch(capacity);
+
+    int slots = capacity + 1;
+    this.keys = new int[slots];
+    this.balances = new long[slots];
+    this.dirty = new boolean[slots];
+    this.created = new boolean[slots];
+    this.queues = new byte[slots];
+    this.prev = new int[slots + 3];
+    this.next = new int[slots + 3];
+    this.freeSlots = new int[slots];
+
+    for (int slot = 0; slot < slots; slot++) {
+      freeSlots[numFree++] = slots - 1 - slot;
+    }
+
+    for (int queue = WINDOW; queue <= PROTECTED; queue++) {
+      prev[head(queue)] = head(queue);
+      next[head(queue)] = head(queue);
+    }
+
+    int indexSize = Integer.highestOneBit(slots * 2 - 1) << 1;
+    this.index = new int[indexSize];
+    this.indexMask = indexSize - 1;
+  }
+
+  @Override
+  public synchronized long apply(int accountNumber, long transactionAmount) {
+    // Positive transaction amounts represent a credit against a customer
+    // account, and negative amounts a debit, so the balance always moves in
+    // the opposite direction to the transaction amount.
+    long change = Math.negateExact(transactionAmount);
+    int slot = load(accountNumber, true);
+
+    balances[slot] = Math.addExact(balances[slot], change);
+    dirty[slot] = true;
+    return balances[slot];
+  }
+
+  /**
+   * Apply the amounts of cached accounts straight away, then read every
+   * other account from the backing store as a single batch (which a
+   * spilling store reads one partition at a time), and cache it.
+   */
+  @Override
+  public synchronized void applyAll(IntLongHashMap amounts, IntLongConsumer rejected) {
+    IntLongHashMap missing = new IntLongHashMap();
+
+    amounts.forEach((accountNumber, amount) -> {
+      // Evicted balances are newer than those in the backing store
+      if (find(accountNumber) < 0 && !writeBehind.containsKey(accountNumber)) {
+        missing.put(accountNumber, amount);
+        return;
+      }
+
+      try {
+        apply(accountNumber, amount);
+      } catch (ArithmeticException e) {
+        rejected.accept(accountNumber, amount);
+      }
+    });
+
+    IntLongHashMap found = new IntLongHashMap(missing.size());
+    backing.getAll(missing, found::put);
+
+    missing.forEach((accountNumber, amount) -> {
+      sketch.increment(accountNumber);
+      misses++;
+
+      boolean exists = found.containsKey(accountNumber);
+      long balance = found.get(accountNumber);
+      long updated;
+
+      try {
+        updated = Math.addExact(balance, Math.negateExact(amount));
+      } catch (ArithmeticException e) {
+        rejected.accept(accountNumber, amount);
+        return;
+      }
+
+      int slot = cache(accountNumber, balance, !exists);
+      balances[slot] = updated;
+      dirty[slot] = true;
+    });
+  }
+
+  @Override
+  public synchronized void setBalance(int accountNumber, long balance) {
+    int slot = load(accountNumber, true);
+    balances[slot] = balance;
+    dirty[slot] = true;
+  }
+
+  @Override
+  public synchronized boolean contains(int accountNumber) {
+    return load(accountNumber, false) >= 0;
+  }
+
+  @Override
+  public synchronized long getBalance(int accountNumber) {
+    int slot = load(accountNumber, false);
+    return slot < 0 ? 0 : balances[slot];
+  }
+
+  @Override
+  public synchronized OptionalLong findBalance(int accountNumber) {
+    int slot = load(accountNumber, false);
+    return slot < 0 ? OptionalLong.empty() : OptionalLong.of(balances[slot]);
+  }
+
+  @Override
+  public synchronized int size() {
+    return backing.size() + numCreated + createdBehind.size();
+  }
+
+  @Override
+  public synchronized long getMemoryUsage() {
+    return (long) keys.length * SLOT_SIZE + sketch.getMemoryUsage() + writeBehind.getMemoryUsage()
+        + backing.getMemoryUsage();
+  }
+
+  @Override
+  public synchronized void forEach(BalanceConsumer consumer) {
+    flush();
+    backing.forEach(consumer);
+  }
+
+  /**
+   * Close the backing store, discarding any balances which have not been
+   * written back.
+   */
+  @Override
+  public synchronized void close() {
+    backing.close();
+  }
+
+  /**
+   * Write every dirty balance, cached or evicted, to the backing store as a
+   * single batch. Cached balances stay cached.
+   */
+  public synchronized void flush() {
+    for (int queue = WINDOW; queue <= PROTECTED; queue++) {
+      for (int slot = next[head(queue)]; slot != head(queue); slot = next[slot]) {
+        if (dirty[slot]) {
+          writeBehind(slot);
+          dirty[slot] = false;
+        }
+      }
+    }
+
+    flushWriteBehind();
+  }
+
+  /**
+   * @return the number of lookups of accounts which were cached
+   */
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  /**
+   * @return the number of lookups of accounts which had to be read from the
+   * backing store (including those of accounts which did not exist)
+   */
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  /**
+   * @return the number of accounts evicted from the cache
+   */
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  /**
+   * @return the number of batches of balances written to the backing store
+   */
+  public synchronized long getFlushCount() {
+    return flushes;
+  }
+
+  /**
+   * @return the number of accounts currently cached
+   */
+  public synchronized int getCachedCount() {
+    return keys.length - numFree;
+  }
+
+  /**
+   * Find the slot of an account, caching it if it is not already cached.
+   *
+   * @param create whether to create the account if it does not exist
+   * @return the slot of the account, or -1 if it does not exist and was not
+   * created
+   */
+  private int load(int accountNumber, boolean create) {
+    sketch.increment(accountNumber);
+    int slot = find(accountNumber);
+
+    if (slot >= 0) {
+      hits++;
+      touch(slot);
+      return slot;
+    }
+
+    misses++;
+
+    // Evicted balances are newer than those in the backing store
+    if (writeBehind.containsKey(accountNumber)) {
+      return cache(accountNumber, writeBehind.get(accountNumber), false);
+    }
+
+    OptionalLong balance = backing.findBalance(accountNumber);
+
+    if (balance.isPresent()) {
+      return cache(accountNumber, balance.getAsLong(), false);
+    }
+
+    return create ? cache(accountNumber, 0, true) : -1;
+  }
+
+  /**
+   * Cache an account which was not cached.
+   *
+   * @param isNew whether the account does not exist in the backing store
+   */
+  private int cache(int accountNumber, long balance, boolean isNew) {
+    int slot = admit(accountNumber, balance);
+
+    if (isNew) {
+      created[slot] = true;
+      dirty[slot] = true;
+      numCreated++;
+    }
+
+    return slot;
+  }
+
+  /**
+   * Add an account to the window, evicting an account if the cache is full.
+   * The account being added is never the one evicted.
+   */
+  private int admit(int accountNumber, long balance) {
+    int slot = freeSlots[--numFree];
+    keys[slot] = accountNumber;
+    balances[slot] = balance;
+    dirty[slot] = false;
+    created[slot] = false;
+
+    addToIndex(slot);
+    link(slot, WINDOW);
+
+    if (queueSizes[WINDOW] > windowCapacity) {
+      // The account leaving the window competes with the account the main
+      // cache would evict next, and the less frequently used one is evicted
+      int candidate = prev[head(WINDOW)];
+      unlink(candidate);
+      link(candidate, PROBATION);
+
+      if (numFree == 0) {
+        int victim = prev[head(PROBATION)];
+        boolean admitted = victim != candidate
+            && sketch.frequency(keys[candidate]) > sketch.frequency(keys[victim]);
+
+        evict(admitted ? victim : candidate);
+      }
+    }
+
+    return slot;
+  }
+
+  /**
+   * Record a use of a cached account.
+   */
+  private void touch(int slot) {
+    int queue = queues[slot];
+    unlink(slot);
+
+    if (queue == WINDOW) {
+      link(slot, WINDOW);
+      return;
+    }
+
+    link(slot, PROTECTED);
+
+    // A promotion may push the least recently used protected account back
+    // onto probation
+    if (queueSizes[PROTECTED] > protectedCapacity) {
+      int demoted = prev[head(PROTECTED)];
+      unlink(demoted);
+      link(demoted, PROBATION);
+    }
+  }
+
+  private void evict(int slot) {
+    unlink(slot);
+    removeFromIndex(slot);
+    evictions++;
+
+    if (dirty[slot]) {
+      writeBehind(slot);
+    }
+
+    freeSlots[numFree++] = slot;
+
+    if (writeBehind.size() >= flushBatchSize) {
+      flushWriteBehind();
+    }
+  }
+
+  private void writeBehind(int slot) {
+    writeBehind.put(keys[slot], balances[slot]);
+
+    if (created[slot]) {
+      createdBehind.add(keys[slot]);
+      created[slot] = false;
+      numCreated--;
+    }
+  }
+
+  private void flushWriteBehind() {
+    if (writeBehind.size() == 0) {
+      return;
+    }
+
+    backing.setAll(writeBehind);
+    flushes++;
+
+    writeBehind = new IntLongHashMap();
+    createdBehind = new IntHashSet();
+  }
+
+  /**
+   * The head of the list of a queue, which follows the slots.
+   */
+  private int head(int queue) {
+    return keys.length + queue;
+  }
+
+  /**
+   * Add a slot to the front of a queue.
+   */
+  private void link(int slot, byte queue) {
+    int head = head(queue);
+    prev[slot] = head;
+    next[slot] = next[head];
+    prev[next[head]] = slot;
+    next[head] = slot;
+
+    queues[slot] = queue;
+    queueSizes[queue]++;
+  }
+
+  private void unlink(int slot) {
+    next[prev[slot]] = next[slot];
+    prev[next[slot]] = prev[slot];
+    queueSizes[queues[slot]]--;
+  }
+
+  private int find(int accountNumber) {
+    for (int i = HashUtils.mix(accountNumber) & indexMask; ; i = (i + 1) & indexMask) {
+      int entry = index[i];
+
+      if (entry == 0) {
+        return -1;
+      } else if (keys[entry - 1] == accountNumber) {
+        return entry - 1;
+      }
+    }
+  }
+
+  private void addToIndex(int slot) {
+    int i = HashUtils.mix(keys[slot]) & indexMask;
+
+    while (index[i] != 0) {
+      i = (i + 1) & indexMask;
+    }
+
+    index[i] = slot + 1;
+  }
+
+  /**
+   * Remove a slot from the index, shifting back any later entries of the
+   * same probe sequence so that lookups never stop short of them.
+   */
+  private void removeFromIndex(int slot) {
+    int i = HashUtils.mix(keys[slot]) & indexMask;
+
+    while (index[i] != slot + 1) {
+      i = (i + 1) & indexMask;
+    }
+
+    for (int j = (i + 1) & indexMask; index[j] != 0; j = (j + 1) & indexMask) {
+      int home = HashUtils.mix(keys[index[j] - 1]) & indexMask;
+
+      // The entry can fill the gap if the gap lies between its home bucket
+      // and where it is now
+      if (((j - home) & indexMask) >= ((j - i) & indexMask)) {
+        index[i] = index[j];
+        i = j;
+      }
+    }
+
+    index[i] = 0;
+  }
+}
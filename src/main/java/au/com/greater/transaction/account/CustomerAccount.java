@@ -1,6 +1,7 @@
 package au.com.greater.transaction.account;
 
 import au.com.greater.transaction.model.Transaction;
+import lombok.AllArgsConstructor;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 
@@ -8,19 +9,41 @@ import lombok.RequiredArgsConstructor;
  * This mutable model class is used to keep track of credits and debits for a
  * single customer account.
  *
+ * Each account guards its own balance, so transactions against different
+ * accounts can be applied concurrently without contending on a shared lock.
+ *
+ * The balance is held as a whole number of cents. If a transaction would take
+ * the balance outside the range of a long, an {@link ArithmeticException} is
+ * thrown and the balance is left unchanged.
+ *
  * @author Justin Lewis Salmon
  */
 @Getter
+@AllArgsConstructor
 @RequiredArgsConstructor
 public class CustomerAccount {
 
   private final int accountNumber;
 
-  private double balance = 0.0;
+  private long balanceCents = 0;
+
+  public synchronized long getBalanceCents() {
+    return balanceCents;
+  }
+
+  public synchronized void setBalanceCents(long balanceCents) {
+    this.balanceCents = balanceCents;
+  }
 
-  public void apply(Transaction transaction) {
-    double transactionAmount = transaction.getTransactionAmount();
+  public long apply(Transaction transaction) {
+    return apply(transaction.getTransactionAmountCents());
+  }
 
+  /**
+   * @param transactionAmount the transaction amount in cents
+   * @return the new balance in cents
+   */
+  public synchronized long apply(long transactionAmount) {
     if (transactionAmount < 0) {
       // Negative transaction amounts represent a debit against a customer
       // account, and the customer's account balance is increased.
@@ -30,13 +53,15 @@ public class CustomerAccount {
       // account, and the customer's balance is decreased.
       credit(transactionAmount);
     }
+
+    return balanceCents;
   }
 
-  private void debit(double amount) {
-    balance += Math.abs(amount);
+  private void debit(long amount) {
+    balanceCents = Math.addExact(balanceCents, Math.abs(amount));
   }
 
-  private void credit(double amount) {
-    balance -= amount;
+  private void credit(long amount) {
+    balanceCents = Math.subtractExact(balanceCents, amount);
   }
 }
@@ -2,24 +2,93 @@ package au.com.greater.transaction.account;
 
 import au.com.greater.transaction.model.Transaction;
 import au.com.greater.transaction.model.TransactionFile;
-import lombok.Getter;
+import au.com.greater.transaction.utils.IntLongHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
 
 /**
- * Customer accounts are maintained in a {@link Map} for lookup
- * performance. If an account is not present in the map, a new instance is
- * added with the initial debit/credit amount.
+ * Customer account balances are maintained in an {@link AccountStore} for
+ * lookup performance. If an account is not present in the store, it is
+ * created with the initial debit/credit amount.
+ *
+ * This service is thread-safe, as long as the store is (which all of the
+ * provided implementations are). Several {@link TransactionFile}s may
+ * therefore be applied at the same time.
+ *
+ * Balances are held exactly, as a whole number of cents. A transaction which
+ * would take an account balance out of range is not applied; instead the
+ * account is flagged, and can be retrieved via {@link #getOverflowedAccounts()}.
  *
  * @author Justin Lewis Salmon
  */
 @Service
 public class CustomerAccountService {
 
-  @Getter
-  private Map<Integer, CustomerAccount> accounts = new HashMap<>();
+  private static final Logger log = LoggerFactory.getLogger(CustomerAccountService.class);
+
+  /**
+   * The number of transactions summed by each task when pre-aggregating
+   */
+  private static final int AGGREGATION_CHUNK_SIZE = 64 * 1024;
+
+  private final AccountStore accountStore;
+
+  private final Set<Integer> overflowedAccounts = ConcurrentHashMap.newKeySet();
+
+  public CustomerAccountService() {
+    this(new HeapAccountStore());
+  }
+
+  @Autowired
+  public CustomerAccountService(AccountStore accountStore) {
+    this.accountStore = accountStore;
+  }
+
+  /**
+   * Retrieve a copy of all customer accounts. Note that this materialises
+   * every account in the store, so should be used sparingly for large stores.
+   *
+   * @return a map of customer account number to account
+   */
+  public Map<Integer, CustomerAccount> getAccounts() {
+    Map<Integer, CustomerAccount> accounts = new HashMap<>();
+    accountStore.forEach((accountNumber, balance) -> accounts.put(accountNumber, new CustomerAccount(accountNumber, balance)));
+    return accounts;
+  }
+
+  /**
+   * @return the numbers of all accounts for which a transaction was rejected
+   * because it would have taken the balance out of range
+   */
+  public Set<Integer> getOverflowedAccounts() {
+    return overflowedAccounts;
+  }
+
+  /**
+   * @return the number of customer accounts
+   */
+  public int getNumAccounts() {
+    return accountStore.size();
+  }
+
+  /**
+   * @return an estimate of the number of bytes used to hold customer
+   * accounts
+   */
+  public long getAccountsMemoryUsage() {
+    return accountStore.getMemoryUsage();
+  }
 
   /**
    * Apply all transactions from a {@link TransactionFile} to their
@@ -34,35 +103,234 @@ public class CustomerAccountService {
     }
   }
 
+  /**
+   * Apply all transactions from a {@link TransactionFile} to their
+   * corresponding customer accounts, touching each account only once.
+   *
+   * The transactions are first collapsed into a net amount per account, in
+   * parallel chunks on the common fork-join pool, and the net amounts are
+   * then applied to the store as a batch, in the order that suits it best.
+   * For skewed files, where a few accounts receive most transactions, this
+   * greatly reduces the number of store lookups and the contention between
+   * threads.
+   *
+   * As only the net amount is applied, an account is only flagged as out of
+   * range if its final balance would be, rather than if any intermediate
+   * balance would be. If the file's total debits or credits are out of
+   * range, the net amounts can't be summed safely, and each transaction is
+   * applied on its own instead.
+   *
+   * @param file the {@link TransactionFile} containing transactions to be
+   *             applied
+   */
+  public void applyTransactionsAggregated(TransactionFile file) {
+    if (file.isTotalsOutOfRange()) {
+      applyTransactions(file);
+      return;
+    }
+
+    // Every partial sum lies between the file's total debits and credits,
+    // which are themselves held exactly, so the sums can't overflow
+    accountStore.applyAll(aggregate(file.getTransactions()), this::rejectTransaction);
+  }
+
+  /**
+   * Apply all transactions from several {@link TransactionFile}s as a single
+   * batch, as with {@link #applyTransactionsAggregated(TransactionFile)}.
+   * Grouping small files this way pays the cost of a batch (e.g. loading
+   * the partitions of a {@link SpillingAccountStore}) once for the group,
+   * rather than once per file.
+   *
+   * Only the net amount of the whole group is applied, so an account is only
+   * flagged as out of range if its balance would be once every file has been
+   * applied (see {@link #applyBatchAggregated(List)}).
+   *
+   * @param files the {@link TransactionFile}s containing transactions to be
+   *              applied
+   */
+  public void applyTransactionsAggregated(List<TransactionFile> files) {
+    List<Transaction> transactions = new ArrayList<>();
+    files.forEach(file -> transactions.addAll(file.getTransactions()));
+    applyBatchAggregated(transactions);
+  }
+
+  /**
+   * Apply a batch of transactions, e.g. one replayed from a journal, in
+   * exactly the same way as {@link #applyTransactionsAggregated(List)}
+   * applies the files they came from, so that balances recovered after a
+   * restart match those before it.
+   *
+   * If the batch's total debits or credits would overflow, the net amounts
+   * can't be summed safely, and each transaction is applied on its own
+   * instead.
+   *
+   * @param transactions the transactions to be applied, in order
+   */
+  public void applyBatchAggregated(List<Transaction> transactions) {
+    try {
+      // The sums are only guaranteed not to overflow if the batch's total
+      // debits and credits don't
+      long totalCreditCents = 0;
+      long totalDebitCents = 0;
+
+      for (Transaction transaction : transactions) {
+        long amount = transaction.getTransactionAmountCents();
+
+        if (amount > 0) {
+          totalCreditCents = Math.addExact(totalCreditCents, amount);
+        } else {
+          totalDebitCents = Math.subtractExact(totalDebitCents, amount);
+        }
+      }
+    } catch (ArithmeticException e) {
+      transactions.forEach(this::applyTransaction);
+      return;
+    }
+
+    accountStore.applyAll(aggregate(transactions), this::rejectTransaction);
+  }
+
+  /**
+   * Sum the transaction amounts per account, in parallel chunks which are
+   * then merged.
+   */
+  static IntLongHashMap aggregate(List<Transaction> transactions) {
+    int numChunks = (transactions.size() + AGGREGATION_CHUNK_SIZE - 1) / AGGREGATION_CHUNK_SIZE;
+
+    return IntStream.range(0, numChunks).parallel()
+        .mapToObj(chunk -> {
+          int end = Math.min(transactions.size(), (chunk + 1) * AGGREGATION_CHUNK_SIZE);
+          IntLongHashMap netAmounts = new IntLongHashMap();
+
+          for (int i = chunk * AGGREGATION_CHUNK_SIZE; i < end; i++) {
+            Transaction transaction = transactions.get(i);
+            netAmounts.add(transaction.getCustomerAccountNumber(), transaction.getTransactionAmountCents());
+          }
+
+          return netAmounts;
+        })
+        .reduce((first, second) -> {
+          // Merge the smaller map into the larger one
+          if (first.size() < second.size()) {
+            second.addAll(first);
+            return second;
+          }
+
+          first.addAll(second);
+          return first;
+        })
+        .orElseGet(IntLongHashMap::new);
+  }
+
+  /**
+   * Apply all transactions from a {@link TransactionFile} to their
+   * corresponding customer accounts, spreading the work across the threads
+   * of the common fork-join pool.
+   *
+   * @param file the {@link TransactionFile} containing transactions to be
+   *             applied
+   */
+  public void applyTransactionsInParallel(TransactionFile file) {
+    file.getTransactions().parallelStream().forEach(this::applyTransaction);
+  }
+
+  /**
+   * Apply all transactions from several {@link TransactionFile}s at the same
+   * time.
+   *
+   * @param files the {@link TransactionFile}s containing transactions to be
+   *              applied
+   */
+  public void applyTransactionsInParallel(List<TransactionFile> files) {
+    files.parallelStream().forEach(this::applyTransactionsInParallel);
+  }
+
   /**
    * Apply a single transaction to the corresponding customer account.
    *
+   * Skipped (null) transactions are ignored, so that this method can be used
+   * directly as the consumer of a streaming parse.
+   *
    * @param transaction the {@link Transaction} to apply
    */
   public void applyTransaction(Transaction transaction) {
-    CustomerAccount account = accounts.get(transaction.getCustomerAccountNumber());
+    if (transaction == null) {
+      return;
+    }
+
+    applyTransaction(transaction.getCustomerAccountNumber(), transaction.getTransactionAmountCents());
+  }
 
-    if (account == null) {
-      account = new CustomerAccount(transaction.getCustomerAccountNumber());
+  /**
+   * Apply a single transaction amount to the given customer account.
+   *
+   * @param customerAccountNumber  the number of the account to update
+   * @param transactionAmountCents the transaction amount in cents
+   */
+  public void applyTransaction(int customerAccountNumber, long transactionAmountCents) {
+    try {
+      accountStore.apply(customerAccountNumber, transactionAmountCents);
+    } catch (ArithmeticException e) {
+      rejectTransaction(customerAccountNumber, transactionAmountCents);
     }
+  }
+
+  private void rejectTransaction(int customerAccountNumber, long transactionAmountCents) {
+    log.error("Balance of customer account {} is out of range, transaction of {} cents not applied",
+        customerAccountNumber, transactionAmountCents);
+    overflowedAccounts.add(customerAccountNumber);
+  }
+
+  /**
+   * Restore the balance of a single customer account, e.g. from a snapshot,
+   * replacing any existing balance.
+   *
+   * @param customerAccountNumber the number of the account to restore
+   * @param balanceCents          the account balance in cents
+   */
+  public void restoreBalance(int customerAccountNumber, long balanceCents) {
+    accountStore.setBalance(customerAccountNumber, balanceCents);
+  }
 
-    account.apply(transaction);
-    accounts.put(account.getAccountNumber(), account);
+  /**
+   * Visit the balance of every customer account, without materialising
+   * {@link CustomerAccount} objects.
+   *
+   * @param consumer the consumer to receive each account number and balance
+   */
+  public void forEachBalance(AccountStore.BalanceConsumer consumer) {
+    accountStore.forEach(consumer);
   }
 
   /**
-   * Retrieve the balance of a single customer account.
+   * Retrieve the exact balance of a single customer account.
    *
    * @param customerAccountNumber the number of the account to query
-   * @return the account balance
+   * @return the account balance in cents
    */
-  public double getAccountBalance(int customerAccountNumber) {
-    CustomerAccount account = accounts.get(customerAccountNumber);
+  public long getAccountBalanceCents(int customerAccountNumber) {
+    return accountStore.findBalance(customerAccountNumber).orElseThrow(() ->
+        new RuntimeException("Customer account " + customerAccountNumber + " does not exist!"));
+  }
 
-    if (account == null) {
-      throw new RuntimeException("Customer account " + customerAccountNumber + " does not exist!");
-    }
+  /**
+   * Retrieve the exact balance of a single customer account, if it exists.
+   *
+   * @param customerAccountNumber the number of the account to query
+   * @return the account balance in cents, or empty if the account does not
+   * exist
+   */
+  public OptionalLong findAccountBalanceCents(int customerAccountNumber) {
+    return accountStore.findBalance(customerAccountNumber);
+  }
 
-    return account.getBalance();
+  /**
+   * Retrieve the balance of a single customer account, for display purposes.
+   *
+   * @param customerAccountNumber the number of the account to query
+   * @return the account balance in dollars
+   */
+  public double getAccountBalance(int customerAccountNumber) {
+    return getAccountBalanceCents(customerAccountNumber) / 100.0;
   }
 }
@@ -0,0 +1,59 @@
+package au.com.greater.transaction.account;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This {@link AccountStore} keeps a {@link CustomerAccount} instance per
+ * account in a {@link ConcurrentHashMap}. It is simple, but costs a boxed key,
+ * a map node and an account object for every account.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class HeapAccountStore implements AccountStore {
+
+  /**
+   * The approximate cost of one account on a 64-bit JVM with compressed
+   * oops: a 16-byte boxed key, a 32-byte map node, a 24-byte account and a
+   * share of the map's table.
+   */
+  private static final int BYTES_PER_ACCOUNT = 88;
+
+  private final Map<Integer, CustomerAccount> accounts = new ConcurrentHashMap<>();
+
+  @Override
+  public long apply(int accountNumber, long transactionAmount) {
+    return accounts.computeIfAbsent(accountNumber, CustomerAccount::new).apply(transactionAmount);
+  }
+
+  @Override
+  public void setBalance(int accountNumber, long balance) {
+    accounts.computeIfAbsent(accountNumber, CustomerAccount::new).setBalanceCents(balance);
+  }
+
+  @Override
+  public boolean contains(int accountNumber) {
+    return accounts.containsKey(accountNumber);
+  }
+
+  @Override
+  public long getBalance(int accountNumber) {
+    CustomerAccount account = accounts.get(accountNumber);
+    return account == null ? 0 : account.getBalanceCents();
+  }
+
+  @Override
+  public int size() {
+    return accounts.size();
+  }
+
+  @Override
+  public long getMemoryUsage() {
+    return (long) accounts.size() * BYTES_PER_ACCOUNT;
+  }
+
+  @Override
+  public void forEach(BalanceConsumer consumer) {
+    accounts.forEach((accountNumber, account) -> consumer.accept(accountNumber, account.getBalanceCents()));
+  }
+}
@@ -0,0 +1,244 @@
+package au.com.greater.transaction.account;
+
+import au.com.greater.transaction.utils.HashUtils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * This {@link AccountStore} keeps account balances in open-addressing hash
+ * tables keyed directly on the primitive account number. Each account costs a
+ * single 12-byte slot (an int key and a long balance) rather than the 80+
+ * bytes of a boxed key, map node and {@link CustomerAccount} object.
+ *
+ * The tables are held in {@link ByteBuffer}s, which may optionally be
+ * allocated off-heap. In that case the balances are invisible to the garbage
+ * collector, and heap usage is independent of the number of accounts.
+ *
+ * Accounts are spread across a fixed number of independently locked segments
+ * (lock striping), so concurrent updates to different accounts rarely
+ * contend.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class PrimitiveAccountStore implements AccountStore {
+
+  private static final int SEGMENT_BITS = 6;
+
+  private final Segment[] segments = new Segment[1 << SEGMENT_BITS];
+
+  /**
+   * @param offHeap whether to allocate the tables in direct (off-heap)
+   *                buffers
+   */
+  public PrimitiveAccountStore(boolean offHeap) {
+    for (int i = 0; i < segments.length; i++) {
+      segments[i] = new Segment(offHeap);
+    }
+  }
+
+  private Segment segmentFor(int hash) {
+    return segments[hash >>> (Integer.SIZE - SEGMENT_BITS)];
+  }
+
+  @Override
+  public long apply(int accountNumber, long transactionAmount) {
+    int hash = HashUtils.mix(accountNumber);
+
+    // Positive transaction amounts represent a credit against a customer
+    // account, and negative amounts a debit, so the balance always moves in
+    // the opposite direction to the transaction amount.
+    return segmentFor(hash).add(accountNumber, hash, Math.negateExact(transactionAmount));
+  }
+
+  @Override
+  public void setBalance(int accountNumber, long balance) {
+    int hash = HashUtils.mix(accountNumber);
+    segmentFor(hash).put(accountNumber, hash, balance);
+  }
+
+  @Override
+  public boolean contains(int accountNumber) {
+    int hash = HashUtils.mix(accountNumber);
+    return segmentFor(hash).indexOf(accountNumber, hash) >= 0;
+  }
+
+  @Override
+  public long getBalance(int accountNumber) {
+    int hash = HashUtils.mix(accountNumber);
+    return segmentFor(hash).get(accountNumber, hash);
+  }
+
+  @Override
+  public int size() {
+    int size = 0;
+
+    for (Segment segment : segments) {
+      size += segment.size();
+    }
+
+    return size;
+  }
+
+  @Override
+  public long getMemoryUsage() {
+    long bytes = 0;
+
+    for (Segment segment : segments) {
+      bytes += segment.capacity();
+    }
+
+    return bytes;
+  }
+
+  @Override
+  public void forEach(BalanceConsumer consumer) {
+    for (Segment segment : segments) {
+      segment.forEach(consumer);
+    }
+  }
+
+  /**
+   * A single open-addressing table with linear probing. Each slot holds an
+   * int key followed by a long balance. A zero key marks an empty slot, so
+   * account number zero is stored separately.
+   */
+  private static final class Segment {
+
+    private static final int SLOT_SIZE = Integer.BYTES + Long.BYTES;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final float LOAD_FACTOR = 0.7f;
+
+    private final boolean offHeap;
+
+    private ByteBuffer table;
+    private int mask;
+    private int size;
+
+    private boolean containsZero;
+    private long zeroBalance;
+
+    Segment(boolean offHeap) {
+      this.offHeap = offHeap;
+      this.table = allocate(INITIAL_CAPACITY);
+      this.mask = INITIAL_CAPACITY - 1;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+      return offHeap ? ByteBuffer.allocateDirect(capacity * SLOT_SIZE) : ByteBuffer.allocate(capacity * SLOT_SIZE);
+    }
+
+    synchronized int size() {
+      return containsZero ? size + 1 : size;
+    }
+
+    synchronized int capacity() {
+      return table.capacity();
+    }
+
+    /**
+     * @return the byte offset of the slot containing the key, or -1
+     */
+    synchronized int indexOf(int key, int hash) {
+      if (key == 0) {
+        return containsZero ? 0 : -1;
+      }
+
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        int offset = slot * SLOT_SIZE;
+        int existing = table.getInt(offset);
+
+        if (existing == key) {
+          return offset;
+        } else if (existing == 0) {
+          return -1;
+        }
+      }
+    }
+
+    synchronized long get(int key, int hash) {
+      if (key == 0) {
+        return zeroBalance;
+      }
+
+      int offset = indexOf(key, hash);
+      return offset < 0 ? 0 : table.getLong(offset + Integer.BYTES);
+    }
+
+    synchronized void put(int key, int hash, long balance) {
+      int offset = indexOf(key, hash);
+
+      if (key == 0) {
+        containsZero = true;
+        zeroBalance = balance;
+      } else if (offset >= 0) {
+        table.putLong(offset + Integer.BYTES, balance);
+      } else {
+        add(key, hash, balance);
+      }
+    }
+
+    synchronized long add(int key, int hash, long delta) {
+      if (key == 0) {
+        zeroBalance = Math.addExact(zeroBalance, delta);
+        containsZero = true;
+        return zeroBalance;
+      }
+
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        int offset = slot * SLOT_SIZE;
+        int existing = table.getInt(offset);
+
+        if (existing == key) {
+          long balance = Math.addExact(table.getLong(offset + Integer.BYTES), delta);
+          table.putLong(offset + Integer.BYTES, balance);
+          return balance;
+        } else if (existing == 0) {
+          table.putInt(offset, key);
+          table.putLong(offset + Integer.BYTES, delta);
+
+          if (++size > (mask + 1) * LOAD_FACTOR) {
+            resize();
+          }
+          return delta;
+        }
+      }
+    }
+
+    synchronized void forEach(BalanceConsumer consumer) {
+      if (containsZero) {
+        consumer.accept(0, zeroBalance);
+      }
+
+      for (int offset = 0; offset < table.capacity(); offset += SLOT_SIZE) {
+        int key = table.getInt(offset);
+
+        if (key != 0) {
+          consumer.accept(key, table.getLong(offset + Integer.BYTES));
+        }
+      }
+    }
+
+    private void resize() {
+      ByteBuffer oldTable = table;
+      int capacity = (mask + 1) * 2;
+
+      table = allocate(capacity);
+      mask = capacity - 1;
+
+      for (int offset = 0; offset < oldTable.capacity(); offset += SLOT_SIZE) {
+        int key = oldTable.getInt(offset);
+
+        if (key != 0) {
+          int slot = HashUtils.mix(key) & mask;
+
+          while (table.getInt(slot * SLOT_SIZE) != 0) {
+            slot = (slot + 1) & mask;
+          }
+
+          table.putInt(slot * SLOT_SIZE, key);
+          table.putLong(slot * SLOT_SIZE + Integer.BYTES, oldTable.getLong(offset + Integer.BYTES));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,511 @@
+package au.com.greater.transaction.account;
+
+import au.com.greater.transaction.utils.HashUtils;
+import au.com.greater.transaction.utils.IntLongHashMap;
+import au.com.greater.transaction.utils.IntLongHashMap.IntLongConsumer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.OptionalLong;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * This {@link AccountStore} holds balances within a fixed memory budget, so
+ * that the number of accounts is not limited by the size of the heap.
+ *
+ * Accounts are hash-partitioned into a fixed number of partitions, each of
+ * which is either resident (a primitive hash table in memory) or spilled to
+ * its own file in the spill directory. A partition is loaded when one of its
+ * accounts is accessed, and once the resident partitions exceed the budget,
+ * the least recently used ones are written out and dropped. Partitions which
+ * have not changed since they were loaded are dropped without being written.
+ *
+ * {@link #applyAll(IntLongHashMap, IntLongConsumer)},
+ * {@link #setAll(IntLongHashMap)} and
+ * {@link #getAll(IntLongHashMap, BalanceConsumer)} group a batch of accounts
+ * by partition, so applying a pre-aggregated file (or flushing or reading a
+ * batch of balances for a {@link CachingAccountStore}) loads each partition
+ * at most once however the accounts are ordered.
+ * Applying transactions one at a time to a store much larger than its budget
+ * will thrash, so this store should be used with pre-aggregation.
+ *
+ * Spill files are only a cache for the current process: the spill directory
+ * is cleared when the store is created, the spill files are deleted when it
+ * is closed, and balances survive restarts through
+ * {@literal processing.stateDir} as with any other store. Every operation
+ * holds the store's lock, so concurrent updates are serialised.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class SpillingAccountStore implements AccountStore {
+
+  private static final Logger log = LoggerFactory.getLogger(SpillingAccountStore.class);
+
+  private static final int ENTRY_SIZE = Integer.BYTES + Long.BYTES;
+
+  /**
+   * A whole number of entries, so that entries never straddle two reads
+   */
+  private static final int BUFFER_SIZE = ENTRY_SIZE * 64 * 1024;
+
+  private final Path spillDir;
+
+  /**
+   * Whether the spill directory itself is deleted when the store is closed
+   */
+  private final boolean temporary;
+
+  private final long memoryBudget;
+
+  private final int partitionBits;
+
+  /**
+   * The table of each resident partition, or null if it is spilled
+   */
+  private final IntLongHashMap[] tables;
+
+  /**
+   * The number of accounts in each spilled partition
+   */
+  private final int[] spilledSizes;
+
+  /**
+   * Whether each resident partition has changed since it was last spilled
+   */
+  private final boolean[] dirty;
+
+  /**
+   * When each partition was last accessed, for least recently used eviction
+   */
+  private final long[] lastAccess;
+
+  private long clock;
+
+  private long residentBytes;
+
+  private long spills;
+
+  private long loads;
+
+  /**
+   * @param spillDir      the directory to spill partitions to, which is
+   *                      cleared
+   * @param memoryBudget  the number of bytes of heap the resident partitions
+   *                      may use; at least one partition is always resident,
+   *                      even if it is larger than the budget
+   * @param numPartitions the number of partitions, which is rounded up to a
+   *                      power of two
+   */
+  public SpillingAccountStore(Path spillDir, long memoryBudget, int numPartitions) {
+    this(spillDir, memoryBudget, numPartitions, false);
+  }
+
+  /**
+   * @param spillDir      the directory to spill partitions to, which is
+   *                      cleared
+   * @param memoryBudget  the number of bytes of heap the resident partitions
+   *                      may use
+   * @param numPartitions the number of partitions, which is rounded up to a
+   *                      power of two
+   * @param temporary     whether to delete the spill directory itself when
+   *                      the store is closed, e.g. if it was created just
+   *                      for this store
+   */
+  public SpillingAccountStore(Path spillDir, long memoryBudget, int numPartitions, boolean temporary) {
+    if (memoryBudget <= 0 || numPartitions < 1 || numPartitions > 1 << 16) {
+      throw new IllegalArgumentException("Invalid spilling store budget " + memoryBudget
+          + " or partition count " + numPartitions);
+    }
+
+    this.spillDir = spillDir;
+    this.temporary = temporary;
+    this.memoryBudget = memoryBudget;
+    this.partitionBits = Integer.SIZE - Integer.numberOfLeadingZeros(numPartitions - 1);
+
+    int partitions = 1 << partitionBits;
+    this.tables = new IntLongHashMap[partitions];
+    this.spilledSizes = new int[partitions];
+    this.dirty = new boolean[partitions];
+    this.lastAccess = new long[partitions];
+
+    try {
+      Files.createDirectories(spillDir);
+
+      for (int partition = 0; partition < partitions; partition++) {
+        Files.deleteIfExists(pathOf(partition));
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error clearing spill directory " + spillDir, e);
+    }
+  }
+
+  /**
+   * Partitions are chosen by the top bits of the hash, as the tables within
+   * each partition are indexed by the bottom bits.
+   */
+  private int partitionOf(int accountNumber) {
+    return partitionBits == 0 ? 0 : HashUtils.mix(accountNumber) >>> (Integer.SIZE - partitionBits);
+  }
+
+  private Path pathOf(int partition) {
+    return spillDir.resolve("partition-" + partition + ".bin");
+  }
+
+  @Override
+  public synchronized long apply(int accountNumber, long transactionAmount) {
+    int partition = partitionOf(accountNumber);
+    long balance = update(partition, accountNumber, transactionAmount);
+    evict(partition);
+    return balance;
+  }
+
+  /**
+   * Apply the amounts to the balances, one partition at a time.
+   */
+  @Override
+  public synchronized void applyAll(IntLongHashMap amounts, IntLongConsumer rejected) {
+    forEachByPartition(amounts, (partition, accountNumber, amount) -> {
+      try {
+        update(partition, accountNumber, amount);
+      } catch (ArithmeticException e) {
+        rejected.accept(accountNumber, amount);
+      }
+    });
+  }
+
+  /**
+   * Set the balances, one partition at a time.
+   */
+  @Override
+  public synchronized void setAll(IntLongHashMap balances) {
+    forEachByPartition(balances, this::put);
+  }
+
+  /**
+   * Receives a single entry of a batch, along with its partition.
+   */
+  @FunctionalInterface
+  private interface PartitionedConsumer {
+    void accept(int partition, int accountNumber, long value);
+  }
+
+  /**
+   * Pass every entry of a batch to the given consumer, grouped by partition,
+   * so that each partition is loaded at most once.
+   */
+  private void forEachByPartition(IntLongHashMap entries, PartitionedConsumer consumer) {
+    int partitions = tables.length;
+    int[] starts = new int[partitions + 1];
+
+    // Counting sort of the accounts by partition
+    entries.forEach((accountNumber, value) -> starts[partitionOf(accountNumber) + 1]++);
+
+    for (int partition = 0; partition < partitions; partition++) {
+      starts[partition + 1] += starts[partition];
+    }
+
+    int[] positions = starts.clone();
+    int[] accountNumbers = new int[entries.size()];
+    long[] values = new long[entries.size()];
+
+    entries.forEach((accountNumber, value) -> {
+      int position = positions[partitionOf(accountNumber)]++;
+      accountNumbers[position] = accountNumber;
+      values[position] = value;
+    });
+
+    for (int partition = 0; partition < partitions; partition++) {
+      if (starts[partition] == starts[partition + 1]) {
+        continue;
+      }
+
+      for (int i = starts[partition]; i < starts[partition + 1]; i++) {
+        consumer.accept(partition, accountNumbers[i], values[i]);
+      }
+
+      evict(partition);
+    }
+  }
+
+  private long update(int partition, int accountNumber, long transactionAmount) {
+    IntLongHashMap table = load(partition);
+    long before = table.getMemoryUsage();
+
+    // Positive transaction amounts represent a credit against a customer
+    // account, and negative amounts a debit, so the balance always moves in
+    // the opposite direction to the transaction amount.
+    long balance = table.add(accountNumber, Math.negateExact(transactionAmount));
+
+    dirty[partition] = true;
+    residentBytes += table.getMemoryUsage() - before;
+    return balance;
+  }
+
+  @Override
+  public synchronized void setBalance(int accountNumber, long balance) {
+    int partition = partitionOf(accountNumber);
+    put(partition, accountNumber, balance);
+    evict(partition);
+  }
+
+  private void put(int partition, int accountNumber, long balance) {
+    IntLongHashMap table = load(partition);
+    long before = table.getMemoryUsage();
+
+    table.put(accountNumber, balance);
+
+    dirty[partition] = true;
+    residentBytes += table.getMemoryUsage() - before;
+  }
+
+  @Override
+  public synchronized boolean contains(int accountNumber) {
+    int partition = partitionOf(accountNumber);
+    boolean contains = load(partition).containsKey(accountNumber);
+    evict(partition);
+    return contains;
+  }
+
+  @Override
+  public synchronized long getBalance(int accountNumber) {
+    int partition = partitionOf(accountNumber);
+    long balance = load(partition).get(accountNumber);
+    evict(partition);
+    return balance;
+  }
+
+  @Override
+  public synchronized OptionalLong findBalance(int accountNumber) {
+    int partition = partitionOf(accountNumber);
+    OptionalLong balance = find(load(partition), accountNumber);
+    evict(partition);
+    return balance;
+  }
+
+  /**
+   * Look up the accounts one partition at a time.
+   */
+  @Override
+  public synchronized void getAll(IntLongHashMap accounts, BalanceConsumer consumer) {
+    forEachByPartition(accounts, (partition, accountNumber, value) ->
+        find(load(partition), accountNumber).ifPresent(balance -> consumer.accept(accountNumber, balance)));
+  }
+
+  private static OptionalLong find(IntLongHashMap table, int accountNumber) {
+    return table.containsKey(accountNumber) ? OptionalLong.of(table.get(accountNumber)) : OptionalLong.empty();
+  }
+
+  @Override
+  public synchronized int size() {
+    int size = 0;
+
+    for (int partition = 0; partition < tables.length; partition++) {
+      size += tables[partition] != null ? tables[partition].size() : spilledSizes[partition];
+    }
+
+    return size;
+  }
+
+  @Override
+  public synchronized long getMemoryUsage() {
+    return residentBytes;
+  }
+
+  /**
+   * Spilled partitions are read straight from their files, without being
+   * loaded.
+   */
+  @Override
+  public synchronized void forEach(BalanceConsumer consumer) {
+    for (int partition = 0; partition < tables.length; partition++) {
+      if (tables[partition] != null) {
+        tables[partition].forEach(consumer::accept);
+      } else if (spilledSizes[partition] > 0) {
+        read(partition, consumer::accept);
+      }
+    }
+  }
+
+  /**
+   * Delete every spill file, and the spill directory if it is temporary.
+   */
+  @Override
+  public synchronized void close() {
+    try {
+      for (int partition = 0; partition < tables.length; partition++) {
+        Files.deleteIfExists(pathOf(partition));
+        tables[partition] = null;
+        spilledSizes[partition] = 0;
+      }
+
+      residentBytes = 0;
+
+      if (temporary) {
+        Files.deleteIfExists(spillDir);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error deleting spill directory " + spillDir, e);
+    }
+  }
+
+  /**
+   * @return the directory partitions are spilled to
+   */
+  Path getSpillDir() {
+    return spillDir;
+  }
+
+  /**
+   * @return the number of partitions written to disk so far
+   */
+  public synchronized long getSpillCount() {
+    return spills;
+  }
+
+  /**
+   * @return the number of partitions read from disk so far
+   */
+  public synchronized long getLoadCount() {
+    return loads;
+  }
+
+  /**
+   * Make a partition resident, reading it from its spill file if it has
+   * one.
+   */
+  private IntLongHashMap load(int partition) {
+    lastAccess[partition] = ++clock;
+
+    if (tables[partition] != null) {
+      return tables[partition];
+    }
+
+    IntLongHashMap table = new IntLongHashMap(spilledSizes[partition]);
+
+    if (spilledSizes[partition] > 0) {
+      read(partition, table::put);
+      loads++;
+    }
+
+    tables[partition] = table;
+    dirty[partition] = false;
+    residentBytes += table.getMemoryUsage();
+    return table;
+  }
+
+  /**
+   * Spill the least recently used partitions, other than the given one, until
+   * the resident partitions fit within the budget.
+   */
+  private void evict(int current) {
+    while (residentBytes > memoryBudget) {
+      int victim = -1;
+
+      for (int partition = 0; partition < tables.length; partition++) {
+        if (partition != current && tables[partition] != null
+            && (victim < 0 || lastAccess[partition] < lastAccess[victim])) {
+          victim = partition;
+        }
+      }
+
+      if (victim < 0) {
+        return;
+      }
+
+      spill(victim);
+    }
+  }
+
+  private void spill(int partition) {
+    IntLongHashMap table = tables[partition];
+
+    if (dirty[partition]) {
+      write(partition, table);
+
+      if (spills++ == 0) {
+        log.info("Accounts exceed the memory budget of {} bytes, spilling partitions to {}", memoryBudget, spillDir);
+      }
+    }
+
+    spilledSizes[partition] = table.size();
+    tables[partition] = null;
+    residentBytes -= table.getMemoryUsage();
+  }
+
+  private void write(int partition, IntLongHashMap table) {
+    Path path = pathOf(partition);
+
+    try (FileChannel channel = FileChannel.open(path, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+      table.forEach((accountNumber, balance) -> {
+        if (!buffer.hasRemaining()) {
+          flush(channel, buffer, path);
+        }
+
+        buffer.putInt(accountNumber).putLong(balance);
+      });
+
+      flush(channel, buffer, path);
+    } catch (IOException e) {
+      throw new RuntimeException("Error spilling accounts to " + path, e);
+    }
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer, Path path) {
+    buffer.flip();
+
+    try {
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error spilling accounts to " + path, e);
+    }
+
+    buffer.clear();
+  }
+
+  private void read(int partition, IntLongConsumer consumer) {
+    Path path = pathOf(partition);
+
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      long remaining = (long) spilledSizes[partition] * ENTRY_SIZE;
+
+      if (channel.size() != remaining) {
+        throw new RuntimeException("Spilled accounts file " + path + " is corrupt");
+      }
+
+      while (remaining > 0) {
+        buffer.clear();
+        buffer.limit((int) Math.min(BUFFER_SIZE, remaining));
+
+        while (buffer.hasRemaining()) {
+          if (channel.read(buffer) < 0) {
+            throw new RuntimeException("Spilled accounts file " + path + " is truncated");
+          }
+        }
+
+        buffer.flip();
+        remaining -= buffer.remaining();
+
+        while (buffer.hasRemaining()) {
+          consumer.accept(buffer.getInt(), buffer.getLong());
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading spilled accounts from " + path, e);
+    }
+  }
+}
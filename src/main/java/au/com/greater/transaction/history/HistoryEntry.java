@@ -0,0 +1,25 @@
+package au.com.greater.transaction.history;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * A single transaction in the history of a customer account.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public class HistoryEntry {
+
+  /**
+   * The name of the transaction file the transaction was delivered in
+   */
+  private final String file;
+
+  private final long amountCents;
+}
@@ -0,0 +1,454 @@
+package au.com.greater.transaction.history;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * A single immutable segment of the transaction history, holding the
+ * transactions of one or more consecutive transaction files sorted by
+ * account:
+ *
+ *   [magic:int][version:int][firstSequence:long]
+ *   [amount:long, source:int] * entryCount
+ *   [fingerprint:long, nameLength:short, name:utf8] * sourceCount
+ *   [account:int] * accountCount
+ *   [start:int] * (accountCount + 1)
+ *   [entryCount:int][accountCount:int][sourceCount:int][sourcesOffset:long]
+ *   [crc:int][magic:int]
+ *
+ * All values are little-endian. The entries of each account are contiguous,
+ * in the order the transactions were delivered, and the index gives the
+ * first entry of each account, so a lookup is a binary search of the index
+ * followed by a single read of the account's entries. Each entry refers to
+ * the transaction file it came from.
+ *
+ * Segments are memory-mapped in full when opened. The checksum covers
+ * everything before it, and is verified when a segment is opened.
+ *
+ * @author Justin Lewis Salmon
+ */
+class HistorySegment {
+
+  static final String EXTENSION = ".seg";
+
+  private static final int MAGIC = 0x47544853;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 16;
+  private static final int FOOTER_SIZE = 28;
+  private static final int ENTRY_SIZE = Long.BYTES + Integer.BYTES;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * The most entries a segment may hold, which keeps it well within the 2GB
+   * limit of a single mapped buffer
+   */
+  static final int MAX_ENTRIES = 100_000_000;
+
+  /**
+   * Receives a single history entry read from a segment, along with the
+   * index of its source in {@link #getSources()}.
+   */
+  @FunctionalInterface
+  interface EntryConsumer {
+    void accept(long amountCents, int source);
+  }
+
+  /**
+   * A transaction file whose transactions are held in a segment.
+   */
+  static final class Source {
+
+    final String name;
+
+    /**
+     * The content fingerprint of the file, or 0 if it is not known
+     */
+    final long fingerprint;
+
+    Source(String name, long fingerprint) {
+      this.name = name;
+      this.fingerprint = fingerprint;
+    }
+  }
+
+  private final Path path;
+
+  private final long sequence;
+
+  private final long firstSequence;
+
+  private final ByteBuffer entries;
+
+  private final ByteBuffer accounts;
+
+  private final ByteBuffer starts;
+
+  private final int accountCount;
+
+  private final int entryCount;
+
+  private final List<Source> sources;
+
+  private HistorySegment(Path path, long sequence, long firstSequence, ByteBuffer entries, ByteBuffer accounts,
+                         ByteBuffer starts, int accountCount, int entryCount, List<Source> sources) {
+    this.path = path;
+    this.sequence = sequence;
+    this.firstSequence = firstSequence;
+    this.entries = entries;
+    this.accounts = accounts;
+    this.starts = starts;
+    this.accountCount = accountCount;
+    this.entryCount = entryCount;
+    this.sources = sources;
+  }
+
+  /**
+   * @param path the path of a segment file
+   * @return the sequence number of the segment, which is its filename
+   */
+  static long sequenceOf(Path path) {
+    String filename = path.getFileName().toString();
+    return Long.parseLong(filename.substring(0, filename.length() - EXTENSION.length()));
+  }
+
+  /**
+   * @param dir      the history directory
+   * @param sequence the sequence number of a segment
+   * @return the path of the segment
+   */
+  static Path pathOf(Path dir, long sequence) {
+    return dir.resolve(String.format("%019d%s", sequence, EXTENSION));
+  }
+
+  /**
+   * Memory-map a segment, verifying its checksum.
+   *
+   * @param path the path of the segment
+   * @return the opened segment
+   */
+  static HistorySegment open(Path path) {
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      long size = channel.size();
+
+      if (size < HEADER_SIZE + FOOTER_SIZE || size > Integer.MAX_VALUE) {
+        throw new RuntimeException("History segment " + path + " is corrupt");
+      }
+
+      ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+      int footer = (int) size - FOOTER_SIZE;
+
+      int entryCount = buffer.getInt(footer);
+      int accountCount = buffer.getInt(footer + 4);
+      int sourceCount = buffer.getInt(footer + 8);
+      long sourcesOffset = buffer.getLong(footer + 12);
+      int crc = buffer.getInt(footer + 20);
+
+      long indexOffset = footer - (long) Integer.BYTES * (2 * accountCount + 1);
+
+      if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(footer + 24) != MAGIC
+          || entryCount < 0 || accountCount < 0 || sourceCount < 0
+          || sourcesOffset != HEADER_SIZE + (long) entryCount * ENTRY_SIZE || sourcesOffset > indexOffset) {
+        throw new RuntimeException("History segment " + path + " is corrupt");
+      }
+
+      CRC32 checksum = new CRC32();
+      checksum.update(slice(buffer, 0, footer + 20));
+
+      if ((int) checksum.getValue() != crc) {
+        throw new RuntimeException("History segment " + path + " failed its checksum");
+      }
+
+      List<Source> sources = new ArrayList<>(sourceCount);
+      buffer.position((int) sourcesOffset);
+
+      for (int i = 0; i < sourceCount; i++) {
+        long fingerprint = buffer.getLong();
+        byte[] name = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(name);
+        sources.add(new Source(new String(name, StandardCharsets.UTF_8), fingerprint));
+      }
+
+      return new HistorySegment(path, sequenceOf(path), buffer.getLong(8),
+          slice(buffer, HEADER_SIZE, entryCount * ENTRY_SIZE),
+          slice(buffer, (int) indexOffset, accountCount * Integer.BYTES),
+          slice(buffer, (int) indexOffset + accountCount * Integer.BYTES, (accountCount + 1) * Integer.BYTES),
+          accountCount, entryCount, Collections.unmodifiableList(sources));
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading history segment " + path, e);
+    }
+  }
+
+  private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+    ByteBuffer duplicate = buffer.duplicate();
+    duplicate.position(position).limit(position + length);
+    return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  Path getPath() {
+    return path;
+  }
+
+  /**
+   * @return the sequence number of the last file in this segment
+   */
+  long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return the sequence number of the first file in this segment
+   */
+  long getFirstSequence() {
+    return firstSequence;
+  }
+
+  int getEntryCount() {
+    return entryCount;
+  }
+
+  int getAccountCount() {
+    return accountCount;
+  }
+
+  List<Source> getSources() {
+    return sources;
+  }
+
+  /**
+   * @param i the position of an account in the index
+   * @return the account number
+   */
+  int accountAt(int i) {
+    return accounts.getInt(i * Integer.BYTES);
+  }
+
+  /**
+   * Pass every entry of the given account to the consumer, in the order
+   * they were delivered.
+   *
+   * @param accountNumber the customer account number
+   * @param consumer      the consumer to receive each entry
+   * @return the number of entries found
+   */
+  int forEach(int accountNumber, EntryConsumer consumer) {
+    int i = indexOf(accountNumber);
+    return i < 0 ? 0 : forEachAt(i, consumer);
+  }
+
+  /**
+   * Pass every entry of the account at the given position in the index to
+   * the consumer.
+   */
+  int forEachAt(int i, EntryConsumer consumer) {
+    int start = starts.getInt(i * Integer.BYTES);
+    int end = starts.getInt((i + 1) * Integer.BYTES);
+
+    for (int entry = start; entry < end; entry++) {
+      int offset = entry * ENTRY_SIZE;
+      consumer.accept(entries.getLong(offset), entries.getInt(offset + Long.BYTES));
+    }
+
+    return end - start;
+  }
+
+  private int indexOf(int accountNumber) {
+    int low = 0;
+    int high = accountCount - 1;
+
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int account = accountAt(mid);
+
+      if (account < accountNumber) {
+        low = mid + 1;
+      } else if (account > accountNumber) {
+        high = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Writes a new segment. Entries must be added in account order, and the
+   * segment only becomes visible at its final path once it is complete and
+   * forced to disk.
+   */
+  static final class Writer implements AutoCloseable {
+
+    private final Path path;
+
+    private final Path tempPath;
+
+    private final long firstSequence;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final CRC32 checksum = new CRC32();
+
+    private final List<Source> sources = new ArrayList<>();
+
+    private int[] accounts = new int[1024];
+
+    private int[] starts = new int[1025];
+
+    private int accountCount;
+
+    private int entryCount;
+
+    private boolean complete;
+
+    /**
+     * @param path          the final path of the segment
+     * @param firstSequence the sequence number of the first file in the
+     *                      segment
+     */
+    Writer(Path path, long firstSequence) {
+      this.path = path;
+      this.tempPath = Paths.get(path + ".tmp");
+      this.firstSequence = firstSequence;
+
+      try {
+        this.channel = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING);
+      } catch (IOException e) {
+        throw new RuntimeException("Error writing history segment " + path, e);
+      }
+
+      buffer.putInt(MAGIC).putInt(VERSION).putLong(firstSequence);
+    }
+
+    /**
+     * @param source a transaction file whose transactions will be added
+     * @return the index of the source, to be passed to
+     * {@link #add(int, long, int)}
+     */
+    int addSource(Source source) {
+      sources.add(source);
+      return sources.size() - 1;
+    }
+
+    /**
+     * Add an entry, which must not be for a lower account number than the
+     * previous entry.
+     */
+    void add(int accountNumber, long amountCents, int source) {
+      if (accountCount == 0 || accounts[accountCount - 1] != accountNumber) {
+        if (accountCount > 0 && accounts[accountCount - 1] > accountNumber) {
+          throw new IllegalArgumentException("History entries must be added in account order");
+        }
+
+        if (accountCount == accounts.length) {
+          accounts = Arrays.copyOf(accounts, accountCount * 2);
+          starts = Arrays.copyOf(starts, accountCount * 2 + 1);
+        }
+
+        accounts[accountCount] = accountNumber;
+        starts[accountCount++] = entryCount;
+      }
+
+      ensureRemaining(ENTRY_SIZE);
+      buffer.putLong(amountCents).putInt(source);
+      entryCount++;
+    }
+
+    /**
+     * Write the sources, index and footer, and move the segment into place.
+     */
+    void commit() {
+      starts[accountCount] = entryCount;
+      long sourcesOffset = HEADER_SIZE + (long) entryCount * ENTRY_SIZE;
+
+      try {
+        for (Source source : sources) {
+          byte[] name = source.name.getBytes(StandardCharsets.UTF_8);
+          ensureRemaining(Long.BYTES + Short.BYTES + name.length);
+          buffer.putLong(source.fingerprint).putShort((short) name.length).put(name);
+        }
+
+        for (int i = 0; i < accountCount; i++) {
+          ensureRemaining(Integer.BYTES);
+          buffer.putInt(accounts[i]);
+        }
+
+        for (int i = 0; i <= accountCount; i++) {
+          ensureRemaining(Integer.BYTES);
+          buffer.putInt(starts[i]);
+        }
+
+        ensureRemaining(FOOTER_SIZE);
+        buffer.putInt(entryCount).putInt(accountCount).putInt(sources.size()).putLong(sourcesOffset);
+        flush();
+
+        buffer.putInt((int) checksum.getValue()).putInt(MAGIC);
+        flush();
+
+        channel.force(true);
+        channel.close();
+
+        Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        complete = true;
+      } catch (IOException e) {
+        throw new RuntimeException("Error writing history segment " + path, e);
+      }
+    }
+
+    /**
+     * Discard the segment, unless it has been committed.
+     */
+    @Override
+    public void close() {
+      if (complete) {
+        return;
+      }
+
+      try {
+        channel.close();
+        Files.deleteIfExists(tempPath);
+      } catch (IOException e) {
+        throw new RuntimeException("Error discarding history segment " + path, e);
+      }
+    }
+
+    private void ensureRemaining(int bytes) {
+      if (buffer.remaining() < bytes) {
+        try {
+          flush();
+        } catch (IOException e) {
+          throw new RuntimeException("Error writing history segment " + path, e);
+        }
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      checksum.update(buffer.duplicate());
+
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package au.com.greater.transaction.history;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+
+/**
+ * This controller exposes the transaction history of each customer account
+ * over HTTP, on the same (loopback only) server as the metrics:
+ *
+ * - {@literal GET /history/{accountNumber}}: every transaction of the
+ *   account, in the order they were delivered, with the name of the file
+ *   each was delivered in
+ *
+ * Amounts are in cents. Transactions are only listed once the history store
+ * has written them, shortly after their file is applied.
+ *
+ * @author Justin Lewis Salmon
+ */
+@RestController
+@ConditionalOnProperty(name = "processing.historyDir")
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class TransactionHistoryController {
+
+  private final TransactionHistoryStore history;
+
+  @GetMapping("/history/{accountNumber}")
+  public List<HistoryEntry> getHistory(@PathVariable int accountNumber) {
+    return history.getHistory(accountNumber);
+  }
+}
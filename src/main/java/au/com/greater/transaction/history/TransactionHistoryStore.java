@@ -0,0 +1,496 @@
+package au.com.greater.transaction.history;
+
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.utils.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This component keeps the transaction history of every customer account in
+ * an append-only store on local disk, in the {@literal processing.historyDir}
+ * directory. It is only enabled when that property is set.
+ *
+ * Each applied transaction file is written as a new {@link HistorySegment},
+ * sorted by account and indexed, so the history of an account is read with
+ * a binary search and a single read of each memory-mapped segment, rather
+ * than a scan of every archived file. Once there are more than
+ * {@literal processing.history.maxSegments} segments, adjacent segments of
+ * a similar size are merged into one, so lookups stay fast as files
+ * accumulate. Merging is size-tiered: segments are only merged with others
+ * in the same size class (a power of four entries), smallest first, so each
+ * entry is rewritten about once per size class it passes through, rather
+ * than every time a small segment is appended to a large one.
+ *
+ * Segments are written and merged on a dedicated thread, so the apply stage
+ * only waits for the store once {@literal processing.history.queueDepth}
+ * files are queued. Each segment records the fingerprints of its files, so a
+ * file which is appended twice (e.g. after a crash) is only stored once.
+ * If a file can't be written, the next call to {@link #append} or
+ * {@link #flush} fails, so the caller can retry it, and the failure is
+ * counted by {@link #getFailureCount()}.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Component
+@ConditionalOnProperty(name = "processing.historyDir")
+public class TransactionHistoryStore {
+
+  private static final Logger log = LoggerFactory.getLogger(TransactionHistoryStore.class);
+
+  private final Path historyDir;
+
+  private final int maxSegments;
+
+  private final ExecutorService writer;
+
+  /**
+   * The open segments, oldest first, replaced whenever a segment is added or
+   * merged so that readers never need to lock
+   */
+  private volatile List<HistorySegment> segments = Collections.emptyList();
+
+  /**
+   * Fingerprints of the files in the store, only accessed by the writer
+   * thread once the store is open
+   */
+  private final Set<Long> fingerprints = new HashSet<>();
+
+  private long sequence;
+
+  private volatile long mergedEntries;
+
+  /**
+   * The first failure to write a file which has not been reported to a
+   * caller yet
+   */
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+
+  private final AtomicLong failures = new AtomicLong();
+
+  @Autowired
+  public TransactionHistoryStore(@Value("${processing.historyDir}") String historyDir,
+                                 @Value("${processing.history.maxSegments:32}") int maxSegments,
+                                 @Value("${processing.history.queueDepth:16}") int queueDepth) {
+    if (maxSegments < 2) {
+      throw new IllegalArgumentException("History must allow at least 2 segments: " + maxSegments);
+    }
+
+    this.historyDir = Paths.get(historyDir);
+    this.maxSegments = maxSegments;
+
+    // Block the caller once the queue is full, rather than holding an
+    // unbounded number of files in memory
+    this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueDepth),
+        r -> new Thread(r, "history-writer"), (task, executor) -> {
+          if (executor.isShutdown()) {
+            throw new RejectedExecutionException("Transaction history has been closed");
+          }
+
+          try {
+            executor.getQueue().put(task);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while queueing history", e);
+          }
+        });
+  }
+
+  /**
+   * Open every segment in the history directory. Temporary files and the
+   * segments already merged into a later one, left behind by a crash, are
+   * removed.
+   */
+  @PostConstruct
+  public synchronized void open() {
+    long start = System.currentTimeMillis();
+
+    try {
+      Files.createDirectories(historyDir);
+    } catch (IOException e) {
+      throw new RuntimeException("Error creating history directory " + historyDir, e);
+    }
+
+    List<HistorySegment> opened = new ArrayList<>();
+
+    for (Path path : FileUtils.listFiles(historyDir)) {
+      String filename = path.getFileName().toString();
+
+      if (filename.endsWith(".tmp")) {
+        delete(path);
+      } else if (filename.endsWith(HistorySegment.EXTENSION)) {
+        opened.add(HistorySegment.open(path));
+      }
+    }
+
+    opened.sort((a, b) -> Long.compare(a.getSequence(), b.getSequence()));
+
+    // A merged segment covers the sequence numbers of every segment it
+    // replaced, so any segment it covers is a leftover
+    List<HistorySegment> live = new ArrayList<>();
+
+    for (int i = opened.size() - 1; i >= 0; i--) {
+      HistorySegment segment = opened.get(i);
+
+      if (!live.isEmpty() && segment.getSequence() >= live.get(0).getFirstSequence()) {
+        delete(segment.getPath());
+      } else {
+        live.add(0, segment);
+      }
+    }
+
+    fingerprints.clear();
+    live.forEach(segment -> segment.getSources().forEach(source -> fingerprints.add(source.fingerprint)));
+    fingerprints.remove(0L);
+
+    sequence = live.isEmpty() ? 0 : live.get(live.size() - 1).getSequence();
+    segments = Collections.unmodifiableList(live);
+
+    log.info("Opened {} history segments in {}ms", live.size(), System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Queue the transactions of the given file to be added to the history.
+   * This only blocks if the writer thread has fallen
+   * {@literal processing.history.queueDepth} files behind.
+   *
+   * @param file a file which retains its transactions
+   * @throws RuntimeException if a file queued earlier could not be written
+   */
+  public void append(TransactionFile file) {
+    if (!file.isRetainTransactions()) {
+      throw new IllegalArgumentException("Transactions of " + file.getPath() + " were not retained");
+    }
+
+    checkFailure();
+    writer.execute(() -> {
+      try {
+        write(file);
+      } catch (RuntimeException e) {
+        log.error("Error adding {} to the transaction history", file.getPath(), e);
+        failures.incrementAndGet();
+        failure.compareAndSet(null,
+            new RuntimeException("Error adding " + file.getPath() + " to the transaction history", e));
+      }
+    });
+  }
+
+  /**
+   * Wait for every queued file to be added to the history.
+   *
+   * @throws RuntimeException if a queued file could not be written
+   */
+  public void flush() {
+    try {
+      writer.submit(() -> { }).get();
+    } catch (Exception e) {
+      throw new RuntimeException("Error waiting for transaction history", e);
+    }
+
+    checkFailure();
+  }
+
+  /**
+   * Throw the first failure to write a file since the last one was thrown.
+   */
+  private void checkFailure() {
+    RuntimeException e = failure.getAndSet(null);
+
+    if (e != null) {
+      throw e;
+    }
+  }
+
+  /**
+   * @return the number of files which could not be written since the store
+   * was created
+   */
+  public long getFailureCount() {
+    return failures.get();
+  }
+
+  /**
+   * @param accountNumber the customer account number
+   * @return every transaction of the account in the history, in the order
+   * they were delivered
+   */
+  public List<HistoryEntry> getHistory(int accountNumber) {
+    List<HistoryEntry> history = new ArrayList<>();
+
+    for (HistorySegment segment : segments) {
+      List<HistorySegment.Source> sources = segment.getSources();
+      segment.forEach(accountNumber, (amountCents, source) ->
+          history.add(new HistoryEntry(sources.get(source).name, amountCents)));
+    }
+
+    return history;
+  }
+
+  /**
+   * @return the number of segments in the history
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * @return the number of entries rewritten by merges since the store was
+   * created
+   */
+  public long getMergedEntryCount() {
+    return mergedEntries;
+  }
+
+  private void write(TransactionFile file) {
+    long fingerprint = file.getFingerprint() == null ? 0 : file.getFingerprint();
+
+    if (fingerprint != 0 && fingerprints.contains(fingerprint)) {
+      log.info("Transactions from {} are already in the history", file.getPath());
+      return;
+    }
+
+    List<Transaction> transactions = file.getTransactions();
+
+    // Sort by account, keeping the order of each account's transactions
+    long[] keys = new long[transactions.size()];
+
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = (long) transactions.get(i).getCustomerAccountNumber() << 32 | i;
+    }
+
+    Arrays.sort(keys);
+
+    long next = sequence + 1;
+    Path path = HistorySegment.pathOf(historyDir, next);
+
+    try (HistorySegment.Writer segment = new HistorySegment.Writer(path, next)) {
+      int source = segment.addSource(new HistorySegment.Source(file.getPath().getFileName().toString(), fingerprint));
+
+      for (long key : keys) {
+        Transaction transaction = transactions.get((int) key);
+        segment.add(transaction.getCustomerAccountNumber(), transaction.getTransactionAmountCents(), source);
+      }
+
+      segment.commit();
+    }
+
+    sequence = next;
+    fingerprints.add(fingerprint);
+    fingerprints.remove(0L);
+    addSegment(HistorySegment.open(path));
+
+    while (segments.size() > maxSegments && merge()) {
+      // Keep merging until the segments fit
+    }
+  }
+
+  /**
+   * The size class of a segment, which is the base four logarithm of its
+   * number of entries.
+   */
+  private static int sizeClass(long entries) {
+    return (63 - Long.numberOfLeadingZeros(Math.max(1, entries))) / 2;
+  }
+
+  /**
+   * Choose the adjacent segments to merge next: the run of segments in the
+   * smallest size class which has more than one segment, or failing that,
+   * the adjacent pair with the fewest entries. Runs are cut short so that
+   * the merged segment fits, and segments are only ever merged with their
+   * neighbours, so that each segment covers a contiguous range of sequence
+   * numbers.
+   *
+   * @return the indexes of the first and last segments to merge, or null if
+   * no adjacent segments fit in a single segment
+   */
+  private static int[] chooseMerge(List<HistorySegment> current) {
+    int[] best = null;
+    int bestClass = Integer.MAX_VALUE;
+
+    for (int from = 0, to; from < current.size(); from = to + 1) {
+      int sizeClass = sizeClass(current.get(from).getEntryCount());
+      long entries = current.get(from).getEntryCount();
+
+      for (to = from; to + 1 < current.size() && sizeClass(current.get(to + 1).getEntryCount()) == sizeClass
+          && entries + current.get(to + 1).getEntryCount() <= HistorySegment.MAX_ENTRIES; ) {
+        entries += current.get(++to).getEntryCount();
+      }
+
+      if (to > from && sizeClass < bestClass) {
+        best = new int[]{from, to};
+        bestClass = sizeClass;
+      }
+    }
+
+    if (best != null) {
+      return best;
+    }
+
+    long fewest = Long.MAX_VALUE;
+
+    for (int i = 0; i + 1 < current.size(); i++) {
+      long entries = (long) current.get(i).getEntryCount() + current.get(i + 1).getEntryCount();
+
+      if (entries <= HistorySegment.MAX_ENTRIES && entries < fewest) {
+        best = new int[]{i, i + 1};
+        fewest = entries;
+      }
+    }
+
+    return best;
+  }
+
+  /**
+   * Merge the next run of adjacent segments into one.
+   *
+   * @return false if no segments could be merged
+   */
+  private boolean merge() {
+    List<HistorySegment> current = segments;
+    int[] run = chooseMerge(current);
+
+    if (run == null) {
+      return false;
+    }
+
+    List<HistorySegment> merging = current.subList(run[0], run[1] + 1);
+    long entries = merging.stream().mapToLong(HistorySegment::getEntryCount).sum();
+    long start = System.currentTimeMillis();
+    HistorySegment last = merging.get(merging.size() - 1);
+
+    // The merged segment replaces the newest one of the run atomically, so a
+    // crash leaves either the original segments, or the merged segment and
+    // the leftovers it covers
+    try (HistorySegment.Writer writer = new HistorySegment.Writer(last.getPath(), merging.get(0).getFirstSequence())) {
+      int[] sourceBase = new int[merging.size()];
+
+      for (int k = 0; k < merging.size(); k++) {
+        sourceBase[k] = merging.get(k).getSources().size();
+
+        for (HistorySegment.Source source : merging.get(k).getSources()) {
+          writer.addSource(source);
+        }
+      }
+
+      // Source indexes are offset by the sources of the earlier segments
+      for (int k = 0, base = 0; k < merging.size(); k++) {
+        int count = sourceBase[k];
+        sourceBase[k] = base;
+        base += count;
+      }
+
+      // Walk the indexes of all the segments together, in account order
+      int[] cursors = new int[merging.size()];
+
+      while (true) {
+        boolean found = false;
+        int account = 0;
+
+        for (int k = 0; k < merging.size(); k++) {
+          if (cursors[k] < merging.get(k).getAccountCount()) {
+            int candidate = merging.get(k).accountAt(cursors[k]);
+
+            if (!found || candidate < account) {
+              account = candidate;
+              found = true;
+            }
+          }
+        }
+
+        if (!found) {
+          break;
+        }
+
+        for (int k = 0; k < merging.size(); k++) {
+          HistorySegment segment = merging.get(k);
+
+          if (cursors[k] < segment.getAccountCount() && segment.accountAt(cursors[k]) == account) {
+            int base = sourceBase[k];
+            int accountNumber = account;
+
+            segment.forEachAt(cursors[k]++, (amountCents, source) ->
+                writer.add(accountNumber, amountCents, base + source));
+          }
+        }
+      }
+
+      writer.commit();
+    }
+
+    List<HistorySegment> replaced = new ArrayList<>(merging);
+    replaceSegments(run[0], run[1] + 1, HistorySegment.open(last.getPath()));
+    mergedEntries += entries;
+
+    for (HistorySegment segment : replaced.subList(0, replaced.size() - 1)) {
+      delete(segment.getPath());
+    }
+
+    log.info("Merged {} history segments ({} entries) in {}ms",
+        replaced.size(), entries, System.currentTimeMillis() - start);
+    return true;
+  }
+
+  /**
+   * Publish a new list of segments, with the given segment appended.
+   */
+  private void addSegment(HistorySegment segment) {
+    replaceSegments(segments.size(), segments.size(), segment);
+  }
+
+  /**
+   * Publish a new list of segments, with the segments from {@literal from}
+   * (inclusive) to {@literal to} (exclusive) replaced by the given segment.
+   */
+  private void replaceSegments(int from, int to, HistorySegment segment) {
+    List<HistorySegment> updated = new ArrayList<>(segments.subList(0, from));
+    updated.add(segment);
+    updated.addAll(segments.subList(to, segments.size()));
+    segments = Collections.unmodifiableList(updated);
+  }
+
+  private static void delete(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      throw new RuntimeException("Error deleting history file " + path, e);
+    }
+  }
+
+  /**
+   * Finish writing every queued file, then stop the writer thread.
+   */
+  @PreDestroy
+  public void close() {
+    writer.shutdown();
+
+    try {
+      writer.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
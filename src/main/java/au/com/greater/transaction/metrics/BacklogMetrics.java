@@ -0,0 +1,112 @@
+package au.com.greater.transaction.metrics;
+
+import au.com.greater.transaction.account.AccountStore;
+import au.com.greater.transaction.account.CachingAccountStore;
+import au.com.greater.transaction.account.CustomerAccountService;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * This component publishes gauges of the state of the application, which are
+ * sampled whenever metrics are scraped:
+ *
+ * - {@literal transactions.pending.files} and
+ *   {@literal transactions.pending.bytes}: the backlog in the pending
+ *   directory
+ * - {@literal accounts.count}: the number of customer accounts
+ * - {@literal accounts.memory}: the estimated memory used by the accounts
+ * - {@literal accounts.cache.requests} (tagged by result),
+ *   {@literal accounts.cache.evictions} and {@literal accounts.cache.flushes}:
+ *   the effectiveness of the {@link CachingAccountStore}, if there is one
+ *
+ * @author Justin Lewis Salmon
+ */
+@Component
+public class BacklogMetrics implements MeterBinder {
+
+  private final CustomerAccountService accountService;
+
+  private final AccountStore accountStore;
+
+  private final Path pendingDir;
+
+  @Autowired
+  public BacklogMetrics(CustomerAccountService accountService, AccountStore accountStore,
+                        @Value("${processing.pendingDir}") String pendingDir) {
+    this.accountService = accountService;
+    this.accountStore = accountStore;
+    this.pendingDir = Paths.get(pendingDir);
+  }
+
+  @Override
+  public void bindTo(MeterRegistry registry) {
+    Gauge.builder("transactions.pending.files", this, metrics -> metrics.pendingBacklog(false))
+        .description("Transaction files waiting in the pending directory")
+        .register(registry);
+    Gauge.builder("transactions.pending.bytes", this, metrics -> metrics.pendingBacklog(true))
+        .baseUnit("bytes")
+        .description("Size of the transaction files waiting in the pending directory")
+        .register(registry);
+    Gauge.builder("accounts.count", accountService, CustomerAccountService::getNumAccounts)
+        .description("Customer accounts held")
+        .register(registry);
+    Gauge.builder("accounts.memory", accountService, CustomerAccountService::getAccountsMemoryUsage)
+        .baseUnit("bytes")
+        .description("Estimated memory used to hold customer accounts")
+        .register(registry);
+
+    if (accountStore instanceof CachingAccountStore) {
+      bindCache((CachingAccountStore) accountStore, registry);
+    }
+  }
+
+  private static void bindCache(CachingAccountStore cache, MeterRegistry registry) {
+    FunctionCounter.builder("accounts.cache.requests", cache, CachingAccountStore::getHitCount)
+        .tag("result", "hit")
+        .description("Account lookups answered by the account cache")
+        .register(registry);
+    FunctionCounter.builder("accounts.cache.requests", cache, CachingAccountStore::getMissCount)
+        .tag("result", "miss")
+        .description("Account lookups which had to read the backing account store")
+        .register(registry);
+    FunctionCounter.builder("accounts.cache.evictions", cache, CachingAccountStore::getEvictionCount)
+        .description("Accounts evicted from the account cache")
+        .register(registry);
+    FunctionCounter.builder("accounts.cache.flushes", cache, CachingAccountStore::getFlushCount)
+        .description("Batches of balances written back to the backing account store")
+        .register(registry);
+  }
+
+  /**
+   * @param bytes whether to sum the size of the pending files, rather than
+   *              count them
+   * @return the number or total size of the files in the pending directory,
+   * or NaN if it can't be read
+   */
+  double pendingBacklog(boolean bytes) {
+    double total = 0;
+
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(pendingDir)) {
+      for (Path path : paths) {
+        if (Files.isRegularFile(path)) {
+          total += bytes ? Files.size(path) : 1;
+        }
+      }
+    } catch (IOException e) {
+      return Double.NaN;
+    }
+
+    return total;
+  }
+}
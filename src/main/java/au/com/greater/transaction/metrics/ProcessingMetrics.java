@@ -0,0 +1,98 @@
+package au.com.greater.transaction.metrics;
+
+import au.com.greater.transaction.model.TransactionFile;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import lombok.Getter;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+/**
+ * This component holds the meters used to instrument the transaction
+ * processing pipeline:
+ *
+ * - {@literal transactions.stage} timers, tagged with the stage (parse, apply,
+ *   report or archive), recording how long each file spends in each stage
+ * - {@literal transactions.lines} and {@literal transactions.lines.skipped}
+ *   counters, whose rates give lines processed and skipped per second
+ * - a {@literal transactions.file.lines.skipped} summary of skipped lines per
+ *   file
+ * - a {@literal transactions.bytes.read} counter
+ *
+ * Comparing the stage timers shows which stage is the bottleneck.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Component
+@Getter
+public class ProcessingMetrics {
+
+  private final Timer parseTimer;
+
+  private final Timer applyTimer;
+
+  private final Timer reportTimer;
+
+  private final Timer archiveTimer;
+
+  private final Counter lines;
+
+  private final Counter skippedLines;
+
+  private final Counter bytesRead;
+
+  private final DistributionSummary skippedLinesPerFile;
+
+  /**
+   * Create metrics which are not published anywhere, e.g. when the processor
+   * is used outside of the application context.
+   */
+  public ProcessingMetrics() {
+    this(new SimpleMeterRegistry());
+  }
+
+  @Autowired
+  public ProcessingMetrics(MeterRegistry registry) {
+    parseTimer = stageTimer(registry, "parse");
+    applyTimer = stageTimer(registry, "apply");
+    reportTimer = stageTimer(registry, "report");
+    archiveTimer = stageTimer(registry, "archive");
+
+    lines = Counter.builder("transactions.lines")
+        .description("Transaction lines processed, including skipped lines")
+        .register(registry);
+    skippedLines = Counter.builder("transactions.lines.skipped")
+        .description("Corrupt transaction lines skipped")
+        .register(registry);
+    bytesRead = Counter.builder("transactions.bytes.read")
+        .baseUnit("bytes")
+        .description("Bytes of transaction files read")
+        .register(registry);
+    skippedLinesPerFile = DistributionSummary.builder("transactions.file.lines.skipped")
+        .description("Corrupt transaction lines skipped per file")
+        .register(registry);
+  }
+
+  private static Timer stageTimer(MeterRegistry registry, String stage) {
+    return Timer.builder("transactions.stage")
+        .tag("stage", stage)
+        .description("Time taken by each processing stage per transaction file")
+        .register(registry);
+  }
+
+  /**
+   * Record the line counts of a parsed transaction file.
+   *
+   * @param file  the parsed file
+   * @param bytes the size of the file in bytes
+   */
+  public void recordParsed(TransactionFile file, long bytes) {
+    lines.increment(file.getNumTransactions() + file.getNumSkippedTransactions());
+    skippedLines.increment(file.getNumSkippedTransactions());
+    skippedLinesPerFile.record(file.getNumSkippedTransactions());
+    bytesRead.increment(bytes);
+  }
+}
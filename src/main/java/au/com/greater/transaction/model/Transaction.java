@@ -1,18 +1,49 @@
 package au.com.greater.transaction.model;
 
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
 
 /**
  * This model class represents a single, immutable transaction for a single
  * customer account.
  *
+ * Transaction amounts are held as a whole number of cents, so that they can be
+ * summed exactly.
+ *
  * @author Justin Lewis Salmon
  */
 @Getter
-@RequiredArgsConstructor
 public class Transaction {
 
   private final int customerAccountNumber;
-  private final double transactionAmount;
+  private final long transactionAmountCents;
+
+  private Transaction(int customerAccountNumber, long transactionAmountCents) {
+    this.customerAccountNumber = customerAccountNumber;
+    this.transactionAmountCents = transactionAmountCents;
+  }
+
+  /**
+   * @param customerAccountNumber the customer account number
+   * @param transactionAmount     the transaction amount in dollars, which is
+   *                              rounded to the nearest cent
+   */
+  public Transaction(int customerAccountNumber, double transactionAmount) {
+    this(customerAccountNumber, Math.round(transactionAmount * 100));
+  }
+
+  /**
+   * @param customerAccountNumber  the customer account number
+   * @param transactionAmountCents the transaction amount in cents
+   * @return a new {@link Transaction}
+   */
+  public static Transaction ofCents(int customerAccountNumber, long transactionAmountCents) {
+    return new Transaction(customerAccountNumber, transactionAmountCents);
+  }
+
+  /**
+   * @return the transaction amount in dollars, for display purposes only
+   */
+  public double getTransactionAmount() {
+    return transactionAmountCents / 100.0;
+  }
 }
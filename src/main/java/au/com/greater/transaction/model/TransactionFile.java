@@ -1,7 +1,13 @@
 package au.com.greater.transaction.model;
 
+import au.com.greater.transaction.utils.DistinctCounter;
+import au.com.greater.transaction.utils.HyperLogLog;
+import au.com.greater.transaction.utils.IntHashSet;
+import au.com.greater.transaction.utils.IntLongHashMap;
+import au.com.greater.transaction.utils.TopK;
+import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.RequiredArgsConstructor;
+import lombok.Setter;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
@@ -10,18 +16,87 @@ import java.util.List;
 /**
  * This model class represents a single customer transaction file.
  *
+ * The report aggregates (credit and debit totals, and the number of distinct
+ * accounts) are kept up to date as each transaction is added, so generating a
+ * report costs nothing after parsing. Files that are only needed for their
+ * report can therefore be created without retaining their transactions.
+ *
+ * Each amount is within range, but a large enough file may still have a
+ * credit or debit total which is not. Such a total saturates at the largest
+ * number of cents, and is flagged as out of range, rather than failing the
+ * whole file.
+ *
  * @author Justin Lewis Salmon
  */
 @Getter
-@RequiredArgsConstructor
 public class TransactionFile {
 
   private final Path path;
 
+  private final boolean retainTransactions;
+
   private final List<Transaction> transactions = new ArrayList<>();
 
+  /**
+   * The number of valid transactions added, whether or not they are retained
+   */
+  private long numTransactions = 0;
+
   private int numSkippedTransactions = 0;
 
+  /**
+   * The total credit amount for all accounts in this file, in cents
+   */
+  private long totalCreditCents = 0;
+
+  /**
+   * The total debit amount for all accounts in this file, in cents
+   */
+  private long totalDebitCents = 0;
+
+  /**
+   * Whether the total credit amount went out of range, so is a lower bound
+   */
+  private boolean creditsOutOfRange = false;
+
+  /**
+   * Whether the total debit amount went out of range, so is a lower bound
+   */
+  private boolean debitsOutOfRange = false;
+
+  @Getter(AccessLevel.NONE)
+  private final DistinctCounter accountCounter;
+
+  /**
+   * The content fingerprint of the file, or null if it was not computed
+   */
+  @Setter
+  private Long fingerprint;
+
+  /**
+   * Create a file which retains all of its transactions, and counts its
+   * accounts exactly.
+   *
+   * @param path the path to the customer transaction file
+   */
+  public TransactionFile(Path path) {
+    this(path, true, new IntHashSet());
+  }
+
+  /**
+   * @param path               the path to the customer transaction file
+   * @param retainTransactions whether to keep each added transaction, or to
+   *                           only keep the report aggregates
+   * @param accountCounter     the counter used to count unique accounts, e.g.
+   *                           an exact {@link IntHashSet} or an approximate
+   *                           {@link HyperLogLog}
+   */
+  public TransactionFile(Path path, boolean retainTransactions, DistinctCounter accountCounter) {
+    this.path = path;
+    this.retainTransactions = retainTransactions;
+    this.accountCounter = accountCounter;
+  }
+
   /**
    * Add a single {@link Transaction} to this file.
    *
@@ -36,37 +111,90 @@ public class TransactionFile {
       return;
     }
 
-    transactions.add(transaction);
+    long amount = transaction.getTransactionAmountCents();
+
+    if (amount > 0) {
+      addCredits(amount);
+    } else if (amount < 0) {
+      addDebits(-amount);
+    }
+
+    accountCounter.add(transaction.getCustomerAccountNumber());
+    numTransactions++;
+
+    if (retainTransactions) {
+      transactions.add(transaction);
+    }
+  }
+
+  /**
+   * Add all transactions from another {@link TransactionFile} to this file,
+   * along with its aggregates and skipped transaction count. This is used to
+   * merge the results of parsing separate chunks of the same file.
+   *
+   * @param other the file to merge into this one
+   */
+  public void addAll(TransactionFile other) {
+    if (retainTransactions) {
+      transactions.addAll(other.getTransactions());
+    }
+
+    numTransactions += other.getNumTransactions();
+    numSkippedTransactions += other.getNumSkippedTransactions();
+    addCredits(other.getTotalCreditCents());
+    addDebits(other.getTotalDebitCents());
+    creditsOutOfRange |= other.isCreditsOutOfRange();
+    debitsOutOfRange |= other.isDebitsOutOfRange();
+    accountCounter.addAll(other.accountCounter);
+  }
+
+  private void addCredits(long cents) {
+    if (totalCreditCents > Long.MAX_VALUE - cents) {
+      totalCreditCents = Long.MAX_VALUE;
+      creditsOutOfRange = true;
+    } else {
+      totalCreditCents += cents;
+    }
+  }
+
+  private void addDebits(long cents) {
+    if (totalDebitCents > Long.MAX_VALUE - cents) {
+      totalDebitCents = Long.MAX_VALUE;
+      debitsOutOfRange = true;
+    } else {
+      totalDebitCents += cents;
+    }
   }
 
   /**
-   * @return the total number of unique customer accounts in this file
+   * @return true if either the credit or the debit total went out of range
+   */
+  public boolean isTotalsOutOfRange() {
+    return creditsOutOfRange || debitsOutOfRange;
+  }
+
+  /**
+   * @return the total number of unique customer accounts in this file (which
+   * is an estimate if the file uses an approximate account counter)
    */
   public long getNumAccounts() {
-    return transactions.stream()
-        .map(Transaction::getCustomerAccountNumber)
-        .distinct()
-        .count();
+    return accountCounter.count();
   }
 
   /**
-   * @return the total credit amount for all accounts in this file
+   * @return the total credit amount for all accounts in this file, in
+   * dollars, for display purposes
    */
   public double getTotalCredits() {
-    return transactions.stream()
-        .filter(t -> t.getTransactionAmount() > 0)
-        .mapToDouble(Transaction::getTransactionAmount)
-        .sum();
+    return totalCreditCents / 100.0;
   }
 
   /**
-   * @return the total debit amount for all accounts in this file
+   * @return the total debit amount for all accounts in this file, in dollars,
+   * for display purposes
    */
   public double getTotalDebits() {
-    return transactions.stream()
-        .filter(t -> t.getTransactionAmount() < 0)
-        .mapToDouble(t -> Math.abs(t.getTransactionAmount()))
-        .sum();
+    return totalDebitCents / 100.0;
   }
 
   /**
@@ -83,8 +211,78 @@ public class TransactionFile {
   public String generateReport() {
     return "File Processed: " + getPath().getFileName().toString() +
         "\nTotal Accounts: " + String.format("%,d", getNumAccounts()) +
-        "\nTotal Credits : " + String.format("$%,.2f", getTotalCredits()) +
-        "\nTotal Debits  : " + String.format("$%,.2f", getTotalDebits()) +
+        "\nTotal Credits : " + formatTotal(getTotalCreditCents(), creditsOutOfRange) +
+        "\nTotal Debits  : " + formatTotal(getTotalDebitCents(), debitsOutOfRange) +
         "\nSkipped Transactions: " + getNumSkippedTransactions();
   }
+
+  /**
+   * Generate a report as per {@link #generateReport()}, followed by the
+   * accounts whose balances moved the most in this file. The movers are only
+   * listed if this file retains its transactions, and its totals are in
+   * range.
+   *
+   * @param topMovers the maximum number of movers to list
+   * @return the report as a string
+   */
+  public String generateReport(int topMovers) {
+    StringBuilder report = new StringBuilder(generateReport());
+
+    if (topMovers > 0 && retainTransactions && !transactions.isEmpty() && !isTotalsOutOfRange()) {
+      IntLongHashMap movements = getBalanceMovements();
+      report.append("\nTop Movers:");
+
+      getTopMovers(movements, topMovers).forEachDescending((account, magnitude) ->
+          report.append("\n  ").append(account).append(": ").append(formatSignedCents(movements.get(account))));
+    }
+
+    return report.toString();
+  }
+
+  /**
+   * @return the net change to the balance of each account in this file, in
+   * cents. The movements are bounded by the file totals, so can't overflow
+   * unless {@link #isTotalsOutOfRange()}.
+   */
+  public IntLongHashMap getBalanceMovements() {
+    IntLongHashMap movements = new IntLongHashMap();
+
+    for (Transaction transaction : transactions) {
+      movements.add(transaction.getCustomerAccountNumber(), -transaction.getTransactionAmountCents());
+    }
+
+    return movements;
+  }
+
+  /**
+   * Find the accounts with the largest absolute balance movements, using a
+   * bounded heap rather than sorting every account.
+   */
+  private static TopK getTopMovers(IntLongHashMap movements, int k) {
+    TopK top = new TopK(k);
+    movements.forEach((account, movement) -> top.offer(account, Math.abs(movement)));
+    return top;
+  }
+
+  /**
+   * Format a number of cents as a signed dollar amount, e.g. "-$1,234.50".
+   */
+  private static String formatSignedCents(long cents) {
+    return (cents < 0 ? "-" : "+") + formatCents(Math.abs(cents));
+  }
+
+  /**
+   * Format a total, which is only a lower bound if it went out of range.
+   */
+  private static String formatTotal(long cents, boolean outOfRange) {
+    return (outOfRange ? "over " : "") + formatCents(cents);
+  }
+
+  /**
+   * Format a non-negative number of cents exactly as a dollar amount, e.g.
+   * "$1,234.50".
+   */
+  private static String formatCents(long cents) {
+    return String.format("$%,d.%02d", cents / 100, cents % 100);
+  }
 }
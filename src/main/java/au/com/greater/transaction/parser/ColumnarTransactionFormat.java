@@ -0,0 +1,223 @@
+package au.com.greater.transaction.parser;
+
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * This class reads and writes transaction files in a compact binary columnar
+ * format, so that archived files can be reprocessed without parsing text:
+ *
+ *   [magic:int][version:int][count:long][accountsCrc:int][amountsCrc:int]
+ *   [account:int * count][padding to 8 bytes][amount:long * count]
+ *
+ * All values are little-endian. Amounts are in cents, and corrupt lines are
+ * not included. Each column has its own CRC32 checksum, which is verified
+ * before any transactions are loaded.
+ *
+ * Files are loaded by memory-mapping the columns and passing each account
+ * number and amount straight to a consumer, without creating any objects.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class ColumnarTransactionFormat {
+
+  private static final Logger log = LoggerFactory.getLogger(ColumnarTransactionFormat.class);
+
+  /**
+   * The file extension of columnar transaction files
+   */
+  public static final String EXTENSION = ".txc";
+
+  private static final int MAGIC = 0x47545843;
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 24;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  /**
+   * The number of transactions mapped at a time, which keeps the amounts
+   * column window well under the 2GB limit of a single mapped buffer.
+   */
+  private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+  /**
+   * Receives a single transaction loaded from a columnar file.
+   */
+  @FunctionalInterface
+  public interface TransactionConsumer {
+    void accept(int customerAccountNumber, long transactionAmountCents);
+  }
+
+  private ColumnarTransactionFormat() {
+  }
+
+  /**
+   * Write the transactions of the given file in columnar format. The file is
+   * written to a temporary file, forced to disk and then moved into place, so
+   * a partially written file is never visible at {@literal path}.
+   *
+   * @param path the path to write to
+   * @param file a file which retains its transactions
+   */
+  public static void write(Path path, TransactionFile file) {
+    if (!file.isRetainTransactions()) {
+      throw new IllegalArgumentException("Transactions of " + file.getPath() + " were not retained");
+    }
+
+    Path tempPath = Paths.get(path + ".tmp");
+    long count = file.getTransactions().size();
+
+    try (FileChannel channel = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      CRC32 accountsCrc = new CRC32();
+      CRC32 amountsCrc = new CRC32();
+
+      // The header is written last, once the checksums are known
+      channel.position(HEADER_SIZE);
+
+      for (Transaction transaction : file.getTransactions()) {
+        if (buffer.remaining() < Integer.BYTES) {
+          flush(channel, buffer, accountsCrc);
+        }
+
+        buffer.putInt(transaction.getCustomerAccountNumber());
+      }
+
+      flush(channel, buffer, accountsCrc);
+      channel.position(amountsOffset(count));
+
+      for (Transaction transaction : file.getTransactions()) {
+        if (buffer.remaining() < Long.BYTES) {
+          flush(channel, buffer, amountsCrc);
+        }
+
+        buffer.putLong(transaction.getTransactionAmountCents());
+      }
+
+      flush(channel, buffer, amountsCrc);
+
+      buffer.putInt(MAGIC).putInt(VERSION).putLong(count)
+          .putInt((int) accountsCrc.getValue()).putInt((int) amountsCrc.getValue());
+      buffer.flip();
+      channel.position(0);
+      write(channel, buffer);
+
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing columnar file " + path, e);
+    }
+
+    try {
+      Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing columnar file " + path, e);
+    }
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+    buffer.flip();
+    crc.update(buffer.duplicate());
+    write(channel, buffer);
+    buffer.clear();
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * The amounts column starts on an 8-byte boundary after the accounts.
+   */
+  private static long amountsOffset(long count) {
+    return HEADER_SIZE + ((count * Integer.BYTES + 7) & ~7L);
+  }
+
+  /**
+   * Load every transaction from a columnar file, passing it straight to the
+   * given consumer (e.g. {@code CustomerAccountService::applyTransaction}).
+   * Nothing is passed to the consumer unless both column checksums match.
+   *
+   * @param path     the path of the columnar file
+   * @param consumer the consumer to receive each transaction
+   * @return the number of transactions loaded
+   */
+  public static long load(Path path, TransactionConsumer consumer) {
+    long start = System.currentTimeMillis();
+
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+      while (header.hasRemaining()) {
+        if (channel.read(header) < 0) {
+          throw new RuntimeException("Columnar file " + path + " is truncated");
+        }
+      }
+
+      header.flip();
+      int magic = header.getInt();
+      int version = header.getInt();
+      long count = header.getLong();
+      int accountsCrc = header.getInt();
+      int amountsCrc = header.getInt();
+
+      if (magic != MAGIC || version != VERSION || count < 0
+          || channel.size() != amountsOffset(count) + count * Long.BYTES) {
+        throw new RuntimeException("Columnar file " + path + " is corrupt");
+      }
+
+      if (checksum(channel, HEADER_SIZE, count * Integer.BYTES) != accountsCrc
+          || checksum(channel, amountsOffset(count), count * Long.BYTES) != amountsCrc) {
+        throw new RuntimeException("Columnar file " + path + " failed its checksum");
+      }
+
+      for (long i = 0; i < count; i += WINDOW_SIZE) {
+        int n = (int) Math.min(WINDOW_SIZE, count - i);
+        IntBuffer accounts = map(channel, HEADER_SIZE + i * Integer.BYTES, n * Integer.BYTES).asIntBuffer();
+        LongBuffer amounts = map(channel, amountsOffset(count) + i * Long.BYTES, (long) n * Long.BYTES).asLongBuffer();
+
+        for (int j = 0; j < n; j++) {
+          consumer.accept(accounts.get(j), amounts.get(j));
+        }
+      }
+
+      log.info("Loaded {} transactions from {} in {}ms", count, path, System.currentTimeMillis() - start);
+      return count;
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading columnar file " + path, e);
+    }
+  }
+
+  private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int checksum(FileChannel channel, long position, long size) throws IOException {
+    CRC32 crc = new CRC32();
+
+    for (long offset = 0; offset < size; offset += Integer.MAX_VALUE) {
+      crc.update(map(channel, position + offset, Math.min(Integer.MAX_VALUE, size - offset)));
+    }
+
+    return (int) crc.getValue();
+  }
+}
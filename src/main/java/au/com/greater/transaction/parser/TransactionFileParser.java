@@ -2,14 +2,26 @@ package au.com.greater.transaction.parser;
 
 import au.com.greater.transaction.model.Transaction;
 import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.utils.Compression;
 import au.com.greater.transaction.utils.FileUtils;
-import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.math.NumberUtils;
+import au.com.greater.transaction.utils.XxHash64;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
 
 /**
  * This class is responsible for reading customer transaction files and
@@ -21,6 +33,15 @@ public class TransactionFileParser {
 
   private static final Logger log = LoggerFactory.getLogger(TransactionFileParser.class);
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * Chunks smaller than this are not worth handing to another thread, and
+   * chunks must be smaller than the 2GB limit of a single mapped buffer.
+   */
+  private static final long MIN_CHUNK_SIZE = 4 * 1024 * 1024;
+  private static final long MAX_CHUNK_SIZE = 1024 * 1024 * 1024;
+
   /**
    * Read the customer transaction file at {@literal path} and process it into
    * a {@link TransactionFile} object.
@@ -31,57 +52,255 @@ public class TransactionFileParser {
    */
   public static TransactionFile fromPath(Path path) {
     TransactionFile transactionFile = new TransactionFile(path);
+    XxHash64 fingerprint = new XxHash64();
 
-    double start = System.currentTimeMillis();
-    List<String> lines = FileUtils.readLinesFromFile(path);
+    streamFromPath(path, transactionFile::addTransaction, fingerprint);
+    transactionFile.setFingerprint(fingerprint.digest());
+    return transactionFile;
+  }
 
-    // Skip the header line
-    if (lines.size() > 0) {
-      lines.remove(0);
-    }
+  /**
+   * Read the customer transaction file at {@literal path} in fixed-size blocks,
+   * passing each processed transaction straight to the given consumer. The
+   * file is never held in memory, so memory usage stays flat regardless of
+   * the size of the file.
+   *
+   * Files compressed with gzip or zstd (detected from their first bytes or
+   * their extension) are decompressed as they are streamed.
+   *
+   * Corrupt lines are passed to the consumer as null, in the same way that
+   * {@link TransactionFile#addTransaction(Transaction)} expects them.
+   *
+   * @param path     the path to the customer transaction file
+   * @param consumer the consumer to receive each processed transaction, e.g.
+   *                 {@code CustomerAccountService::applyTransaction}
+   * @return the number of transaction lines processed (excluding the header)
+   */
+  public static long streamFromPath(Path path, Consumer<Transaction> consumer) {
+    return streamFromPath(path, consumer, null);
+  }
+
+  /**
+   * Stream the customer transaction file at {@literal path} as per
+   * {@link #streamFromPath(Path, Consumer)}, hashing its (decompressed)
+   * contents as they are read.
+   *
+   * @param path        the path to the customer transaction file
+   * @param consumer    the consumer to receive each processed transaction
+   * @param fingerprint the hash to update with the contents of the file, or
+   *                    null
+   * @return the number of transaction lines processed (excluding the header)
+   */
+  public static long streamFromPath(Path path, Consumer<Transaction> consumer, XxHash64 fingerprint) {
+    log.info("Streaming transactions from file at {}", path);
+    long start = System.currentTimeMillis();
+    long numLines;
+
+    boolean compressed = Compression.detect(path) != Compression.NONE;
 
-    for (String line : lines) {
-      transactionFile.addTransaction(processLine(line));
+    try (ReadableByteChannel channel = compressed ? Channels.newChannel(FileUtils.newInputStream(path))
+        : Files.newByteChannel(path)) {
+      numLines = streamFromChannel(channel, consumer, fingerprint);
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading file " + path, e);
     }
 
-    log.info("Processed {} transactions in {}ms", lines.size(), System.currentTimeMillis() - start);
-    return transactionFile;
+    log.info("Processed {} transactions in {}ms", numLines, System.currentTimeMillis() - start);
+    return numLines;
   }
 
   /**
-   * Process a single line from a customer transaction file and return a
-   * {@link Transaction} instance representing the transaction. The line should
-   * be of the following format:
-   *
-   *   123456789, 100.00
+   * Read customer transactions from a channel in fixed-size blocks, passing
+   * each processed transaction straight to the given consumer.
    *
-   * where the first comma-delimited token is a customer account number, and
-   * the second is a transaction amount.
+   * @param channel  the channel to read from, positioned at the header line
+   * @param consumer the consumer to receive each processed transaction
+   * @return the number of transaction lines processed (excluding the header)
+   */
+  public static long streamFromChannel(ReadableByteChannel channel, Consumer<Transaction> consumer) {
+    return streamFromChannel(channel, consumer, null);
+  }
+
+  private static long streamFromChannel(ReadableByteChannel channel, Consumer<Transaction> consumer,
+                                        XxHash64 fingerprint) {
+    TransactionTokenizer tokenizer = new TransactionTokenizer(true);
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    try {
+      while (true) {
+        // Grow the buffer if a single line doesn't fit in it
+        if (!buffer.hasRemaining()) {
+          buffer = ByteBuffer.allocate(buffer.capacity() * 2).put((ByteBuffer) buffer.flip());
+        }
+
+        // Decompressing channels return only a few KB per read, so fill the
+        // buffer before tokenizing
+        int start = buffer.position();
+        boolean endOfInput = false;
+        while (buffer.hasRemaining() && !endOfInput) {
+          endOfInput = channel.read(buffer) < 0;
+        }
+
+        buffer.flip();
+
+        if (fingerprint != null) {
+          fingerprint.update((ByteBuffer) buffer.duplicate().position(start));
+        }
+
+        int consumed = tokenizer.tokenize(buffer, 0, buffer.limit(), endOfInput, consumer);
+        if (endOfInput) {
+          break;
+        }
+
+        buffer.position(consumed);
+        buffer.compact();
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading transactions", e);
+    }
+
+    return tokenizer.getNumLines();
+  }
+
+  /**
+   * Read the customer transaction file at {@literal path} using all threads of
+   * the common {@link ForkJoinPool}.
    *
-   * If the customer account number is non-numeric or the format is violated in
-   * any other way, the transaction will be skipped (null returned).
+   * @param path the path to the customer transaction file
+   * @return a {@link TransactionFile} instance representing the contents of
+   * the customer transaction file
+   * @see #fromPathInParallel(Path, ForkJoinPool)
+   */
+  public static TransactionFile fromPathInParallel(Path path) {
+    return fromPathInParallel(path, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Read the customer transaction file at {@literal path} by memory-mapping it
+   * and splitting it into chunks on line boundaries. Each chunk is parsed on
+   * the given pool, and the results are merged (in file order) into a single
+   * {@link TransactionFile}. Compressed files can't be split, so are read
+   * sequentially.
    *
-   * @param line the transaction line to process
-   * @return a {@link Transaction} object, or null if the transaction is to be
-   * skipped
+   * @param path the path to the customer transaction file
+   * @param pool the pool on which to parse each chunk
+   * @return a {@link TransactionFile} instance representing the contents of
+   * the customer transaction file
    */
-  private static Transaction processLine(String line) {
-    String[] parts = line.replace(" ", "").split(",");
+  public static TransactionFile fromPathInParallel(Path path, ForkJoinPool pool) {
+    // Compressed files can only be read from the start
+    if (Compression.detect(path) != Compression.NONE) {
+      return fromPath(path);
+    }
 
-    if (parts.length != 2) {
-      return null;
+    try {
+      long size = Files.size(path);
+      long chunkSize = Math.max(MIN_CHUNK_SIZE, size / (pool.getParallelism() * 4L) + 1);
+      return fromPathInParallel(path, pool, Math.min(chunkSize, MAX_CHUNK_SIZE));
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading file " + path, e);
     }
+  }
+
+  static TransactionFile fromPathInParallel(Path path, ForkJoinPool pool, long chunkSize) {
+    log.info("Loading transactions from file at {} in parallel", path);
+    long start = System.currentTimeMillis();
+    TransactionFile transactionFile = new TransactionFile(path);
+
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      List<Long> boundaries = findChunkBoundaries(channel, chunkSize);
+      List<ForkJoinTask<TransactionFile>> chunks = new ArrayList<>();
+      List<ByteBuffer> buffers = new ArrayList<>();
+
+      for (int i = 0; i < boundaries.size() - 1; i++) {
+        long position = boundaries.get(i);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, boundaries.get(i + 1) - position);
+
+        // Only the first chunk contains the header line
+        boolean skipHeader = i == 0;
+        chunks.add(pool.submit(() -> parseChunk(path, buffer, skipHeader)));
+        buffers.add(buffer);
+      }
+
+      // The fingerprint can't be split, so is computed while the chunks are
+      // parsed
+      XxHash64 fingerprint = new XxHash64();
+      for (ByteBuffer buffer : buffers) {
+        fingerprint.update(buffer);
+      }
+
+      for (ForkJoinTask<TransactionFile> chunk : chunks) {
+        transactionFile.addAll(chunk.join());
+      }
 
-    String customerAccountNumber = parts[0];
-    if (!StringUtils.isNumeric(customerAccountNumber)) {
-      return null;
+      transactionFile.setFingerprint(fingerprint.digest());
+
+      log.info("Processed {} transactions in {} chunks in {}ms",
+          transactionFile.getTransactions().size() + transactionFile.getNumSkippedTransactions(),
+          chunks.size(), System.currentTimeMillis() - start);
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading file " + path, e);
     }
 
-    String transactionAmount = parts[1];
-    if (!NumberUtils.isCreatable(transactionAmount)) {
-      return null;
+    return transactionFile;
+  }
+
+  private static TransactionFile parseChunk(Path path, ByteBuffer buffer, boolean skipHeader) {
+    TransactionFile chunk = new TransactionFile(path);
+    new TransactionTokenizer(skipHeader).tokenize(buffer, 0, buffer.limit(), true, chunk::addTransaction);
+    return chunk;
+  }
+
+  /**
+   * Split the file into chunks of roughly {@literal chunkSize} bytes, moving
+   * each split point forward to just after the next line terminator so that
+   * no line is split across two chunks.
+   *
+   * @return the start position of each chunk, followed by the file size
+   */
+  private static List<Long> findChunkBoundaries(FileChannel channel, long chunkSize) throws IOException {
+    long size = channel.size();
+    List<Long> boundaries = new ArrayList<>();
+    boundaries.add(0L);
+
+    ByteBuffer window = ByteBuffer.allocate(4096);
+    long position = chunkSize;
+
+    while (position < size) {
+      long boundary = size;
+      boolean carriageReturn = false;
+
+      scan:
+      while (position < size) {
+        window.clear();
+        int read = channel.read(window, position);
+
+        for (int i = 0; i < read; i++) {
+          byte b = window.get(i);
+
+          if (carriageReturn) {
+            // Include the "\n" of a "\r\n" pair in the preceding chunk
+            boundary = b == '\n' ? position + i + 1 : position + i;
+            break scan;
+          } else if (b == '\n') {
+            boundary = position + i + 1;
+            break scan;
+          } else if (b == '\r') {
+            carriageReturn = true;
+          }
+        }
+
+        position += read;
+      }
+
+      if (boundary < size) {
+        boundaries.add(boundary);
+      }
+
+      position = boundary + chunkSize;
     }
 
-    return new Transaction(Integer.parseInt(customerAccountNumber), Double.parseDouble(transactionAmount));
+    boundaries.add(size);
+    return boundaries;
   }
 }
@@ -0,0 +1,381 @@
+package au.com.greater.transaction.parser;
+
+import au.com.greater.transaction.model.Transaction;
+
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * This class tokenizes the raw bytes of a customer transaction file directly
+ * into {@link Transaction} instances, without creating any intermediate
+ * strings. Each line is scanned exactly once, and the customer account number
+ * and transaction amount are accumulated as the bytes are read.
+ *
+ * The skip rules are the same as those of the original string-based parser:
+ * spaces are ignored anywhere in a line, the account number must be numeric,
+ * the amount must be a valid number (including the octal, exponent and type
+ * qualifier forms accepted by {@code NumberUtils#isCreatable}) and trailing
+ * commas are ignored. Lines which would previously have caused an exception
+ * (hexadecimal amounts, account numbers that overflow an int) are skipped.
+ *
+ * Amounts are converted exactly into a whole number of cents using only long
+ * arithmetic. Amounts with more than two decimal places are rounded to the
+ * nearest cent, with halves rounded away from zero (so -1.235 becomes -124
+ * cents), and amounts too large to be held as a long number of cents are
+ * skipped.
+ *
+ * Instances hold mutable state and are not thread-safe; use one tokenizer per
+ * thread.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class TransactionTokenizer {
+
+  /**
+   * The most significant digits that always fit in a long, and the powers of
+   * ten up to that many digits.
+   */
+  private static final int MAX_DIGITS = 18;
+  private static final long[] POWERS_OF_TEN = new long[MAX_DIGITS + 1];
+
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i <= MAX_DIGITS; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  private boolean skipHeader;
+
+  private long numLines = 0;
+
+  private int accountNumber;
+
+  private long amountCents;
+
+  /**
+   * @param skipHeader whether the first line seen by this tokenizer is a
+   *                   header line which should be skipped
+   */
+  public TransactionTokenizer(boolean skipHeader) {
+    this.skipHeader = skipHeader;
+  }
+
+  /**
+   * @return the number of transaction lines tokenized so far (excluding the
+   * header line)
+   */
+  public long getNumLines() {
+    return numLines;
+  }
+
+  /**
+   * @return the customer account number of the most recently tokenized line
+   */
+  public int getAccountNumber() {
+    return accountNumber;
+  }
+
+  /**
+   * @return the transaction amount, in cents, of the most recently tokenized
+   * line
+   */
+  public long getAmountCents() {
+    return amountCents;
+  }
+
+  /**
+   * Tokenize all complete lines between {@literal start} and {@literal end}
+   * in the given buffer, passing a {@link Transaction} for each line to the
+   * given consumer (or null if the line is corrupt).
+   *
+   * Lines may be terminated by "\n", "\r" or "\r\n". If {@literal endOfInput}
+   * is false, a trailing incomplete line is left unconsumed so that the caller
+   * can retry once more bytes are available.
+   *
+   * @param buffer     the buffer to read from, using absolute positions
+   * @param start      the position of the first byte to tokenize
+   * @param end        the position after the last byte to tokenize
+   * @param endOfInput whether there are no more bytes after {@literal end}
+   * @param consumer   the consumer to receive each processed transaction
+   * @return the position of the first byte that was not consumed
+   */
+  public int tokenize(ByteBuffer buffer, int start, int end, boolean endOfInput, Consumer<Transaction> consumer) {
+    int lineStart = start;
+
+    for (int i = start; i < end; i++) {
+      byte b = buffer.get(i);
+
+      if (b != '\n' && b != '\r') {
+        continue;
+      }
+
+      int lineEnd = i;
+
+      if (b == '\r') {
+        if (i + 1 < end) {
+          if (buffer.get(i + 1) == '\n') {
+            i++;
+          }
+        } else if (!endOfInput) {
+          // Can't tell yet whether this is a "\r\n" pair
+          return lineStart;
+        }
+      }
+
+      processLine(buffer, lineStart, lineEnd, consumer);
+      lineStart = i + 1;
+    }
+
+    if (endOfInput && lineStart < end) {
+      processLine(buffer, lineStart, end, consumer);
+      lineStart = end;
+    }
+
+    return lineStart;
+  }
+
+  private void processLine(ByteBuffer buffer, int start, int end, Consumer<Transaction> consumer) {
+    if (skipHeader) {
+      skipHeader = false;
+      return;
+    }
+
+    numLines++;
+    consumer.accept(tokenizeLine(buffer, start, end) ? Transaction.ofCents(accountNumber, amountCents) : null);
+  }
+
+  /**
+   * Tokenize a single line (excluding its terminator) of the following
+   * format:
+   *
+   *   123456789, 100.00
+   *
+   * If the line is valid, the customer account number and transaction amount
+   * are available via {@link #getAccountNumber()} and {@link #getAmountCents()}.
+   *
+   * @param buffer the buffer to read from, using absolute positions
+   * @param start  the position of the first byte of the line
+   * @param end    the position after the last byte of the line
+   * @return true if the line is valid, false if it should be skipped
+   */
+  public boolean tokenizeLine(ByteBuffer buffer, int start, int end) {
+    int i = skipSpaces(buffer, start, end);
+    long account = 0;
+    boolean foundDigit = false;
+
+    // The account number is one or more digits, followed by a comma
+    for (; i < end; i = skipSpaces(buffer, i + 1, end)) {
+      byte b = buffer.get(i);
+
+      if (b < '0' || b > '9') {
+        break;
+      }
+
+      account = account * 10 + (b - '0');
+      if (account > Integer.MAX_VALUE) {
+        return false;
+      }
+
+      foundDigit = true;
+    }
+
+    if (!foundDigit || i == end || buffer.get(i) != ',') {
+      return false;
+    }
+
+    // The amount runs up to the next comma. Anything after that must be
+    // trailing commas, which are ignored.
+    int amountStart = i + 1;
+    int amountEnd = amountStart;
+
+    while (amountEnd < end && buffer.get(amountEnd) != ',') {
+      amountEnd++;
+    }
+
+    for (int j = amountEnd; j < end; j++) {
+      byte b = buffer.get(j);
+      if (b != ',' && b != ' ') {
+        return false;
+      }
+    }
+
+    if (!tokenizeAmount(buffer, amountStart, amountEnd)) {
+      return false;
+    }
+
+    accountNumber = (int) account;
+    return true;
+  }
+
+  private boolean tokenizeAmount(ByteBuffer buffer, int start, int end) {
+    int i = skipSpaces(buffer, start, end);
+    boolean negative = false;
+
+    if (i < end && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+      negative = buffer.get(i) == '-';
+      i = skipSpaces(buffer, i + 1, end);
+    }
+
+    if (i == end) {
+      return false;
+    }
+
+    // A leading zero followed by another digit denotes an octal number,
+    // although the digits are still interpreted as decimal
+    if (buffer.get(i) == '0') {
+      int next = skipSpaces(buffer, i + 1, end);
+
+      if (next < end && isDigit(buffer.get(next))) {
+        return tokenizeOctalAmount(buffer, i, end, negative);
+      }
+    }
+
+    long mantissa = 0;
+    int numDigits = 0;
+    int scale = 0;
+    boolean truncated = false;
+    boolean foundDigit = false;
+    boolean foundDecimalPoint = false;
+
+    for (; i < end; i = skipSpaces(buffer, i + 1, end)) {
+      byte b = buffer.get(i);
+
+      if (isDigit(b)) {
+        foundDigit = true;
+
+        if ((mantissa != 0 || b != '0') && ++numDigits > MAX_DIGITS) {
+          // Further integer digits scale the value up, whereas further
+          // fractional digits are too small to affect the rounded cents
+          truncated = true;
+          if (!foundDecimalPoint) {
+            scale--;
+          }
+          continue;
+        }
+
+        mantissa = mantissa * 10 + (b - '0');
+        if (foundDecimalPoint) {
+          scale++;
+        }
+      } else if (b == '.' && !foundDecimalPoint) {
+        foundDecimalPoint = true;
+      } else {
+        break;
+      }
+    }
+
+    if (!foundDigit) {
+      return false;
+    }
+
+    int exponent = 0;
+
+    if (i < end && (buffer.get(i) == 'e' || buffer.get(i) == 'E')) {
+      i = skipSpaces(buffer, i + 1, end);
+      boolean negativeExponent = false;
+
+      if (i < end && (buffer.get(i) == '+' || buffer.get(i) == '-')) {
+        negativeExponent = buffer.get(i) == '-';
+        i = skipSpaces(buffer, i + 1, end);
+      }
+
+      boolean foundExponentDigit = false;
+
+      for (; i < end && isDigit(buffer.get(i)); i = skipSpaces(buffer, i + 1, end)) {
+        exponent = Math.min(exponent * 10 + (buffer.get(i) - '0'), 10000);
+        foundExponentDigit = true;
+      }
+
+      if (!foundExponentDigit) {
+        return false;
+      }
+
+      if (negativeExponent) {
+        exponent = -exponent;
+      }
+    }
+
+    // An optional floating point type qualifier
+    if (i < end && isTypeQualifier(buffer.get(i))) {
+      i = skipSpaces(buffer, i + 1, end);
+    }
+
+    if (i != end) {
+      return false;
+    }
+
+    return toCents(mantissa, exponent - scale + 2, truncated, negative);
+  }
+
+  private boolean tokenizeOctalAmount(ByteBuffer buffer, int digitsStart, int end, boolean negative) {
+    long mantissa = 0;
+    int numDigits = 0;
+
+    for (int i = digitsStart; i < end; i = skipSpaces(buffer, i + 1, end)) {
+      byte b = buffer.get(i);
+
+      if (b < '0' || b > '7') {
+        return false;
+      }
+
+      if ((mantissa != 0 || b != '0') && ++numDigits > MAX_DIGITS) {
+        return false;
+      }
+
+      mantissa = mantissa * 10 + (b - '0');
+    }
+
+    return toCents(mantissa, 2, false, negative);
+  }
+
+  /**
+   * Convert a decimal mantissa into a whole number of cents, by multiplying
+   * it by 10^shift. Negative shifts round the magnitude half up to the
+   * nearest cent, so negative amounts round half away from zero.
+   *
+   * @return false if the amount is too large to be represented
+   */
+  private boolean toCents(long mantissa, int shift, boolean truncated, boolean negative) {
+    long cents;
+
+    if (mantissa == 0) {
+      cents = 0;
+    } else if (shift >= 0) {
+      if (truncated || shift > MAX_DIGITS || mantissa > Long.MAX_VALUE / POWERS_OF_TEN[shift]) {
+        return false;
+      }
+
+      cents = mantissa * POWERS_OF_TEN[shift];
+    } else if (shift < -MAX_DIGITS) {
+      // The mantissa is less than 10^18, so this is less than a tenth of a cent
+      cents = 0;
+    } else {
+      long divisor = POWERS_OF_TEN[-shift];
+      cents = mantissa / divisor;
+
+      if (mantissa % divisor >= divisor / 2) {
+        cents++;
+      }
+    }
+
+    amountCents = negative ? -cents : cents;
+    return true;
+  }
+
+  private static int skipSpaces(ByteBuffer buffer, int i, int end) {
+    while (i < end && buffer.get(i) == ' ') {
+      i++;
+    }
+
+    return i;
+  }
+
+  private static boolean isDigit(byte b) {
+    return b >= '0' && b <= '9';
+  }
+
+  private static boolean isTypeQualifier(byte b) {
+    return b == 'd' || b == 'D' || b == 'f' || b == 'F';
+  }
+}
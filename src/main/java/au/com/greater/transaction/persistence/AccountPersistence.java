@@ -0,0 +1,227 @@
+package au.com.greater.transaction.persistence;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * This component makes customer account balances durable across restarts,
+ * using a write-ahead {@link BalanceJournal} and periodic
+ * {@link BalanceSnapshot}s kept in the {@literal processing.stateDir}
+ * directory. It is only enabled when that property is set.
+ *
+ * Each {@link TransactionFile} is journaled (and forced to disk) as a single
+ * batch before it is applied. Every {@literal snapshotInterval} batches, the
+ * balances are snapshotted and the journal is truncated, so that recovery
+ * time is bounded by the size of a snapshot plus a limited journal tail.
+ *
+ * On startup, the latest snapshot is loaded and any journaled batches after
+ * it are replayed. Each batch is replayed the same way it was first applied
+ * (as net amounts per account, unless {@literal processing.preAggregate} is
+ * false), so that a transaction rejected as out of range (or not) before a
+ * restart is treated the same way after it.
+ *
+ * The content fingerprint of each file is also recorded in a
+ * {@link ProcessedFileLedger}, so that a file which was applied but not
+ * archived before a crash (or which is delivered twice) is not applied
+ * again. Files are journaled as a single batch, so a file is never partially
+ * applied. Small files may be journaled together in one batch, in which case
+ * they are applied (or not) together.
+ *
+ * Each snapshot compacts the ledger down to the
+ * {@literal processing.ledger.maxEntries} most recent files, so that its
+ * size is bounded.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Component
+@ConditionalOnProperty(name = "processing.stateDir")
+public class AccountPersistence {
+
+  private static final Logger log = LoggerFactory.getLogger(AccountPersistence.class);
+
+  private final CustomerAccountService accountService;
+
+  private final Path snapshotPath;
+
+  private final Path journalPath;
+
+  private final Path ledgerPath;
+
+  private final int snapshotInterval;
+
+  /**
+   * Whether batches were applied as net amounts per account, and must be
+   * replayed the same way
+   */
+  @Setter
+  @Value("${processing.preAggregate:true}")
+  private boolean preAggregate = true;
+
+  /**
+   * The number of most recently applied files whose fingerprints are kept
+   * once the ledger is compacted
+   */
+  @Setter
+  @Value("${processing.ledger.maxEntries:1000000}")
+  private int ledgerMaxEntries = 1000000;
+
+  private BalanceJournal journal;
+
+  private ProcessedFileLedger ledger;
+
+  private long sequence;
+
+  private int batchesSinceSnapshot;
+
+  @Autowired
+  public AccountPersistence(CustomerAccountService accountService,
+                            @Value("${processing.stateDir}") String stateDir,
+                            @Value("${processing.snapshotInterval:100}") int snapshotInterval) {
+    this.accountService = accountService;
+    this.snapshotPath = Paths.get(stateDir, "snapshot.bin");
+    this.journalPath = Paths.get(stateDir, "journal.log");
+    this.ledgerPath = Paths.get(stateDir, "processed.ledger");
+    this.snapshotInterval = snapshotInterval;
+  }
+
+  /**
+   * Restore all customer account balances from the latest snapshot and the
+   * journal.
+   */
+  @PostConstruct
+  public synchronized void recover() {
+    try {
+      Files.createDirectories(snapshotPath.getParent());
+    } catch (IOException e) {
+      throw new RuntimeException("Error creating state directory " + snapshotPath.getParent(), e);
+    }
+
+    long start = System.currentTimeMillis();
+    long snapshotSequence = BalanceSnapshot.read(snapshotPath, accountService::restoreBalance);
+
+    journal = new BalanceJournal(journalPath);
+    batchesSinceSnapshot = journal.replay(snapshotSequence, this::replay);
+    sequence = Math.max(snapshotSequence, journal.getLastSequence());
+
+    ledger = new ProcessedFileLedger(ledgerPath);
+    int numProcessed = ledger.load(sequence);
+
+    log.info("Recovered {} customer accounts ({} journaled batches, {} processed files) in {}ms",
+        accountService.getNumAccounts(), batchesSinceSnapshot, numProcessed, System.currentTimeMillis() - start);
+  }
+
+  private void replay(List<Transaction> transactions) {
+    if (preAggregate) {
+      accountService.applyBatchAggregated(transactions);
+    } else {
+      transactions.forEach(accountService::applyTransaction);
+    }
+  }
+
+  /**
+   * @param file a parsed {@link TransactionFile}
+   * @return true if a file with the same content fingerprint has already
+   * been applied
+   */
+  public synchronized boolean isApplied(TransactionFile file) {
+    return file.getFingerprint() != null && ledger.contains(file.getFingerprint());
+  }
+
+  /**
+   * Durably record the transactions of a file, before they are applied.
+   *
+   * @param file the {@link TransactionFile} about to be applied
+   */
+  public void log(TransactionFile file) {
+    log(Collections.singletonList(file));
+  }
+
+  /**
+   * Durably record the transactions of several files as a single batch,
+   * before they are applied together. The whole batch costs one force of the
+   * ledger and one of the journal, however many files it holds.
+   *
+   * @param files the {@link TransactionFile}s about to be applied
+   */
+  public synchronized void log(List<TransactionFile> files) {
+    long[] fingerprints = files.stream()
+        .map(TransactionFile::getFingerprint)
+        .filter(Objects::nonNull)
+        .mapToLong(Long::longValue)
+        .toArray();
+
+    if (fingerprints.length > 0) {
+      ledger.record(fingerprints, sequence + 1);
+    }
+
+    try {
+      journal.append(sequence + 1, files);
+      sequence++;
+    } catch (RuntimeException e) {
+      if (fingerprints.length > 0) {
+        ledger.rollback(fingerprints);
+      }
+
+      throw e;
+    }
+
+    batchesSinceSnapshot++;
+  }
+
+  /**
+   * Take a snapshot if enough batches have been journaled since the last
+   * one. This must only be called once all logged files have been applied.
+   */
+  public synchronized void checkpoint() {
+    if (batchesSinceSnapshot >= snapshotInterval) {
+      snapshot();
+    }
+  }
+
+  /**
+   * Snapshot all customer account balances and truncate the journal. This
+   * must only be called once all logged files have been applied.
+   */
+  public synchronized void snapshot() {
+    long start = System.currentTimeMillis();
+
+    BalanceSnapshot.write(snapshotPath, sequence, accountService::forEachBalance);
+    journal.truncate();
+    batchesSinceSnapshot = 0;
+    int dropped = ledger.compact(ledgerMaxEntries);
+
+    log.info("Snapshotted customer accounts at batch {} in {}ms ({} old processed files forgotten)",
+        sequence, System.currentTimeMillis() - start, dropped);
+  }
+
+  @PreDestroy
+  public synchronized void close() {
+    if (journal != null) {
+      journal.close();
+      journal = null;
+    }
+
+    if (ledger != null) {
+      ledger.close();
+      ledger = null;
+    }
+  }
+}
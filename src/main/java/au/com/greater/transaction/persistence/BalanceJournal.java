@@ -0,0 +1,287 @@
+package au.com.greater.transaction.persistence;
+
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * This class implements an append-only write-ahead log of applied
+ * transaction batches. Each batch (i.e. each {@link TransactionFile}, or a
+ * group of small files applied together) is written as a single record:
+ *
+ *   [magic:int][sequence:long][count:long]([account:int][amount:long] * count)[crc32:int]
+ *
+ * All entries of a batch are written through one large buffer and then
+ * committed together with a single fsync, rather than one write per
+ * transaction. A record whose checksum does not match (i.e. one that was torn
+ * by a crash part-way through a write) marks the end of the log; it is
+ * discarded when the log is replayed.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class BalanceJournal implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(BalanceJournal.class);
+
+  private static final int MAGIC = 0x4A524E4C;
+  private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES;
+  private static final int ENTRY_SIZE = Integer.BYTES + Long.BYTES;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private final Path path;
+
+  private final FileChannel channel;
+
+  private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+  private final CRC32 crc = new CRC32();
+
+  private long lastSequence = 0;
+
+  /**
+   * Receives the transactions of a single journaled batch.
+   */
+  @FunctionalInterface
+  public interface BatchConsumer {
+    void accept(List<Transaction> transactions);
+  }
+
+  /**
+   * Open (or create) the journal at the given path. The journal must be
+   * replayed with {@link #replay(long, BatchConsumer)} before it is appended
+   * to.
+   *
+   * @param path the path of the journal file
+   */
+  public BalanceJournal(Path path) {
+    this.path = path;
+
+    try {
+      this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+    } catch (IOException e) {
+      throw new RuntimeException("Error opening journal " + path, e);
+    }
+  }
+
+  /**
+   * Replay every complete record in the journal whose sequence number is
+   * greater than {@literal afterSequence}, passing the transactions of each
+   * record to the given consumer as a single batch, so that it can apply
+   * them just as the original batch was applied. Any torn record at the end
+   * of the journal is truncated.
+   *
+   * @param afterSequence the sequence number of the last batch that has
+   *                      already been recovered (e.g. from a snapshot)
+   * @param consumer      the consumer to receive each replayed batch
+   * @return the number of records replayed
+   */
+  public int replay(long afterSequence, BatchConsumer consumer) {
+    int numReplayed = 0;
+
+    try {
+      long size = channel.size();
+      long position = 0;
+
+      while (position + HEADER_SIZE + Integer.BYTES <= size) {
+        ByteBuffer header = read(position, HEADER_SIZE);
+        int magic = header.getInt();
+        long sequence = header.getLong();
+        long count = header.getLong();
+        long recordSize = HEADER_SIZE + count * ENTRY_SIZE + Integer.BYTES;
+
+        if (magic != MAGIC || count < 0 || count > (size - position) / ENTRY_SIZE
+            || position + recordSize > size || !isValid(position, recordSize)) {
+          break;
+        }
+
+        if (sequence > afterSequence) {
+          consumer.accept(readEntries(position + HEADER_SIZE, count));
+          lastSequence = sequence;
+          numReplayed++;
+        }
+
+        position += recordSize;
+      }
+
+      if (position < size) {
+        log.warn("Discarding {} bytes of incomplete journal records from {}", size - position, path);
+        channel.truncate(position);
+        channel.force(true);
+      }
+
+      channel.position(position);
+    } catch (IOException e) {
+      throw new RuntimeException("Error replaying journal " + path, e);
+    }
+
+    return numReplayed;
+  }
+
+  /**
+   * @return the sequence number of the last record replayed or appended, or
+   * zero if there is none
+   */
+  public long getLastSequence() {
+    return lastSequence;
+  }
+
+  private ByteBuffer read(long position, int length) throws IOException {
+    buffer.clear().limit(length);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of journal " + path);
+      }
+    }
+
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Check the checksum of the record at the given position, before any of
+   * its entries are applied.
+   */
+  private boolean isValid(long position, long recordSize) throws IOException {
+    crc.reset();
+    long end = position + recordSize - Integer.BYTES;
+
+    for (long p = position; p < end; ) {
+      int length = (int) Math.min(BUFFER_SIZE, end - p);
+      crc.update(read(p, length));
+      p += length;
+    }
+
+    return read(end, Integer.BYTES).getInt() == (int) crc.getValue();
+  }
+
+  private List<Transaction> readEntries(long position, long count) throws IOException {
+    int entriesPerRead = BUFFER_SIZE / ENTRY_SIZE;
+    List<Transaction> transactions = new ArrayList<>((int) Math.min(count, Integer.MAX_VALUE - 8));
+
+    for (long i = 0; i < count; ) {
+      int n = (int) Math.min(entriesPerRead, count - i);
+      ByteBuffer entries = read(position + i * ENTRY_SIZE, n * ENTRY_SIZE);
+
+      for (int j = 0; j < n; j++) {
+        transactions.add(Transaction.ofCents(entries.getInt(), entries.getLong()));
+      }
+
+      i += n;
+    }
+
+    return transactions;
+  }
+
+  /**
+   * Append all transactions of the given file to the journal as a single
+   * record, and force it to disk.
+   *
+   * @param sequence the sequence number of the batch, which must be greater
+   *                 than that of any previous batch
+   * @param file     the file whose transactions are about to be applied
+   */
+  public void append(long sequence, TransactionFile file) {
+    append(sequence, Collections.singletonList(file));
+  }
+
+  /**
+   * Append all transactions of the given files to the journal as a single
+   * record, and force it to disk.
+   *
+   * @param sequence the sequence number of the batch, which must be greater
+   *                 than that of any previous batch
+   * @param files    the files whose transactions are about to be applied
+   *                 together
+   */
+  public void append(long sequence, List<TransactionFile> files) {
+    long start = 0;
+    long count = files.stream().mapToLong(file -> file.getTransactions().size()).sum();
+
+    try {
+      start = channel.position();
+      crc.reset();
+      buffer.clear();
+      buffer.putInt(MAGIC).putLong(sequence).putLong(count);
+
+      for (TransactionFile file : files) {
+        for (Transaction transaction : file.getTransactions()) {
+          if (buffer.remaining() < ENTRY_SIZE) {
+            flush();
+          }
+
+          buffer.putInt(transaction.getCustomerAccountNumber()).putLong(transaction.getTransactionAmountCents());
+        }
+      }
+
+      flush();
+      buffer.putInt((int) crc.getValue());
+      buffer.flip();
+      write();
+
+      // A single fsync commits the whole batch
+      channel.force(false);
+      lastSequence = sequence;
+    } catch (IOException e) {
+      // Don't leave a torn record in front of any later records
+      try {
+        channel.truncate(start);
+      } catch (IOException suppressed) {
+        e.addSuppressed(suppressed);
+      }
+
+      throw new RuntimeException("Error writing to journal " + path, e);
+    }
+  }
+
+  private void flush() throws IOException {
+    buffer.flip();
+    crc.update(buffer.duplicate());
+    write();
+    buffer.clear();
+  }
+
+  private void write() throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Discard all records, e.g. once they have been captured by a snapshot.
+   */
+  public void truncate() {
+    try {
+      channel.truncate(0);
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException("Error truncating journal " + path, e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Error closing journal " + path, e);
+    }
+  }
+}
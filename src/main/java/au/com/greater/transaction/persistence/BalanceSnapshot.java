@@ -0,0 +1,191 @@
+package au.com.greater.transaction.persistence;
+
+import au.com.greater.transaction.account.AccountStore.BalanceConsumer;
+import au.com.greater.transaction.utils.FileUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * This class reads and writes point-in-time snapshots of every customer
+ * account balance, in the following binary format:
+ *
+ *   [magic:int][sequence:long][count:long]([account:int][balance:long] * count)[crc32:int]
+ *
+ * The sequence number is that of the last journaled batch whose transactions
+ * are included in the snapshot. Snapshots are written to a temporary file,
+ * forced to disk and then atomically moved into place, and the directory is
+ * then synced, so a crash part-way through writing a snapshot leaves the
+ * previous one intact, and a snapshot which has been written survives a
+ * crash. Nothing is read from a snapshot unless its checksum matches.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class BalanceSnapshot {
+
+  private static final int MAGIC = 0x534E4150;
+  private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + Long.BYTES;
+  private static final int ENTRY_SIZE = Integer.BYTES + Long.BYTES;
+  private static final int BUFFER_SIZE = 1024 * 1024;
+
+  private BalanceSnapshot() {
+  }
+
+  /**
+   * Write a snapshot of all account balances.
+   *
+   * @param path     the path of the snapshot file
+   * @param sequence the sequence number of the last batch included
+   * @param balances a function which passes every account balance to the
+   *                 given consumer
+   */
+  public static void write(Path path, long sequence, Consumer<BalanceConsumer> balances) {
+    Path tempPath = Paths.get(path + ".tmp");
+
+    try (FileChannel channel = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      CRC32 crc = new CRC32();
+      long[] count = {0};
+
+      // The header is written last, once the number of entries is known
+      channel.position(HEADER_SIZE);
+
+      balances.accept((accountNumber, balance) -> {
+        if (buffer.remaining() < ENTRY_SIZE) {
+          try {
+            flush(channel, buffer, crc);
+          } catch (IOException e) {
+            throw new RuntimeException("Error writing snapshot " + path, e);
+          }
+        }
+
+        buffer.putInt(accountNumber).putLong(balance);
+        count[0]++;
+      });
+
+      flush(channel, buffer, crc);
+      buffer.putInt((int) crc.getValue());
+      buffer.flip();
+      write(channel, buffer);
+
+      buffer.clear();
+      buffer.putInt(MAGIC).putLong(sequence).putLong(count[0]);
+      buffer.flip();
+      channel.position(0);
+      write(channel, buffer);
+
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing snapshot " + path, e);
+    }
+
+    try {
+      Files.move(tempPath, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      throw new RuntimeException("Error replacing snapshot " + path, e);
+    }
+
+    // The journal is truncated once the snapshot has been written, so the
+    // rename must reach the disk first
+    FileUtils.syncDirectory(path.toAbsolutePath().getParent());
+  }
+
+  private static void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+    buffer.flip();
+    crc.update(buffer.duplicate());
+    write(channel, buffer);
+    buffer.clear();
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * Read a snapshot, passing every account balance to the given consumer.
+   * The whole snapshot is checked against its checksum first, so a corrupt
+   * snapshot passes nothing to the consumer.
+   *
+   * @param path     the path of the snapshot file
+   * @param consumer the consumer to receive each account balance
+   * @return the sequence number of the last batch included in the snapshot,
+   * or zero if there is no snapshot
+   */
+  public static long read(Path path, BalanceConsumer consumer) {
+    if (!Files.exists(path)) {
+      return 0;
+    }
+
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+      CRC32 crc = new CRC32();
+
+      fill(channel, buffer, HEADER_SIZE);
+      int magic = buffer.getInt();
+      long sequence = buffer.getLong();
+      long count = buffer.getLong();
+
+      if (magic != MAGIC || count < 0 || channel.size() != HEADER_SIZE + count * ENTRY_SIZE + Integer.BYTES) {
+        throw new RuntimeException("Snapshot " + path + " is corrupt");
+      }
+
+      int entriesPerRead = BUFFER_SIZE / ENTRY_SIZE;
+
+      for (long i = 0; i < count; ) {
+        int n = (int) Math.min(entriesPerRead, count - i);
+        fill(channel, buffer, n * ENTRY_SIZE);
+        crc.update(buffer);
+        i += n;
+      }
+
+      fill(channel, buffer, Integer.BYTES);
+
+      if (buffer.getInt() != (int) crc.getValue()) {
+        throw new RuntimeException("Snapshot " + path + " failed its checksum");
+      }
+
+      channel.position(HEADER_SIZE);
+
+      for (long i = 0; i < count; ) {
+        int n = (int) Math.min(entriesPerRead, count - i);
+        fill(channel, buffer, n * ENTRY_SIZE);
+
+        for (int j = 0; j < n; j++) {
+          consumer.accept(buffer.getInt(), buffer.getLong());
+        }
+
+        i += n;
+      }
+
+      return sequence;
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading snapshot " + path, e);
+    }
+  }
+
+  private static void fill(FileChannel channel, ByteBuffer buffer, int length) throws IOException {
+    buffer.clear().limit(length);
+
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) < 0) {
+        throw new IOException("Unexpected end of file");
+      }
+    }
+
+    buffer.flip();
+  }
+}
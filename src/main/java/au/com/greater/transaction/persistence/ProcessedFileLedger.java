@@ -0,0 +1,279 @@
+package au.com.greater.transaction.persistence;
+
+import au.com.greater.transaction.utils.LongHashSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * This class implements an append-only ledger of the content fingerprints of
+ * applied transaction files. Each file is recorded with the sequence number
+ * of the {@link BalanceJournal} batch it is applied in:
+ *
+ *   [fingerprint:long][sequence:long][crc32:int]
+ *
+ * An entry is written (and forced to disk) before its batch is journaled, so
+ * an entry whose sequence number is beyond the last recovered batch belongs
+ * to a file that was never applied, and is discarded when the ledger is
+ * loaded.
+ *
+ * Fingerprints are held in a primitive {@link LongHashSet}. So that neither
+ * the set nor the file grows forever, {@link #compact(int)} keeps only the
+ * most recent entries, rewriting the ledger to a temporary file which then
+ * atomically replaces it.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class ProcessedFileLedger implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(ProcessedFileLedger.class);
+
+  private static final int RECORD_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+  /**
+   * A whole number of records, so that records never straddle two reads
+   */
+  private static final int BUFFER_SIZE = RECORD_SIZE * 16 * 1024;
+
+  private final Path path;
+
+  private FileChannel channel;
+
+  private final ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE);
+
+  private LongHashSet fingerprints = new LongHashSet();
+
+  /**
+   * Open (or create) the ledger at the given path. The ledger must be loaded
+   * with {@link #load(long)} before it is used.
+   *
+   * @param path the path of the ledger file
+   */
+  public ProcessedFileLedger(Path path) {
+    this.path = path;
+
+    try {
+      this.channel = FileChannel.open(path, CREATE, READ, WRITE);
+    } catch (IOException e) {
+      throw new RuntimeException("Error opening ledger " + path, e);
+    }
+  }
+
+  /**
+   * Load every entry up to and including the given batch. Entries after it
+   * (whose batches were never committed), and any torn entry at the end of
+   * the ledger, are truncated.
+   *
+   * @param committedSequence the sequence number of the last batch recovered
+   * @return the number of entries loaded
+   */
+  public int load(long committedSequence) {
+    CRC32 crc = new CRC32();
+
+    try {
+      long size = channel.size();
+      long position = 0;
+
+      for (; position + RECORD_SIZE <= size; position += RECORD_SIZE) {
+        buffer.clear();
+
+        while (buffer.hasRemaining()) {
+          channel.read(buffer, position + buffer.position());
+        }
+
+        buffer.flip();
+        long fingerprint = buffer.getLong();
+        long sequence = buffer.getLong();
+
+        crc.reset();
+        crc.update(buffer.array(), 0, Long.BYTES * 2);
+
+        if (buffer.getInt() != (int) crc.getValue() || sequence > committedSequence) {
+          break;
+        }
+
+        fingerprints.add(fingerprint);
+      }
+
+      if (position < size) {
+        log.warn("Discarding {} bytes of uncommitted ledger entries from {}", size - position, path);
+        channel.truncate(position);
+        channel.force(true);
+      }
+
+      channel.position(position);
+    } catch (IOException e) {
+      throw new RuntimeException("Error loading ledger " + path, e);
+    }
+
+    return fingerprints.size();
+  }
+
+  /**
+   * @param fingerprint the content fingerprint of a transaction file
+   * @return true if a file with the same contents has been applied
+   */
+  public boolean contains(long fingerprint) {
+    return fingerprints.contains(fingerprint);
+  }
+
+  /**
+   * Durably record that a file is about to be applied in the given batch.
+   *
+   * @param fingerprint the content fingerprint of the file
+   * @param sequence    the sequence number of the journal batch
+   */
+  public void record(long fingerprint, long sequence) {
+    record(new long[]{fingerprint}, sequence);
+  }
+
+  /**
+   * Durably record that several files are about to be applied in the same
+   * batch, with a single force of the ledger.
+   *
+   * @param fingerprints the content fingerprints of the files
+   * @param sequence     the sequence number of the journal batch
+   */
+  public void record(long[] fingerprints, long sequence) {
+    CRC32 crc = new CRC32();
+
+    try {
+      for (long fingerprint : fingerprints) {
+        crc.reset();
+        buffer.clear();
+        buffer.putLong(fingerprint).putLong(sequence);
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+
+      channel.force(false);
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing to ledger " + path, e);
+    }
+
+    for (long fingerprint : fingerprints) {
+      this.fingerprints.add(fingerprint);
+    }
+  }
+
+  /**
+   * Remove the last entry, if its batch could not be journaled.
+   *
+   * @param fingerprint the fingerprint of the last entry
+   */
+  public void rollback(long fingerprint) {
+    rollback(new long[]{fingerprint});
+  }
+
+  /**
+   * Remove the last entries, if their batch could not be journaled.
+   *
+   * @param fingerprints the fingerprints of the last entries
+   */
+  public void rollback(long[] fingerprints) {
+    try {
+      long position = channel.position() - (long) fingerprints.length * RECORD_SIZE;
+      channel.truncate(position);
+      channel.position(position);
+      channel.force(false);
+    } catch (IOException e) {
+      throw new RuntimeException("Error rolling back ledger " + path, e);
+    }
+
+    for (long fingerprint : fingerprints) {
+      this.fingerprints.remove(fingerprint);
+    }
+  }
+
+  /**
+   * Drop all but the most recent entries, if there are more than the given
+   * number. A file older than those kept is no longer recognised if it is
+   * delivered again. This must only be called once every recorded batch has
+   * been committed.
+   *
+   * @param maxEntries the number of most recent entries to keep
+   * @return the number of entries dropped
+   */
+  public int compact(int maxEntries) {
+    Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+
+    try {
+      long size = channel.position();
+      long start = Math.max(0, size - (long) maxEntries * RECORD_SIZE);
+
+      if (start == 0) {
+        return 0;
+      }
+
+      LongHashSet kept = new LongHashSet(maxEntries);
+      ByteBuffer entries = ByteBuffer.allocate(BUFFER_SIZE);
+
+      try (FileChannel out = FileChannel.open(compacted, CREATE, WRITE, TRUNCATE_EXISTING)) {
+        for (long position = start; position < size; ) {
+          entries.clear().limit((int) Math.min(BUFFER_SIZE, size - position));
+
+          while (entries.hasRemaining()) {
+            if (channel.read(entries, position + entries.position()) < 0) {
+              throw new IOException("Unexpected end of ledger " + path);
+            }
+          }
+
+          entries.flip();
+
+          for (int i = 0; i < entries.limit(); i += RECORD_SIZE) {
+            kept.add(entries.getLong(i));
+          }
+
+          while (entries.hasRemaining()) {
+            out.write(entries);
+          }
+
+          position += entries.limit();
+        }
+
+        out.force(true);
+      }
+
+      Files.move(compacted, path, ATOMIC_MOVE, REPLACE_EXISTING);
+      channel.close();
+      channel = FileChannel.open(path, READ, WRITE);
+      channel.position(channel.size());
+
+      int dropped = (int) (start / RECORD_SIZE);
+      fingerprints = kept;
+      return dropped;
+    } catch (IOException e) {
+      throw new RuntimeException("Error compacting ledger " + path, e);
+    }
+  }
+
+  @Override
+  public void close() {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Error closing ledger " + path, e);
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package au.com.greater.transaction.query;
+
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * The balance of a single customer account, as returned by range and top-N
+ * balance queries.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+@AllArgsConstructor
+public class AccountBalance {
+
+  private final int accountNumber;
+
+  private final long balanceCents;
+}
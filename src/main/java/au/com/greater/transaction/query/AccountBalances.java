@@ -0,0 +1,147 @@
+package au.com.greater.transaction.query;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.utils.IntLongHashMap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+
+/**
+ * An immutable snapshot of customer account balances, held as a sorted array
+ * of account numbers and a parallel array of balances. Lookups are a binary
+ * search, with no locking and no allocation.
+ *
+ * @author Justin Lewis Salmon
+ */
+public final class AccountBalances implements BalanceQueries {
+
+  public static final AccountBalances EMPTY = new AccountBalances(0, new int[0], new long[0]);
+
+  private final long version;
+
+  private final int[] accounts;
+
+  private final long[] balances;
+
+  private AccountBalances(long version, int[] accounts, long[] balances) {
+    this.version = version;
+    this.accounts = accounts;
+    this.balances = balances;
+  }
+
+  /**
+   * Copy every balance held by the given service.
+   *
+   * @param version        the version of the new snapshot
+   * @param accountService the service to copy, which must not be modified
+   *                       while it is copied
+   * @return the new snapshot
+   */
+  public static AccountBalances copyOf(long version, CustomerAccountService accountService) {
+    IntLongHashMap copy = new IntLongHashMap();
+    accountService.forEachBalance(copy::add);
+
+    int[] accounts = new int[copy.size()];
+    int[] i = {0};
+    copy.forEach((account, balance) -> accounts[i[0]++] = account);
+    Arrays.sort(accounts);
+
+    long[] balances = new long[accounts.length];
+    for (int j = 0; j < accounts.length; j++) {
+      balances[j] = copy.get(accounts[j]);
+    }
+
+    return new AccountBalances(version, accounts, balances);
+  }
+
+  /**
+   * Create a new snapshot in which only the given accounts have changed. The
+   * two sorted arrays are merged in a single pass, so the cost is linear in
+   * the number of accounts rather than requiring a full sort.
+   *
+   * @param version        the version of the new snapshot
+   * @param changed        the numbers of the changed accounts, sorted and
+   *                       without duplicates
+   * @param accountService the service to read the changed balances from
+   * @return the new snapshot
+   */
+  public AccountBalances update(long version, int[] changed, CustomerAccountService accountService) {
+    int[] mergedAccounts = new int[accounts.length + changed.length];
+    long[] mergedBalances = new long[mergedAccounts.length];
+    int i = 0;
+    int j = 0;
+    int n = 0;
+
+    while (i < accounts.length || j < changed.length) {
+      if (j == changed.length || (i < accounts.length && accounts[i] < changed[j])) {
+        mergedAccounts[n] = accounts[i];
+        mergedBalances[n++] = balances[i++];
+        continue;
+      }
+
+      if (i < accounts.length && accounts[i] == changed[j]) {
+        i++;
+      }
+
+      // An account whose first transaction could not be applied is not
+      // created
+      OptionalLong balance = accountService.findAccountBalanceCents(changed[j]);
+
+      if (balance.isPresent()) {
+        mergedAccounts[n] = changed[j];
+        mergedBalances[n++] = balance.getAsLong();
+      }
+
+      j++;
+    }
+
+    return new AccountBalances(version, Arrays.copyOf(mergedAccounts, n), Arrays.copyOf(mergedBalances, n));
+  }
+
+  /**
+   * @return the number of accounts in this snapshot
+   */
+  public int size() {
+    return accounts.length;
+  }
+
+  /**
+   * Pass every account number and balance to the given consumer, in account
+   * number order.
+   *
+   * @param consumer the consumer to receive each account
+   */
+  public void forEach(IntLongHashMap.IntLongConsumer consumer) {
+    for (int i = 0; i < accounts.length; i++) {
+      consumer.accept(accounts[i], balances[i]);
+    }
+  }
+
+  @Override
+  public long getVersion() {
+    return version;
+  }
+
+  @Override
+  public OptionalLong getBalanceCents(int accountNumber) {
+    int index = Arrays.binarySearch(accounts, accountNumber);
+    return index < 0 ? OptionalLong.empty() : OptionalLong.of(balances[index]);
+  }
+
+  @Override
+  public Map<Integer, Long> getBalancesCents(int[] accountNumbers) {
+    Map<Integer, Long> result = new HashMap<>();
+
+    for (int accountNumber : accountNumbers) {
+      int index = Arrays.binarySearch(accounts, accountNumber);
+
+      if (index >= 0) {
+        result.put(accountNumber, balances[index]);
+      }
+    }
+
+    return result;
+  }
+}
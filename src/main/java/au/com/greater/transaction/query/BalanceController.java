@@ -0,0 +1,93 @@
+package au.com.greater.transaction.query;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+
+/**
+ * This controller exposes balance queries over HTTP, on the same (loopback
+ * only) server as the metrics:
+ *
+ * - {@literal GET /balances/{accountNumber}}: a single balance, or 404 if the
+ *   account does not exist
+ * - {@literal POST /balances}: the balances of a JSON array of account
+ *   numbers, omitting any which do not exist
+ * - {@literal GET /balances/largest?n=} and {@literal /balances/smallest?n=}:
+ *   the accounts with the highest or lowest balances
+ * - {@literal GET /balances/range?min=&max=&limit=}: the accounts with
+ *   balances in a range, lowest first
+ *
+ * Balances are in cents, along with the version of the snapshot they were
+ * read from.
+ *
+ * @author Justin Lewis Salmon
+ */
+@RestController
+@RequestMapping("/balances")
+@RequiredArgsConstructor(onConstructor = @__(@Autowired))
+public class BalanceController {
+
+  private final BalanceQueryService balanceQueries;
+
+  @GetMapping("/{accountNumber}")
+  public ResponseEntity<BalanceResponse> getBalance(@PathVariable int accountNumber) {
+    AccountBalances snapshot = balanceQueries.getSnapshot();
+    OptionalLong balance = snapshot.getBalanceCents(accountNumber);
+
+    if (!balance.isPresent()) {
+      return ResponseEntity.notFound().build();
+    }
+
+    return ResponseEntity.ok(new BalanceResponse(accountNumber, balance.getAsLong(), snapshot.getVersion()));
+  }
+
+  @PostMapping
+  public Balances getBalances(@RequestBody int[] accountNumbers) {
+    AccountBalances snapshot = balanceQueries.getSnapshot();
+    return new Balances(snapshot.getBalancesCents(accountNumbers), snapshot.getVersion());
+  }
+
+  @GetMapping("/largest")
+  public List<AccountBalance> getLargestBalances(@RequestParam(defaultValue = "10") int n) {
+    return balanceQueries.getLargestBalances(n);
+  }
+
+  @GetMapping("/smallest")
+  public List<AccountBalance> getSmallestBalances(@RequestParam(defaultValue = "10") int n) {
+    return balanceQueries.getSmallestBalances(n);
+  }
+
+  @GetMapping("/range")
+  public List<AccountBalance> getBalancesInRange(@RequestParam long min, @RequestParam long max,
+                                                 @RequestParam(defaultValue = "1000") int limit) {
+    return balanceQueries.getBalancesInRange(min, max, limit);
+  }
+
+  @Getter
+  @AllArgsConstructor
+  public static class BalanceResponse {
+    private final int accountNumber;
+    private final long balanceCents;
+    private final long version;
+  }
+
+  @Getter
+  @AllArgsConstructor
+  public static class Balances {
+    private final Map<Integer, Long> balancesCents;
+    private final long version;
+  }
+}
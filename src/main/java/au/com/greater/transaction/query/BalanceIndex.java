@@ -0,0 +1,108 @@
+package au.com.greater.transaction.query;
+
+import au.com.greater.transaction.utils.IntHashSet;
+
+import java.util.function.IntConsumer;
+
+/**
+ * An index of customer accounts ordered by balance, which is kept up to date
+ * incrementally as balances change. Accounts are grouped into buckets of
+ * similar balances: one bucket per sixteenth of each power of two, for both
+ * positive and negative balances. The buckets are ordered by balance, so
+ * range and top-N queries only need to look inside the buckets at the edges
+ * of the range, rather than at every account.
+ *
+ * The index only holds account numbers; exact balances are read from the
+ * {@link AccountBalances} snapshot it was updated to.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+class BalanceIndex {
+
+  private static final int SUB_BUCKET_BITS = 4;
+
+  /**
+   * Buckets per sign: 64 powers of two, each split into sub-buckets
+   */
+  private static final int BUCKETS_PER_SIGN = Long.SIZE << SUB_BUCKET_BITS;
+
+  private final IntHashSet[] buckets = new IntHashSet[BUCKETS_PER_SIGN * 2];
+
+  /**
+   * Build an index of every account in the given snapshot.
+   */
+  static BalanceIndex of(AccountBalances balances) {
+    BalanceIndex index = new BalanceIndex();
+    balances.forEach(index::add);
+    return index;
+  }
+
+  void add(int accountNumber, long balance) {
+    int bucket = bucketOf(balance);
+
+    if (buckets[bucket] == null) {
+      buckets[bucket] = new IntHashSet();
+    }
+
+    buckets[bucket].add(accountNumber);
+  }
+
+  void remove(int accountNumber, long balance) {
+    IntHashSet bucket = buckets[bucketOf(balance)];
+
+    if (bucket != null) {
+      bucket.remove(accountNumber);
+    }
+  }
+
+  /**
+   * Pass every account in the buckets overlapping the given range to the
+   * consumer, from the lowest bucket to the highest. Accounts in the edge
+   * buckets may be outside the range, so must be filtered by the caller.
+   */
+  void forEachCandidate(long min, long max, IntConsumer consumer) {
+    for (int bucket = bucketOf(min); bucket <= bucketOf(max); bucket++) {
+      if (buckets[bucket] != null) {
+        buckets[bucket].forEach(consumer);
+      }
+    }
+  }
+
+  /**
+   * Pass accounts to the consumer one whole bucket at a time, starting from
+   * the highest (or lowest) balances, until at least {@literal n} accounts
+   * have been passed. The top {@literal n} balances are then all among the
+   * accounts passed.
+   */
+  void forEachCandidate(int n, boolean highest, IntConsumer consumer) {
+    int passed = 0;
+
+    for (int i = 0; i < buckets.length && passed < n; i++) {
+      IntHashSet bucket = buckets[highest ? buckets.length - 1 - i : i];
+
+      if (bucket != null) {
+        bucket.forEach(consumer);
+        passed += bucket.size();
+      }
+    }
+  }
+
+  /**
+   * Map a balance to its bucket, such that buckets are in the same order as
+   * the balances they hold. Each magnitude is classified by the position of
+   * its highest bit and the {@literal SUB_BUCKET_BITS} bits below it.
+   */
+  static int bucketOf(long balance) {
+    // The complement of a negative balance is non-negative, and can't
+    // overflow as negation can
+    long magnitude = balance < 0 ? ~balance : balance;
+    int bits = Long.SIZE - Long.numberOfLeadingZeros(magnitude);
+    int shift = bits - 1 - SUB_BUCKET_BITS;
+    int subBucket = (int) (shift >= 0 ? magnitude >>> shift : magnitude << -shift) & ((1 << SUB_BUCKET_BITS) - 1);
+    int key = (bits << SUB_BUCKET_BITS) | subBucket;
+
+    return balance < 0 ? BUCKETS_PER_SIGN - 1 - key : BUCKETS_PER_SIGN + key;
+  }
+}
@@ -0,0 +1,35 @@
+package au.com.greater.transaction.query;
+
+import java.util.Map;
+import java.util.OptionalLong;
+
+/**
+ * This interface represents read-only queries of customer account balances.
+ * Every query is answered from a single consistent point in time: either
+ * before or after each transaction file was applied, but never part way
+ * through.
+ *
+ * @author Justin Lewis Salmon
+ */
+public interface BalanceQueries {
+
+  /**
+   * @param accountNumber the customer account number
+   * @return the balance of the account in cents, or empty if the account
+   * does not exist
+   */
+  OptionalLong getBalanceCents(int accountNumber);
+
+  /**
+   * @param accountNumbers the customer account numbers
+   * @return the balance in cents of each of the given accounts which exists,
+   * keyed by account number
+   */
+  Map<Integer, Long> getBalancesCents(int[] accountNumbers);
+
+  /**
+   * @return the number of times the balances have been published, which
+   * increases each time a transaction file is applied
+   */
+  long getVersion();
+}
@@ -0,0 +1,218 @@
+package au.com.greater.transaction.query;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.utils.IntHashSet;
+import au.com.greater.transaction.utils.TopK;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * This service answers balance queries from an immutable
+ * {@link AccountBalances} snapshot, which is replaced (with a single volatile
+ * write) each time a transaction file (or a group of small files) has been
+ * applied. Readers therefore never block on the writer, and never see a
+ * partially applied file.
+ *
+ * Publishing a file only copies the balances of the accounts it touched, by
+ * merging them into the previous snapshot.
+ *
+ * A {@link BalanceIndex} over the balances of the snapshot is updated in the
+ * same step, for range and top-N queries. Those queries take a read lock, so
+ * only wait for the index update itself, and never for a file to be applied.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Service
+public class BalanceQueryService implements BalanceQueries {
+
+  private final CustomerAccountService accountService;
+
+  private volatile AccountBalances snapshot = AccountBalances.EMPTY;
+
+  private final ReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+  private BalanceIndex index = new BalanceIndex();
+
+  @Autowired
+  public BalanceQueryService(CustomerAccountService accountService) {
+    this.accountService = accountService;
+  }
+
+  /**
+   * @return the current snapshot, for callers which make several queries
+   * that must be consistent with each other
+   */
+  public AccountBalances getSnapshot() {
+    return snapshot;
+  }
+
+  /**
+   * Publish the balances of the accounts touched by a file, once it has
+   * been applied.
+   *
+   * @param file the file which has just been applied
+   */
+  public void publish(TransactionFile file) {
+    publish(Collections.singletonList(file));
+  }
+
+  /**
+   * Publish the balances of the accounts touched by several files, once they
+   * have all been applied, as a single new snapshot.
+   *
+   * @param files the files which have just been applied
+   */
+  public synchronized void publish(List<TransactionFile> files) {
+    if (!files.stream().allMatch(TransactionFile::isRetainTransactions)) {
+      publishAll();
+      return;
+    }
+
+    IntHashSet touched = new IntHashSet();
+    for (TransactionFile file : files) {
+      for (Transaction transaction : file.getTransactions()) {
+        touched.add(transaction.getCustomerAccountNumber());
+      }
+    }
+
+    int[] changed = new int[touched.size()];
+    int[] i = {0};
+    touched.forEach(account -> changed[i[0]++] = account);
+    Arrays.sort(changed);
+
+    AccountBalances previous = snapshot;
+    AccountBalances next = previous.update(previous.getVersion() + 1, changed, accountService);
+
+    indexLock.writeLock().lock();
+    try {
+      for (int account : changed) {
+        previous.getBalanceCents(account).ifPresent(balance -> index.remove(account, balance));
+        next.getBalanceCents(account).ifPresent(balance -> index.add(account, balance));
+      }
+
+      snapshot = next;
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * Publish the balances of every account, e.g. once they have been restored
+   * or replayed. This must not be called while a file is being applied.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public synchronized void publishAll() {
+    AccountBalances next = AccountBalances.copyOf(snapshot.getVersion() + 1, accountService);
+    BalanceIndex nextIndex = BalanceIndex.of(next);
+
+    indexLock.writeLock().lock();
+    try {
+      index = nextIndex;
+      snapshot = next;
+    } finally {
+      indexLock.writeLock().unlock();
+    }
+  }
+
+  /**
+   * @param n the maximum number of accounts to return
+   * @return the accounts with the highest balances, highest first
+   */
+  public List<AccountBalance> getLargestBalances(int n) {
+    return getExtremeBalances(n, true);
+  }
+
+  /**
+   * @param n the maximum number of accounts to return
+   * @return the accounts with the lowest balances, lowest first
+   */
+  public List<AccountBalance> getSmallestBalances(int n) {
+    return getExtremeBalances(n, false);
+  }
+
+  /**
+   * Find the accounts with balances in the given range. If there are more
+   * than {@literal limit}, those with the lowest balances are returned.
+   *
+   * @param minCents the minimum balance (inclusive), in cents
+   * @param maxCents the maximum balance (inclusive), in cents
+   * @param limit    the maximum number of accounts to return
+   * @return the accounts in the range, lowest balance first
+   */
+  public List<AccountBalance> getBalancesInRange(long minCents, long maxCents, int limit) {
+    TopK lowest = new TopK(limit);
+
+    indexLock.readLock().lock();
+    try {
+      AccountBalances balances = snapshot;
+
+      if (minCents <= maxCents) {
+        index.forEachCandidate(minCents, maxCents, account -> {
+          long balance = balances.getBalanceCents(account).getAsLong();
+
+          if (balance >= minCents && balance <= maxCents) {
+            lowest.offer(account, ~balance);
+          }
+        });
+      }
+    } finally {
+      indexLock.readLock().unlock();
+    }
+
+    return toBalances(lowest, false);
+  }
+
+  private List<AccountBalance> getExtremeBalances(int n, boolean highest) {
+    TopK top = new TopK(n);
+
+    indexLock.readLock().lock();
+    try {
+      AccountBalances balances = snapshot;
+
+      // Ranking lowest balances by their complement keeps the ranking
+      // overflow-free
+      index.forEachCandidate(n, highest, account -> {
+        long balance = balances.getBalanceCents(account).getAsLong();
+        top.offer(account, highest ? balance : ~balance);
+      });
+    } finally {
+      indexLock.readLock().unlock();
+    }
+
+    return toBalances(top, highest);
+  }
+
+  private static List<AccountBalance> toBalances(TopK top, boolean highest) {
+    List<AccountBalance> result = new ArrayList<>(top.size());
+    top.forEachDescending((account, score) -> result.add(new AccountBalance(account, highest ? score : ~score)));
+    return result;
+  }
+
+  @Override
+  public OptionalLong getBalanceCents(int accountNumber) {
+    return snapshot.getBalanceCents(accountNumber);
+  }
+
+  @Override
+  public Map<Integer, Long> getBalancesCents(int[] accountNumbers) {
+    return snapshot.getBalancesCents(accountNumbers);
+  }
+
+  @Override
+  public long getVersion() {
+    return snapshot.getVersion();
+  }
+}
@@ -0,0 +1,699 @@
+package au.com.greater.transaction.shard;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.parser.ColumnarTransactionFormat;
+import au.com.greater.transaction.persistence.BalanceSnapshot;
+import au.com.greater.transaction.utils.Compression;
+import au.com.greater.transaction.utils.FileUtils;
+import au.com.greater.transaction.utils.HashUtils;
+import au.com.greater.transaction.utils.HyperLogLog;
+import lombok.Setter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * This component lets several processor instances (in separate JVMs, on one
+ * host or on several hosts sharing the {@literal processing.shardDir}
+ * directory) work through the same pending directory together. It is only
+ * enabled when that property is set.
+ *
+ * Customer accounts are hash-partitioned into {@literal processing.shards}
+ * shards. All coordination happens through file locks in the shard
+ * directory, so there is no coordinator process to fail:
+ *
+ * 1. An instance claims a pending file by locking a claim file, so each file
+ *    is split by exactly one instance
+ * 2. The claiming instance routes each transaction to the shard that owns
+ *    its account, writing one columnar partition per shard into that shard's
+ *    inbox
+ * 3. Each instance owns a shard for as long as it holds the lock on that
+ *    shard's lock file, and applies the partitions in its inbox to its own
+ *    accounts, moving them to the shard's applied directory and appending
+ *    their names to the shard's log
+ *
+ * Partitions are named after both the file they were split from and its
+ * content fingerprint, so a file which is split again after a crash is not
+ * applied twice, while a different file delivered under the same name is
+ * still applied.
+ *
+ * An instance first takes over a single shard. A shard which nobody owns
+ * (e.g. because there are more shards than instances) is taken over by the
+ * first instance to find that its inbox has not moved since it last looked,
+ * so every other instance has a chance to take over a shard of its own
+ * first, but no shard is left unapplied.
+ *
+ * Every {@literal processing.shardCheckpointInterval} partitions, the owner
+ * writes a {@link BalanceSnapshot} of the shard's accounts, deletes the
+ * partitions it covers, and rewrites the log to keep only the names of the
+ * partitions covered by the last few checkpoints, so that a file which is
+ * split again soon after a crash is still recognised.
+ *
+ * Locks are released by the operating system when an instance dies. When an
+ * instance takes over a shard, it restores the shard's checkpoint and
+ * replays only the partitions logged after it, so that its balances are
+ * rebuilt without any other shared state.
+ *
+ * @author Justin Lewis Salmon
+ */
+@Component
+@ConditionalOnProperty(name = "processing.shardDir")
+public class ShardCoordinator {
+
+  private static final Logger log = LoggerFactory.getLogger(ShardCoordinator.class);
+
+  /**
+   * The number of checkpoints whose partitions are still named in the log
+   */
+  private static final int RETAINED_CHECKPOINTS = 10;
+
+  private static final Map<Path, Object> INBOX_MONITORS = new ConcurrentHashMap<>();
+
+  private final Path shardDir;
+
+  private final Path claimsDir;
+
+  private final int numShards;
+
+  /**
+   * The shards owned by this instance, in shard order
+   */
+  private final Map<Integer, OwnedShard> owned = new TreeMap<>();
+
+  /**
+   * The oldest partition in the inbox of each shard not owned by this
+   * instance, when it last looked
+   */
+  private final Map<Integer, Path> waiting = new HashMap<>();
+
+  @Setter
+  @Value("${processing.shardCheckpointInterval:100}")
+  private int checkpointInterval = 100;
+
+  @Autowired
+  public ShardCoordinator(@Value("${processing.shardDir}") String shardDir,
+                          @Value("${processing.shards:4}") int numShards) {
+    if (numShards < 1) {
+      throw new IllegalArgumentException("Number of shards must be positive: " + numShards);
+    }
+
+    this.shardDir = Paths.get(shardDir);
+    this.claimsDir = this.shardDir.resolve("claims");
+    this.numShards = numShards;
+  }
+
+  /**
+   * @return the shards owned by this instance, which is empty if it does not
+   * own one yet
+   */
+  public synchronized Set<Integer> getOwnedShards() {
+    return new TreeSet<>(owned.keySet());
+  }
+
+  /**
+   * @param accountNumber the customer account number
+   * @return the shard which owns the account
+   */
+  public int shardOf(int accountNumber) {
+    return (HashUtils.mix(accountNumber) & Integer.MAX_VALUE) % numShards;
+  }
+
+  /**
+   * Claim a pending file, so that no other instance will process it.
+   *
+   * @param path the path of the pending transaction file
+   * @return the claim, which must be closed once the file has been archived
+   * (or has failed), or null if the file is claimed by another instance or
+   * has already been processed
+   */
+  public Claim claim(Path path) {
+    Path lockPath = claimsDir.resolve(path.getFileName() + ".lock");
+
+    try {
+      Files.createDirectories(claimsDir);
+      FileChannel channel = FileChannel.open(lockPath, CREATE, WRITE);
+
+      if (tryLock(channel) == null) {
+        channel.close();
+        return null;
+      }
+
+      // Another instance may have finished with the file since it was listed
+      if (!Files.exists(path)) {
+        channel.close();
+        return null;
+      }
+
+      return new Claim(path, lockPath, channel);
+    } catch (IOException e) {
+      throw new RuntimeException("Error claiming file " + path, e);
+    }
+  }
+
+  /**
+   * Route each transaction of the given file to the shard that owns its
+   * account, writing one columnar partition into the inbox of each shard.
+   * Partitions which have already been applied (because the file, with the
+   * same content, was split before but not archived) are not written again.
+   * The check and the write are made under the shard's inbox lock, so they
+   * can't race with the owner moving the same partition out of the inbox.
+   *
+   * @param file a file which retains its transactions
+   */
+  public void split(TransactionFile file) {
+    long start = System.currentTimeMillis();
+    TransactionFile[] partitions = new TransactionFile[numShards];
+
+    for (Transaction transaction : file.getTransactions()) {
+      int shard = shardOf(transaction.getCustomerAccountNumber());
+
+      if (partitions[shard] == null) {
+        partitions[shard] = new TransactionFile(file.getPath(), true, new HyperLogLog());
+      }
+
+      partitions[shard].addTransaction(transaction);
+    }
+
+    String name = partitionName(file);
+
+    for (int shard = 0; shard < numShards; shard++) {
+      if (partitions[shard] == null) {
+        continue;
+      }
+
+      TransactionFile partition = partitions[shard];
+      int target = shard;
+
+      withInboxLock(shard, () -> {
+        if (Files.exists(inboxDir(target).resolve(name)) || Files.exists(appliedDir(target).resolve(name))
+            || readLog(target).containsKey(name)) {
+          log.info("Partition {} of shard {} has already been split, skipping", name, target);
+        } else {
+          ColumnarTransactionFormat.write(inboxDir(target).resolve(name), partition);
+        }
+
+        return null;
+      });
+    }
+
+    log.info("Split {} into {} shards in {}ms", file.getPath(), numShards, System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Apply every partition in the inboxes of the shards owned by this
+   * instance, in filename order, to the given accounts. If this instance does
+   * not own a shard yet, it first tries to take over an unowned one, and it
+   * then takes over any shard whose inbox has stalled.
+   *
+   * Each partition is read in full before it is moved to the applied
+   * directory, and only applied once it has been moved. A partition which
+   * can't be read therefore stays in the inbox without having been applied,
+   * and one which has been moved is always replayed by the instance which
+   * takes over the shard, so a partition is applied exactly once even if the
+   * instance dies part way through.
+   *
+   * @param accountService the accounts of this instance
+   * @return the number of partitions applied
+   */
+  public synchronized int applyInbox(CustomerAccountService accountService) {
+    for (int shard = 0; shard < numShards && owned.isEmpty(); shard++) {
+      takeOverShard(shard, accountService);
+    }
+
+    takeOverStalledShards(accountService);
+    int applied = 0;
+
+    for (Map.Entry<Integer, OwnedShard> entry : owned.entrySet()) {
+      applied += applyPartitions(entry.getKey(), entry.getValue(), accountService);
+    }
+
+    return applied;
+  }
+
+  private int applyPartitions(int shard, OwnedShard owner, CustomerAccountService accountService) {
+    List<Path> partitions = listPartitions(inboxDir(shard));
+
+    for (Path partition : partitions) {
+      List<Transaction> transactions = withInboxLock(shard, () -> {
+        List<Transaction> loaded = new ArrayList<>();
+
+        ColumnarTransactionFormat.load(partition, (account, cents) -> loaded.add(Transaction.ofCents(account, cents)));
+        FileUtils.moveFile(partition, appliedDir(shard).resolve(partition.getFileName()));
+        owner.append(partition.getFileName().toString());
+        return loaded;
+      });
+
+      transactions.forEach(accountService::applyTransaction);
+    }
+
+    if (!partitions.isEmpty()) {
+      log.info("Applied {} partitions to shard {}", partitions.size(), shard);
+    }
+
+    if (owner.sequence - owner.checkpointSequence >= checkpointInterval) {
+      checkpoint(shard, owner, accountService);
+    }
+
+    return partitions.size();
+  }
+
+  /**
+   * Take over every shard not owned by this instance whose oldest partition
+   * was already waiting when this instance last looked. Its owner, if it has
+   * one, has not applied anything in between, and any other instance without
+   * a shard has had a chance to take it over first.
+   */
+  private void takeOverStalledShards(CustomerAccountService accountService) {
+    for (int shard = 0; shard < numShards; shard++) {
+      if (owned.containsKey(shard)) {
+        continue;
+      }
+
+      List<Path> partitions = Files.isDirectory(inboxDir(shard)) ? listPartitions(inboxDir(shard)) : emptyList();
+      Path oldest = partitions.isEmpty() ? null : partitions.get(0);
+
+      if (oldest != null && oldest.equals(waiting.get(shard))) {
+        waiting.remove(shard);
+        takeOverShard(shard, accountService);
+      } else if (oldest != null) {
+        waiting.put(shard, oldest);
+      } else {
+        waiting.remove(shard);
+      }
+    }
+  }
+
+  /**
+   * Lock the given shard if it is unowned, restore its checkpoint into the
+   * given accounts, and replay the partitions applied since.
+   */
+  private boolean takeOverShard(int shard, CustomerAccountService accountService) {
+    Path lockPath = shardDir.resolve(Integer.toString(shard)).resolve("owner.lock");
+    FileChannel channel;
+
+    try {
+      Files.createDirectories(inboxDir(shard));
+      Files.createDirectories(appliedDir(shard));
+      channel = FileChannel.open(lockPath, CREATE, WRITE);
+
+      if (tryLock(channel) == null) {
+        channel.close();
+        return false;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error locking shard " + lockPath, e);
+    }
+
+    try {
+      owned.put(shard, recover(shard, channel, accountService));
+      waiting.remove(shard);
+      return true;
+    } catch (RuntimeException e) {
+      closeQuietly(channel);
+      throw e;
+    }
+  }
+
+  private OwnedShard recover(int shard, FileChannel lock, CustomerAccountService accountService) {
+    long start = System.currentTimeMillis();
+    long checkpointSequence = BalanceSnapshot.read(checkpointPath(shard), accountService::restoreBalance);
+    Map<String, Long> logged = readLog(shard);
+    long sequence = checkpointSequence;
+    int replayed = 0;
+
+    for (Map.Entry<String, Long> entry : logged.entrySet()) {
+      Path partition = appliedDir(shard).resolve(entry.getKey());
+      sequence = Math.max(sequence, entry.getValue());
+
+      if (entry.getValue() > checkpointSequence) {
+        ColumnarTransactionFormat.load(partition, accountService::applyTransaction);
+        replayed++;
+      } else {
+        // The previous owner died before deleting every checkpointed partition
+        deleteIfExists(partition);
+      }
+    }
+
+    OwnedShard owner = new OwnedShard(lock, logged, sequence, checkpointSequence);
+    rewriteLog(shard, owner);
+
+    // Partitions moved by an owner which died before logging them
+    for (Path partition : listPartitions(appliedDir(shard))) {
+      if (!logged.containsKey(partition.getFileName().toString())) {
+        ColumnarTransactionFormat.load(partition, accountService::applyTransaction);
+        owner.append(partition.getFileName().toString());
+        replayed++;
+      }
+    }
+
+    log.info("Took over shard {} of {} from checkpoint {}, replaying {} partitions in {}ms",
+        shard, numShards, checkpointSequence, replayed, System.currentTimeMillis() - start);
+    return owner;
+  }
+
+  /**
+   * Write a snapshot of the accounts of the given shard, delete the
+   * partitions it covers, and rewrite the log without the names of
+   * partitions covered by older checkpoints. The log is forced before the
+   * snapshot is written, and entries are only dropped from it after the
+   * snapshot, so a crash part way through leaves either the previous
+   * checkpoint, or partitions which are skipped (and deleted) on takeover
+   * because they are logged before the new one.
+   */
+  private void checkpoint(int shard, OwnedShard owner, CustomerAccountService accountService) {
+    long start = System.currentTimeMillis();
+
+    try {
+      owner.log.force(false);
+    } catch (IOException e) {
+      throw new RuntimeException("Error checkpointing shard " + shard, e);
+    }
+
+    BalanceSnapshot.write(checkpointPath(shard), owner.sequence, consumer ->
+        accountService.forEachBalance((account, balance) -> {
+          if (shardOf(account) == shard) {
+            consumer.accept(account, balance);
+          }
+        }));
+
+    long retainFrom = owner.sequence - (long) RETAINED_CHECKPOINTS * checkpointInterval;
+
+    for (Iterator<Map.Entry<String, Long>> entries = owner.logged.entrySet().iterator(); entries.hasNext(); ) {
+      Map.Entry<String, Long> entry = entries.next();
+
+      if (entry.getValue() > owner.checkpointSequence) {
+        deleteIfExists(appliedDir(shard).resolve(entry.getKey()));
+      }
+
+      if (entry.getValue() <= retainFrom) {
+        entries.remove();
+      }
+    }
+
+    owner.checkpointSequence = owner.sequence;
+    rewriteLog(shard, owner);
+
+    log.info("Checkpointed shard {} at {} partitions in {}ms", shard, owner.sequence,
+        System.currentTimeMillis() - start);
+  }
+
+  /**
+   * Replace the log of the given shard with the entries held by its owner,
+   * and reopen it for appending. The log is written to a temporary file and
+   * then moved into place, so a crash leaves either the old or the new log.
+   */
+  private void rewriteLog(int shard, OwnedShard owner) {
+    Path logPath = logPath(shard);
+    Path tempPath = Paths.get(logPath + ".tmp");
+
+    try {
+      if (owner.log != null) {
+        owner.log.close();
+      }
+
+      try (FileChannel channel = FileChannel.open(tempPath, CREATE, WRITE, TRUNCATE_EXISTING)) {
+        StringBuilder entries = new StringBuilder();
+        owner.logged.forEach((name, sequence) -> entries.append(sequence).append(' ').append(name).append('\n'));
+        write(channel, ByteBuffer.wrap(entries.toString().getBytes(UTF_8)));
+        channel.force(true);
+      }
+
+      Files.move(tempPath, logPath, ATOMIC_MOVE, REPLACE_EXISTING);
+      FileUtils.syncDirectory(logPath.getParent());
+      owner.log = FileChannel.open(logPath, WRITE, APPEND);
+    } catch (IOException e) {
+      throw new RuntimeException("Error writing shard log " + logPath, e);
+    }
+  }
+
+  /**
+   * Read the log of the given shard.
+   *
+   * @return the name of each partition in the log, in the order they were
+   * applied, mapped to its sequence number. An incomplete entry left by an
+   * owner which died part way through appending it is ignored.
+   */
+  private Map<String, Long> readLog(int shard) {
+    Path logPath = logPath(shard);
+    Map<String, Long> logged = new LinkedHashMap<>();
+
+    try {
+      byte[] bytes = Files.exists(logPath) ? Files.readAllBytes(logPath) : new byte[0];
+      int start = 0;
+
+      for (int i = 0; i < bytes.length; i++) {
+        if (bytes[i] == '\n') {
+          String entry = new String(bytes, start, i - start, UTF_8);
+          int space = entry.indexOf(' ');
+
+          logged.put(entry.substring(space + 1), Long.parseLong(entry.substring(0, space)));
+          start = i + 1;
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading shard log " + logPath, e);
+    }
+
+    return logged;
+  }
+
+  /**
+   * Run the given action while holding the lock on the inbox of the given
+   * shard, which is held by a splitter while it checks for and writes a
+   * partition, and by the owner while it moves a partition out. File locks
+   * are held on behalf of the whole JVM, so instances in the same JVM (e.g.
+   * in tests) also exclude each other through a shared monitor.
+   */
+  private <T> T withInboxLock(int shard, Supplier<T> action) {
+    Path lockPath = shardDir.resolve(Integer.toString(shard)).resolve("inbox.lock").toAbsolutePath().normalize();
+
+    synchronized (INBOX_MONITORS.computeIfAbsent(lockPath, path -> new Object())) {
+      try {
+        Files.createDirectories(inboxDir(shard));
+        Files.createDirectories(appliedDir(shard));
+
+        try (FileChannel channel = FileChannel.open(lockPath, CREATE, WRITE); FileLock ignored = channel.lock()) {
+          return action.get();
+        }
+      } catch (IOException e) {
+        throw new RuntimeException("Error locking inbox of shard " + shard, e);
+      }
+    }
+  }
+
+  private static void deleteIfExists(Path path) {
+    try {
+      Files.deleteIfExists(path);
+    } catch (IOException e) {
+      throw new RuntimeException("Error deleting partition " + path, e);
+    }
+  }
+
+  private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  /**
+   * @return true if no shard has any partitions waiting to be applied
+   */
+  public boolean isDrained() {
+    for (int shard = 0; shard < numShards; shard++) {
+      if (Files.isDirectory(inboxDir(shard)) && !listPartitions(inboxDir(shard)).isEmpty()) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * Give up ownership of this instance's shards, so that other instances can
+   * take them over.
+   */
+  @PreDestroy
+  public synchronized void close() {
+    owned.forEach((shard, owner) -> {
+      closeQuietly(owner.log);
+      closeQuietly(owner.lock);
+    });
+
+    owned.clear();
+    waiting.clear();
+  }
+
+  private static void closeQuietly(FileChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      log.warn("Error releasing shard", e);
+    }
+  }
+
+  private Path inboxDir(int shard) {
+    return shardDir.resolve(Integer.toString(shard)).resolve("inbox");
+  }
+
+  private Path appliedDir(int shard) {
+    return shardDir.resolve(Integer.toString(shard)).resolve("applied");
+  }
+
+  private Path logPath(int shard) {
+    return shardDir.resolve(Integer.toString(shard)).resolve("applied.log");
+  }
+
+  private Path checkpointPath(int shard) {
+    return shardDir.resolve(Integer.toString(shard)).resolve("checkpoint");
+  }
+
+  /**
+   * Partitions are named after the file they were split from, so that they
+   * sort in the same order as the files were delivered, followed by the
+   * file's content fingerprint (if it was computed).
+   */
+  static String partitionName(TransactionFile file) {
+    String filename = Compression.stripExtension(file.getPath().getFileName().toString()).replace(".csv", "");
+
+    if (file.getFingerprint() != null) {
+      filename += "-" + String.format("%016x", file.getFingerprint());
+    }
+
+    return filename + ColumnarTransactionFormat.EXTENSION;
+  }
+
+  private static List<Path> listPartitions(Path dir) {
+    return FileUtils.listFiles(dir).stream()
+        .filter(path -> path.getFileName().toString().endsWith(ColumnarTransactionFormat.EXTENSION))
+        .sorted()
+        .collect(toList());
+  }
+
+  /**
+   * Try to lock the given channel without blocking. Locks are held on behalf
+   * of the whole JVM, so a lock already held by another instance in this JVM
+   * (e.g. in tests) counts as held by another instance.
+   */
+  private static FileLock tryLock(FileChannel channel) throws IOException {
+    try {
+      return channel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      return null;
+    }
+  }
+
+  /**
+   * A shard owned by this instance, and the log of the partitions applied to
+   * it.
+   */
+  private static final class OwnedShard {
+
+    private final FileChannel lock;
+
+    /**
+     * The entries of the log, from partition name to sequence number
+     */
+    private final Map<String, Long> logged;
+
+    private FileChannel log;
+
+    /**
+     * The sequence number of the last partition applied
+     */
+    private long sequence;
+
+    /**
+     * The sequence number of the last partition covered by the checkpoint
+     */
+    private long checkpointSequence;
+
+    private OwnedShard(FileChannel lock, Map<String, Long> logged, long sequence, long checkpointSequence) {
+      this.lock = lock;
+      this.logged = logged;
+      this.sequence = sequence;
+      this.checkpointSequence = checkpointSequence;
+    }
+
+    private void append(String name) {
+      try {
+        write(log, ByteBuffer.wrap(((sequence + 1) + " " + name + "\n").getBytes(UTF_8)));
+      } catch (IOException e) {
+        throw new RuntimeException("Error logging partition " + name, e);
+      }
+
+      logged.put(name, ++sequence);
+    }
+  }
+
+  /**
+   * An exclusive claim on a single pending file.
+   */
+  public static final class Claim implements AutoCloseable {
+
+    private final Path path;
+
+    private final Path lockPath;
+
+    private final FileChannel channel;
+
+    private Claim(Path path, Path lockPath, FileChannel channel) {
+      this.path = path;
+      this.lockPath = lockPath;
+      this.channel = channel;
+    }
+
+    /**
+     * Release the claim. If the file has been archived, the claim file is
+     * removed as well. Another instance may still lock the removed claim
+     * file (or create a new one), but will then find that the file has gone.
+     */
+    @Override
+    public void close() {
+      try {
+        if (!Files.exists(path)) {
+          Files.deleteIfExists(lockPath);
+        }
+
+        channel.close();
+      } catch (IOException e) {
+        throw new RuntimeException("Error releasing claim on " + path, e);
+      }
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package au.com.greater.transaction.utils;
+
+import io.airlift.compress.zstd.ZstdInputStream;
+import io.airlift.compress.zstd.ZstdOutputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * The compression formats supported for transaction files. Both codecs are
+ * pure Java and stream, so compressed files never need to be decompressed to
+ * a temporary file.
+ *
+ * @author Justin Lewis Salmon
+ */
+public enum Compression {
+
+  NONE("", new byte[0]) {
+    @Override
+    public InputStream decompress(InputStream in) {
+      return in;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+      return out;
+    }
+  },
+
+  GZIP(".gz", new byte[]{(byte) 0x1f, (byte) 0x8b}) {
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+  },
+
+  ZSTD(".zst", new byte[]{(byte) 0x28, (byte) 0xb5, (byte) 0x2f, (byte) 0xfd}) {
+    @Override
+    public InputStream decompress(InputStream in) {
+      return new ZstdInputStream(in);
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new ZstdOutputStream(out);
+    }
+  };
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final String extension;
+
+  private final byte[] magic;
+
+  Compression(String extension, byte[] magic) {
+    this.extension = extension;
+    this.magic = magic;
+  }
+
+  /**
+   * @return the file extension of this format, including the leading dot
+   */
+  public String getExtension() {
+    return extension;
+  }
+
+  /**
+   * Wrap a stream of compressed bytes in a stream of decompressed bytes.
+   */
+  public abstract InputStream decompress(InputStream in) throws IOException;
+
+  /**
+   * Wrap a stream so that bytes written to it are compressed. The returned
+   * stream must be closed to write the end of the compressed data.
+   */
+  public abstract OutputStream compress(OutputStream out) throws IOException;
+
+  /**
+   * Detect the compression format of a file from its magic bytes. Only an
+   * empty file, which has no magic bytes, is detected from its extension.
+   *
+   * @param path the file to inspect
+   * @return the compression format of the file
+   */
+  public static Compression detect(Path path) {
+    ByteBuffer header = ByteBuffer.allocate(4);
+
+    try (FileChannel channel = FileChannel.open(path, READ)) {
+      while (header.hasRemaining() && channel.read(header) >= 0) {
+        // Keep reading until the header is full or the file ends
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading file " + path, e);
+    }
+
+    for (Compression compression : values()) {
+      if (compression != NONE && startsWith(header, compression.magic)) {
+        return compression;
+      }
+    }
+
+    return header.position() == 0 ? fromFilename(path.getFileName().toString()) : NONE;
+  }
+
+  private static boolean startsWith(ByteBuffer header, byte[] magic) {
+    if (header.position() < magic.length) {
+      return false;
+    }
+
+    for (int i = 0; i < magic.length; i++) {
+      if (header.get(i) != magic[i]) {
+        return false;
+      }
+    }
+
+    return true;
+  }
+
+  /**
+   * @param filename the name of a file
+   * @return the compression format implied by the extension of the file
+   */
+  public static Compression fromFilename(String filename) {
+    for (Compression compression : values()) {
+      if (compression != NONE && filename.endsWith(compression.extension)) {
+        return compression;
+      }
+    }
+
+    return NONE;
+  }
+
+  /**
+   * @param filename the name of a file, e.g. "transactions.csv.gz"
+   * @return the name without any compression extension, e.g.
+   * "transactions.csv"
+   */
+  public static String stripExtension(String filename) {
+    Compression compression = fromFilename(filename);
+    return filename.substring(0, filename.length() - compression.extension.length());
+  }
+
+  /**
+   * @param name the name of a format, e.g. "gzip", "zstd" or "none"
+   * @return the format with the given name
+   */
+  public static Compression fromName(String name) {
+    try {
+      return valueOf(name.trim().toUpperCase());
+    } catch (IllegalArgumentException e) {
+      throw new IllegalArgumentException("Unknown compression format: " + name, e);
+    }
+  }
+}
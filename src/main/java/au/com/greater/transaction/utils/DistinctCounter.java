@@ -0,0 +1,29 @@
+package au.com.greater.transaction.utils;
+
+/**
+ * This interface represents a counter of distinct int values, such as
+ * customer account numbers.
+ *
+ * @author Justin Lewis Salmon
+ */
+public interface DistinctCounter {
+
+  /**
+   * Record a single value.
+   *
+   * @param value the value to record
+   */
+  void add(int value);
+
+  /**
+   * @return the (possibly estimated) number of distinct values recorded
+   */
+  long count();
+
+  /**
+   * Record all values recorded by another counter of the same type.
+   *
+   * @param other the counter to merge into this one
+   */
+  void addAll(DistinctCounter other);
+}
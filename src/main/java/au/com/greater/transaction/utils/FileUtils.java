@@ -3,11 +3,20 @@ package au.com.greater.transaction.utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Stream;
+import java.util.function.Consumer;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static java.util.stream.Collectors.toList;
@@ -22,6 +31,8 @@ public class FileUtils {
 
   private static final Logger log = LoggerFactory.getLogger(FileUtils.class);
 
+  private static final int BUFFER_SIZE = 64 * 1024;
+
   /**
    * List all files in the given directory path, excluding subdirectories.
    *
@@ -31,8 +42,16 @@ public class FileUtils {
   public static List<Path> listFiles(Path path) {
     log.info("Loading files from directory at {}", path);
 
-    try (Stream<Path> paths = Files.walk(path)) {
-      return paths.filter(Files::isRegularFile).collect(toList());
+    List<Path> files = new ArrayList<>();
+
+    try (DirectoryStream<Path> paths = Files.newDirectoryStream(path)) {
+      for (Path file : paths) {
+        if (Files.isRegularFile(file)) {
+          files.add(file);
+        }
+      }
+
+      return files;
     } catch (IOException e) {
       throw new RuntimeException("Error reading files from " + path, e);
     }
@@ -48,13 +67,67 @@ public class FileUtils {
   public static List<String> readLinesFromFile(Path path) {
     log.info("Loading lines from file at {}", path);
 
-    try (Stream<String> lines = Files.lines(path)) {
-      return lines.collect(toList());
+    try (BufferedReader reader = newReader(path)) {
+      return reader.lines().collect(toList());
     } catch (IOException e) {
       throw new RuntimeException("Error reading file " + path, e);
     }
   }
 
+  /**
+   * Read the file at the given path one line at a time, passing each line to
+   * the given consumer. Unlike {@link #readLinesFromFile(Path)}, only a single
+   * line is held in memory at any point.
+   *
+   * @param path     the file to be read
+   * @param consumer the consumer to receive each line of the file
+   * @return the number of lines read
+   */
+  public static long forEachLine(Path path, Consumer<String> consumer) {
+    log.info("Streaming lines from file at {}", path);
+    long numLines = 0;
+
+    try (BufferedReader reader = newReader(path)) {
+      String line;
+
+      while ((line = reader.readLine()) != null) {
+        consumer.accept(line);
+        numLines++;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Error reading file " + path, e);
+    }
+
+    return numLines;
+  }
+
+  /**
+   * Open a reader for the file at the given path, transparently
+   * decompressing it if it is compressed.
+   */
+  private static BufferedReader newReader(Path path) throws IOException {
+    return new BufferedReader(new InputStreamReader(newInputStream(path), StandardCharsets.UTF_8.newDecoder()));
+  }
+
+  /**
+   * Open the file at the given path for reading, transparently decompressing
+   * it if it is compressed.
+   *
+   * @param path the file to be read
+   * @return a stream of the (decompressed) bytes of the file
+   */
+  public static InputStream newInputStream(Path path) throws IOException {
+    Compression compression = Compression.detect(path);
+    InputStream in = new BufferedInputStream(Files.newInputStream(path), BUFFER_SIZE);
+
+    try {
+      return compression.decompress(in);
+    } catch (IOException | RuntimeException e) {
+      in.close();
+      throw e;
+    }
+  }
+
   /**
    * Write the given content as a file to the given path.
    *
@@ -84,4 +157,32 @@ public class FileUtils {
       throw new RuntimeException("Error moving file from " + from + " to " + to, e);
     }
   }
+
+  /**
+   * Force the contents of a file to disk.
+   *
+   * @param path the file to sync
+   */
+  public static void syncFile(Path path) {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException("Error syncing file " + path, e);
+    }
+  }
+
+  /**
+   * Force any changes to the entries of a directory (e.g. files created,
+   * renamed or removed) to disk, so that a rename is not lost on a crash
+   * after a later change which depends on it has been forced.
+   *
+   * @param path the directory to sync
+   */
+  public static void syncDirectory(Path path) {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      throw new RuntimeException("Error syncing directory " + path, e);
+    }
+  }
 }
@@ -0,0 +1,133 @@
+package au.com.greater.transaction.utils;
+
+/**
+ * This class estimates how often each key has been seen recently, in a fixed
+ * amount of memory, using a count-min sketch of 4-bit counters.
+ *
+ * Each key is counted in four counters, chosen by different hashes, and its
+ * frequency is the smallest of them, so collisions can only ever overstate a
+ * frequency. Counters saturate at 15, and once the number of increments
+ * reaches ten times the capacity, every counter is halved. Old popularity
+ * therefore fades away, and the estimate tracks the recent frequency of each
+ * key rather than its frequency since the sketch was created.
+ *
+ * Sixteen counters are packed into each long. Each of the four counters of a
+ * key is in a word chosen by its own hash, so an update touches up to four
+ * unrelated words. This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class FrequencySketch {
+
+  private static final long[] SEEDS = {
+      0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+  };
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private static final long ONE_MASK = 0x1111111111111111L;
+
+  private final long[] table;
+
+  private final int tableMask;
+
+  private final int sampleSize;
+
+  private int size;
+
+  /**
+   * @param capacity the number of distinct keys expected to be tracked, e.g.
+   *                 the maximum size of a cache
+   */
+  public FrequencySketch(int capacity) {
+    int length = Integer.highestOneBit(Math.max(4, capacity) - 1) << 1;
+
+    this.table = new long[length];
+    this.tableMask = length - 1;
+    this.sampleSize = (int) Math.min(10L * Math.max(1, capacity), Integer.MAX_VALUE);
+  }
+
+  /**
+   * @param key the key to look up
+   * @return the estimated number of times the key has been seen recently,
+   * from 0 to 15
+   */
+  public int frequency(int key) {
+    int hash = HashUtils.mix(key);
+    int start = (hash & 3) << 2;
+    int frequency = Integer.MAX_VALUE;
+
+    for (int i = 0; i < 4; i++) {
+      int count = (int) ((table[indexOf(hash, i)] >>> ((start + i) << 2)) & 0xfL);
+      frequency = Math.min(frequency, count);
+    }
+
+    return frequency;
+  }
+
+  /**
+   * Count one occurrence of the given key, halving every counter once enough
+   * occurrences have been counted.
+   *
+   * @param key the key which has been seen
+   */
+  public void increment(int key) {
+    int hash = HashUtils.mix(key);
+    int start = (hash & 3) << 2;
+    boolean added = false;
+
+    for (int i = 0; i < 4; i++) {
+      added |= incrementAt(indexOf(hash, i), start + i);
+    }
+
+    if (added && ++size == sampleSize) {
+      reset();
+    }
+  }
+
+  /**
+   * @return the number of bytes of heap used by the counters
+   */
+  public long getMemoryUsage() {
+    return (long) table.length * Long.BYTES;
+  }
+
+  /**
+   * Increment the given counter of the given word, unless it is saturated.
+   */
+  private boolean incrementAt(int i, int counter) {
+    int offset = counter << 2;
+    long mask = 0xfL << offset;
+
+    if ((table[i] & mask) != mask) {
+      table[i] += 1L << offset;
+      return true;
+    }
+
+    return false;
+  }
+
+  /**
+   * The word holding the counter of a key for the given hash function.
+   */
+  private int indexOf(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += h >>> 32;
+    return (int) h & tableMask;
+  }
+
+  /**
+   * Halve every counter. The counters which were odd lose half an increment
+   * each, which is taken off the sample size.
+   */
+  private void reset() {
+    int odd = 0;
+
+    for (int i = 0; i < table.length; i++) {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+
+    size = (size - (odd >>> 2)) >>> 1;
+  }
+}
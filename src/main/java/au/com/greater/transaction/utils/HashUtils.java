@@ -0,0 +1,27 @@
+package au.com.greater.transaction.utils;
+
+/**
+ * Utility class containing static methods for hashing primitive keys in
+ * open-addressing hash tables.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class HashUtils {
+
+  /**
+   * Scramble the bits of the given key (using the MurmurHash3 finaliser), so
+   * that sequential account numbers are spread evenly across a table.
+   *
+   * @param key the key to hash
+   * @return the mixed hash code
+   */
+  public static int mix(int key) {
+    int h = key;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,174 @@
+package au.com.greater.transaction.utils;
+
+import java.util.function.IntConsumer;
+
+/**
+ * An open-addressing hash set of primitive int values, which avoids boxing
+ * each value into an {@link Integer} as a {@code HashSet} would. A zero slot
+ * marks an empty slot, so the value zero is tracked separately.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class IntHashSet implements DistinctCounter {
+
+  private static final float LOAD_FACTOR = 0.7f;
+
+  private int[] table;
+  private int mask;
+  private int size;
+  private boolean containsZero;
+
+  public IntHashSet() {
+    this(16);
+  }
+
+  /**
+   * @param expectedSize the number of values expected to be added
+   */
+  public IntHashSet(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 8) - 1) << 1;
+    table = new int[capacity];
+    mask = capacity - 1;
+  }
+
+  @Override
+  public void add(int value) {
+    if (value == 0) {
+      containsZero = true;
+      return;
+    }
+
+    for (int slot = HashUtils.mix(value) & mask; ; slot = (slot + 1) & mask) {
+      if (table[slot] == value) {
+        return;
+      } else if (table[slot] == 0) {
+        table[slot] = value;
+
+        if (++size > table.length * LOAD_FACTOR) {
+          resize();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * @param value the value to look for
+   * @return true if the value has been added to this set
+   */
+  public boolean contains(int value) {
+    if (value == 0) {
+      return containsZero;
+    }
+
+    for (int slot = HashUtils.mix(value) & mask; ; slot = (slot + 1) & mask) {
+      if (table[slot] == value) {
+        return true;
+      } else if (table[slot] == 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Remove a value from this set. The following slots of its probe sequence
+   * are shifted back, so that no tombstones are left behind.
+   *
+   * @param value the value to remove
+   * @return true if the value was in this set
+   */
+  public boolean remove(int value) {
+    if (value == 0) {
+      boolean removed = containsZero;
+      containsZero = false;
+      return removed;
+    }
+
+    int slot = HashUtils.mix(value) & mask;
+
+    while (table[slot] != value) {
+      if (table[slot] == 0) {
+        return false;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    // Move any later value whose home slot is at or before the gap into it
+    for (int gap = slot, next = (slot + 1) & mask; ; next = (next + 1) & mask) {
+      if (table[next] == 0) {
+        table[gap] = 0;
+        break;
+      }
+
+      int home = HashUtils.mix(table[next]) & mask;
+
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        table[gap] = table[next];
+        gap = next;
+      }
+    }
+
+    size--;
+    return true;
+  }
+
+  /**
+   * @return the number of values in this set
+   */
+  public int size() {
+    return containsZero ? size + 1 : size;
+  }
+
+  @Override
+  public long count() {
+    return size();
+  }
+
+  /**
+   * Pass each value in this set to the given consumer, in no particular
+   * order.
+   *
+   * @param consumer the consumer to receive each value
+   */
+  public void forEach(IntConsumer consumer) {
+    if (containsZero) {
+      consumer.accept(0);
+    }
+
+    for (int value : table) {
+      if (value != 0) {
+        consumer.accept(value);
+      }
+    }
+  }
+
+  @Override
+  public void addAll(DistinctCounter other) {
+    if (!(other instanceof IntHashSet)) {
+      throw new IllegalArgumentException("Cannot merge " + other.getClass().getSimpleName() + " into IntHashSet");
+    }
+
+    ((IntHashSet) other).forEach(this::add);
+  }
+
+  private void resize() {
+    int[] oldTable = table;
+    table = new int[oldTable.length * 2];
+    mask = table.length - 1;
+
+    for (int value : oldTable) {
+      if (value != 0) {
+        int slot = HashUtils.mix(value) & mask;
+
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+
+        table[slot] = value;
+      }
+    }
+  }
+}
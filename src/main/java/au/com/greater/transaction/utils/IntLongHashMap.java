@@ -0,0 +1,206 @@
+package au.com.greater.transaction.utils;
+
+/**
+ * An open-addressing hash map from primitive int keys to primitive long
+ * values, which avoids boxing keys and values as a {@code HashMap} would. It
+ * is intended for accumulating sums per key. A zero key marks an empty slot,
+ * so the key zero is tracked separately.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class IntLongHashMap {
+
+  private static final float LOAD_FACTOR = 0.7f;
+
+  private int[] keys;
+  private long[] values;
+  private int mask;
+  private int size;
+
+  private boolean containsZero;
+  private long zeroValue;
+
+  /**
+   * Receives a single key and value.
+   */
+  @FunctionalInterface
+  public interface IntLongConsumer {
+    void accept(int key, long value);
+  }
+
+  public IntLongHashMap() {
+    this(16);
+  }
+
+  /**
+   * @param expectedSize the number of keys expected to be added
+   */
+  public IntLongHashMap(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 8) - 1) << 1;
+    keys = new int[capacity];
+    values = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * Add the given amount to the value of a key, treating a missing key as
+   * zero.
+   *
+   * @param key    the key to add to
+   * @param amount the amount to add
+   * @return the new value of the key
+   * @throws ArithmeticException if the value would overflow, in which case it
+   *                             is left unchanged
+   */
+  public long add(int key, long amount) {
+    if (key == 0) {
+      zeroValue = Math.addExact(zeroValue, amount);
+      containsZero = true;
+      return zeroValue;
+    }
+
+    for (int slot = HashUtils.mix(key) & mask; ; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return values[slot] = Math.addExact(values[slot], amount);
+      } else if (keys[slot] == 0) {
+        keys[slot] = key;
+        values[slot] = amount;
+
+        if (++size > keys.length * LOAD_FACTOR) {
+          resize();
+        }
+        return amount;
+      }
+    }
+  }
+
+  /**
+   * Set the value of a key, replacing any existing value.
+   *
+   * @param key   the key to set
+   * @param value the new value of the key
+   */
+  public void put(int key, long value) {
+    if (key == 0) {
+      zeroValue = value;
+      containsZero = true;
+      return;
+    }
+
+    for (int slot = HashUtils.mix(key) & mask; ; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        values[slot] = value;
+        return;
+      } else if (keys[slot] == 0) {
+        keys[slot] = key;
+        values[slot] = value;
+
+        if (++size > keys.length * LOAD_FACTOR) {
+          resize();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * @param key the key to look up
+   * @return the value of the key, or zero if it is not present
+   */
+  public long get(int key) {
+    if (key == 0) {
+      return zeroValue;
+    }
+
+    for (int slot = HashUtils.mix(key) & mask; ; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return values[slot];
+      } else if (keys[slot] == 0) {
+        return 0;
+      }
+    }
+  }
+
+  /**
+   * @param key the key to look for
+   * @return true if a value has been added for the key
+   */
+  public boolean containsKey(int key) {
+    if (key == 0) {
+      return containsZero;
+    }
+
+    for (int slot = HashUtils.mix(key) & mask; ; slot = (slot + 1) & mask) {
+      if (keys[slot] == key) {
+        return true;
+      } else if (keys[slot] == 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * @return the number of keys in this map
+   */
+  public int size() {
+    return containsZero ? size + 1 : size;
+  }
+
+  /**
+   * @return the number of bytes held by the tables of this map
+   */
+  public long getMemoryUsage() {
+    return (long) keys.length * (Integer.BYTES + Long.BYTES);
+  }
+
+  /**
+   * Pass each key and value in this map to the given consumer, in no
+   * particular order.
+   *
+   * @param consumer the consumer to receive each key and value
+   */
+  public void forEach(IntLongConsumer consumer) {
+    if (containsZero) {
+      consumer.accept(0, zeroValue);
+    }
+
+    for (int slot = 0; slot < keys.length; slot++) {
+      if (keys[slot] != 0) {
+        consumer.accept(keys[slot], values[slot]);
+      }
+    }
+  }
+
+  /**
+   * Add every value of another map to this one.
+   *
+   * @param other the map to merge into this one
+   * @throws ArithmeticException if any value would overflow
+   */
+  public void addAll(IntLongHashMap other) {
+    other.forEach(this::add);
+  }
+
+  private void resize() {
+    int[] oldKeys = keys;
+    long[] oldValues = values;
+    keys = new int[oldKeys.length * 2];
+    values = new long[oldValues.length * 2];
+    mask = keys.length - 1;
+
+    for (int i = 0; i < oldKeys.length; i++) {
+      if (oldKeys[i] != 0) {
+        int slot = HashUtils.mix(oldKeys[i]) & mask;
+
+        while (keys[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = oldKeys[i];
+        values[slot] = oldValues[i];
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package au.com.greater.transaction.utils;
+
+/**
+ * An open-addressing hash set of primitive long values, which avoids boxing
+ * each value into a {@link Long} as a {@code HashSet} would. A zero slot
+ * marks an empty slot, so the value zero is tracked separately.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class LongHashSet {
+
+  private static final float LOAD_FACTOR = 0.7f;
+
+  private long[] table;
+  private int mask;
+  private int size;
+  private boolean containsZero;
+
+  public LongHashSet() {
+    this(16);
+  }
+
+  /**
+   * @param expectedSize the number of values expected to be added
+   */
+  public LongHashSet(int expectedSize) {
+    int capacity = Integer.highestOneBit(Math.max((int) (expectedSize / LOAD_FACTOR), 8) - 1) << 1;
+    table = new long[capacity];
+    mask = capacity - 1;
+  }
+
+  /**
+   * @param value the value to add
+   */
+  public void add(long value) {
+    if (value == 0) {
+      containsZero = true;
+      return;
+    }
+
+    for (int slot = slotOf(value); ; slot = (slot + 1) & mask) {
+      if (table[slot] == value) {
+        return;
+      } else if (table[slot] == 0) {
+        table[slot] = value;
+
+        if (++size > table.length * LOAD_FACTOR) {
+          resize();
+        }
+        return;
+      }
+    }
+  }
+
+  /**
+   * @param value the value to look for
+   * @return true if the value has been added to this set
+   */
+  public boolean contains(long value) {
+    if (value == 0) {
+      return containsZero;
+    }
+
+    for (int slot = slotOf(value); ; slot = (slot + 1) & mask) {
+      if (table[slot] == value) {
+        return true;
+      } else if (table[slot] == 0) {
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Remove a value from this set. The following slots of its probe sequence
+   * are shifted back, so that no tombstones are left behind.
+   *
+   * @param value the value to remove
+   * @return true if the value was in this set
+   */
+  public boolean remove(long value) {
+    if (value == 0) {
+      boolean removed = containsZero;
+      containsZero = false;
+      return removed;
+    }
+
+    int slot = slotOf(value);
+
+    while (table[slot] != value) {
+      if (table[slot] == 0) {
+        return false;
+      }
+
+      slot = (slot + 1) & mask;
+    }
+
+    // Move any later value whose home slot is at or before the gap into it
+    for (int gap = slot, next = (slot + 1) & mask; ; next = (next + 1) & mask) {
+      if (table[next] == 0) {
+        table[gap] = 0;
+        break;
+      }
+
+      int home = slotOf(table[next]);
+
+      if (((next - home) & mask) >= ((next - gap) & mask)) {
+        table[gap] = table[next];
+        gap = next;
+      }
+    }
+
+    size--;
+    return true;
+  }
+
+  /**
+   * @return the number of values in this set
+   */
+  public int size() {
+    return containsZero ? size + 1 : size;
+  }
+
+  /**
+   * @return the number of bytes of heap used by this set
+   */
+  public long getMemoryUsage() {
+    return (long) table.length * Long.BYTES;
+  }
+
+  private int slotOf(long value) {
+    return HashUtils.mix((int) (value ^ (value >>> 32))) & mask;
+  }
+
+  private void resize() {
+    long[] oldTable = table;
+    table = new long[oldTable.length * 2];
+    mask = table.length - 1;
+
+    for (long value : oldTable) {
+      if (value != 0) {
+        int slot = slotOf(value);
+
+        while (table[slot] != 0) {
+          slot = (slot + 1) & mask;
+        }
+
+        table[slot] = value;
+      }
+    }
+  }
+}
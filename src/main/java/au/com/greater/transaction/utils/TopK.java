@@ -0,0 +1,120 @@
+package au.com.greater.transaction.utils;
+
+/**
+ * A bounded min-heap which keeps the {@literal k} int keys with the highest
+ * scores offered to it, so that the top {@literal k} of {@literal n} values
+ * can be found in O(n log k) time and O(k) memory, without sorting all of
+ * them.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class TopK {
+
+  private final int[] keys;
+  private final long[] scores;
+  private int size;
+
+  /**
+   * @param k the number of keys to keep
+   */
+  public TopK(int k) {
+    keys = new int[k];
+    scores = new long[k];
+  }
+
+  /**
+   * Offer a key, which is kept if its score is among the highest
+   * {@literal k} offered so far.
+   *
+   * @param key   the key
+   * @param score the score to rank the key by
+   */
+  public void offer(int key, long score) {
+    if (size < keys.length) {
+      keys[size] = key;
+      scores[size] = score;
+      siftUp(size++);
+    } else if (size > 0 && score > scores[0]) {
+      // Replace the lowest kept score
+      keys[0] = key;
+      scores[0] = score;
+      siftDown(0, size);
+    }
+  }
+
+  /**
+   * @return the number of keys kept
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Pass each kept key and its score to the given consumer, highest score
+   * first.
+   *
+   * @param consumer the consumer to receive each key and score
+   */
+  public void forEachDescending(IntLongHashMap.IntLongConsumer consumer) {
+    TopK sorted = new TopK(size);
+    for (int i = 0; i < size; i++) {
+      sorted.offer(keys[i], scores[i]);
+    }
+
+    // Repeatedly move the lowest remaining score to the end of the heap
+    for (int end = sorted.size - 1; end > 0; end--) {
+      sorted.swap(0, end);
+      sorted.siftDown(0, end);
+    }
+
+    for (int i = 0; i < sorted.size; i++) {
+      consumer.accept(sorted.keys[i], sorted.scores[i]);
+    }
+  }
+
+  private void siftUp(int index) {
+    while (index > 0) {
+      int parent = (index - 1) / 2;
+
+      if (scores[parent] <= scores[index]) {
+        return;
+      }
+
+      swap(parent, index);
+      index = parent;
+    }
+  }
+
+  private void siftDown(int index, int end) {
+    while (true) {
+      int smallest = index;
+      int left = index * 2 + 1;
+      int right = left + 1;
+
+      if (left < end && scores[left] < scores[smallest]) {
+        smallest = left;
+      }
+      if (right < end && scores[right] < scores[smallest]) {
+        smallest = right;
+      }
+      if (smallest == index) {
+        return;
+      }
+
+      swap(smallest, index);
+      index = smallest;
+    }
+  }
+
+  private void swap(int i, int j) {
+    int key = keys[i];
+    keys[i] = keys[j];
+    keys[j] = key;
+
+    long score = scores[i];
+    scores[i] = scores[j];
+    scores[j] = score;
+  }
+}
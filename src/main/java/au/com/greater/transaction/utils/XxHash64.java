@@ -0,0 +1,163 @@
+package au.com.greater.transaction.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A streaming implementation of the 64-bit xxHash algorithm, a
+ * non-cryptographic hash which runs at several GB/s, so can fingerprint a
+ * file as it is read at almost no extra cost.
+ *
+ * This class is not thread-safe.
+ *
+ * @author Justin Lewis Salmon
+ */
+public class XxHash64 {
+
+  private static final long P1 = 0x9E3779B185EBCA87L;
+  private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long P3 = 0x165667B19E3779F9L;
+  private static final long P4 = 0x85EBCA77C2B2AE63L;
+  private static final long P5 = 0x27D4EB2F165667C5L;
+
+  private static final int STRIPE_SIZE = 32;
+
+  private final long seed;
+
+  private long v1;
+  private long v2;
+  private long v3;
+  private long v4;
+
+  /**
+   * Bytes which did not fill a whole stripe, carried over to the next update
+   */
+  private final ByteBuffer pending = ByteBuffer.allocate(STRIPE_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+  private long length;
+
+  public XxHash64() {
+    this(0);
+  }
+
+  /**
+   * @param seed the seed of the hash
+   */
+  public XxHash64(long seed) {
+    this.seed = seed;
+    this.v1 = seed + P1 + P2;
+    this.v2 = seed + P2;
+    this.v3 = seed;
+    this.v4 = seed - P1;
+  }
+
+  /**
+   * Hash the remaining bytes of the given buffer, without changing its
+   * position.
+   *
+   * @param buffer the bytes to hash
+   * @return this hash
+   */
+  public XxHash64 update(ByteBuffer buffer) {
+    ByteBuffer input = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    length += input.remaining();
+
+    // Complete any partial stripe left by the previous update
+    if (pending.position() > 0) {
+      while (pending.hasRemaining() && input.hasRemaining()) {
+        pending.put(input.get());
+      }
+
+      if (pending.hasRemaining()) {
+        return this;
+      }
+
+      processStripe(pending, 0);
+      pending.clear();
+    }
+
+    int position = input.position();
+    int limit = input.limit();
+
+    for (; limit - position >= STRIPE_SIZE; position += STRIPE_SIZE) {
+      processStripe(input, position);
+    }
+
+    for (; position < limit; position++) {
+      pending.put(input.get(position));
+    }
+
+    return this;
+  }
+
+  /**
+   * @param bytes the bytes to hash
+   * @return this hash
+   */
+  public XxHash64 update(byte[] bytes) {
+    return update(ByteBuffer.wrap(bytes));
+  }
+
+  private void processStripe(ByteBuffer buffer, int position) {
+    v1 = round(v1, buffer.getLong(position));
+    v2 = round(v2, buffer.getLong(position + 8));
+    v3 = round(v3, buffer.getLong(position + 16));
+    v4 = round(v4, buffer.getLong(position + 24));
+  }
+
+  /**
+   * @return the hash of every byte passed to this hash so far
+   */
+  public long digest() {
+    long hash;
+
+    if (length >= STRIPE_SIZE) {
+      hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      hash = mergeRound(hash, v1);
+      hash = mergeRound(hash, v2);
+      hash = mergeRound(hash, v3);
+      hash = mergeRound(hash, v4);
+    } else {
+      hash = seed + P5;
+    }
+
+    hash += length;
+
+    int position = 0;
+    int end = pending.position();
+
+    for (; end - position >= Long.BYTES; position += Long.BYTES) {
+      hash ^= round(0, pending.getLong(position));
+      hash = Long.rotateLeft(hash, 27) * P1 + P4;
+    }
+
+    if (end - position >= Integer.BYTES) {
+      hash ^= (pending.getInt(position) & 0xFFFFFFFFL) * P1;
+      hash = Long.rotateLeft(hash, 23) * P2 + P3;
+      position += Integer.BYTES;
+    }
+
+    for (; position < end; position++) {
+      hash ^= (pending.get(position) & 0xFF) * P5;
+      hash = Long.rotateLeft(hash, 11) * P1;
+    }
+
+    hash ^= hash >>> 33;
+    hash *= P2;
+    hash ^= hash >>> 29;
+    hash *= P3;
+    hash ^= hash >>> 32;
+    return hash;
+  }
+
+  private static long round(long accumulator, long input) {
+    accumulator += input * P2;
+    accumulator = Long.rotateLeft(accumulator, 31);
+    return accumulator * P1;
+  }
+
+  private static long mergeRound(long accumulator, long value) {
+    accumulator ^= round(0, value);
+    return accumulator * P1 + P4;
+  }
+}
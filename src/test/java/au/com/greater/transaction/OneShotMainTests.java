@@ -0,0 +1,90 @@
+package au.com.greater.transaction;
+
+import au.com.greater.transaction.utils.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests for {@link OneShotMain}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class OneShotMainTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path baseDir;
+
+  private Properties config = new Properties();
+
+  @Before
+  public void before() throws IOException {
+    baseDir = folder.getRoot().toPath();
+    Files.createDirectories(baseDir.resolve("pending"));
+    Files.createDirectories(baseDir.resolve("reports"));
+    Files.createDirectories(baseDir.resolve("processed"));
+    Files.write(baseDir.resolve("pending").resolve("finance_customer_transactions-201701010600.csv"),
+        "Customer Account#, Transaction Amount\n1, -10.00\n2, 20.00\n".getBytes());
+
+    config.setProperty("processing.baseDir", baseDir.toString());
+  }
+
+  @Test
+  public void pendingFilesAreProcessed() {
+    assertEquals(OneShotMain.SUCCESS, OneShotMain.run(config));
+
+    assertEquals(0, FileUtils.listFiles(baseDir.resolve("pending")).size());
+    assertEquals(1, FileUtils.listFiles(baseDir.resolve("reports")).size());
+    assertTrue(Files.exists(baseDir.resolve("processed").resolve("finance_customer_transactions-201701010600.csv")));
+  }
+
+  @Test
+  public void balancesArePersistedBetweenRuns() throws IOException {
+    config.setProperty("processing.stateDir", baseDir.resolve("state").toString());
+    assertEquals(OneShotMain.SUCCESS, OneShotMain.run(config));
+
+    // Deliver the same file again, which must not be applied twice
+    Files.copy(baseDir.resolve("processed").resolve("finance_customer_transactions-201701010600.csv"),
+        baseDir.resolve("pending").resolve("finance_customer_transactions-201701010600.csv"));
+    assertEquals(OneShotMain.SUCCESS, OneShotMain.run(config));
+
+    assertTrue(Files.size(baseDir.resolve("state").resolve("processed.ledger")) > 0);
+    assertEquals(0, FileUtils.listFiles(baseDir.resolve("pending")).size());
+  }
+
+  @Test
+  public void missingDirectoriesAreInvalid() {
+    assertEquals(OneShotMain.INVALID_CONFIGURATION, OneShotMain.run(new Properties()));
+  }
+
+  @Test
+  public void invalidPropertiesAreInvalid() {
+    config.setProperty("processing.accountStore", "unknown");
+    assertEquals(OneShotMain.INVALID_CONFIGURATION, OneShotMain.run(config));
+
+    config.setProperty("processing.accountStore", "primitive");
+    config.setProperty("processing.ioThreads", "four");
+    assertEquals(OneShotMain.INVALID_CONFIGURATION, OneShotMain.run(config));
+  }
+
+  @Test
+  public void processingFailureIsReported() {
+    config.setProperty("processing.reportsDir", "/non-existent");
+
+    assertEquals(OneShotMain.PROCESSING_FAILED, OneShotMain.run(config));
+  }
+}
@@ -0,0 +1,107 @@
+package au.com.greater.transaction;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.utils.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Integration tests for {@link PendingDirectoryWatcher}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class PendingDirectoryWatcherTests {
+
+  @Rule
+  public TemporaryFolder pendingDir = new TemporaryFolder();
+  @Rule
+  public TemporaryFolder reportsDir = new TemporaryFolder();
+  @Rule
+  public TemporaryFolder archiveDir = new TemporaryFolder();
+
+  private CustomerAccountService accountService = new CustomerAccountService();
+
+  private PendingDirectoryWatcher watcher;
+
+  @Before
+  public void before() throws IOException {
+    TransactionProcessor processor = new TransactionProcessor(accountService);
+    processor.setPendingDir(pendingDir.getRoot().toString());
+    processor.setReportsDir(reportsDir.getRoot().toString());
+    processor.setArchiveDir(archiveDir.getRoot().toString());
+
+    // A long poll interval, so that files can only be found via watch events
+    // once the watcher has started
+    watcher = new PendingDirectoryWatcher(processor, pendingDir.getRoot().toString(), 200, 600000);
+  }
+
+  private Path write(String filename, String contents) throws IOException {
+    return Files.write(pendingDir.getRoot().toPath().resolve(filename), contents.getBytes());
+  }
+
+  private long numArchived() {
+    return FileUtils.listFiles(archiveDir.getRoot().toPath()).stream()
+        .filter(path -> path.toString().endsWith(".csv"))
+        .count();
+  }
+
+  private void awaitArchived(int numFiles) throws InterruptedException {
+    for (int i = 0; i < 100 && numArchived() < numFiles; i++) {
+      Thread.sleep(100);
+    }
+
+    assertEquals(numFiles, numArchived());
+  }
+
+  @Test
+  public void existingFilesAreProcessedOnStartup() throws Exception {
+    write("finance_customer_transactions-1.csv", "header\n1, 100.00\n");
+    watcher.start();
+
+    awaitArchived(1);
+    assertEquals(-10000L, accountService.getAccountBalanceCents(1));
+  }
+
+  @Test
+  public void newFilesAreProcessedOnArrival() throws Exception {
+    watcher.start();
+    write("finance_customer_transactions-1.csv", "header\n1, 100.00\n");
+    write("finance_customer_transactions-2.csv", "header\n2, -5.00\n");
+
+    awaitArchived(2);
+    assertEquals(1, FileUtils.listFiles(reportsDir.getRoot().toPath()).stream()
+        .filter(path -> path.getFileName().toString().endsWith("-2.txt")).count());
+    assertEquals(500L, accountService.getAccountBalanceCents(2));
+  }
+
+  @Test
+  public void partialFilesAreProcessedOnceRenamed() throws Exception {
+    watcher.start();
+    Path partial = write("finance_customer_transactions-1.csv.part", "header\n1, 100.00\n");
+
+    Thread.sleep(1000);
+    assertTrue(Files.exists(partial));
+    assertEquals(0, accountService.getNumAccounts());
+
+    Files.move(partial, pendingDir.getRoot().toPath().resolve("finance_customer_transactions-1.csv"));
+    awaitArchived(1);
+  }
+
+  @After
+  public void after() throws InterruptedException {
+    watcher.stop();
+  }
+}
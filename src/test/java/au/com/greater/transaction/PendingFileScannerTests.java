@@ -0,0 +1,92 @@
+package au.com.greater.transaction;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link PendingFileScanner}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class PendingFileScannerTests {
+
+  @Rule
+  public TemporaryFolder pendingDir = new TemporaryFolder();
+
+  private static final long DELIVERED = 1_500_000_000_000L;
+
+  private Path write(String filename, long lastModified) throws IOException {
+    Path path = Files.write(pendingDir.getRoot().toPath().resolve(filename), "header\n".getBytes());
+    return Files.setLastModifiedTime(path, FileTime.fromMillis(lastModified));
+  }
+
+  private List<String> scan(long quietPeriod, int maxFiles) {
+    return new PendingFileScanner(pendingDir.getRoot().toPath(), quietPeriod, maxFiles).scan().stream()
+        .map(path -> path.getFileName().toString())
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void filesAreOrderedByDeliveryTime() throws IOException {
+    write("c.csv", DELIVERED);
+    write("a.csv", DELIVERED + 2000);
+    write("b.csv", DELIVERED + 1000);
+    write("d.csv", DELIVERED + 1000);
+
+    assertEquals(Arrays.asList("c.csv", "b.csv", "d.csv", "a.csv"), scan(0, 100));
+  }
+
+  @Test
+  public void onlyTheOldestFilesAreReturned() throws IOException {
+    for (int i = 0; i < 100; i++) {
+      write(String.format("%03d.csv", 99 - i), DELIVERED + i);
+    }
+
+    assertEquals(Arrays.asList("099.csv", "098.csv", "097.csv"), scan(0, 3));
+    assertEquals(100, scan(0, 1000).size());
+  }
+
+  @Test
+  public void partiallyWrittenFilesAreSkipped() throws IOException {
+    write("a.csv", DELIVERED);
+    write("b.csv.tmp", DELIVERED);
+    write("c.csv.part", DELIVERED);
+    write(".d.csv", DELIVERED);
+    write("e.csv", System.currentTimeMillis());
+    pendingDir.newFolder("f");
+
+    assertEquals(Arrays.asList("a.csv"), scan(60000, 100));
+    assertEquals(Arrays.asList("a.csv", "e.csv"), scan(0, 100));
+  }
+
+  @Test
+  public void partialFilenames() {
+    assertTrue(PendingFileScanner.isPartial(".a.csv"));
+    assertTrue(PendingFileScanner.isPartial("a.csv.tmp"));
+    assertTrue(PendingFileScanner.isPartial("a.csv.part"));
+    assertFalse(PendingFileScanner.isPartial("a.csv"));
+    assertFalse(PendingFileScanner.isPartial("a.csv.gz"));
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void scanningMissingDirectoryThrowsException() {
+    new PendingFileScanner(Paths.get("non-existent/"), 0, 100).scan();
+  }
+}
@@ -0,0 +1,155 @@
+package au.com.greater.transaction;
+
+import au.com.greater.transaction.metrics.ProcessingMetrics;
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.utils.Compression;
+import au.com.greater.transaction.utils.FileUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link ProcessedFileWriter}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class ProcessedFileWriterTests {
+
+  @Rule
+  public TemporaryFolder pendingDir = new TemporaryFolder();
+  @Rule
+  public TemporaryFolder reportsDir = new TemporaryFolder();
+  @Rule
+  public TemporaryFolder archiveDir = new TemporaryFolder();
+
+  private ProcessedFileWriter writer;
+
+  private ProcessedFileWriter writer(Path reportsDir) {
+    return writer(reportsDir, Compression.NONE);
+  }
+
+  private ProcessedFileWriter writer(Path reportsDir, Compression archiveCompression) {
+    writer = new ProcessedFileWriter(reportsDir, archiveDir.getRoot().toPath(), archiveCompression, 2,
+        new ProcessingMetrics());
+    return writer;
+  }
+
+  private Path pending(String datetime) throws IOException {
+    return Files.write(pendingDir.getRoot().toPath().resolve("finance_customer_transactions-" + datetime + ".csv"),
+        "header\n1, 1.00\n".getBytes());
+  }
+
+  private TransactionFile columnar(Path path) {
+    TransactionFile file = new TransactionFile(path);
+    file.addTransaction(new Transaction(1, 1.0));
+    return file;
+  }
+
+  @Test
+  public void filesAreReportedAndArchived() throws Exception {
+    writer(reportsDir.getRoot().toPath());
+    List<Future<Void>> results = new ArrayList<>();
+
+    for (int i = 0; i < 20; i++) {
+      Path path = pending(Integer.toString(i));
+      results.add(writer.submit(path, "report " + i, i % 2 == 0 ? columnar(path) : null));
+    }
+
+    for (Future<Void> result : results) {
+      result.get();
+    }
+
+    assertEquals(0, FileUtils.listFiles(pendingDir.getRoot().toPath()).size());
+    assertEquals(20, FileUtils.listFiles(reportsDir.getRoot().toPath()).size());
+    assertEquals(30, FileUtils.listFiles(archiveDir.getRoot().toPath()).size());
+    assertEquals("report 7", new String(Files.readAllBytes(
+        reportsDir.getRoot().toPath().resolve("finance_customer_transactions_report-7.txt"))));
+  }
+
+  @Test
+  public void filesAreCompressedWhenArchived() throws Exception {
+    writer(reportsDir.getRoot().toPath(), Compression.GZIP);
+    Path path = pending("1");
+
+    writer.submit(path, "report", null).get();
+
+    Path archived = archiveDir.getRoot().toPath().resolve("finance_customer_transactions-1.csv.gz");
+    assertFalse(Files.exists(path));
+    assertEquals(Collections.singletonList(archived), FileUtils.listFiles(archiveDir.getRoot().toPath()));
+    assertEquals(Compression.GZIP, Compression.detect(archived));
+    assertEquals(Arrays.asList("header", "1, 1.00"), FileUtils.readLinesFromFile(archived));
+  }
+
+  @Test
+  public void compressedFilesAreNamedWithoutExtension() throws Exception {
+    writer(reportsDir.getRoot().toPath(), Compression.GZIP);
+    Path path = pendingDir.getRoot().toPath().resolve("finance_customer_transactions-1.csv.zst");
+
+    try (OutputStream out = Compression.ZSTD.compress(Files.newOutputStream(path))) {
+      out.write("header\n1, 1.00\n".getBytes());
+    }
+
+    writer.submit(path, "report", columnar(path)).get();
+
+    // Already compressed files are archived as they are
+    assertTrue(Files.exists(reportsDir.getRoot().toPath().resolve("finance_customer_transactions_report-1.txt")));
+    assertTrue(Files.exists(archiveDir.getRoot().toPath().resolve("finance_customer_transactions-1.csv.zst")));
+    assertTrue(Files.exists(archiveDir.getRoot().toPath().resolve("finance_customer_transactions-1.txc")));
+  }
+
+  @Test
+  public void failedReportLeavesFilePending() throws Exception {
+    writer(reportsDir.getRoot().toPath().resolve("non-existent"));
+    Path path = pending("1");
+
+    try {
+      writer.submit(path, "report", columnar(path)).get();
+      fail("Expected report failure to be thrown");
+    } catch (ExecutionException e) {
+      assertTrue(Files.exists(path));
+      assertEquals(0, FileUtils.listFiles(archiveDir.getRoot().toPath()).size());
+    }
+  }
+
+  @Test
+  public void failedArchiveRemovesOutputs() throws Exception {
+    writer(reportsDir.getRoot().toPath());
+
+    // The file has disappeared by the time it is archived
+    Path path = pendingDir.getRoot().toPath().resolve("finance_customer_transactions-1.csv");
+
+    try {
+      writer.submit(path, "report", columnar(path)).get();
+      fail("Expected archive failure to be thrown");
+    } catch (ExecutionException e) {
+      assertEquals(0, FileUtils.listFiles(reportsDir.getRoot().toPath()).size());
+      assertEquals(0, FileUtils.listFiles(archiveDir.getRoot().toPath()).size());
+    }
+  }
+
+  @After
+  public void after() {
+    writer.close();
+  }
+}
@@ -1,7 +1,15 @@
 package au.com.greater.transaction;
 
 import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.history.HistoryEntry;
+import au.com.greater.transaction.history.TransactionHistoryStore;
+import au.com.greater.transaction.metrics.ProcessingMetrics;
+import au.com.greater.transaction.parser.ColumnarTransactionFormat;
+import au.com.greater.transaction.persistence.AccountPersistence;
+import au.com.greater.transaction.query.BalanceQueryService;
+import au.com.greater.transaction.shard.ShardCoordinator;
 import au.com.greater.transaction.utils.FileUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
@@ -12,12 +20,18 @@ import org.junit.runners.JUnit4;
 import org.springframework.core.io.ClassPathResource;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
 import java.util.List;
+import java.util.OptionalLong;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Integration tests for {@link TransactionProcessor}
@@ -27,7 +41,9 @@ import static org.junit.Assert.assertTrue;
 @RunWith(JUnit4.class)
 public class TransactionProcessorTests {
 
-  private TransactionProcessor processor = new TransactionProcessor(new CustomerAccountService());
+  private CustomerAccountService accountService = new CustomerAccountService();
+
+  private TransactionProcessor processor = new TransactionProcessor(accountService);
 
   private Path pendingDir;
 
@@ -35,6 +51,8 @@ public class TransactionProcessorTests {
   public TemporaryFolder reportsDir = new TemporaryFolder(Paths.get("/tmp").toFile());
   @Rule
   public TemporaryFolder archiveDir = new TemporaryFolder(Paths.get("/tmp").toFile());
+  @Rule
+  public TemporaryFolder stateFolder = new TemporaryFolder();
 
   @Before
   public void before() throws IOException {
@@ -61,18 +79,281 @@ public class TransactionProcessorTests {
     }
 
     // There should be the same number of archived filed as the original
-    // amount of pending files
-    List<Path> archive = FileUtils.listFiles(archiveDir.getRoot().toPath());
-    assertEquals(pending.size(), archive.size());
+    // amount of pending files, each with a columnar copy
+    assertEquals(pending.size(), archivedFiles(".csv").size());
+    assertEquals(pending.size(), archivedFiles(ColumnarTransactionFormat.EXTENSION).size());
 
     // There should be no more pending files
     assertEquals(0, FileUtils.listFiles(pendingDir).size());
   }
 
+  @Test
+  public void pipelineDepthOfOne() {
+    List<Path> pending = FileUtils.listFiles(pendingDir);
+
+    processor.setPipelineDepth(1);
+    processor.execute();
+
+    assertEquals(pending.size(), FileUtils.listFiles(reportsDir.getRoot().toPath()).size());
+    assertEquals(pending.size(), archivedFiles(".csv").size());
+  }
+
+  @Test
+  public void reportFailureStopsProcessing() {
+    List<Path> pending = FileUtils.listFiles(pendingDir);
+    processor.setReportsDir("/non-existent");
+
+    try {
+      processor.execute();
+      fail("Expected report failure to be thrown");
+    } catch (RuntimeException e) {
+      // Nothing should have been archived
+      assertEquals(pending.size(), FileUtils.listFiles(pendingDir).size());
+    }
+  }
+
+  @Test
+  public void filesAppliedBeforeCrashAreNotReapplied() throws IOException {
+    String stateDir = stateFolder.getRoot().toString();
+    AccountPersistence persistence = new AccountPersistence(accountService, stateDir, 100);
+    persistence.recover();
+    processor.setPersistence(persistence);
+    processor.setReportsDir("/non-existent");
+
+    try {
+      processor.execute();
+      fail("Expected report failure to be thrown");
+    } catch (RuntimeException e) {
+      persistence.close();
+    }
+
+    // Restart, recovering the balances applied before the failure
+    CustomerAccountService recovered = new CustomerAccountService();
+    persistence = new AccountPersistence(recovered, stateDir, 100);
+    persistence.recover();
+
+    TransactionProcessor restarted = new TransactionProcessor(recovered);
+    restarted.setPersistence(persistence);
+    restarted.setPendingDir(pendingDir.toString());
+    restarted.setReportsDir(reportsDir.getRoot().toString());
+    restarted.setArchiveDir(archiveDir.getRoot().toString());
+    restarted.execute();
+    persistence.close();
+
+    assertEquals(0, FileUtils.listFiles(pendingDir).size());
+    assertEquals(-(4627.22 + 4627.0), recovered.getAccountBalance(938490885), 0.001);
+  }
+
+  @Test
+  public void stagesAreTimed() {
+    List<Path> pending = FileUtils.listFiles(pendingDir);
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    processor.setMetrics(new ProcessingMetrics(registry));
+
+    processor.execute();
+
+    for (String stage : new String[]{"parse", "report", "archive"}) {
+      assertEquals(pending.size(), registry.get("transactions.stage").tag("stage", stage).timer().count());
+    }
+
+    // The pending files are all small, so they are applied together
+    assertEquals(1, registry.get("transactions.stage").tag("stage", "apply").timer().count());
+
+    double skipped = registry.get("transactions.lines.skipped").counter().count();
+    assertTrue(skipped > 0);
+    assertTrue(registry.get("transactions.lines").counter().count() > skipped);
+    assertTrue(registry.get("transactions.bytes.read").counter().count() > 0);
+  }
+
+  @Test
+  public void archivedFilesCanBeReplayed() {
+    processor.execute();
+
+    CustomerAccountService replayed = new CustomerAccountService();
+    new TransactionProcessor(replayed).replay(archivedFiles(ColumnarTransactionFormat.EXTENSION));
+
+    assertTrue(accountService.getNumAccounts() > 0);
+    assertEquals(accountService.getAccounts().keySet(), replayed.getAccounts().keySet());
+    accountService.forEachBalance((accountNumber, balance) ->
+        assertEquals(balance, replayed.getAccountBalanceCents(accountNumber)));
+  }
+
+  @Test
+  public void columnarArchivingCanBeDisabled() {
+    processor.setArchiveColumnar(false);
+    processor.execute();
+
+    assertEquals(0, archivedFiles(ColumnarTransactionFormat.EXTENSION).size());
+  }
+
+  @Test
+  public void balancesArePublishedAfterEachFile() {
+    BalanceQueryService balanceQueries = new BalanceQueryService(accountService);
+    processor.setBalanceQueries(balanceQueries);
+    int numFiles = FileUtils.listFiles(pendingDir).size();
+
+    processor.setCoalesceMaxFiles(1);
+    processor.execute();
+
+    assertEquals(numFiles, balanceQueries.getVersion());
+    assertEquals(accountService.getNumAccounts(), balanceQueries.getSnapshot().size());
+    accountService.forEachBalance((accountNumber, balance) ->
+        assertEquals(OptionalLong.of(balance), balanceQueries.getBalanceCents(accountNumber)));
+  }
+
+  @Test
+  public void appliedFilesAreAddedToHistory() {
+    TransactionHistoryStore history = new TransactionHistoryStore(stateFolder.getRoot().toString(), 32, 4);
+    history.open();
+    processor.setHistory(history);
+
+    processor.execute();
+    history.close();
+
+    String file = "finance_customer_transactions-corrupt_lines.csv";
+    assertEquals(Arrays.asList(new HistoryEntry(file, 462722), new HistoryEntry(file, 462700)),
+        history.getHistory(938490885));
+  }
+
+  /**
+   * Process the given small files, each of which credits account 1, from a
+   * pending directory of their own.
+   */
+  private void executeSmallFiles(String... amounts) throws IOException {
+    pendingDir = stateFolder.newFolder("pending").toPath();
+    processor.setPendingDir(pendingDir.toString());
+
+    for (int i = 0; i < amounts.length; i++) {
+      Path path = pendingDir.resolve("finance_customer_transactions-small" + i + ".csv");
+      Files.write(path, ("header\n1, " + amounts[i] + "\n").getBytes());
+      Files.setLastModifiedTime(path, FileTime.fromMillis(1_500_000_000_000L + i));
+    }
+
+    processor.execute();
+
+    assertEquals(amounts.length, FileUtils.listFiles(reportsDir.getRoot().toPath()).size());
+    assertEquals(amounts.length, archivedFiles(".csv").size());
+    assertEquals(0, FileUtils.listFiles(pendingDir).size());
+  }
+
+  @Test
+  public void smallFilesAreAppliedTogether() throws IOException {
+    BalanceQueryService balanceQueries = new BalanceQueryService(accountService);
+    processor.setBalanceQueries(balanceQueries);
+
+    executeSmallFiles("1.00", "2.00", "3.00", "4.00", "5.00");
+
+    assertEquals(1, balanceQueries.getVersion());
+    assertEquals(-1500L, accountService.getAccountBalanceCents(1));
+    assertEquals(OptionalLong.of(-1500L), balanceQueries.getBalanceCents(1));
+  }
+
+  @Test
+  public void coalescingIsLimitedByFileCount() throws IOException {
+    BalanceQueryService balanceQueries = new BalanceQueryService(accountService);
+    processor.setBalanceQueries(balanceQueries);
+    processor.setCoalesceMaxFiles(2);
+
+    executeSmallFiles("1.00", "2.00", "3.00", "4.00", "5.00");
+
+    assertEquals(3, balanceQueries.getVersion());
+    assertEquals(-1500L, accountService.getAccountBalanceCents(1));
+  }
+
+  @Test
+  public void coalescingIsLimitedBySize() throws IOException {
+    BalanceQueryService balanceQueries = new BalanceQueryService(accountService);
+    processor.setBalanceQueries(balanceQueries);
+
+    // Each file is 15 bytes, so only two fit in a group
+    processor.setCoalesceMaxBytes(40);
+
+    executeSmallFiles("1.00", "2.00", "3.00", "4.00", "5.00");
+
+    assertEquals(3, balanceQueries.getVersion());
+    assertEquals(-1500L, accountService.getAccountBalanceCents(1));
+  }
+
+  @Test
+  public void duplicateFilesInOneGroupAreAppliedOnce() throws IOException {
+    AccountPersistence persistence = new AccountPersistence(accountService, stateFolder.newFolder("state").toString(), 100);
+    persistence.recover();
+    processor.setPersistence(persistence);
+
+    executeSmallFiles("1.00", "2.00", "1.00");
+    persistence.close();
+
+    assertEquals(-300L, accountService.getAccountBalanceCents(1));
+  }
+
+  @Test
+  public void backlogLargerThanOneScanIsCleared() throws IOException {
+    processor.setScanMaxFiles(2);
+    processor.setCoalesceMaxFiles(1);
+
+    executeSmallFiles("1.00", "2.00", "3.00", "4.00", "5.00");
+
+    assertEquals(-1500L, accountService.getAccountBalanceCents(1));
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void shardingCantBeCombinedWithPersistence() {
+    processor.setShards(new ShardCoordinator(stateFolder.getRoot().toPath().resolve("shards").toString(), 2));
+    processor.setPersistence(new AccountPersistence(accountService, stateFolder.getRoot().toString(), 100));
+    processor.checkConfiguration();
+  }
+
+  @Test
+  public void shardClaimsAreReleasedAsFilesAreArchived() throws IOException {
+    Path claimsDir = stateFolder.getRoot().toPath().resolve("shards").resolve("claims");
+    int[] maxClaims = {0};
+
+    // Count the claims still held whenever another file is claimed
+    processor.setShards(new ShardCoordinator(claimsDir.getParent().toString(), 1) {
+      @Override
+      public Claim claim(Path path) {
+        if (Files.isDirectory(claimsDir)) {
+          maxClaims[0] = Math.max(maxClaims[0], FileUtils.listFiles(claimsDir).size());
+        }
+
+        return super.claim(path);
+      }
+    });
+    processor.setCoalesceMaxFiles(1);
+    processor.setPipelineDepth(1);
+    processor.setIoQueueDepth(1);
+
+    String[] amounts = new String[20];
+    Arrays.fill(amounts, "1.00");
+    executeSmallFiles(amounts);
+
+    assertTrue(maxClaims[0] < 5);
+    assertEquals(0, FileUtils.listFiles(claimsDir).size());
+  }
+
+  @Test
+  public void filesWhichHaveGoneAreSkipped() throws IOException {
+    pendingDir = stateFolder.newFolder("pending").toPath();
+    Path path = Files.write(pendingDir.resolve("finance_customer_transactions-1.csv"), "header\n1, 1.00\n".getBytes());
+
+    // The watcher may find a file just before a scheduled run archives it
+    processor.execute(Arrays.asList(pendingDir.resolve("finance_customer_transactions-0.csv"), path));
+
+    assertEquals(1, archivedFiles(".csv").size());
+    assertEquals(-100L, accountService.getAccountBalanceCents(1));
+  }
+
+  private List<Path> archivedFiles(String extension) {
+    return FileUtils.listFiles(archiveDir.getRoot().toPath()).stream()
+        .filter(path -> path.toString().endsWith(extension))
+        .sorted()
+        .collect(Collectors.toList());
+  }
+
   @After
   public void after() {
     // Move the archived files back to the pending directory
-    for (Path path : FileUtils.listFiles(archiveDir.getRoot().toPath())) {
+    for (Path path : archivedFiles(".csv")) {
       FileUtils.moveFile(path, Paths.get(pendingDir.toString(), path.getFileName().toString()));
     }
   }
@@ -0,0 +1,282 @@
+package au.com.greater.transaction.account;
+
+import au.com.greater.transaction.utils.IntLongHashMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link CachingAccountStore}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class CachingAccountStoreTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private PrimitiveAccountStore backing = new PrimitiveAccountStore(false);
+
+  @Test
+  public void debitsAndCredits() {
+    CachingAccountStore store = new CachingAccountStore(backing, 16, 4);
+
+    assertEquals(10000, store.apply(1, -10000));
+    assertEquals(7000, store.apply(1, 3000));
+    assertEquals(-5000, store.apply(2, 5000));
+    store.setBalance(3, 42);
+
+    assertEquals(7000, store.getBalance(1));
+    assertEquals(-5000, store.getBalance(2));
+    assertEquals(42, store.getBalance(3));
+    assertFalse(store.contains(4));
+    assertEquals(0, store.getBalance(4));
+    assertEquals(3, store.size());
+
+    // Nothing has been evicted, so nothing has been written back yet
+    assertEquals(0, backing.size());
+  }
+
+  @Test
+  public void balancesAreReadThrough() {
+    backing.setBalance(1, 500);
+    CachingAccountStore store = new CachingAccountStore(backing, 16, 4);
+
+    assertTrue(store.contains(1));
+    assertEquals(600, store.apply(1, -100));
+    assertEquals(1, store.getMissCount());
+    assertEquals(1, store.getHitCount());
+    assertEquals(1, store.size());
+    assertEquals(500, backing.getBalance(1));
+  }
+
+  @Test
+  public void balancesSurviveEviction() {
+    CachingAccountStore store = new CachingAccountStore(backing, 64, 16);
+    Random random = new Random(42);
+    Map<Integer, Long> expected = new HashMap<>();
+
+    for (int i = 0; i < 20000; i++) {
+      int accountNumber = random.nextInt(1000);
+      long amount = random.nextInt(10000) - 5000;
+
+      if (random.nextInt(10) == 0) {
+        assertEquals(expected.containsKey(accountNumber), store.contains(accountNumber));
+        assertEquals(expected.getOrDefault(accountNumber, 0L).longValue(), store.getBalance(accountNumber));
+      } else {
+        store.apply(accountNumber, amount);
+        expected.merge(accountNumber, -amount, Long::sum);
+      }
+
+      if (i % 1000 == 0) {
+        assertEquals(expected.size(), store.size());
+      }
+    }
+
+    assertTrue(store.getEvictionCount() > 0);
+    assertTrue(store.getFlushCount() > 0);
+    assertEquals(64, store.getCachedCount());
+    assertEquals(expected.size(), store.size());
+
+    Map<Integer, Long> balances = new HashMap<>();
+    store.forEach(balances::put);
+    assertEquals(expected, balances);
+
+    // Every balance has now been written back
+    for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+      assertEquals((long) entry.getValue(), backing.getBalance(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void evictedBalancesAreWrittenBackInBatches() {
+    CachingAccountStore store = new CachingAccountStore(backing, 100, 50);
+
+    for (int accountNumber = 0; accountNumber < 1000; accountNumber++) {
+      store.apply(accountNumber, -1);
+    }
+
+    // 900 accounts were evicted, in batches of 50
+    assertEquals(900, store.getEvictionCount());
+    assertEquals(18, store.getFlushCount());
+    assertEquals(900, backing.size());
+    assertEquals(1000, store.size());
+
+    store.flush();
+    assertEquals(1000, backing.size());
+    assertEquals(19, store.getFlushCount());
+  }
+
+  @Test
+  public void frequentlyUsedAccountsStayCached() {
+    CachingAccountStore store = new CachingAccountStore(backing, 1000, 1000);
+
+    // Each round uses a small set of hot accounts, then scans over accounts
+    // which are never used again, which would flush a plain LRU cache every
+    // round. Until the hot accounts have been seen a few times, colliding
+    // counters can make some cold accounts look as popular.
+    int cold = 1000;
+
+    for (int round = 0; round < 20; round++) {
+      long hits = store.getHitCount();
+
+      for (int hot = 0; hot < 100; hot++) {
+        store.apply(hot, -1);
+      }
+
+      if (round > 0) {
+        assertTrue(store.getHitCount() - hits >= 80);
+      }
+
+      if (round >= 10) {
+        assertEquals(100, store.getHitCount() - hits);
+      }
+
+      for (int i = 0; i < 5000; i++) {
+        store.apply(cold++, -1);
+      }
+    }
+
+    assertEquals(20, store.getBalance(42));
+    assertEquals(100 + 5000 * 20, store.size());
+  }
+
+  @Test
+  public void overflowLeavesBalanceUnchanged() {
+    CachingAccountStore store = new CachingAccountStore(backing, 16, 4);
+    store.apply(1, -Long.MAX_VALUE);
+
+    try {
+      store.apply(1, -1);
+      fail("Expected overflow");
+    } catch (ArithmeticException e) {
+      assertEquals(Long.MAX_VALUE, store.getBalance(1));
+    }
+
+    try {
+      store.apply(2, Long.MIN_VALUE);
+      fail("Expected overflow");
+    } catch (ArithmeticException e) {
+      assertFalse(store.contains(2));
+    }
+  }
+
+  @Test
+  public void batchesAreAppliedThroughTheCache() {
+    CachingAccountStore store = new CachingAccountStore(backing, 16, 4);
+    store.setBalance(1, Long.MAX_VALUE);
+
+    IntLongHashMap amounts = new IntLongHashMap();
+    IntStream.range(1, 100).forEach(accountNumber -> amounts.add(accountNumber, -1));
+
+    int[] rejected = new int[1];
+    store.applyAll(amounts, (accountNumber, amount) -> rejected[0]++);
+
+    assertEquals(1, rejected[0]);
+    assertEquals(Long.MAX_VALUE, store.getBalance(1));
+    assertEquals(1, store.getBalance(99));
+    assertEquals(99, store.size());
+  }
+
+  @Test
+  public void batchMissesAreReadTogether() {
+    SpillingAccountStore spilling = new SpillingAccountStore(folder.getRoot().toPath(), 16 * 1024, 64);
+    IntLongHashMap balances = new IntLongHashMap();
+    IntStream.range(0, 10000).forEach(accountNumber -> balances.put(accountNumber, accountNumber));
+    spilling.setAll(balances);
+
+    CachingAccountStore store = new CachingAccountStore(spilling, 100, 1 << 20);
+    store.apply(42, -1);
+
+    IntLongHashMap amounts = new IntLongHashMap();
+    IntStream.range(0, 10000).forEach(accountNumber -> amounts.add(accountNumber, -1));
+    amounts.add(20000, -1);
+
+    long loads = spilling.getLoadCount();
+    store.applyAll(amounts, (accountNumber, amount) -> fail("Unexpected rejection"));
+
+    // Each partition is read at most once for the whole batch
+    assertTrue(spilling.getLoadCount() - loads <= 64);
+    assertEquals(1, store.getHitCount());
+    assertEquals(1 + 10000, store.getMissCount());
+
+    store.flush();
+    assertEquals(10001, spilling.size());
+    assertEquals(44, spilling.getBalance(42));
+    assertEquals(9000, spilling.getBalance(8999));
+    assertEquals(1, spilling.getBalance(20000));
+  }
+
+  @Test
+  public void balanceQueriesAreCountedOnce() {
+    backing.setBalance(1, 500);
+    CachingAccountStore store = new CachingAccountStore(backing, 16, 4);
+    CustomerAccountService accountService = new CustomerAccountService(store);
+
+    assertEquals(500, accountService.getAccountBalanceCents(1));
+    assertEquals(OptionalLong.of(500), accountService.findAccountBalanceCents(1));
+    assertEquals(OptionalLong.empty(), accountService.findAccountBalanceCents(2));
+
+    assertEquals(1, store.getHitCount());
+    assertEquals(2, store.getMissCount());
+  }
+
+  @Test
+  public void cachesSpillingStore() {
+    SpillingAccountStore spilling = new SpillingAccountStore(folder.getRoot().toPath(), 16 * 1024, 64);
+    CachingAccountStore store = new CachingAccountStore(spilling, 256, 1024);
+    Map<Integer, Long> expected = new HashMap<>();
+
+    for (int i = 0; i < 50000; i++) {
+      // Most transactions are against a few accounts, and the rest are
+      // against accounts used only once
+      int accountNumber = i % 4 == 0 ? 100 + i / 4 : i % 50;
+      store.apply(accountNumber, -1);
+      expected.merge(accountNumber, 1L, Long::sum);
+    }
+
+    assertTrue(store.getHitCount() > 37000);
+    assertTrue(spilling.getSpillCount() > 0);
+    assertEquals(expected.size(), store.size());
+
+    store.flush();
+    assertEquals(expected.size(), spilling.size());
+    expected.forEach((accountNumber, balance) -> assertEquals((long) balance, spilling.getBalance(accountNumber)));
+  }
+
+  @Test
+  public void concurrentUpdatesAreNotLost() {
+    CachingAccountStore store = new CachingAccountStore(backing, 1000, 100);
+    IntStream.range(0, 100000).parallel().forEach(i -> store.apply(i % 5000, -1));
+
+    assertEquals(5000, store.size());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(20, store.getBalance(i));
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void capacityMustHoldTwoAccounts() {
+    new CachingAccountStore(backing, 1, 4);
+  }
+
+  @Test
+  public void configurationWrapsStore() {
+    assertTrue(AccountStoreConfiguration.create("primitive", "", 1, 100, 10) instanceof CachingAccountStore);
+    assertTrue(AccountStoreConfiguration.create("primitive", "", 1, 0, 10) instanceof PrimitiveAccountStore);
+  }
+}
@@ -1,11 +1,19 @@
 package au.com.greater.transaction.account;
 
 import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Justin Lewis Salmon
@@ -31,4 +39,105 @@ public class CustomerAccountServiceTests {
   public void unknownAccountThrowsException() {
     accountService.getAccountBalance(-1);
   }
+
+  @Test
+  public void concurrentUpdatesAreNotLost() {
+    List<TransactionFile> files = new ArrayList<>();
+
+    for (int i = 0; i < 8; i++) {
+      TransactionFile file = new TransactionFile(Paths.get("dummy-" + i + ".csv"));
+
+      for (int j = 0; j < 50000; j++) {
+        file.addTransaction(new Transaction(j % 100, j % 2 == 0 ? -3.0 : 1.0));
+      }
+
+      files.add(file);
+    }
+
+    accountService.applyTransactionsInParallel(files);
+
+    // Each account sees 8 * 500 transactions, all debits or all credits
+    assertEquals(100, accountService.getNumAccounts());
+    assertEquals(8 * 500 * 3.0, accountService.getAccountBalance(0), 0);
+    assertEquals(-8 * 500 * 1.0, accountService.getAccountBalance(1), 0);
+  }
+
+  @Test
+  public void primitiveAccountStore() {
+    accountService = new CustomerAccountService(new PrimitiveAccountStore(true));
+    accountService.applyTransaction(new Transaction(1, -100.0));
+    accountService.applyTransaction(new Transaction(1, 25.0));
+
+    assertEquals(75.0, accountService.getAccountBalance(1), 0);
+    assertEquals(7500, accountService.getAccounts().get(1).getBalanceCents());
+  }
+
+  @Test
+  public void balancesAreExact() {
+    for (int i = 0; i < 1000000; i++) {
+      accountService.applyTransaction(new Transaction(1, -0.1));
+    }
+
+    assertEquals(10000000, accountService.getAccountBalanceCents(1));
+  }
+
+  @Test
+  public void overflowedAccountsAreFlagged() {
+    accountService.applyTransaction(Transaction.ofCents(1, -Long.MAX_VALUE));
+    accountService.applyTransaction(Transaction.ofCents(1, -1));
+    accountService.applyTransaction(Transaction.ofCents(2, -1));
+
+    assertEquals(Long.MAX_VALUE, accountService.getAccountBalanceCents(1));
+    assertEquals(Collections.singleton(1), accountService.getOverflowedAccounts());
+  }
+
+  @Test
+  public void aggregatedApplyMatchesSequentialApply() {
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"));
+    Random random = new Random(42);
+
+    // Enough transactions for several aggregation chunks, skewed towards a
+    // few accounts
+    for (int i = 0; i < 500000; i++) {
+      int account = (int) Math.pow(10000, random.nextDouble());
+      file.addTransaction(Transaction.ofCents(account, random.nextInt(2000000) - 1000000));
+    }
+
+    CustomerAccountService aggregated = new CustomerAccountService(new PrimitiveAccountStore(false));
+    accountService.applyTransactions(file);
+    aggregated.applyTransactionsAggregated(file);
+
+    assertEquals(accountService.getNumAccounts(), aggregated.getNumAccounts());
+    accountService.forEachBalance((accountNumber, balance) ->
+        assertEquals(balance, aggregated.getAccountBalanceCents(accountNumber)));
+  }
+
+  @Test
+  public void aggregatedApplyOnlyFlagsFinalBalances() {
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"));
+    accountService.applyTransaction(Transaction.ofCents(1, -Long.MAX_VALUE));
+
+    // The intermediate balance would overflow, but the net amount doesn't
+    file.addTransaction(Transaction.ofCents(1, -1));
+    file.addTransaction(Transaction.ofCents(1, 2));
+    file.addTransaction(Transaction.ofCents(2, Long.MAX_VALUE - 2));
+    accountService.applyTransactionsAggregated(file);
+
+    assertEquals(Long.MAX_VALUE - 1, accountService.getAccountBalanceCents(1));
+    assertEquals(-Long.MAX_VALUE + 2, accountService.getAccountBalanceCents(2));
+    assertTrue(accountService.getOverflowedAccounts().isEmpty());
+  }
+
+  @Test
+  public void aggregatedApplyOfFileWithTotalsOutOfRange() {
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"));
+    file.addTransaction(Transaction.ofCents(1, Long.MAX_VALUE));
+    file.addTransaction(Transaction.ofCents(2, Long.MAX_VALUE));
+    file.addTransaction(Transaction.ofCents(1, -Long.MAX_VALUE));
+    accountService.applyTransactionsAggregated(file);
+
+    assertEquals(0, accountService.getAccountBalanceCents(1));
+    assertEquals(-Long.MAX_VALUE, accountService.getAccountBalanceCents(2));
+    assertTrue(accountService.getOverflowedAccounts().isEmpty());
+  }
 }
@@ -0,0 +1,107 @@
+package au.com.greater.transaction.account;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link PrimitiveAccountStore}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class PrimitiveAccountStoreTests {
+
+  private final PrimitiveAccountStore[] stores = {
+      new PrimitiveAccountStore(false),
+      new PrimitiveAccountStore(true)
+  };
+
+  @Test
+  public void debitsAndCredits() {
+    for (PrimitiveAccountStore store : stores) {
+      assertEquals(10000, store.apply(1, -10000));
+      assertEquals(7000, store.apply(1, 3000));
+      assertEquals(-5000, store.apply(2, 5000));
+
+      assertEquals(7000, store.getBalance(1));
+      assertEquals(-5000, store.getBalance(2));
+      assertEquals(2, store.size());
+    }
+  }
+
+  @Test
+  public void unknownAccount() {
+    for (PrimitiveAccountStore store : stores) {
+      assertFalse(store.contains(3));
+      assertEquals(0, store.getBalance(3));
+    }
+  }
+
+  @Test
+  public void accountNumberZero() {
+    for (PrimitiveAccountStore store : stores) {
+      assertFalse(store.contains(0));
+      store.apply(0, -1000);
+
+      assertTrue(store.contains(0));
+      assertEquals(1000, store.getBalance(0));
+      assertEquals(1, store.size());
+    }
+  }
+
+  @Test
+  public void overflowLeavesBalanceUnchanged() {
+    for (PrimitiveAccountStore store : stores) {
+      store.apply(1, -Long.MAX_VALUE);
+
+      try {
+        store.apply(1, -1);
+        fail("Expected overflow");
+      } catch (ArithmeticException e) {
+        assertEquals(Long.MAX_VALUE, store.getBalance(1));
+      }
+    }
+  }
+
+  @Test
+  public void tablesGrowWithoutLosingAccounts() {
+    for (PrimitiveAccountStore store : stores) {
+      for (int i = 0; i < 200000; i++) {
+        store.apply(i * 7, -i);
+      }
+
+      assertEquals(200000, store.size());
+
+      Map<Integer, Long> balances = new HashMap<>();
+      store.forEach(balances::put);
+
+      assertEquals(200000, balances.size());
+      for (int i = 0; i < 200000; i++) {
+        assertEquals(i, (long) balances.get(i * 7));
+        assertEquals(i, store.getBalance(i * 7));
+      }
+    }
+  }
+
+  @Test
+  public void concurrentUpdatesAreNotLost() {
+    for (PrimitiveAccountStore store : stores) {
+      IntStream.range(0, 1000000).parallel().forEach(i -> store.apply(i % 5000, -1));
+
+      assertEquals(5000, store.size());
+      for (int i = 0; i < 5000; i++) {
+        assertEquals(200, store.getBalance(i));
+      }
+    }
+  }
+}
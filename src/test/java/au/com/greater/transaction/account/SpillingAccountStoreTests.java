@@ -0,0 +1,235 @@
+package au.com.greater.transaction.account;
+
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.utils.IntLongHashMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link SpillingAccountStore}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class SpillingAccountStoreTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private SpillingAccountStore store(int numPartitions, long memoryBudget) {
+    return new SpillingAccountStore(folder.getRoot().toPath(), memoryBudget, numPartitions);
+  }
+
+  private static IntLongHashMap debitEach(int numAccounts) {
+    IntLongHashMap amounts = new IntLongHashMap();
+    IntStream.range(0, numAccounts).forEach(accountNumber -> amounts.add(accountNumber, -1));
+    return amounts;
+  }
+
+  @Test
+  public void debitsAndCredits() {
+    SpillingAccountStore store = store(16, 1024);
+
+    assertEquals(10000, store.apply(1, -10000));
+    assertEquals(7000, store.apply(1, 3000));
+    assertEquals(-5000, store.apply(2, 5000));
+    store.setBalance(3, 42);
+
+    assertEquals(7000, store.getBalance(1));
+    assertEquals(-5000, store.getBalance(2));
+    assertEquals(42, store.getBalance(3));
+    assertFalse(store.contains(4));
+    assertEquals(3, store.size());
+  }
+
+  @Test
+  public void balancesSurviveSpilling() {
+    // Only some of the partitions fit, and accounts are accessed randomly, so
+    // partitions are spilled and loaded many times
+    SpillingAccountStore store = store(64, 64 * 1024);
+    Random random = new Random(42);
+    Map<Integer, Long> expected = new HashMap<>();
+
+    for (int i = 0; i < 5000; i++) {
+      int accountNumber = random.nextInt(5000);
+      long amount = random.nextInt(10000) - 5000;
+
+      store.apply(accountNumber, amount);
+      expected.merge(accountNumber, -amount, Long::sum);
+    }
+
+    assertTrue(store.getSpillCount() > 0);
+    assertTrue(store.getLoadCount() > 0);
+    assertEquals(expected.size(), store.size());
+
+    // The budget is exceeded by at most the partition in use
+    assertTrue(store.getMemoryUsage() <= 64 * 1024 + 256 * 12);
+
+    Map<Integer, Long> balances = new HashMap<>();
+    store.forEach(balances::put);
+    assertEquals(expected, balances);
+
+    for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+      assertTrue(store.contains(entry.getKey()));
+      assertEquals((long) entry.getValue(), store.getBalance(entry.getKey()));
+    }
+  }
+
+  @Test
+  public void batchesLoadEachPartitionOnce() {
+    SpillingAccountStore store = store(64, 256 * 1024);
+
+    for (int batch = 0; batch < 5; batch++) {
+      long loads = store.getLoadCount();
+      store.applyAll(debitEach(100000), (accountNumber, amount) -> fail("Unexpected rejection"));
+
+      assertTrue(store.getLoadCount() - loads <= 64);
+    }
+
+    assertTrue(store.getSpillCount() > 0);
+    assertEquals(100000, store.size());
+
+    for (int accountNumber = 0; accountNumber < 100000; accountNumber += 997) {
+      assertEquals(5, store.getBalance(accountNumber));
+    }
+  }
+
+  @Test
+  public void balancesAreSetInBatches() {
+    SpillingAccountStore store = store(64, 256 * 1024);
+    store.applyAll(debitEach(100000), (accountNumber, amount) -> fail("Unexpected rejection"));
+
+    IntLongHashMap balances = new IntLongHashMap();
+    IntStream.range(50000, 150000).forEach(accountNumber -> balances.put(accountNumber, 7));
+
+    long loads = store.getLoadCount();
+    store.setAll(balances);
+
+    assertTrue(store.getLoadCount() - loads <= 64);
+    assertEquals(150000, store.size());
+    assertEquals(1, store.getBalance(49999));
+    assertEquals(7, store.getBalance(50000));
+    assertEquals(7, store.getBalance(149999));
+  }
+
+  @Test
+  public void batchRejectsOverflowingAmounts() {
+    SpillingAccountStore store = store(4, 1024);
+    store.setBalance(1, Long.MAX_VALUE);
+
+    IntLongHashMap amounts = new IntLongHashMap();
+    amounts.add(1, -1);
+    amounts.add(2, -1);
+
+    List<Integer> rejected = new ArrayList<>();
+    store.applyAll(amounts, (accountNumber, amount) -> rejected.add(accountNumber));
+
+    assertEquals(1, rejected.size());
+    assertEquals(1, (int) rejected.get(0));
+    assertEquals(Long.MAX_VALUE, store.getBalance(1));
+    assertEquals(1, store.getBalance(2));
+  }
+
+  @Test
+  public void overflowLeavesBalanceUnchanged() {
+    SpillingAccountStore store = store(4, 1024);
+    store.apply(1, -Long.MAX_VALUE);
+
+    try {
+      store.apply(1, -1);
+      fail("Expected overflow");
+    } catch (ArithmeticException e) {
+      assertEquals(Long.MAX_VALUE, store.getBalance(1));
+    }
+  }
+
+  @Test
+  public void spillDirectoryIsCleared() throws IOException {
+    SpillingAccountStore store = store(64, 256 * 1024);
+    store.applyAll(debitEach(100000), (accountNumber, amount) -> fail("Unexpected rejection"));
+
+    try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+      assertTrue(files.count() > 0);
+    }
+
+    assertEquals(0, store(64, 256 * 1024).size());
+
+    try (Stream<Path> files = Files.list(folder.getRoot().toPath())) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  public void concurrentUpdatesAreNotLost() {
+    SpillingAccountStore store = store(16, 1024 * 1024);
+    IntStream.range(0, 100000).parallel().forEach(i -> store.apply(i % 5000, -1));
+
+    assertEquals(5000, store.size());
+    for (int i = 0; i < 5000; i++) {
+      assertEquals(20, store.getBalance(i));
+    }
+  }
+
+  @Test
+  public void serviceAppliesAggregatedFiles() {
+    CustomerAccountService accountService = new CustomerAccountService(store(16, 16 * 1024));
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"));
+
+    for (int i = 0; i < 20000; i++) {
+      file.addTransaction(Transaction.ofCents(i % 5000, -100));
+    }
+
+    accountService.applyTransactionsAggregated(file);
+
+    assertEquals(5000, accountService.getNumAccounts());
+    assertEquals(400, accountService.getAccountBalanceCents(4999));
+  }
+
+  @Test
+  public void spillFilesAreDeletedOnClose() throws IOException {
+    Path spillDir = folder.newFolder("spill").toPath();
+    SpillingAccountStore store = new SpillingAccountStore(spillDir, 1024, 16);
+    store.applyAll(debitEach(5000), (accountNumber, amount) -> fail("Unexpected rejection"));
+    assertTrue(store.getSpillCount() > 0);
+
+    store.close();
+
+    // A configured spill directory is kept, but emptied
+    try (Stream<Path> files = Files.list(spillDir)) {
+      assertEquals(0, files.count());
+    }
+  }
+
+  @Test
+  public void temporarySpillDirectoryIsDeletedOnClose() {
+    SpillingAccountStore store = (SpillingAccountStore) AccountStoreConfiguration.create("spilling", "", 1, 0, 1);
+    Path spillDir = store.getSpillDir();
+    store.applyAll(debitEach(5000), (accountNumber, amount) -> fail("Unexpected rejection"));
+    assertTrue(Files.isDirectory(spillDir));
+
+    store.close();
+
+    assertFalse(Files.exists(spillDir));
+  }
+}
@@ -0,0 +1,70 @@
+package au.com.greater.transaction.history;
+
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.nio.file.Paths;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Unit tests for {@link TransactionHistoryController}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class TransactionHistoryControllerTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private TransactionHistoryStore history;
+
+  private MockMvc mvc;
+
+  @Before
+  public void before() {
+    history = new TransactionHistoryStore(folder.getRoot().toString(), 32, 4);
+    history.open();
+
+    TransactionFile file = new TransactionFile(Paths.get("finance_customer_transactions-1.csv"));
+    file.addTransaction(Transaction.ofCents(1, -250));
+    file.addTransaction(Transaction.ofCents(2, 100));
+    file.addTransaction(Transaction.ofCents(1, 1000));
+    history.append(file);
+    history.flush();
+
+    mvc = MockMvcBuilders.standaloneSetup(new TransactionHistoryController(history)).build();
+  }
+
+  @After
+  public void after() {
+    history.close();
+  }
+
+  @Test
+  public void accountHistory() throws Exception {
+    mvc.perform(get("/history/1"))
+        .andExpect(status().isOk())
+        .andExpect(content().json("[{\"file\":\"finance_customer_transactions-1.csv\",\"amountCents\":-250},"
+            + "{\"file\":\"finance_customer_transactions-1.csv\",\"amountCents\":1000}]"));
+  }
+
+  @Test
+  public void unknownAccountHasNoHistory() throws Exception {
+    mvc.perform(get("/history/3"))
+        .andExpect(status().isOk())
+        .andExpect(content().json("[]"));
+  }
+}
@@ -0,0 +1,223 @@
+package au.com.greater.transaction.history;
+
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link TransactionHistoryStore}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class TransactionHistoryStoreTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private TransactionHistoryStore history;
+
+  @After
+  public void after() {
+    if (history != null) {
+      history.close();
+    }
+  }
+
+  private TransactionHistoryStore open(int maxSegments) {
+    if (history != null) {
+      history.close();
+    }
+
+    history = new TransactionHistoryStore(folder.getRoot().toString(), maxSegments, 4);
+    history.open();
+    return history;
+  }
+
+  /**
+   * @param transactions pairs of account number and amount in cents
+   */
+  private static TransactionFile file(String name, long fingerprint, long... transactions) {
+    TransactionFile file = new TransactionFile(Paths.get(name));
+    file.setFingerprint(fingerprint);
+
+    for (int i = 0; i < transactions.length; i += 2) {
+      file.addTransaction(Transaction.ofCents((int) transactions[i], transactions[i + 1]));
+    }
+
+    return file;
+  }
+
+  @Test
+  public void historyIsReturnedInDeliveryOrder() {
+    open(32);
+    history.append(file("a.csv", 1, 2, -100, 1, 50, 2, 300, -5, 7));
+    history.append(file("b.csv", 2, 2, 25, 3, 10));
+    history.flush();
+
+    assertEquals(Arrays.asList(new HistoryEntry("a.csv", -100), new HistoryEntry("a.csv", 300),
+        new HistoryEntry("b.csv", 25)), history.getHistory(2));
+    assertEquals(Collections.singletonList(new HistoryEntry("a.csv", 7)), history.getHistory(-5));
+    assertEquals(Collections.emptyList(), history.getHistory(4));
+  }
+
+  @Test
+  public void historyIsKeptAcrossRestart() {
+    open(32);
+    history.append(file("a.csv", 1, 1, 50));
+    history.append(file("b.csv", 2, 1, 60));
+    history.flush();
+
+    open(32);
+    history.append(file("c.csv", 3, 1, 70));
+    history.flush();
+
+    assertEquals(Arrays.asList(new HistoryEntry("a.csv", 50), new HistoryEntry("b.csv", 60),
+        new HistoryEntry("c.csv", 70)), history.getHistory(1));
+  }
+
+  @Test
+  public void filesAreOnlyStoredOnce() {
+    open(32);
+    history.append(file("a.csv", 1, 1, 50));
+    history.flush();
+
+    open(32);
+    history.append(file("a.csv", 1, 1, 50));
+    history.append(file("b.csv", 0, 1, 60));
+    history.append(file("b.csv", 0, 1, 60));
+    history.flush();
+
+    // Files without a fingerprint can't be recognised
+    assertEquals(Arrays.asList(new HistoryEntry("a.csv", 50), new HistoryEntry("b.csv", 60),
+        new HistoryEntry("b.csv", 60)), history.getHistory(1));
+  }
+
+  @Test
+  public void writeFailuresAreReported() throws IOException {
+    Path historyDir = folder.newFolder("history").toPath();
+    history = new TransactionHistoryStore(historyDir.toString(), 32, 4);
+    history.open();
+
+    // Segments can't be created once the directory has been replaced
+    Files.delete(historyDir);
+    Files.createFile(historyDir);
+    history.append(file("a.csv", 1, 1, 50));
+
+    try {
+      history.flush();
+      fail("Expected history failure to be thrown");
+    } catch (RuntimeException e) {
+      assertEquals(1, history.getFailureCount());
+    }
+
+    // The failure is only reported once
+    history.flush();
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void appendingToClosedHistoryFails() {
+    open(32).close();
+    history.append(file("a.csv", 1, 1, 50));
+  }
+
+  @Test
+  public void segmentsAreMerged() {
+    Random random = new Random(42);
+    List<List<HistoryEntry>> expected = new ArrayList<>();
+
+    for (int account = 0; account < 50; account++) {
+      expected.add(new ArrayList<>());
+    }
+
+    open(3);
+
+    for (int f = 0; f < 10; f++) {
+      String name = "file-" + f + ".csv";
+      long[] transactions = new long[200];
+
+      for (int i = 0; i < transactions.length; i += 2) {
+        transactions[i] = random.nextInt(50);
+        transactions[i + 1] = random.nextInt(10000) - 5000;
+        expected.get((int) transactions[i]).add(new HistoryEntry(name, transactions[i + 1]));
+      }
+
+      history.append(file(name, f + 1, transactions));
+    }
+
+    history.flush();
+    assertTrue(history.getSegmentCount() <= 3);
+
+    for (int account = 0; account < 50; account++) {
+      assertEquals(expected.get(account), history.getHistory(account));
+    }
+
+    open(3);
+
+    for (int account = 0; account < 50; account++) {
+      assertEquals(expected.get(account), history.getHistory(account));
+    }
+  }
+
+  @Test
+  public void mergesAreSizeTiered() {
+    open(8);
+
+    for (int f = 0; f < 500; f++) {
+      history.append(file("file-" + f + ".csv", f + 1, f % 10, 100));
+    }
+
+    history.flush();
+    assertTrue(history.getSegmentCount() <= 8);
+    assertEquals(50, history.getHistory(3).size());
+
+    // Merging every new file into the newest merged segment would rewrite
+    // about 500 * 500 / 2 / 8 = 15,625 entries
+    assertTrue(history.getMergedEntryCount() < 5000);
+  }
+
+  @Test
+  public void segmentsLeftByInterruptedMergeAreRemoved() throws IOException {
+    open(32);
+    history.append(file("a.csv", 1, 1, 50));
+    history.append(file("b.csv", 2, 1, 60));
+    history.flush();
+
+    Path first = folder.getRoot().toPath().resolve(String.format("%019d.seg", 1));
+    byte[] bytes = Files.readAllBytes(first);
+
+    // Merge, then restore the first segment as if the merge was interrupted
+    // before removing it
+    open(2);
+    history.append(file("c.csv", 3, 1, 70));
+    history.flush();
+    assertEquals(1, history.getSegmentCount());
+    Files.write(first, bytes);
+
+    open(32);
+
+    assertEquals(1, history.getSegmentCount());
+    assertEquals(Arrays.asList(new HistoryEntry("a.csv", 50), new HistoryEntry("b.csv", 60),
+        new HistoryEntry("c.csv", 70)), history.getHistory(1));
+  }
+}
@@ -0,0 +1,49 @@
+package au.com.greater.transaction.metrics;
+
+import au.com.greater.transaction.account.CachingAccountStore;
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.account.PrimitiveAccountStore;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Unit tests for {@link BacklogMetrics}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class BacklogMetricsTests {
+
+  @Test
+  public void accountCacheIsMeasured() {
+    CachingAccountStore cache = new CachingAccountStore(new PrimitiveAccountStore(false), 2, 1);
+    CustomerAccountService accountService = new CustomerAccountService(cache);
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    new BacklogMetrics(accountService, cache, "/tmp").bindTo(registry);
+
+    for (int accountNumber = 0; accountNumber < 4; accountNumber++) {
+      cache.apply(accountNumber, -100);
+      cache.apply(accountNumber, -100);
+    }
+
+    assertEquals(4, registry.get("accounts.cache.requests").tag("result", "hit").functionCounter().count(), 0);
+    assertEquals(4, registry.get("accounts.cache.requests").tag("result", "miss").functionCounter().count(), 0);
+    assertEquals(2, registry.get("accounts.cache.evictions").functionCounter().count(), 0);
+    assertEquals(2, registry.get("accounts.cache.flushes").functionCounter().count(), 0);
+    assertEquals(4, registry.get("accounts.count").gauge().value(), 0);
+  }
+
+  @Test
+  public void accountCacheIsOptional() {
+    PrimitiveAccountStore store = new PrimitiveAccountStore(false);
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    new BacklogMetrics(new CustomerAccountService(store), store, "/tmp").bindTo(registry);
+
+    assertNull(registry.find("accounts.cache.requests").functionCounter());
+  }
+}
@@ -0,0 +1,44 @@
+package au.com.greater.transaction.metrics;
+
+import au.com.greater.transaction.Main;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Integration tests for the metrics scrape endpoint within the Spring context
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+    classes = Main.class,
+    properties = {
+        "processing.baseDir=/",
+        "processing.pendingDir=/tmp"
+    }
+)
+@AutoConfigureMockMvc
+public class MetricsEndpointTests {
+
+  @Autowired
+  private MockMvc mvc;
+
+  @Test
+  public void processingMetricsAreExposed() throws Exception {
+    mvc.perform(get("/prometheus"))
+        .andExpect(status().isOk())
+        .andExpect(content().string(containsString("transactions_stage_seconds_count{stage=\"parse\",}")))
+        .andExpect(content().string(containsString("transactions_pending_files")))
+        .andExpect(content().string(containsString("accounts_memory_bytes")));
+  }
+}
@@ -1,5 +1,7 @@
 package au.com.greater.transaction.model;
 
+import au.com.greater.transaction.utils.HyperLogLog;
+import au.com.greater.transaction.utils.IntHashSet;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -8,6 +10,8 @@ import org.junit.runners.JUnit4;
 import java.nio.file.Paths;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit tests for {@link TransactionFile}
@@ -61,4 +65,102 @@ public class TransactionFileTests {
     assertEquals(0, file.getTotalCredits(), 0);
     assertEquals(150.0, file.getTotalDebits(), 0);
   }
+
+  @Test
+  public void addAllMergesFiles() {
+    TransactionFile other = new TransactionFile(Paths.get("dummy.csv"));
+    other.addTransaction(new Transaction(2, 50.0));
+    other.addTransaction(null);
+
+    file.addTransaction(new Transaction(1, 100.0));
+    file.addTransaction(null);
+    file.addAll(other);
+
+    assertEquals(2, file.getNumAccounts());
+    assertEquals(150.0, file.getTotalCredits(), 0);
+    assertEquals(2, file.getNumSkippedTransactions());
+  }
+
+  @Test
+  public void aggregatesWithoutRetainingTransactions() {
+    file = new TransactionFile(Paths.get("dummy.csv"), false, new IntHashSet());
+    file.addTransaction(new Transaction(1, 100.0));
+    file.addTransaction(new Transaction(2, -50.0));
+    file.addTransaction(new Transaction(0, -25.0));
+    file.addTransaction(null);
+
+    assertTrue(file.getTransactions().isEmpty());
+    assertEquals(3, file.getNumAccounts());
+    assertEquals(100.0, file.getTotalCredits(), 0);
+    assertEquals(75.0, file.getTotalDebits(), 0);
+    assertEquals(1, file.getNumSkippedTransactions());
+  }
+
+  @Test
+  public void approximateAccountCount() {
+    file = new TransactionFile(Paths.get("dummy.csv"), false, new HyperLogLog());
+
+    for (int i = 0; i < 1000000; i++) {
+      file.addTransaction(new Transaction(i % 100000, 1.0));
+    }
+
+    assertEquals(100000, file.getNumAccounts(), 100000 * 0.03);
+  }
+
+  @Test
+  public void reportFormat() {
+    file.addTransaction(new Transaction(1, 1234.5));
+    file.addTransaction(new Transaction(2, -0.25));
+    file.addTransaction(null);
+
+    assertEquals("File Processed: dummy.csv" +
+        "\nTotal Accounts: 2" +
+        "\nTotal Credits : $1,234.50" +
+        "\nTotal Debits  : $0.25" +
+        "\nSkipped Transactions: 1", file.generateReport());
+  }
+
+  @Test
+  public void totalsOutOfRangeSaturate() {
+    for (int i = 0; i < 10; i++) {
+      file.addTransaction(Transaction.ofCents(i, 999999999999999999L));
+    }
+
+    file.addTransaction(Transaction.ofCents(1, -25));
+
+    assertTrue(file.isCreditsOutOfRange());
+    assertFalse(file.isDebitsOutOfRange());
+    assertEquals(Long.MAX_VALUE, file.getTotalCreditCents());
+    assertEquals(25, file.getTotalDebitCents());
+    assertEquals("File Processed: dummy.csv" +
+        "\nTotal Accounts: 10" +
+        "\nTotal Credits : over $92,233,720,368,547,758.07" +
+        "\nTotal Debits  : $0.25" +
+        "\nSkipped Transactions: 0", file.generateReport(2));
+  }
+
+  @Test
+  public void reportListsTopMovers() {
+    file.addTransaction(new Transaction(1, 10.0));
+    file.addTransaction(new Transaction(2, -25.5));
+    file.addTransaction(new Transaction(3, 1.0));
+    file.addTransaction(new Transaction(1, 10.0));
+
+    assertEquals("File Processed: dummy.csv" +
+        "\nTotal Accounts: 3" +
+        "\nTotal Credits : $21.00" +
+        "\nTotal Debits  : $25.50" +
+        "\nSkipped Transactions: 0" +
+        "\nTop Movers:" +
+        "\n  2: +$25.50" +
+        "\n  1: -$20.00", file.generateReport(2));
+  }
+
+  @Test
+  public void topMoversNeedRetainedTransactions() {
+    file = new TransactionFile(Paths.get("dummy.csv"), false, new IntHashSet());
+    file.addTransaction(new Transaction(1, 10.0));
+
+    assertEquals(file.generateReport(), file.generateReport(10));
+  }
 }
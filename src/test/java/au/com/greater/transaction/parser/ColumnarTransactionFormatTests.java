@@ -0,0 +1,107 @@
+package au.com.greater.transaction.parser;
+
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.utils.HyperLogLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link ColumnarTransactionFormat}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class ColumnarTransactionFormatTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private List<Transaction> load(Path path) {
+    List<Transaction> transactions = new ArrayList<>();
+    ColumnarTransactionFormat.load(path, (account, amount) -> transactions.add(Transaction.ofCents(account, amount)));
+    return transactions;
+  }
+
+  private Path write(int numTransactions) {
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"));
+
+    for (int i = 0; i < numTransactions; i++) {
+      file.addTransaction(Transaction.ofCents(i * 7919, i % 2 == 0 ? i * 100L : -1000000000000L - i));
+    }
+
+    Path path = folder.getRoot().toPath().resolve("dummy" + ColumnarTransactionFormat.EXTENSION);
+    ColumnarTransactionFormat.write(path, file);
+    return path;
+  }
+
+  @Test
+  public void transactionsAreLoadedInOrder() {
+    // An odd number of transactions, so the amounts column needs padding
+    List<Transaction> transactions = load(write(12345));
+
+    assertEquals(12345, transactions.size());
+
+    for (int i = 0; i < transactions.size(); i++) {
+      assertEquals(i * 7919, transactions.get(i).getCustomerAccountNumber());
+      assertEquals(i % 2 == 0 ? i * 100L : -1000000000000L - i, transactions.get(i).getTransactionAmountCents());
+    }
+  }
+
+  @Test
+  public void emptyFile() {
+    assertEquals(0, load(write(0)).size());
+  }
+
+  @Test
+  public void noTemporaryFileIsLeftBehind() {
+    write(10);
+    assertEquals(1, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void corruptColumnIsRejectedBeforeLoading() throws IOException {
+    Path path = write(1000);
+    byte[] bytes = Files.readAllBytes(path);
+    bytes[bytes.length - 3] ^= 1;
+    Files.write(path, bytes);
+
+    List<Transaction> transactions = new ArrayList<>();
+
+    try {
+      ColumnarTransactionFormat.load(path, (account, amount) -> transactions.add(Transaction.ofCents(account, amount)));
+      fail("Expected checksum failure to be thrown");
+    } catch (RuntimeException e) {
+      assertEquals(0, transactions.size());
+    }
+  }
+
+  @Test(expected = RuntimeException.class)
+  public void truncatedFileIsRejected() throws IOException {
+    Path path = write(1000);
+    byte[] bytes = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(bytes, bytes.length - 8));
+
+    load(path);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void fileWithoutTransactionsCannotBeWritten() {
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"), false, new HyperLogLog());
+    ColumnarTransactionFormat.write(folder.getRoot().toPath().resolve("dummy.txc"), file);
+  }
+}
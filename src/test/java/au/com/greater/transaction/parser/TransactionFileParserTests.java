@@ -1,15 +1,29 @@
 package au.com.greater.transaction.parser;
 
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.model.Transaction;
 import au.com.greater.transaction.model.TransactionFile;
+import au.com.greater.transaction.utils.Compression;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.springframework.core.io.ClassPathResource;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Unit tests for {@link TransactionFileParser}
@@ -19,6 +33,9 @@ import static org.junit.Assert.assertEquals;
 @RunWith(JUnit4.class)
 public class TransactionFileParserTests {
 
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
   @Test
   public void corruptLinesAreSkipped() throws IOException {
     Path path = new ClassPathResource("pending/finance_customer_transactions-corrupt_lines.csv").getFile().toPath();
@@ -55,4 +72,161 @@ public class TransactionFileParserTests {
     assertEquals(11000, file.getNumAccounts());
     assertEquals(0, file.getNumSkippedTransactions());
   }
+
+  @Test
+  public void streamingPassesEachLineToConsumer() throws IOException {
+    Path path = new ClassPathResource("pending/finance_customer_transactions-corrupt_lines.csv").getFile().toPath();
+    List<Transaction> transactions = new ArrayList<>();
+
+    // The header is not passed on, and corrupt lines are passed as null
+    assertEquals(8, TransactionFileParser.streamFromPath(path, transactions::add));
+    assertEquals(8, transactions.size());
+    assertEquals(6, transactions.stream().filter(t -> t == null).count());
+  }
+
+  @Test
+  public void streamingIntoAccountService() throws IOException {
+    Path path = new ClassPathResource("pending/finance_customer_transactions-corrupt_lines.csv").getFile().toPath();
+    CustomerAccountService accountService = new CustomerAccountService();
+
+    TransactionFileParser.streamFromPath(path, accountService::applyTransaction);
+    assertEquals(-(4627.22 + 4627.0), accountService.getAccountBalance(938490885), 0.001);
+  }
+
+  @Test
+  public void totalsOutOfRangeDontFailFile() throws IOException {
+    StringBuilder content = new StringBuilder("\"Customer Account#\", \"Transaction Amount\"\n");
+
+    for (int i = 0; i < 10; i++) {
+      content.append("1,9999999999999999.99\n");
+    }
+
+    Path path = folder.newFile("finance_customer_transactions-overflow.csv").toPath();
+    Files.write(path, content.toString().getBytes());
+
+    for (TransactionFile file : Arrays.asList(TransactionFileParser.fromPath(path),
+        TransactionFileParser.fromPathInParallel(path))) {
+      assertEquals(10, file.getNumTransactions());
+      assertTrue(file.isCreditsOutOfRange());
+      assertEquals(Long.MAX_VALUE, file.getTotalCreditCents());
+    }
+  }
+
+  @Test
+  public void linesSpanningReadBuffers() throws IOException {
+    StringBuilder content = new StringBuilder("\"Customer Account#\", \"Transaction Amount\"\r\n");
+
+    for (int i = 0; i < 20000; i++) {
+      content.append(i).append(", ").append(i % 2 == 0 ? "-" : "").append("10.25\r\n");
+    }
+
+    // A single corrupt line which is longer than the read buffer
+    content.append(StringUtils.repeat('9', 200000)).append(", 1.00\r\n");
+
+    Path path = folder.newFile("finance_customer_transactions-long.csv").toPath();
+    Files.write(path, content.toString().getBytes());
+    TransactionFile file = TransactionFileParser.fromPath(path);
+
+    assertEquals(20000, file.getNumAccounts());
+    assertEquals(1, file.getNumSkippedTransactions());
+    assertEquals(10000 * 10.25, file.getTotalCredits(), 0);
+    assertEquals(10000 * 10.25, file.getTotalDebits(), 0);
+  }
+
+  @Test
+  public void parallelParsingSkipsCorruptLines() throws IOException {
+    Path path = new ClassPathResource("pending/finance_customer_transactions-corrupt_lines.csv").getFile().toPath();
+    TransactionFile file = TransactionFileParser.fromPathInParallel(path);
+
+    assertEquals(1, file.getNumAccounts());
+    assertEquals(2, file.getTransactions().size());
+    assertEquals(6, file.getNumSkippedTransactions());
+  }
+
+  @Test
+  public void parallelParsingEmptyFile() throws IOException {
+    Path path = new ClassPathResource("pending/finance_customer_transactions-empty.csv").getFile().toPath();
+    TransactionFile file = TransactionFileParser.fromPathInParallel(path);
+
+    assertEquals(0, file.getTransactions().size());
+    assertEquals(0, file.getNumSkippedTransactions());
+  }
+
+  @Test
+  public void parallelParsingMatchesSequentialParsing() throws IOException {
+    StringBuilder content = new StringBuilder("\"Customer Account#\", \"Transaction Amount\"\r\n");
+
+    for (int i = 0; i < 5000; i++) {
+      content.append(i % 1000).append(", ").append(i % 7 == 0 ? "corrupt" : i + ".5").append(i % 3 == 0 ? "\r\n" : "\n");
+    }
+
+    Path path = folder.newFile("finance_customer_transactions-chunked.csv").toPath();
+    Files.write(path, content.toString().getBytes());
+
+    TransactionFile sequential = TransactionFileParser.fromPath(path);
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+
+    try {
+      // Use tiny chunks, so that chunk boundaries fall on every kind of line
+      // terminator
+      for (long chunkSize : new long[] {1, 13, 64, 4096}) {
+        TransactionFile parallel = TransactionFileParser.fromPathInParallel(path, pool, chunkSize);
+
+        assertEquals(sequential.getTransactions().size(), parallel.getTransactions().size());
+        assertEquals(sequential.getNumSkippedTransactions(), parallel.getNumSkippedTransactions());
+        assertEquals(sequential.getNumAccounts(), parallel.getNumAccounts());
+        assertEquals(sequential.getTotalCredits(), parallel.getTotalCredits(), 0.001);
+        assertEquals(sequential.getFingerprint(), parallel.getFingerprint());
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void compressedFilesAreDecompressed() throws IOException {
+    StringBuilder content = new StringBuilder("\"Customer Account#\", \"Transaction Amount\"\n");
+
+    for (int i = 0; i < 50000; i++) {
+      content.append(i % 1000).append(", ").append(i % 7 == 0 ? "corrupt" : i + ".5").append("\n");
+    }
+
+    Path plain = folder.newFile("finance_customer_transactions-plain.csv").toPath();
+    Files.write(plain, content.toString().getBytes());
+    TransactionFile expected = TransactionFileParser.fromPath(plain);
+
+    for (Compression compression : new Compression[] {Compression.GZIP, Compression.ZSTD}) {
+      Path path = folder.getRoot().toPath().resolve("finance_customer_transactions-1.csv" + compression.getExtension());
+
+      try (OutputStream out = compression.compress(Files.newOutputStream(path))) {
+        out.write(content.toString().getBytes());
+      }
+
+      // Compressed files can't be split, so are read sequentially
+      for (TransactionFile file : Arrays.asList(TransactionFileParser.fromPath(path),
+          TransactionFileParser.fromPathInParallel(path))) {
+        assertEquals(expected.getFingerprint(), file.getFingerprint());
+        assertEquals(expected.getTransactions().size(), file.getTransactions().size());
+        assertEquals(expected.getNumSkippedTransactions(), file.getNumSkippedTransactions());
+        assertEquals(expected.getTotalCredits(), file.getTotalCredits(), 0.001);
+      }
+    }
+  }
+
+  @Test
+  public void fingerprintDependsOnContent() throws IOException {
+    Path first = folder.newFile("finance_customer_transactions-1.csv").toPath();
+    Path second = folder.newFile("finance_customer_transactions-2.csv").toPath();
+    Path third = folder.newFile("finance_customer_transactions-3.csv").toPath();
+
+    Files.write(first, "header\n1, 1.00\n".getBytes());
+    Files.write(second, "header\n1, 1.00\n".getBytes());
+    Files.write(third, "header\n1, 1.01\n".getBytes());
+
+    assertEquals(TransactionFileParser.fromPath(first).getFingerprint(),
+        TransactionFileParser.fromPath(second).getFingerprint());
+    assertNotEquals(TransactionFileParser.fromPath(first).getFingerprint(),
+        TransactionFileParser.fromPath(third).getFingerprint());
+  }
 }
@@ -0,0 +1,133 @@
+package au.com.greater.transaction.parser;
+
+import au.com.greater.transaction.model.Transaction;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link TransactionTokenizer}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class TransactionTokenizerTests {
+
+  private TransactionTokenizer tokenizer = new TransactionTokenizer(false);
+
+  private boolean tokenizeLine(String line) {
+    byte[] bytes = line.getBytes(StandardCharsets.US_ASCII);
+    return tokenizer.tokenizeLine(ByteBuffer.wrap(bytes), 0, bytes.length);
+  }
+
+  @Test
+  public void validLine() {
+    assertTrue(tokenizeLine("938490885, 4627.22"));
+    assertEquals(938490885, tokenizer.getAccountNumber());
+    assertEquals(462722L, tokenizer.getAmountCents());
+
+    assertTrue(tokenizeLine("1,-100"));
+    assertEquals(1, tokenizer.getAccountNumber());
+    assertEquals(-10000L, tokenizer.getAmountCents());
+  }
+
+  @Test
+  public void spacesAndTrailingCommasAreIgnored() {
+    assertTrue(tokenizeLine(" 938 490 885 , 46 27.2 2 , , "));
+    assertEquals(938490885, tokenizer.getAccountNumber());
+    assertEquals(462722L, tokenizer.getAmountCents());
+  }
+
+  @Test
+  public void numberFormsAreAccepted() {
+    assertTrue(tokenizeLine("1, 4627."));
+    assertEquals(462700L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, .5"));
+    assertEquals(50L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, +1.5e2"));
+    assertEquals(15000L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, 10.5d"));
+    assertEquals(1050L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, 017"));
+    assertEquals(1700L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, 0.1234567890123456789"));
+    assertEquals(12L, tokenizer.getAmountCents());
+  }
+
+  @Test
+  public void amountsAreRoundedToTheNearestCent() {
+    assertTrue(tokenizeLine("1, 0.005"));
+    assertEquals(1L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, -0.004999"));
+    assertEquals(0L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, -1.235"));
+    assertEquals(-124L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, 12345e-4"));
+    assertEquals(123L, tokenizer.getAmountCents());
+    assertTrue(tokenizeLine("1, 9999999999999999.99"));
+    assertEquals(999999999999999999L, tokenizer.getAmountCents());
+  }
+
+  @Test
+  public void amountsOutOfRangeAreRejected() {
+    assertFalse(tokenizeLine("1, 92233720368547758.08"));
+    assertFalse(tokenizeLine("1, 9.3e16"));
+    assertFalse(tokenizeLine("1, 1e400"));
+    assertFalse(tokenizeLine("1, 12345678901234567890"));
+  }
+
+  @Test
+  public void corruptLinesAreRejected() {
+    assertFalse(tokenizeLine(""));
+    assertFalse(tokenizeLine("abcdefghi, 4627.22"));
+    assertFalse(tokenizeLine("938490885, abc.de"));
+    assertFalse(tokenizeLine("938490885"));
+    assertFalse(tokenizeLine("938490885, 4627.22, 938490885"));
+    assertFalse(tokenizeLine(",938490885, 4627.22"));
+    assertFalse(tokenizeLine("1\t, 100"));
+    assertFalse(tokenizeLine("1, 019"));
+    assertFalse(tokenizeLine("1, 1e"));
+    assertFalse(tokenizeLine("1, 1.2.3"));
+    assertFalse(tokenizeLine("1, 0x1F"));
+    assertFalse(tokenizeLine("1, 100L"));
+    assertFalse(tokenizeLine("99999999999, 100"));
+  }
+
+  @Test
+  public void lineTerminators() {
+    byte[] bytes = "header\r\n1, 1\r2, 2\n\n3, 3".getBytes(StandardCharsets.US_ASCII);
+    List<Transaction> transactions = new ArrayList<>();
+
+    tokenizer = new TransactionTokenizer(true);
+    int consumed = tokenizer.tokenize(ByteBuffer.wrap(bytes), 0, bytes.length, true, transactions::add);
+
+    assertEquals(bytes.length, consumed);
+    assertEquals(4, tokenizer.getNumLines());
+    assertEquals(1, transactions.get(0).getCustomerAccountNumber());
+    assertEquals(2, transactions.get(1).getCustomerAccountNumber());
+    assertNull(transactions.get(2));
+    assertEquals(3, transactions.get(3).getCustomerAccountNumber());
+  }
+
+  @Test
+  public void incompleteLineIsNotConsumed() {
+    byte[] bytes = "1, 1\n2, 2\r".getBytes(StandardCharsets.US_ASCII);
+    List<Transaction> transactions = new ArrayList<>();
+
+    // A trailing carriage return may be the first half of "\r\n"
+    int consumed = tokenizer.tokenize(ByteBuffer.wrap(bytes), 0, bytes.length, false, transactions::add);
+
+    assertEquals(5, consumed);
+    assertEquals(1, transactions.size());
+  }
+}
@@ -0,0 +1,301 @@
+package au.com.greater.transaction.persistence;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class AccountPersistenceTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private CustomerAccountService accountService = new CustomerAccountService();
+
+  private AccountPersistence persistence;
+
+  private AccountPersistence open(CustomerAccountService accountService, int snapshotInterval) {
+    AccountPersistence persistence = new AccountPersistence(accountService, folder.getRoot().toString(), snapshotInterval);
+    persistence.recover();
+    return persistence;
+  }
+
+  private void process(double... amounts) {
+    processFingerprinted(null, amounts);
+  }
+
+  private void processFingerprinted(Long fingerprint, double... amounts) {
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"));
+    file.setFingerprint(fingerprint);
+
+    for (int i = 0; i < amounts.length; i++) {
+      file.addTransaction(new Transaction(i, amounts[i]));
+    }
+
+    persistence.log(file);
+    accountService.applyTransactions(file);
+    persistence.checkpoint();
+  }
+
+  private void processAggregated(Transaction... transactions) {
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"));
+    Arrays.stream(transactions).forEach(file::addTransaction);
+
+    persistence.log(file);
+    accountService.applyTransactionsAggregated(Collections.singletonList(file));
+    persistence.checkpoint();
+  }
+
+  private CustomerAccountService restart() {
+    persistence.close();
+    CustomerAccountService recovered = new CustomerAccountService();
+    persistence = open(recovered, 2);
+    return recovered;
+  }
+
+  @Test
+  public void balancesAreRecoveredFromJournal() {
+    persistence = open(accountService, 100);
+    process(-100.0, 25.5);
+    process(-0.01);
+
+    CustomerAccountService recovered = restart();
+
+    assertEquals(2, recovered.getNumAccounts());
+    assertEquals(10001L, recovered.getAccountBalanceCents(0));
+    assertEquals(-2550L, recovered.getAccountBalanceCents(1));
+  }
+
+  @Test
+  public void balancesAreRecoveredFromSnapshotAndJournal() {
+    persistence = open(accountService, 2);
+    process(-100.0);
+    process(-100.0, -1.0);
+    process(-100.0, -1.0, -2.0);
+
+    // The first two batches are in the snapshot, and the journal only holds the last
+    assertEquals(20 + 3 * 12 + 4, folder.getRoot().toPath().resolve("journal.log").toFile().length());
+
+    CustomerAccountService recovered = restart();
+
+    assertEquals(3, recovered.getNumAccounts());
+    assertEquals(30000L, recovered.getAccountBalanceCents(0));
+    assertEquals(200L, recovered.getAccountBalanceCents(1));
+    assertEquals(200L, recovered.getAccountBalanceCents(2));
+  }
+
+  @Test
+  public void recoveredBalancesMatchAggregatedApply() {
+    persistence = open(accountService, 100);
+    processAggregated(Transaction.ofCents(0, -Long.MAX_VALUE));
+
+    // The intermediate balance would be out of range, but the net amount
+    // leaves the balance unchanged
+    processAggregated(Transaction.ofCents(0, -1), Transaction.ofCents(0, 1));
+    assertEquals(Long.MAX_VALUE, accountService.getAccountBalanceCents(0));
+
+    CustomerAccountService recovered = restart();
+
+    assertEquals(Long.MAX_VALUE, recovered.getAccountBalanceCents(0));
+    assertTrue(recovered.getOverflowedAccounts().isEmpty());
+  }
+
+  @Test
+  public void tornJournalRecordIsDiscarded() throws IOException {
+    persistence = open(accountService, 100);
+    process(-100.0);
+    process(-200.0);
+    persistence.close();
+
+    // Simulate a crash part-way through writing the second record
+    Path journal = folder.getRoot().toPath().resolve("journal.log");
+    byte[] bytes = Files.readAllBytes(journal);
+    Files.write(journal, Arrays.copyOf(bytes, bytes.length - 5), StandardOpenOption.TRUNCATE_EXISTING);
+
+    CustomerAccountService recovered = new CustomerAccountService();
+    persistence = open(recovered, 100);
+    assertEquals(10000L, recovered.getAccountBalanceCents(0));
+
+    // Later batches are appended after the last complete record
+    accountService = recovered;
+    process(-1.0);
+
+    recovered = restart();
+    assertEquals(10100L, recovered.getAccountBalanceCents(0));
+  }
+
+  @Test
+  public void corruptJournalRecordIsDiscarded() throws IOException {
+    persistence = open(accountService, 100);
+    process(-100.0);
+    process(-200.0);
+    persistence.close();
+
+    // Flip a byte in the amount of the second record
+    Path journal = folder.getRoot().toPath().resolve("journal.log");
+    byte[] bytes = Files.readAllBytes(journal);
+    bytes[bytes.length - 6] ^= 1;
+    Files.write(journal, bytes, StandardOpenOption.TRUNCATE_EXISTING);
+
+    CustomerAccountService recovered = new CustomerAccountService();
+    persistence = open(recovered, 100);
+    assertEquals(10000L, recovered.getAccountBalanceCents(0));
+  }
+
+  @Test
+  public void corruptSnapshotRestoresNothing() throws IOException {
+    Path snapshot = folder.getRoot().toPath().resolve("test.snapshot");
+    BalanceSnapshot.write(snapshot, 1, consumer -> {
+      for (int i = 0; i < 1000; i++) {
+        consumer.accept(i, i);
+      }
+    });
+
+    // Flip a byte in the balance of the last account
+    byte[] bytes = Files.readAllBytes(snapshot);
+    bytes[bytes.length - 6] ^= 1;
+    Files.write(snapshot, bytes, StandardOpenOption.TRUNCATE_EXISTING);
+
+    try {
+      BalanceSnapshot.read(snapshot, accountService::restoreBalance);
+      fail("Expected checksum failure to be thrown");
+    } catch (RuntimeException e) {
+      assertEquals(0, accountService.getNumAccounts());
+    }
+  }
+
+  private boolean isApplied(Long fingerprint) {
+    TransactionFile file = new TransactionFile(Paths.get("dummy.csv"));
+    file.setFingerprint(fingerprint);
+    return persistence.isApplied(file);
+  }
+
+  @Test
+  public void appliedFilesAreDetectedAfterRestart() {
+    persistence = open(accountService, 100);
+    processFingerprinted(42L, -100.0);
+    assertTrue(isApplied(42L));
+
+    restart();
+
+    assertTrue(isApplied(42L));
+    assertFalse(isApplied(43L));
+    assertFalse(isApplied(null));
+  }
+
+  @Test
+  public void ledgerEntriesOfTornBatchesAreDiscarded() throws IOException {
+    persistence = open(accountService, 100);
+    processFingerprinted(1L, -100.0);
+    processFingerprinted(2L, -200.0);
+    persistence.close();
+
+    // Simulate a crash after the ledger entry of the second file, but part-way
+    // through journaling it
+    Path journal = folder.getRoot().toPath().resolve("journal.log");
+    byte[] bytes = Files.readAllBytes(journal);
+    Files.write(journal, Arrays.copyOf(bytes, bytes.length - 5), StandardOpenOption.TRUNCATE_EXISTING);
+
+    accountService = new CustomerAccountService();
+    persistence = open(accountService, 100);
+    assertTrue(isApplied(1L));
+    assertFalse(isApplied(2L));
+
+    // The discarded entry must not resurface once later batches commit
+    processFingerprinted(3L, -1.0);
+    processFingerprinted(4L, -1.0);
+    restart();
+
+    assertFalse(isApplied(2L));
+    assertTrue(isApplied(3L));
+    assertTrue(isApplied(4L));
+  }
+
+  @Test
+  public void ledgerIsCompactedOnSnapshot() {
+    persistence = open(accountService, 2);
+    persistence.setLedgerMaxEntries(3);
+
+    for (long fingerprint = 1; fingerprint <= 5; fingerprint++) {
+      processFingerprinted(fingerprint, -1.0);
+    }
+
+    // The second snapshot kept the three most recent files, and the fifth
+    // has been recorded since
+    Path ledger = folder.getRoot().toPath().resolve("processed.ledger");
+    assertEquals(4 * 20, ledger.toFile().length());
+    assertFalse(isApplied(1L));
+    assertTrue(isApplied(2L));
+    assertTrue(isApplied(5L));
+
+    restart();
+
+    assertFalse(isApplied(1L));
+    assertTrue(isApplied(2L));
+    assertTrue(isApplied(5L));
+  }
+
+  @Test
+  public void filesLoggedTogetherShareOneBatch() throws IOException {
+    persistence = open(accountService, 100);
+    processFingerprinted(1L, -100.0);
+
+    TransactionFile first = new TransactionFile(Paths.get("first.csv"));
+    first.setFingerprint(2L);
+    first.addTransaction(new Transaction(0, -1.0));
+    TransactionFile second = new TransactionFile(Paths.get("second.csv"));
+    second.setFingerprint(3L);
+    second.addTransaction(new Transaction(1, -2.0));
+
+    List<TransactionFile> files = Arrays.asList(first, second);
+    persistence.log(files);
+    accountService.applyTransactionsAggregated(files);
+    persistence.close();
+
+    // Both files are in a single journal record
+    Path journal = folder.getRoot().toPath().resolve("journal.log");
+    byte[] bytes = Files.readAllBytes(journal);
+    assertEquals(2 * (20 + 4) + 3 * 12, bytes.length);
+
+    CustomerAccountService recovered = new CustomerAccountService();
+    persistence = open(recovered, 100);
+    assertEquals(10100L, recovered.getAccountBalanceCents(0));
+    assertEquals(200L, recovered.getAccountBalanceCents(1));
+    assertTrue(isApplied(2L));
+    assertTrue(isApplied(3L));
+    persistence.close();
+
+    // A torn batch discards the ledger entries of all of its files
+    Files.write(journal, Arrays.copyOf(bytes, bytes.length - 5), StandardOpenOption.TRUNCATE_EXISTING);
+
+    recovered = new CustomerAccountService();
+    persistence = open(recovered, 100);
+    assertEquals(10000L, recovered.getAccountBalanceCents(0));
+    assertEquals(1, recovered.getNumAccounts());
+    assertTrue(isApplied(1L));
+    assertFalse(isApplied(2L));
+    assertFalse(isApplied(3L));
+  }
+}
@@ -0,0 +1,67 @@
+package au.com.greater.transaction.query;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+/**
+ * Unit tests for {@link BalanceController}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class BalanceControllerTests {
+
+  private MockMvc mvc;
+
+  @Before
+  public void before() {
+    CustomerAccountService accountService = new CustomerAccountService();
+    accountService.restoreBalance(1, -250);
+    accountService.restoreBalance(2, 1000);
+
+    BalanceQueryService queries = new BalanceQueryService(accountService);
+    queries.publishAll();
+
+    mvc = MockMvcBuilders.standaloneSetup(new BalanceController(queries)).build();
+  }
+
+  @Test
+  public void singleBalance() throws Exception {
+    mvc.perform(get("/balances/1"))
+        .andExpect(status().isOk())
+        .andExpect(content().json("{\"accountNumber\":1,\"balanceCents\":-250,\"version\":1}"));
+  }
+
+  @Test
+  public void unknownAccountIsNotFound() throws Exception {
+    mvc.perform(get("/balances/3")).andExpect(status().isNotFound());
+  }
+
+  @Test
+  public void bulkBalances() throws Exception {
+    mvc.perform(post("/balances").contentType(MediaType.APPLICATION_JSON).content("[1, 2, 3]"))
+        .andExpect(status().isOk())
+        .andExpect(content().json("{\"balancesCents\":{\"1\":-250,\"2\":1000},\"version\":1}"));
+  }
+
+  @Test
+  public void largestAndRangeBalances() throws Exception {
+    mvc.perform(get("/balances/largest").param("n", "1"))
+        .andExpect(status().isOk())
+        .andExpect(content().json("[{\"accountNumber\":2,\"balanceCents\":1000}]"));
+    mvc.perform(get("/balances/range").param("min", "-1000").param("max", "0"))
+        .andExpect(status().isOk())
+        .andExpect(content().json("[{\"accountNumber\":1,\"balanceCents\":-250}]"));
+  }
+}
@@ -0,0 +1,38 @@
+package au.com.greater.transaction.query;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link BalanceIndex}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class BalanceIndexTests {
+
+  @Test
+  public void bucketsAreInBalanceOrder() {
+    long[] balances = {Long.MIN_VALUE, -1L << 40, -1000001, -1000000, -17, -16, -2, -1, 0, 1, 2, 15, 16, 17,
+        999999, 1000000, 1L << 40, Long.MAX_VALUE};
+
+    for (int i = 1; i < balances.length; i++) {
+      assertTrue(balances[i] + " should not be in a lower bucket than " + balances[i - 1],
+          BalanceIndex.bucketOf(balances[i - 1]) <= BalanceIndex.bucketOf(balances[i]));
+    }
+
+    assertEquals(0, BalanceIndex.bucketOf(Long.MIN_VALUE));
+    assertEquals(2047, BalanceIndex.bucketOf(Long.MAX_VALUE));
+  }
+
+  @Test
+  public void smallBalancesHaveTheirOwnBuckets() {
+    for (long balance = -16; balance < 16; balance++) {
+      assertTrue(BalanceIndex.bucketOf(balance) < BalanceIndex.bucketOf(balance + 1));
+    }
+  }
+}
@@ -0,0 +1,161 @@
+package au.com.greater.transaction.query;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Unit tests for {@link BalanceQueryService} and {@link AccountBalances}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class BalanceQueryServiceTests {
+
+  private final CustomerAccountService accountService = new CustomerAccountService();
+
+  private final BalanceQueryService queries = new BalanceQueryService(accountService);
+
+  private void apply(Transaction... transactions) {
+    TransactionFile file = new TransactionFile(Paths.get("finance_customer_transactions-1.csv"));
+
+    for (Transaction transaction : transactions) {
+      file.addTransaction(transaction);
+    }
+
+    accountService.applyTransactions(file);
+    queries.publish(file);
+  }
+
+  @Test
+  public void unknownAccountsAreEmpty() {
+    assertFalse(queries.getBalanceCents(1).isPresent());
+    assertEquals(0, queries.getVersion());
+  }
+
+  @Test
+  public void publishedFilesAreVisible() {
+    apply(Transaction.ofCents(5, 100), Transaction.ofCents(1, -250));
+    apply(Transaction.ofCents(3, 10), Transaction.ofCents(5, 100), Transaction.ofCents(7, 1));
+
+    assertEquals(2, queries.getVersion());
+    assertEquals(4, queries.getSnapshot().size());
+    assertEquals(OptionalLong.of(250), queries.getBalanceCents(1));
+    assertEquals(OptionalLong.of(-10), queries.getBalanceCents(3));
+    assertEquals(OptionalLong.of(-200), queries.getBalanceCents(5));
+    assertEquals(OptionalLong.of(-1), queries.getBalanceCents(7));
+
+    Map<Integer, Long> expected = new HashMap<>();
+    expected.put(1, 250L);
+    expected.put(7, -1L);
+    assertEquals(expected, queries.getBalancesCents(new int[] {1, 2, 7}));
+  }
+
+  @Test
+  public void snapshotsAreImmutable() {
+    apply(Transaction.ofCents(1, 100));
+    AccountBalances before = queries.getSnapshot();
+
+    apply(Transaction.ofCents(1, 100), Transaction.ofCents(2, 100));
+
+    assertEquals(OptionalLong.of(-100), before.getBalanceCents(1));
+    assertFalse(before.getBalanceCents(2).isPresent());
+    assertEquals(OptionalLong.of(-200), queries.getBalanceCents(1));
+  }
+
+  @Test
+  public void incrementalUpdatesMatchFullCopy() {
+    for (int i = 0; i < 50; i++) {
+      Transaction[] transactions = new Transaction[100];
+
+      for (int j = 0; j < transactions.length; j++) {
+        transactions[j] = Transaction.ofCents((i * 31 + j * 17) % 1000 - 500, i + j);
+      }
+
+      apply(transactions);
+    }
+
+    AccountBalances copy = AccountBalances.copyOf(0, accountService);
+    assertEquals(accountService.getNumAccounts(), queries.getSnapshot().size());
+    assertEquals(copy.size(), queries.getSnapshot().size());
+
+    accountService.forEachBalance((account, balance) ->
+        assertEquals(OptionalLong.of(balance), queries.getBalanceCents(account)));
+  }
+
+  @Test
+  public void topAndRangeQueriesMatchFullScan() {
+    Random random = new Random(42);
+
+    for (int i = 0; i < 20; i++) {
+      Transaction[] transactions = new Transaction[500];
+
+      for (int j = 0; j < transactions.length; j++) {
+        transactions[j] = Transaction.ofCents(random.nextInt(2000), random.nextInt(2000000) - 1000000);
+      }
+
+      apply(transactions);
+    }
+
+    List<AccountBalance> all = new ArrayList<>();
+    accountService.forEachBalance((account, balance) -> all.add(new AccountBalance(account, balance)));
+    all.sort(Comparator.comparingLong(AccountBalance::getBalanceCents));
+
+    List<Long> expectedSmallest = balancesOf(all.subList(0, 25));
+    List<Long> expectedLargest = balancesOf(all.subList(all.size() - 25, all.size()));
+    Collections.reverse(expectedLargest);
+
+    assertEquals(expectedSmallest, balancesOf(queries.getSmallestBalances(25)));
+    assertEquals(expectedLargest, balancesOf(queries.getLargestBalances(25)));
+
+    List<Long> expectedRange = balancesOf(all.stream()
+        .filter(balance -> balance.getBalanceCents() >= -50000 && balance.getBalanceCents() <= 123456)
+        .collect(Collectors.toList()));
+
+    assertEquals(expectedRange, balancesOf(queries.getBalancesInRange(-50000, 123456, all.size())));
+    assertEquals(expectedRange.subList(0, 5), balancesOf(queries.getBalancesInRange(-50000, 123456, 5)));
+  }
+
+  @Test
+  public void topQueriesWithFewAccounts() {
+    apply(Transaction.ofCents(1, 100), Transaction.ofCents(2, -100));
+
+    assertEquals(Arrays.asList(new AccountBalance(2, 100), new AccountBalance(1, -100)),
+        queries.getLargestBalances(10));
+    assertEquals(Collections.singletonList(new AccountBalance(1, -100)), queries.getSmallestBalances(1));
+  }
+
+  private static List<Long> balancesOf(List<AccountBalance> balances) {
+    return balances.stream().map(AccountBalance::getBalanceCents).collect(Collectors.toList());
+  }
+
+  @Test
+  public void restoredBalancesArePublished() {
+    accountService.restoreBalance(42, 4200);
+    AccountBalances before = queries.getSnapshot();
+
+    queries.publishAll();
+
+    assertSame(AccountBalances.EMPTY, before);
+    assertEquals(OptionalLong.of(4200), queries.getBalanceCents(42));
+  }
+}
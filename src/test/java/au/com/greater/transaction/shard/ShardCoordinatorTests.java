@@ -0,0 +1,338 @@
+package au.com.greater.transaction.shard;
+
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.model.Transaction;
+import au.com.greater.transaction.model.TransactionFile;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link ShardCoordinator}. Instances in the same JVM exclude
+ * each other in the same way as instances in separate JVMs, which is also
+ * tested by running several {@link ShardWorker}s.
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class ShardCoordinatorTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<ShardCoordinator> coordinators = new ArrayList<>();
+
+  private ShardCoordinator coordinator(int shards) {
+    ShardCoordinator coordinator = new ShardCoordinator(folder.getRoot().toPath().resolve("shards").toString(), shards);
+    coordinators.add(coordinator);
+    return coordinator;
+  }
+
+  private TransactionFile transactions(String datetime, int lines) {
+    TransactionFile file = new TransactionFile(Paths.get("finance_customer_transactions-" + datetime + ".csv"));
+
+    for (int i = 0; i < lines; i++) {
+      file.addTransaction(Transaction.ofCents(i % 100, i % 3 == 0 ? -i : i));
+    }
+
+    return file;
+  }
+
+  @Test
+  public void eachFileIsClaimedOnce() throws IOException {
+    Path path = folder.newFile("finance_customer_transactions-1.csv").toPath();
+    ShardCoordinator first = coordinator(2);
+    ShardCoordinator second = coordinator(2);
+
+    ShardCoordinator.Claim claim = first.claim(path);
+    assertNotNull(claim);
+    assertNull(second.claim(path));
+
+    // Once the file has been archived, it can't be claimed again
+    Files.delete(path);
+    claim.close();
+    assertNull(second.claim(path));
+  }
+
+  @Test
+  public void accountsAreSplitBetweenShards() {
+    ShardCoordinator first = coordinator(2);
+    ShardCoordinator second = coordinator(2);
+    CustomerAccountService firstAccounts = new CustomerAccountService();
+    CustomerAccountService secondAccounts = new CustomerAccountService();
+
+    first.split(transactions("1", 1000));
+    first.split(transactions("2", 1000));
+
+    assertEquals(2, first.applyInbox(firstAccounts));
+    assertEquals(2, second.applyInbox(secondAccounts));
+    assertEquals(1, first.getOwnedShards().size());
+    assertEquals(1, second.getOwnedShards().size());
+    assertNotEquals(first.getOwnedShards(), second.getOwnedShards());
+    assertTrue(first.isDrained());
+
+    // Every account is owned by exactly one shard
+    CustomerAccountService expected = new CustomerAccountService();
+    expected.applyTransactions(transactions("1", 1000));
+    expected.applyTransactions(transactions("2", 1000));
+
+    assertEquals(expected.getNumAccounts(), firstAccounts.getNumAccounts() + secondAccounts.getNumAccounts());
+    expected.forEachBalance((account, balance) -> {
+      CustomerAccountService owner = first.getOwnedShards().contains(first.shardOf(account)) ? firstAccounts : secondAccounts;
+      assertEquals(balance, owner.getAccountBalanceCents(account));
+    });
+  }
+
+  @Test
+  public void instancesWithoutShardOnlySplit() {
+    ShardCoordinator owner = coordinator(1);
+    ShardCoordinator splitter = coordinator(1);
+
+    assertEquals(0, owner.applyInbox(new CustomerAccountService()));
+    splitter.split(transactions("1", 10));
+
+    assertEquals(0, splitter.applyInbox(new CustomerAccountService()));
+    assertTrue(splitter.getOwnedShards().isEmpty());
+    assertEquals(1, owner.applyInbox(new CustomerAccountService()));
+  }
+
+  @Test
+  public void takingOverShardReplaysAppliedPartitions() {
+    ShardCoordinator first = coordinator(1);
+    CustomerAccountService accounts = new CustomerAccountService();
+
+    first.split(transactions("1", 1000));
+    first.applyInbox(accounts);
+    first.close();
+
+    // Splitting an already applied file again has no effect
+    first.split(transactions("1", 1000));
+
+    CustomerAccountService recovered = new CustomerAccountService();
+    assertEquals(0, coordinator(1).applyInbox(recovered));
+    assertEquals(accounts.getNumAccounts(), recovered.getNumAccounts());
+    accounts.forEachBalance((account, balance) -> assertEquals(balance, recovered.getAccountBalanceCents(account)));
+  }
+
+  @Test
+  public void stalledShardsAreTakenOver() {
+    ShardCoordinator coordinator = coordinator(2);
+    CustomerAccountService accounts = new CustomerAccountService();
+
+    coordinator.split(transactions("1", 1000));
+    assertEquals(1, coordinator.applyInbox(accounts));
+    assertEquals(1, coordinator.getOwnedShards().size());
+    assertFalse(coordinator.isDrained());
+
+    // No other instance has taken over the other shard in the meantime
+    assertEquals(1, coordinator.applyInbox(accounts));
+    assertEquals(2, coordinator.getOwnedShards().size());
+    assertTrue(coordinator.isDrained());
+
+    CustomerAccountService expected = new CustomerAccountService();
+    expected.applyTransactions(transactions("1", 1000));
+    assertEquals(expected.getNumAccounts(), accounts.getNumAccounts());
+  }
+
+  @Test
+  public void takingOverShardReplaysFromCheckpoint() throws IOException {
+    ShardCoordinator first = coordinator(1);
+    first.setCheckpointInterval(2);
+    CustomerAccountService accounts = new CustomerAccountService();
+
+    for (int i = 0; i < 3; i++) {
+      first.split(transactions(Integer.toString(i), 1000));
+      first.applyInbox(accounts);
+    }
+
+    // Checkpointed partitions are deleted, but still recognised if their
+    // files are split again
+    Path applied = folder.getRoot().toPath().resolve("shards").resolve("0").resolve("applied");
+    assertFalse(Files.exists(applied.resolve("finance_customer_transactions-0.txc")));
+    assertFalse(Files.exists(applied.resolve("finance_customer_transactions-1.txc")));
+    assertTrue(Files.exists(applied.resolve("finance_customer_transactions-2.txc")));
+
+    first.split(transactions("0", 1000));
+    assertTrue(first.isDrained());
+    first.close();
+
+    CustomerAccountService recovered = new CustomerAccountService();
+    assertEquals(0, coordinator(1).applyInbox(recovered));
+    assertEquals(accounts.getNumAccounts(), recovered.getNumAccounts());
+    accounts.forEachBalance((account, balance) -> assertEquals(balance, recovered.getAccountBalanceCents(account)));
+  }
+
+  @Test
+  public void logIsCompactedOnCheckpoint() throws IOException {
+    ShardCoordinator coordinator = coordinator(1);
+    coordinator.setCheckpointInterval(1);
+    CustomerAccountService accounts = new CustomerAccountService();
+
+    for (int i = 0; i < 30; i++) {
+      coordinator.split(transactions(Integer.toString(i), 10));
+      coordinator.applyInbox(accounts);
+    }
+
+    Path shard = folder.getRoot().toPath().resolve("shards").resolve("0");
+    assertEquals(0, Files.list(shard.resolve("applied")).count());
+    assertEquals(10, Files.readAllLines(shard.resolve("applied.log")).size());
+
+    // Only the most recent files are still recognised
+    coordinator.split(transactions("29", 10));
+    coordinator.split(transactions("0", 10));
+    assertEquals(1, coordinator.applyInbox(accounts));
+  }
+
+  @Test
+  public void splittingAgainWhileApplyingAppliesOnce() throws Exception {
+    ShardCoordinator owner = coordinator(1);
+    ShardCoordinator splitter = coordinator(1);
+    CustomerAccountService accounts = new CustomerAccountService();
+    int applied = 0;
+
+    for (int i = 0; i < 50; i++) {
+      TransactionFile file = transactions(Integer.toString(i), 10);
+      splitter.split(file);
+
+      // Split the file again while its partition is being moved
+      Thread resplit = new Thread(() -> splitter.split(file));
+      resplit.start();
+      applied += owner.applyInbox(accounts);
+      resplit.join();
+      applied += owner.applyInbox(accounts);
+    }
+
+    assertEquals(50, applied);
+  }
+
+  @Test
+  public void partitionsAreKeyedOnContent() {
+    ShardCoordinator coordinator = coordinator(1);
+    CustomerAccountService accounts = new CustomerAccountService();
+    TransactionFile first = transactions("1", 10);
+    first.setFingerprint(1L);
+    TransactionFile redelivered = transactions("1", 10);
+    redelivered.setFingerprint(2L);
+
+    coordinator.split(first);
+    assertEquals(1, coordinator.applyInbox(accounts));
+
+    // The same content is not applied again, but a different file delivered
+    // under the same name is
+    coordinator.split(first);
+    coordinator.split(redelivered);
+    assertEquals(1, coordinator.applyInbox(accounts));
+
+    CustomerAccountService expected = new CustomerAccountService();
+    expected.applyTransactions(first);
+    expected.applyTransactions(redelivered);
+    expected.forEachBalance((account, balance) -> assertEquals(balance, accounts.getAccountBalanceCents(account)));
+  }
+
+  @Test
+  public void unreadablePartitionsStayInInbox() throws IOException {
+    ShardCoordinator coordinator = coordinator(1);
+    CustomerAccountService accounts = new CustomerAccountService();
+    coordinator.split(transactions("1", 10));
+
+    Path inbox = folder.getRoot().toPath().resolve("shards").resolve("0").resolve("inbox");
+    Path partition = Files.list(inbox).findFirst().get();
+    Files.write(partition, new byte[10]);
+
+    try {
+      coordinator.applyInbox(accounts);
+      fail("Expected truncated partition to be rejected");
+    } catch (RuntimeException e) {
+      // Expected
+    }
+
+    assertTrue(Files.exists(partition));
+    assertEquals(0, accounts.getNumAccounts());
+  }
+
+  @Test
+  public void separateJvmsProcessBacklogTogether() throws Exception {
+    Path pendingDir = folder.newFolder("pending").toPath();
+    Path reportsDir = folder.newFolder("reports").toPath();
+    Path archiveDir = folder.newFolder("archive").toPath();
+    Path shardDir = folder.getRoot().toPath().resolve("shards");
+    Map<Integer, Long> expected = new HashMap<>();
+
+    for (int file = 0; file < 8; file++) {
+      StringBuilder content = new StringBuilder("\"Customer Account#\", \"Transaction Amount\"\n");
+
+      for (int i = 0; i < 2000; i++) {
+        int account = (file * 7919 + i) % 500;
+        long cents = (i % 5 == 0 ? -1 : 1) * (i * 13L % 10000);
+
+        content.append(account).append(", ").append(cents < 0 ? "-" : "").append(Math.abs(cents) / 100).append('.')
+            .append(String.format("%02d", Math.abs(cents) % 100)).append('\n');
+        expected.merge(account, -cents, Long::sum);
+      }
+
+      Files.write(pendingDir.resolve("finance_customer_transactions-" + file + ".csv"), content.toString().getBytes());
+    }
+
+    List<Process> workers = new ArrayList<>();
+    List<Path> outputs = new ArrayList<>();
+
+    for (int i = 0; i < 2; i++) {
+      Path output = folder.getRoot().toPath().resolve("worker-" + i + ".txt");
+      outputs.add(output);
+      workers.add(new ProcessBuilder(Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+          "-cp", System.getProperty("java.class.path"), ShardWorker.class.getName(),
+          pendingDir.toString(), reportsDir.toString(), archiveDir.toString(), shardDir.toString(), "2",
+          output.toString())
+          .redirectErrorStream(true)
+          .redirectOutput(folder.getRoot().toPath().resolve("worker-" + i + ".log").toFile())
+          .start());
+    }
+
+    for (Process worker : workers) {
+      assertTrue("Worker timed out", worker.waitFor(60, TimeUnit.SECONDS));
+      assertEquals(0, worker.exitValue());
+    }
+
+    // Between them, the workers hold every account exactly once
+    Map<Integer, Long> actual = new HashMap<>();
+
+    for (Path output : outputs) {
+      List<String> lines = Files.readAllLines(output);
+
+      for (String line : lines.subList(1, lines.size())) {
+        String[] fields = line.split(" ");
+        assertNull(actual.put(Integer.parseInt(fields[0]), Long.parseLong(fields[1])));
+      }
+    }
+
+    assertEquals(expected, actual);
+    assertEquals(8, Files.list(reportsDir).count());
+    assertEquals(0, Files.list(pendingDir).count());
+  }
+
+  @After
+  public void after() {
+    coordinators.forEach(ShardCoordinator::close);
+  }
+}
@@ -0,0 +1,50 @@
+package au.com.greater.transaction.shard;
+
+import au.com.greater.transaction.TransactionProcessor;
+import au.com.greater.transaction.account.CustomerAccountService;
+import au.com.greater.transaction.utils.FileUtils;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * A single processor instance, run in its own JVM by
+ * {@link ShardCoordinatorTests}. It processes pending files until every file
+ * has been split and every shard drained, then writes the shards it owns
+ * and the balances of their accounts to a file.
+ *
+ * Arguments: pendingDir reportsDir archiveDir shardDir shards outputFile
+ *
+ * @author Justin Lewis Salmon
+ */
+public class ShardWorker {
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    Path pendingDir = Paths.get(args[0]);
+    ShardCoordinator shards = new ShardCoordinator(args[3], Integer.parseInt(args[4]));
+    CustomerAccountService accountService = new CustomerAccountService();
+
+    TransactionProcessor processor = new TransactionProcessor(accountService);
+    processor.setPendingDir(args[0]);
+    processor.setReportsDir(args[1]);
+    processor.setArchiveDir(args[2]);
+    processor.setShards(shards);
+
+    // Files claimed by the other instance stay pending until they have been
+    // split, so once nothing is pending, only the inboxes need to drain
+    do {
+      processor.execute();
+      Thread.sleep(50);
+    } while (!FileUtils.listFiles(pendingDir).isEmpty() || !shards.isDrained());
+
+    try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(args[5])))) {
+      out.println(shards.getOwnedShards());
+      accountService.forEachBalance((account, balance) -> out.println(account + " " + balance));
+    }
+
+    shards.close();
+  }
+}
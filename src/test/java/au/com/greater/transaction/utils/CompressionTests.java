@@ -0,0 +1,88 @@
+package au.com.greater.transaction.utils;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link Compression}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class CompressionTests {
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private static byte[] compress(Compression compression, byte[] bytes) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    try (OutputStream out = compression.compress(buffer)) {
+      out.write(bytes);
+    }
+
+    return buffer.toByteArray();
+  }
+
+  @Test
+  public void compressedBytesRoundTrip() throws IOException {
+    byte[] bytes = "header\n1, 1.00\n2, -2.50\n".getBytes();
+
+    for (Compression compression : Compression.values()) {
+      ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+
+      try (InputStream in = compression.decompress(new ByteArrayInputStream(compress(compression, bytes)))) {
+        byte[] buffer = new byte[4096];
+        for (int read; (read = in.read(buffer)) > 0; ) {
+          decompressed.write(buffer, 0, read);
+        }
+      }
+
+      assertArrayEquals(bytes, decompressed.toByteArray());
+    }
+  }
+
+  @Test
+  public void formatIsDetectedFromMagicBytes() throws IOException {
+    // The extensions deliberately don't match the contents
+    Path gzip = Files.write(folder.getRoot().toPath().resolve("gzip.csv"), compress(Compression.GZIP, new byte[1]));
+    Path zstd = Files.write(folder.getRoot().toPath().resolve("zstd.csv.gz"), compress(Compression.ZSTD, new byte[1]));
+    Path plain = Files.write(folder.getRoot().toPath().resolve("plain.csv.zst"), "header\n".getBytes());
+
+    assertEquals(Compression.GZIP, Compression.detect(gzip));
+    assertEquals(Compression.ZSTD, Compression.detect(zstd));
+    assertEquals(Compression.NONE, Compression.detect(plain));
+  }
+
+  @Test
+  public void formatIsDetectedFromExtensionOfEmptyFile() throws IOException {
+    Path path = Files.write(folder.getRoot().toPath().resolve("empty.csv.gz"), new byte[0]);
+    assertEquals(Compression.GZIP, Compression.detect(path));
+  }
+
+  @Test
+  public void extensionIsStripped() {
+    assertEquals("transactions.csv", Compression.stripExtension("transactions.csv.gz"));
+    assertEquals("transactions.csv", Compression.stripExtension("transactions.csv.zst"));
+    assertEquals("transactions.csv", Compression.stripExtension("transactions.csv"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownFormatNameThrowsException() {
+    Compression.fromName("lz4");
+  }
+}
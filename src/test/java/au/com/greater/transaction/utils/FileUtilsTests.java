@@ -24,6 +24,11 @@ public class FileUtilsTests {
     FileUtils.readLinesFromFile(Paths.get("non-existent.csv"));
   }
 
+  @Test(expected = RuntimeException.class)
+  public void streamingMissingFileThrowsException() {
+    FileUtils.forEachLine(Paths.get("non-existent.csv"), line -> {});
+  }
+
   @Test(expected = RuntimeException.class)
   public void writingToMissingDirectoryThrowsException() {
     FileUtils.writeFile(Paths.get("/non-existent/test.csv"), "");
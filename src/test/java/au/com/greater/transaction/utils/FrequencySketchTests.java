@@ -0,0 +1,85 @@
+package au.com.greater.transaction.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link FrequencySketch}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class FrequencySketchTests {
+
+  @Test
+  public void frequenciesAreCounted() {
+    FrequencySketch sketch = new FrequencySketch(1024);
+
+    for (int i = 0; i < 5; i++) {
+      sketch.increment(42);
+    }
+    sketch.increment(7);
+
+    assertEquals(5, sketch.frequency(42));
+    assertEquals(1, sketch.frequency(7));
+    assertEquals(0, sketch.frequency(8));
+  }
+
+  @Test
+  public void countersSaturate() {
+    FrequencySketch sketch = new FrequencySketch(1024);
+
+    for (int i = 0; i < 100; i++) {
+      sketch.increment(42);
+    }
+
+    assertEquals(15, sketch.frequency(42));
+  }
+
+  @Test
+  public void popularKeysStandOut() {
+    FrequencySketch sketch = new FrequencySketch(1000);
+
+    for (int i = 0; i < 1000; i++) {
+      sketch.increment(i);
+
+      if (i % 10 == 0) {
+        for (int hot = 0; hot < 10; hot++) {
+          sketch.increment(-hot - 1);
+        }
+      }
+    }
+
+    for (int hot = 0; hot < 10; hot++) {
+      assertTrue(sketch.frequency(-hot - 1) >= 10);
+    }
+
+    int overstated = 0;
+    for (int i = 0; i < 1000; i++) {
+      overstated += sketch.frequency(i) > 1 ? 1 : 0;
+    }
+
+    assertTrue(overstated < 50);
+  }
+
+  @Test
+  public void countersAreHalvedPeriodically() {
+    FrequencySketch sketch = new FrequencySketch(16);
+
+    for (int i = 0; i < 8; i++) {
+      sketch.increment(42);
+    }
+    assertEquals(8, sketch.frequency(42));
+
+    // 160 increments trigger a reset
+    for (int i = 0; i < 152; i++) {
+      sketch.increment(1000 + i);
+    }
+
+    assertTrue(sketch.frequency(42) <= 4);
+  }
+}
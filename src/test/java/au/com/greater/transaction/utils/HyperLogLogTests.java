@@ -0,0 +1,58 @@
+package au.com.greater.transaction.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link HyperLogLog}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class HyperLogLogTests {
+
+  @Test
+  public void smallCardinalitiesAreNearlyExact() {
+    HyperLogLog hll = new HyperLogLog();
+
+    for (int i = 0; i < 100; i++) {
+      hll.add(i);
+      hll.add(i);
+    }
+
+    assertEquals(100, hll.count(), 1);
+  }
+
+  @Test
+  public void largeCardinalitiesAreEstimated() {
+    HyperLogLog hll = new HyperLogLog();
+
+    for (int i = 0; i < 5000000; i++) {
+      hll.add(i * 31);
+    }
+
+    assertEquals(5000000, hll.count(), 5000000 * 0.03);
+  }
+
+  @Test
+  public void addAll() {
+    HyperLogLog first = new HyperLogLog(12);
+    HyperLogLog second = new HyperLogLog(12);
+
+    for (int i = 0; i < 100000; i++) {
+      first.add(i);
+      second.add(i + 50000);
+    }
+
+    first.addAll(second);
+    assertEquals(150000, first.count(), 150000 * 0.05);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cannotMergeDifferentPrecisions() {
+    new HyperLogLog(12).addAll(new HyperLogLog(14));
+  }
+}
@@ -0,0 +1,73 @@
+package au.com.greater.transaction.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link IntHashSet}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class IntHashSetTests {
+
+  @Test
+  public void duplicatesAreIgnored() {
+    IntHashSet set = new IntHashSet();
+
+    for (int i = 0; i < 100000; i++) {
+      set.add(i % 1000);
+      set.add(-(i % 1000));
+    }
+
+    assertEquals(1999, set.size());
+    assertTrue(set.contains(0));
+    assertTrue(set.contains(-999));
+    assertFalse(set.contains(1000));
+  }
+
+  @Test
+  public void removedValuesAreNotFound() {
+    IntHashSet set = new IntHashSet();
+
+    for (int i = -5000; i < 5000; i++) {
+      set.add(i);
+    }
+
+    // Removing every other value leaves gaps in many probe sequences
+    for (int i = -5000; i < 5000; i += 2) {
+      assertTrue(set.remove(i));
+    }
+
+    assertFalse(set.remove(-5000));
+    assertEquals(5000, set.size());
+
+    for (int i = -5000; i < 5000; i++) {
+      assertEquals(i % 2 != 0, set.contains(i));
+    }
+  }
+
+  @Test
+  public void addAll() {
+    IntHashSet first = new IntHashSet();
+    IntHashSet second = new IntHashSet(1000);
+
+    for (int i = 0; i < 1000; i++) {
+      first.add(i);
+      second.add(i + 500);
+    }
+
+    first.addAll(second);
+    assertEquals(1500, first.count());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cannotMergeHyperLogLog() {
+    new IntHashSet().addAll(new HyperLogLog());
+  }
+}
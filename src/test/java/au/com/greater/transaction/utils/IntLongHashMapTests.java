@@ -0,0 +1,93 @@
+package au.com.greater.transaction.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link IntLongHashMap}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class IntLongHashMapTests {
+
+  @Test
+  public void valuesAreSummedPerKey() {
+    IntLongHashMap map = new IntLongHashMap();
+    Map<Integer, Long> expected = new HashMap<>();
+    Random random = new Random(42);
+
+    for (int i = 0; i < 100000; i++) {
+      int key = random.nextInt(2000) - 1000;
+      long amount = random.nextInt(20000) - 10000;
+
+      map.add(key, amount);
+      expected.merge(key, amount, Long::sum);
+    }
+
+    assertEquals(expected.size(), map.size());
+    assertTrue(map.containsKey(0));
+    assertFalse(map.containsKey(1000));
+    assertEquals(0, map.get(1000));
+
+    Map<Integer, Long> actual = new HashMap<>();
+    map.forEach(actual::put);
+    assertEquals(expected, actual);
+  }
+
+  @Test
+  public void addAll() {
+    IntLongHashMap first = new IntLongHashMap();
+    IntLongHashMap second = new IntLongHashMap(1000);
+
+    for (int i = 0; i < 1000; i++) {
+      first.add(i, 1);
+      second.add(i + 500, 2);
+    }
+
+    first.addAll(second);
+    assertEquals(1500, first.size());
+    assertEquals(1, first.get(0));
+    assertEquals(3, first.get(500));
+    assertEquals(2, first.get(1499));
+  }
+
+  @Test
+  public void overflowLeavesValueUnchanged() {
+    IntLongHashMap map = new IntLongHashMap();
+    map.add(7, Long.MAX_VALUE);
+
+    try {
+      map.add(7, 1);
+      fail("Expected overflow to be thrown");
+    } catch (ArithmeticException e) {
+      assertEquals(Long.MAX_VALUE, map.get(7));
+    }
+  }
+
+  @Test
+  public void putReplacesValues() {
+    IntLongHashMap map = new IntLongHashMap();
+
+    for (int key = 0; key < 100; key++) {
+      map.add(key, 5);
+      map.put(key, key * 2L);
+    }
+
+    assertEquals(100, map.size());
+
+    for (int key = 0; key < 100; key++) {
+      assertEquals(key * 2L, map.get(key));
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package au.com.greater.transaction.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Unit tests for {@link LongHashSet}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class LongHashSetTests {
+
+  @Test
+  public void duplicatesAreIgnored() {
+    LongHashSet set = new LongHashSet();
+
+    for (long i = 0; i < 100000; i++) {
+      set.add((i % 1000) << 32);
+      set.add(-(i % 1000));
+    }
+
+    assertEquals(1999, set.size());
+    assertTrue(set.contains(0));
+    assertTrue(set.contains(999L << 32));
+    assertTrue(set.contains(-999));
+    assertFalse(set.contains(999));
+  }
+
+  @Test
+  public void removedValuesAreNotFound() {
+    LongHashSet set = new LongHashSet();
+
+    for (long i = -5000; i < 5000; i++) {
+      set.add(i * 0x9E3779B97F4A7C15L);
+    }
+
+    // Removing every other value leaves gaps in many probe sequences
+    for (long i = -5000; i < 5000; i += 2) {
+      assertTrue(set.remove(i * 0x9E3779B97F4A7C15L));
+    }
+
+    assertFalse(set.remove(-5000 * 0x9E3779B97F4A7C15L));
+    assertEquals(5000, set.size());
+
+    for (long i = -5000; i < 5000; i++) {
+      assertEquals(i % 2 != 0, set.contains(i * 0x9E3779B97F4A7C15L));
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package au.com.greater.transaction.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link TopK}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class TopKTests {
+
+  private static List<Long> scores(TopK top) {
+    List<Long> scores = new ArrayList<>();
+    top.forEachDescending((key, score) -> scores.add(score));
+    return scores;
+  }
+
+  @Test
+  public void highestScoresAreKept() {
+    Random random = new Random(42);
+    List<Long> offered = new ArrayList<>();
+    TopK top = new TopK(10);
+
+    for (int i = 0; i < 10000; i++) {
+      long score = random.nextLong();
+      offered.add(score);
+      top.offer(i, score);
+    }
+
+    offered.sort(Collections.reverseOrder());
+    assertEquals(offered.subList(0, 10), scores(top));
+  }
+
+  @Test
+  public void fewerKeysThanK() {
+    TopK top = new TopK(10);
+    top.offer(1, 5);
+    top.offer(2, -3);
+    top.offer(3, 7);
+
+    assertEquals(3, top.size());
+    assertEquals(Arrays.asList(7L, 5L, -3L), scores(top));
+  }
+
+  @Test
+  public void zeroKeepsNothing() {
+    TopK top = new TopK(0);
+    top.offer(1, 5);
+
+    assertEquals(0, top.size());
+  }
+}
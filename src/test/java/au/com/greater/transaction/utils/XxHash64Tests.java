@@ -0,0 +1,54 @@
+package au.com.greater.transaction.utils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Unit tests for {@link XxHash64}
+ *
+ * @author Justin Lewis Salmon
+ */
+@RunWith(JUnit4.class)
+public class XxHash64Tests {
+
+  @Test
+  public void referenceValues() {
+    assertEquals(0xEF46DB3751D8E999L, new XxHash64().digest());
+    assertEquals(0xFBCEA83C8A378BF1L,
+        new XxHash64().update("Nobody inspects the spammish repetition".getBytes()).digest());
+  }
+
+  @Test
+  public void updatesInPiecesMatchSingleUpdate() {
+    Random random = new Random(42);
+    byte[] bytes = new byte[10000];
+    random.nextBytes(bytes);
+
+    for (int length : new int[] {0, 3, 4, 8, 31, 32, 33, 100, bytes.length}) {
+      long expected = new XxHash64().update(ByteBuffer.wrap(bytes, 0, length)).digest();
+      XxHash64 hash = new XxHash64();
+
+      for (int position = 0; position < length; ) {
+        int piece = Math.min(length - position, random.nextInt(40));
+        hash.update(ByteBuffer.wrap(bytes, position, piece));
+        position += piece;
+      }
+
+      assertEquals(expected, hash.digest());
+    }
+  }
+
+  @Test
+  public void updateDoesNotMoveBuffer() {
+    ByteBuffer buffer = ByteBuffer.wrap("abcdef".getBytes());
+    new XxHash64().update(buffer);
+
+    assertEquals(0, buffer.position());
+  }
+}